@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Alignment entry iteration throughput, and latency of skipTo and reposition, on a synthetic sorted alignment.
+ *
+ * @author Fabien Campagne
+ */
+
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AlignmentReaderBenchmark {
+    /**
+     * Number of copies of the fixture in the synthetic alignment.
+     */
+    @Param({"20"})
+    public int copies;
+
+    private static final int NUM_LOCATIONS = 1024;
+
+    private File directory;
+    private String basename;
+    private AlignmentReaderImpl reader;
+    /**
+     * Locations of entries of the alignment, in sorted order, as (targetIndex, position) pairs.
+     */
+    private int[][] sortedLocations;
+    /**
+     * The same locations, shuffled.
+     */
+    private int[][] randomLocations;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("goby-benchmarks").toFile();
+        basename = BenchmarkData.writeSyntheticAlignment(directory, copies);
+        final ObjectArrayList<Alignments.AlignmentEntry> entries = BenchmarkData.loadEntries(basename);
+        final Random random = new Random(1234);
+        sortedLocations = new int[NUM_LOCATIONS][];
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            final Alignments.AlignmentEntry entry = entries.get((int) ((long) i * entries.size() / NUM_LOCATIONS));
+            sortedLocations[i] = new int[]{entry.getTargetIndex(), entry.getPosition()};
+        }
+        randomLocations = sortedLocations.clone();
+        for (int i = randomLocations.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int[] tmp = randomLocations[i];
+            randomLocations[i] = randomLocations[j];
+            randomLocations[j] = tmp;
+        }
+        reader = new AlignmentReaderImpl(basename);
+        reader.readHeader();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * Entries read per second when iterating through the whole alignment.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long iterateEntries() throws IOException {
+        final AlignmentReaderImpl iterator = new AlignmentReaderImpl(basename);
+        long sum = 0;
+        try {
+            for (final Alignments.AlignmentEntry entry : iterator) {
+                sum += entry.getPosition();
+            }
+        } finally {
+            iterator.close();
+        }
+        return sum;
+    }
+
+    /**
+     * Latency of skipTo to the next of a sequence of increasing locations.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Alignments.AlignmentEntry skipTo() throws IOException {
+        if (cursor == NUM_LOCATIONS) {
+            cursor = 0;
+            reader.reposition(sortedLocations[0][0], sortedLocations[0][1]);
+        }
+        final int[] location = sortedLocations[cursor++];
+        return reader.skipTo(location[0], location[1]);
+    }
+
+    /**
+     * Latency of reposition to a random location, followed by reading the entry found there.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Alignments.AlignmentEntry reposition() throws IOException {
+        final int[] location = randomLocations[cursor++ % NUM_LOCATIONS];
+        reader.reposition(location[0], location[1]);
+        return reader.hasNext() ? reader.next() : null;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.campagnelab.goby.counts.CountsWriter;
+import org.campagnelab.goby.reads.Reads;
+import org.campagnelab.goby.reads.ReadsReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Synthetic data for the benchmarks. The data is generated by replicating the entries of the test-data fixtures, so
+ * that benchmarks run on realistic reads and alignments of a size that can be controlled with a benchmark parameter.
+ * The fixtures are located in the directory given by the goby.test-data system property, or in test-data when the
+ * benchmarks are run from the root of the project.
+ *
+ * @author Fabien Campagne
+ */
+final class BenchmarkData {
+    /**
+     * Sorted alignment fixture, relative to the test-data directory.
+     */
+    static final String SORTED_ALIGNMENT = "alignment-hybrid-codec/EJOYQAZ-small-sorted";
+    /**
+     * Reads fixture, relative to the test-data directory.
+     */
+    static final String READS = "compact-reads/small-paired.compact-reads";
+
+    private BenchmarkData() {
+    }
+
+    static File testData() {
+        final String property = System.getProperty("goby.test-data");
+        if (property != null) {
+            return new File(property);
+        }
+        final File fromRoot = new File("test-data");
+        return fromRoot.isDirectory() ? fromRoot : new File("../test-data");
+    }
+
+    static File fixture(final String path) {
+        return new File(testData(), path);
+    }
+
+    /**
+     * Load all the entries of an alignment.
+     */
+    static ObjectArrayList<Alignments.AlignmentEntry> loadEntries(final String basename) throws IOException {
+        final ObjectArrayList<Alignments.AlignmentEntry> entries = new ObjectArrayList<Alignments.AlignmentEntry>();
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+        try {
+            for (final Alignments.AlignmentEntry entry : reader) {
+                entries.add(entry);
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Build the entries of a synthetic sorted alignment: the entries of the fixture are replicated copies times, each
+     * copy placed after the previous one on each reference sequence.
+     *
+     * @param copies number of copies of the fixture.
+     * @return entries in sorted order.
+     */
+    static ObjectArrayList<Alignments.AlignmentEntry> syntheticEntries(final int copies) throws IOException {
+        final ObjectArrayList<Alignments.AlignmentEntry> fixture =
+                loadEntries(fixture(SORTED_ALIGNMENT).getPath());
+        final int[] spans = spans(fixture);
+        int maxQueryIndex = 0;
+        for (final Alignments.AlignmentEntry entry : fixture) {
+            maxQueryIndex = Math.max(maxQueryIndex, entry.getQueryIndex());
+        }
+        final ObjectArrayList<Alignments.AlignmentEntry> entries =
+                new ObjectArrayList<Alignments.AlignmentEntry>(fixture.size() * copies);
+        int start = 0;
+        while (start < fixture.size()) {
+            // entries of the fixture on the same reference:
+            final int targetIndex = fixture.get(start).getTargetIndex();
+            int end = start;
+            while (end < fixture.size() && fixture.get(end).getTargetIndex() == targetIndex) {
+                end++;
+            }
+            for (int copy = 0; copy < copies; copy++) {
+                for (int i = start; i < end; i++) {
+                    final Alignments.AlignmentEntry entry = fixture.get(i);
+                    entries.add(entry.toBuilder()
+                            .setPosition(entry.getPosition() + copy * spans[targetIndex])
+                            .setQueryIndex(entry.getQueryIndex() + copy * (maxQueryIndex + 1))
+                            .build());
+                }
+            }
+            start = end;
+        }
+        return entries;
+    }
+
+    /**
+     * Write a synthetic sorted alignment, see {@link #syntheticEntries(int)}.
+     *
+     * @param directory where the alignment is written.
+     * @param copies    number of copies of the fixture.
+     * @return the basename of the alignment.
+     */
+    static String writeSyntheticAlignment(final File directory, final int copies) throws IOException {
+        final AlignmentReaderImpl fixtureReader = new AlignmentReaderImpl(fixture(SORTED_ALIGNMENT).getPath());
+        fixtureReader.readHeader();
+        final ObjectArrayList<Alignments.AlignmentEntry> entries = syntheticEntries(copies);
+        final int[] spans = spans(entries);
+        final int[] targetLengths = new int[fixtureReader.getNumberOfTargets()];
+        for (int i = 0; i < targetLengths.length; i++) {
+            targetLengths[i] = Math.max(spans.length > i ? spans[i] : 0, 1);
+        }
+        FileUtils.forceMkdir(directory);
+        final String basename = new File(directory, "synthetic-" + copies).getPath();
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        try {
+            writer.setTargetIdentifiers(fixtureReader.getTargetIdentifiers());
+            writer.setTargetLengths(targetLengths);
+            writer.setSorted(true);
+            for (final Alignments.AlignmentEntry entry : entries) {
+                writer.appendEntry(entry);
+            }
+        } finally {
+            writer.close();
+            fixtureReader.close();
+        }
+        return basename;
+    }
+
+    /**
+     * Encode the coverage of the synthetic alignment on its first reference sequence as counts.
+     *
+     * @param copies number of copies of the fixture.
+     * @return the counts, as written by CountsWriter.
+     */
+    static byte[] syntheticCounts(final int copies) throws IOException {
+        final ObjectArrayList<Alignments.AlignmentEntry> entries = syntheticEntries(copies);
+        final IntArrayList starts = new IntArrayList();
+        final IntArrayList ends = new IntArrayList();
+        final int targetIndex = entries.isEmpty() ? 0 : entries.get(0).getTargetIndex();
+        for (final Alignments.AlignmentEntry entry : entries) {
+            if (entry.getTargetIndex() == targetIndex) {
+                starts.add(entry.getPosition());
+                ends.add(entry.getPosition() + Math.max(entry.getTargetAlignedLength(), 1));
+            }
+        }
+        final int[] sortedEnds = ends.toIntArray();
+        IntArrays.quickSort(sortedEnds);
+        final FastByteArrayOutputStream bytes = new FastByteArrayOutputStream();
+        final CountsWriter writer = new CountsWriter(bytes, 0);
+        int s = 0;
+        int e = 0;
+        int count = 0;
+        int position = 0;
+        while (s < starts.size() || e < sortedEnds.length) {
+            final int next = s < starts.size() ? Math.min(starts.getInt(s), sortedEnds[e]) : sortedEnds[e];
+            if (next > position) {
+                writer.appendCount(count, next - position);
+                position = next;
+            }
+            while (s < starts.size() && starts.getInt(s) == position) {
+                count++;
+                s++;
+            }
+            while (e < sortedEnds.length && sortedEnds[e] == position) {
+                count--;
+                e++;
+            }
+        }
+        writer.close();
+        return Arrays.copyOf(bytes.array, bytes.length);
+    }
+
+    /**
+     * Load the reads of the reads fixture, replicated until numReads reads are obtained.
+     */
+    static ObjectArrayList<Reads.ReadEntry> syntheticReads(final int numReads) throws IOException {
+        final ObjectArrayList<Reads.ReadEntry> fixture = new ObjectArrayList<Reads.ReadEntry>();
+        final ReadsReader reader = new ReadsReader(fixture(READS));
+        try {
+            for (final Reads.ReadEntry entry : reader) {
+                fixture.add(entry);
+            }
+        } finally {
+            reader.close();
+        }
+        final ObjectArrayList<Reads.ReadEntry> reads = new ObjectArrayList<Reads.ReadEntry>(numReads);
+        for (int i = 0; i < numReads; i++) {
+            reads.add(fixture.get(i % fixture.size()).toBuilder().setReadIndex(i).build());
+        }
+        return reads;
+    }
+
+    /**
+     * For each reference sequence, one past the largest position covered by an entry.
+     */
+    private static int[] spans(final ObjectArrayList<Alignments.AlignmentEntry> entries) {
+        int numTargets = 0;
+        for (final Alignments.AlignmentEntry entry : entries) {
+            numTargets = Math.max(numTargets, entry.getTargetIndex() + 1);
+        }
+        final int[] spans = new int[numTargets];
+        for (final Alignments.AlignmentEntry entry : entries) {
+            final int end = entry.getPosition() + Math.max(entry.getTargetAlignedLength(), 1) + 1;
+            spans[entry.getTargetIndex()] = Math.max(spans[entry.getTargetIndex()], end);
+        }
+        return spans;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import com.google.protobuf.Message;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.goby.alignments.AlignmentCollectionHandler;
+import org.campagnelab.goby.alignments.Alignments;
+import org.campagnelab.goby.compression.HybridChunkCodec2;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of HybridChunkCodec2 with the AlignmentCollectionHandler, encoding and decoding one chunk of
+ * alignment entries. Scores are chunks per second; multiply by chunkSize for entries per second.
+ *
+ * @author Fabien Campagne
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChunkCodecBenchmark {
+    @Param({"10000"})
+    public int chunkSize;
+
+    private HybridChunkCodec2 codec;
+    private Alignments.AlignmentCollection collection;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        final ObjectArrayList<Alignments.AlignmentEntry> entries =
+                BenchmarkData.syntheticEntries(1 + chunkSize / 1000);
+        final Alignments.AlignmentCollection.Builder builder = Alignments.AlignmentCollection.newBuilder();
+        for (int i = 0; i < Math.min(chunkSize, entries.size()); i++) {
+            builder.addAlignmentEntries(entries.get(i));
+        }
+        collection = builder.build();
+        codec = new HybridChunkCodec2();
+        codec.setHandler(new AlignmentCollectionHandler());
+        encoded = codec.encode(collection).toByteArray();
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream encode() throws IOException {
+        return codec.encode(collection);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return codec.decode(encoded);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import org.campagnelab.goby.counts.CountsReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count transitions decoded per second by CountsReader, on counts derived from the coverage of a synthetic
+ * alignment. Scores are complete passes over the counts per second.
+ *
+ * @author Fabien Campagne
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CountsReaderBenchmark {
+    /**
+     * Number of copies of the fixture in the synthetic alignment the counts are derived from.
+     */
+    @Param({"20"})
+    public int copies;
+
+    private byte[] counts;
+
+    @Setup
+    public void setup() throws IOException {
+        counts = BenchmarkData.syntheticCounts(copies);
+    }
+
+    @Benchmark
+    public long transitions() throws IOException {
+        final CountsReader reader = new CountsReader(new ByteArrayInputStream(counts));
+        long sum = 0;
+        try {
+            while (reader.hasNextTransition()) {
+                reader.nextTransition();
+                sum += reader.getCount();
+            }
+        } finally {
+            reader.close();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long positions() throws IOException {
+        final CountsReader reader = new CountsReader(new ByteArrayInputStream(counts));
+        long sum = 0;
+        try {
+            while (reader.hasNextPosition()) {
+                sum += reader.nextCountAtPosition();
+            }
+        } finally {
+            reader.close();
+        }
+        return sum;
+    }
+}
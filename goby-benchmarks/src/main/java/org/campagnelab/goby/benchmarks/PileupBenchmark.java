@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.algorithmic.dsv.DiscoverVariantPositionData;
+import org.campagnelab.goby.modes.dsv.IterateSortedAlignmentsListImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pileup iteration with IterateSortedAlignmentsListImpl over a synthetic sorted alignment. Scores are complete
+ * iterations per second.
+ *
+ * @author Fabien Campagne
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PileupBenchmark {
+    /**
+     * Number of copies of the fixture in the synthetic alignment.
+     */
+    @Param({"20"})
+    public int copies;
+
+    private File directory;
+    private String basename;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("goby-benchmarks").toFile();
+        basename = BenchmarkData.writeSyntheticAlignment(directory, copies);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public long iterate() throws IOException {
+        final long[] bases = new long[1];
+        final IterateSortedAlignmentsListImpl iterator = new IterateSortedAlignmentsListImpl() {
+            @Override
+            public void processPositions(final int referenceIndex, final int intermediatePosition,
+                                         final DiscoverVariantPositionData positionBaseInfos) {
+                bases[0] += positionBaseInfos.size();
+            }
+        };
+        iterator.iterate(basename);
+        return bases[0];
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.benchmarks;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.campagnelab.goby.reads.ReadCodec2;
+import org.campagnelab.goby.reads.Reads;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of ReadCodec2, encoding and decoding one chunk of reads. Scores are chunks per second.
+ *
+ * @author Fabien Campagne
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadCodecBenchmark {
+    @Param({"10000"})
+    public int chunkSize;
+
+    private ObjectArrayList<Reads.ReadEntry> reads;
+    private ObjectArrayList<Reads.ReadEntry> encoded;
+    private ReadCodec2 codec;
+
+    @Setup
+    public void setup() throws IOException {
+        reads = BenchmarkData.syntheticReads(chunkSize);
+        codec = new ReadCodec2();
+        encoded = new ObjectArrayList<Reads.ReadEntry>(chunkSize);
+        for (final Reads.ReadEntry read : reads) {
+            encoded.add(codec.encode(read.toBuilder()).build());
+        }
+    }
+
+    @Benchmark
+    public void encode(final Blackhole blackhole) {
+        codec.newChunk();
+        for (final Reads.ReadEntry read : reads) {
+            blackhole.consume(codec.encode(read.toBuilder()));
+        }
+    }
+
+    @Benchmark
+    public void decode(final Blackhole blackhole) {
+        codec.newChunk();
+        for (final Reads.ReadEntry read : encoded) {
+            blackhole.consume(codec.decode(read));
+        }
+    }
+}
@@ -23,6 +23,8 @@ import org.campagnelab.goby.modes.WeightParameters;
 import org.campagnelab.goby.algorithmic.data.WeightsInfo;
 import org.campagnelab.goby.alignments.AlignmentReader;
 import org.campagnelab.goby.alignments.IterateAlignments;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
 import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
 import it.unimi.dsi.fastutil.ints.IntSortedSet;
 
@@ -39,6 +41,15 @@ public class AnnotationCountIterateAlignments extends IterateAlignments {
     private WeightParameters weightParams;
     private WeightsInfo weights;
 
+    public static final DynamicOptionClient doc() {
+        return doc;
+    }
+
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(AnnotationCountIterateAlignments.class,
+            "sweep-line:boolean, when true count reads with sorted arrays of read starts and ends and prefix sums of " +
+                    "coverage. When false use the hash map implementation. Weighted counts always use the latter.:true"
+    );
 
     /**
      * Retrieves the populated instances of AnnotationCountInterface.
@@ -84,7 +95,8 @@ public class AnnotationCountIterateAlignments extends IterateAlignments {
         if (numAlignedReadsInSample == -1) {
             numAlignedReadsInSample = alignmentReader.getNumberOfAlignedReads();
         }
-        AnnotationCountInterface algo = new AnnotationCount();
+        AnnotationCountInterface algo = doc.getBoolean("sweep-line") ? new SweepLineAnnotationCount() :
+                new AnnotationCount();
 
         algo = chooseAlgorithm(weightParams, weights, algo);
         algs[referenceIndex] = algo;
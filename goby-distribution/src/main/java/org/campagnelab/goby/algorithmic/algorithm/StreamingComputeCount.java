@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2009-2010 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import it.unimi.dsi.fastutil.ints.Int2IntAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2IntSortedMap;
+import org.campagnelab.goby.counts.CountsWriterI;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+
+import java.io.IOException;
+
+/**
+ * Computes the same base-level read coverage histogram as {@link ComputeCount}, for reads populated in increasing
+ * order of start position, as found in sorted alignments. Only the positions where reads that are still open may
+ * end are kept in memory. The transitions before the start of the last read populated are final, and are written
+ * to the counts writer immediately. Memory therefore grows with the number of reads that overlap a position,
+ * instead of with the number of reads aligned to the reference sequence.
+ *
+ * @author Fabien Campagne
+ */
+public class StreamingComputeCount {
+    private final CountsWriterI writer;
+
+    /**
+     * Change in count at the positions that have not been written yet: +1 for each read that starts at a position,
+     * -1 for each read that ends immediately before a position.
+     */
+    private final Int2IntSortedMap pendingChanges = new Int2IntAVLTreeMap();
+
+    private int lastStart;
+    /**
+     * Last position whose change in count was applied. Like ComputeCount, counts are written starting at
+     * position zero.
+     */
+    private int previousPosition;
+    private int count;
+    private int writtenCount;
+    private int lengthConstant;
+
+    /**
+     * @param writer Writer that receives the transitions. The writer is closed when this object is closed.
+     */
+    public StreamingComputeCount(final CountsWriterI writer) {
+        this.writer = writer;
+        pendingChanges.defaultReturnValue(0);
+    }
+
+    /**
+     * Populate with a read. Reads must be populated in increasing order of start position.
+     *
+     * @param startIndex Start position of the read ON or BEFORE the startIndex on the reference sequence.
+     * @param endIndex   End position of the read BEFORE the endIndex on the reference sequence.
+     * @throws IOException if the transitions that became final cannot be written.
+     */
+    public void populate(final int startIndex, final int endIndex) throws IOException {
+        // reads that start before the reference sequence are counted from position zero:
+        final int start = Math.max(0, startIndex);
+        if (start < lastStart) {
+            throw new GobyRuntimeException(String.format(
+                    "Reads must be populated in increasing order of start position, found start %d after %d.",
+                    start, lastStart));
+        }
+        lastStart = start;
+        // no read populated from now on can start or end before this read starts:
+        writeBefore(start);
+        pendingChanges.put(start, pendingChanges.get(start) + 1);
+        pendingChanges.put(endIndex + 1, pendingChanges.get(endIndex + 1) - 1);
+    }
+
+    private void writeBefore(final int position) throws IOException {
+        // pendingChanges is sorted, so this stops at the first position that may still change:
+        while (!pendingChanges.isEmpty() && pendingChanges.firstIntKey() < position) {
+            final int changePosition = pendingChanges.firstIntKey();
+            apply(changePosition, pendingChanges.remove(changePosition));
+        }
+    }
+
+    private void apply(final int position, final int change) throws IOException {
+        count += change;
+        if (position == previousPosition) {
+            // changes at position zero are only accounted for at the next position, as in ComputeCount.
+            return;
+        }
+        lengthConstant += position - previousPosition;
+        previousPosition = position;
+        if (count != writtenCount) {
+            writer.appendCount(writtenCount, lengthConstant);
+            writtenCount = count;
+            lengthConstant = 0;
+        }
+    }
+
+    /**
+     * Write the remaining transitions and close the counts writer.
+     *
+     * @throws IOException if the transitions cannot be written.
+     */
+    public void close() throws IOException {
+        while (!pendingChanges.isEmpty()) {
+            final int changePosition = pendingChanges.firstIntKey();
+            apply(changePosition, pendingChanges.remove(changePosition));
+        }
+        writer.close();
+    }
+}
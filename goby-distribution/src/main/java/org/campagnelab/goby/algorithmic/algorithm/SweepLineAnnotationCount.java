@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import org.campagnelab.goby.algorithmic.data.Annotation;
+
+/**
+ * Estimates counts for annotations with sorted primitive arrays, as an alternative to AnnotationCount, which stores
+ * reads as objects and cumulative start/end counts in hash maps. Reads are appended to an array as they are
+ * populated. Once all the reads of a reference sequence are known, a single sweep over the sorted read starts and
+ * ends builds the coverage step function and its prefix sums. Each annotation query then costs a few binary searches:
+ * <ul>
+ * <li>overlapping reads: reads that start at or before the end of the interval, minus reads that end before its
+ * start,</li>
+ * <li>average depth: difference of the prefix sums of coverage at the interval bounds,</li>
+ * <li>reads within the interval: reads that start in the interval early enough that even the longest read ends in it
+ * are counted at once, only reads that start close to the end of the interval are examined.</li>
+ * </ul>
+ * Positions follow the conventions of AnnotationCount: a read populated with (start, end) covers positions start to
+ * end inclusive. The methods must be called in this order: startPopulating, populate, sortReads, accumulate,
+ * baseCount, then any of the count methods.
+ *
+ * @author Fabien Campagne
+ */
+public class SweepLineAnnotationCount implements AnnotationCountInterface {
+    /**
+     * Reads, packed as start in the high 32 bits and end in the low 32 bits, until sortReads is called.
+     */
+    private long[] reads;
+    private int numReads;
+    /**
+     * Start of each read, in increasing order.
+     */
+    private int[] starts;
+    /**
+     * End of each read, in the order of starts.
+     */
+    private int[] ends;
+    /**
+     * End of each read, in increasing order.
+     */
+    private int[] sortedEnds;
+    /**
+     * Largest value of end-start over all reads.
+     */
+    private int maxReadSpan;
+    /**
+     * Positions where coverage changes, in increasing order, starting with position zero.
+     */
+    private int[] coverageKeys;
+    /**
+     * Coverage from coverageKeys[k] (inclusive) to coverageKeys[k+1] (exclusive).
+     */
+    private int[] coverage;
+    /**
+     * Sum of coverage over the positions before coverageKeys[k].
+     */
+    private long[] coverageSums;
+
+    public void startPopulating() {
+        reads = new long[1024];
+        numReads = 0;
+        maxReadSpan = 0;
+    }
+
+    /**
+     * Populate with a read. This implementation ignores queryIndex.
+     *
+     * @param startPosition position where the read starts.
+     * @param endPosition   position where the read ends (inclusive).
+     * @param queryIndex    ignored.
+     */
+    public void populate(final int startPosition, final int endPosition, final int queryIndex) {
+        populate(startPosition, endPosition);
+    }
+
+    public final void populate(final int startPosition, final int endPosition) {
+        assert startPosition >= 0 && endPosition >= startPosition : "read positions must be positive and ordered.";
+        if (numReads == reads.length) {
+            reads = LongArrays.grow(reads, numReads + 1);
+        }
+        reads[numReads++] = ((long) startPosition << 32) | (endPosition & 0xFFFFFFFFL);
+        maxReadSpan = Math.max(maxReadSpan, endPosition - startPosition);
+    }
+
+    public void sortReads() {
+        LongArrays.radixSort(reads, 0, numReads);
+        starts = new int[numReads];
+        ends = new int[numReads];
+        for (int i = 0; i < numReads; i++) {
+            starts[i] = (int) (reads[i] >>> 32);
+            ends[i] = (int) reads[i];
+        }
+        reads = null;
+    }
+
+    public void accumulate() {
+        sortedEnds = ends.clone();
+        IntArrays.radixSort(sortedEnds);
+    }
+
+    /**
+     * Sweep over read starts and ends to build the coverage step function and its prefix sums.
+     */
+    public void baseCount() {
+        final int capacity = 2 * numReads + 1;
+        coverageKeys = new int[capacity];
+        coverage = new int[capacity];
+        coverageSums = new long[capacity];
+        int k = 0;
+        int depth = 0;
+        int s = 0;
+        int e = 0;
+        while (s < numReads || e < numReads) {
+            // a read stops covering the position after its end:
+            final int nextEnd = e < numReads ? sortedEnds[e] + 1 : Integer.MAX_VALUE;
+            final int position = s < numReads ? Math.min(starts[s], nextEnd) : nextEnd;
+            while (s < numReads && starts[s] == position) {
+                depth++;
+                s++;
+            }
+            while (e < numReads && sortedEnds[e] + 1 == position) {
+                depth--;
+                e++;
+            }
+            if (position != coverageKeys[k]) {
+                k++;
+                coverageKeys[k] = position;
+                coverageSums[k] = coverageSums[k - 1] + (long) coverage[k - 1] * (position - coverageKeys[k - 1]);
+            }
+            coverage[k] = depth;
+        }
+        coverageKeys = IntArrays.trim(coverageKeys, k + 1);
+        coverage = IntArrays.trim(coverage, k + 1);
+        coverageSums = LongArrays.trim(coverageSums, k + 1);
+    }
+
+    /**
+     * Sum of coverage over the positions before position.
+     */
+    private long coverageBefore(final int position) {
+        if (position <= 0) {
+            return 0;
+        }
+        final int k = upperBound(coverageKeys, coverageKeys.length, position) - 1;
+        return coverageSums[k] + (long) coverage[k] * (position - coverageKeys[k]);
+    }
+
+    public float averageReadsPerPosition(final int geneStart, final int geneEnd) {
+        if (geneEnd < geneStart) {
+            return 0;
+        }
+        final long sum = coverageBefore(geneEnd + 1) - coverageBefore(geneStart);
+        return ((float) sum) / ((float) (geneEnd - geneStart + 1));
+    }
+
+    public double countReadsPartiallyOverlappingWithInterval(final int geneStart, final int geneEnd) {
+        return upperBound(starts, numReads, geneEnd) - lowerBound(sortedEnds, numReads, geneStart);
+    }
+
+    public double countReadsStriclyWithinInterval(final int geneStart, final int geneEnd) {
+        if (geneEnd < geneStart) {
+            return 0;
+        }
+        final int first = lowerBound(starts, numReads, geneStart);
+        // reads that start at or before this position end within the interval, whatever their length:
+        final long lastStartFullyContained = (long) geneEnd - maxReadSpan;
+        int i = first;
+        int count = 0;
+        if (lastStartFullyContained >= geneStart) {
+            i = upperBound(starts, numReads, (int) lastStartFullyContained);
+            count = i - first;
+        }
+        while (i < numReads && starts[i] <= geneEnd) {
+            if (ends[i] <= geneEnd) {
+                count++;
+            }
+            i++;
+        }
+        return count;
+    }
+
+    public double geneExpressionCount(final Annotation annot) {
+        double sum = countReadsPartiallyOverlappingWithInterval(annot.getStart(), annot.getEnd());
+        final int numIntrons = annot.getSegments().size() - 1;
+        for (int k = 0; k < numIntrons; k++) {
+            sum -= countReadsStriclyWithinInterval(annot.getSegments().get(k).getEnd() + 1,
+                    annot.getSegments().get(k + 1).getStart() - 1);
+        }
+        return sum;
+    }
+
+    /**
+     * Return the number of elements of the sorted array that are strictly smaller than key.
+     */
+    private static int lowerBound(final int[] sorted, final int length, final int key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Return the number of elements of the sorted array that are smaller or equal to key.
+     */
+    private static int upperBound(final int[] sorted, final int length, final int key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sorted[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
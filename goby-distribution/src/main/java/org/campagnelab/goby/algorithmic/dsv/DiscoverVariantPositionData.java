@@ -23,6 +23,7 @@ import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import org.campagnelab.goby.algorithmic.indels.EquivalentIndelRegion;
 import org.campagnelab.goby.alignments.Alignments;
 import org.campagnelab.goby.alignments.PositionBaseInfo;
+import org.campagnelab.goby.util.pool.Resettable;
 
 import java.util.Collections;
 import java.util.Random;
@@ -35,7 +36,7 @@ import java.util.Random;
  *         Date: 6/6/11
  *         Time: 3:27 PM
  */
-public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInfo> {
+public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInfo> implements Resettable {
     private static final long serialVersionUID = 9212001398502402859L;
     private char referenceBase;
     private ObjectArraySet<EquivalentIndelRegion> candidateIndels;
@@ -49,12 +50,13 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
         return position;
     }
 
+    @SuppressWarnings("unchecked")
     public DiscoverVariantPositionData() {
         super();
         position = -1;
         filtered = new ObjectArraySet[5];
         for (int baseIndex = 0; baseIndex < SampleCountInfo.BASE_MAX_INDEX; baseIndex++) {
-            filtered[baseIndex] = new ObjectArraySet();
+            filtered[baseIndex] = new ObjectArraySet<PositionBaseInfo>();
         }
 
     }
@@ -69,17 +71,39 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
             failedIndels.clear();
         }
         if (filtered != null) {
-            for (ObjectArraySet set : filtered) {
+            for (ObjectArraySet<PositionBaseInfo> set : filtered) {
                 set.clear();
             }
         }
         numObservations=0;
     }
 
+    /**
+     * Clear this instance and forget its position, so that it can be reused for another position. The capacity of
+     * the list is preserved.
+     */
+    @Override
+    public void reset() {
+        clear();
+        position = -1;
+        referenceBase = '\0';
+    }
+
+    /**
+     * Associate a cleared instance with a new position.
+     *
+     * @param position      zero-based position on the reference sequence.
+     * @param referenceBase base of the reference sequence at position.
+     */
+    public void setPosition(final int position, final char referenceBase) {
+        this.position = position;
+        this.referenceBase = referenceBase;
+    }
+
     /**
      * Count of genotypes that were flagged for removal by some filter in this sample.
      */
-    public ObjectArraySet filtered[];
+    public ObjectArraySet<PositionBaseInfo> filtered[];
 
     @Override
     public String toString() {
@@ -158,6 +182,39 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
         }
     }
 
+    /**
+     * Copy this instance. The bases are copied, so that the copy is not affected when this instance is reset and
+     * reused for another position. Indels are shared between this instance and the copy.
+     *
+     * @return a copy of this instance.
+     */
+    public DiscoverVariantPositionData copy() {
+        final DiscoverVariantPositionData copy = new DiscoverVariantPositionData(position, referenceBase);
+        copy.SUB_SAMPLE_SIZE = SUB_SAMPLE_SIZE;
+        copy.numObservations = numObservations;
+        copy.ensureCapacity(size());
+        for (final PositionBaseInfo info : this) {
+            copy.addCopy(new PositionBaseInfo(info));
+        }
+        if (candidateIndels != null) {
+            copy.candidateIndels = new ObjectArraySet<EquivalentIndelRegion>(candidateIndels);
+        }
+        if (failedIndels != null) {
+            copy.failedIndels = new ObjectArraySet<EquivalentIndelRegion>(failedIndels);
+        }
+        for (int baseIndex = 0; baseIndex < filtered.length; baseIndex++) {
+            if (filtered[baseIndex] != null) {
+                copy.filtered[baseIndex] = new ObjectArraySet<PositionBaseInfo>(filtered[baseIndex]);
+            }
+        }
+        return copy;
+    }
+
+    private void addCopy(final PositionBaseInfo info) {
+        // bypass sub-sampling, the bases of this list have already been sampled.
+        super.add(info);
+    }
+
     public String completeToString() {
         return super.toString();
 
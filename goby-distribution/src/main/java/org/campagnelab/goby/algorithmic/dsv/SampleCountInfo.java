@@ -62,6 +62,44 @@ public class SampleCountInfo {
         this.counts[1] = new int[5];
     }
 
+    /**
+     * Copy this instance, so that the copy is not affected when this instance is cleared and reused for another
+     * position. Indels are shared between this instance and the copy.
+     *
+     * @return a copy of this instance.
+     */
+    public SampleCountInfo copy() {
+        final SampleCountInfo copy = new SampleCountInfo();
+        copy.referenceBase = referenceBase;
+        copy.distinctReadIndices = new IntArraySet(distinctReadIndices);
+        copy.sampleIndex = sampleIndex;
+        copy.varCount = varCount;
+        copy.refCount = refCount;
+        copy.failedCount = failedCount;
+        copy.counts[0] = counts[0].clone();
+        copy.counts[1] = counts[1].clone();
+        copy.filtered = filtered.clone();
+        if (indels != null) {
+            copy.indels = new ObjectArrayList<EquivalentIndelRegion>(indels);
+        }
+        copy.sumOfCounts = sumOfCounts;
+        return copy;
+    }
+
+    /**
+     * Copy each element of an array of sample counts.
+     *
+     * @param sampleCounts the counts to copy.
+     * @return an array of copies.
+     */
+    public static SampleCountInfo[] copy(final SampleCountInfo[] sampleCounts) {
+        final SampleCountInfo[] copies = new SampleCountInfo[sampleCounts.length];
+        for (int sampleIndex = 0; sampleIndex < sampleCounts.length; sampleIndex++) {
+            copies[sampleIndex] = sampleCounts[sampleIndex].copy();
+        }
+        return copies;
+    }
+
     /**
      * While base genotypes were flagged for removal by some filter in this sample.
      */
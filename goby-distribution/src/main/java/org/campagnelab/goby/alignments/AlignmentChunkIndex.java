@@ -0,0 +1,241 @@
+package org.campagnelab.goby.alignments;
+
+import com.google.protobuf.CodedInputStream;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The index of a sorted alignment: for each indexed chunk, the absolute position of the first entry in the chunk
+ * and the offset of the chunk in the entries file. Absolute positions are sorted and searched in place.
+ * <p>
+ * Two storage layouts are supported. The legacy .index file is a GZIP compressed protobuf message, which must be
+ * decompressed and copied to the heap when loaded. The .index2 file stores the same information uncompressed
+ * with fixed-width fields, and is memory-mapped when the alignment is opened, so that loading the index takes
+ * constant time and the index pages are shared by all processes that read the alignment. The .index2 layout is:
+ * </p>
+ * <pre>
+ * int  magic number
+ * int  format version
+ * long number of indexed chunks (n)
+ * long length of the entries file the index was built for
+ * long last-modified time of the entries file the index was built for, in milliseconds
+ * long[n] absolute positions
+ * long[n] offsets in the entries file
+ * </pre>
+ * All values are stored big-endian. The .index2 file is ignored when the length or last-modified time of the
+ * entries file differ from those recorded, or when it is older than the entries or .index files, since the
+ * alignment was then rewritten by a tool that did not update the .index2 file.
+ *
+ * @author Fabien Campagne
+ */
+public class AlignmentChunkIndex {
+    private static final Log LOG = LogFactory.getLog(AlignmentChunkIndex.class);
+
+    /**
+     * Extension of the memory-mapped index file.
+     */
+    public static final String MAPPED_INDEX_EXTENSION = ".index2";
+
+    private static final int MAGIC = 0x47424932; // "GBI2"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+
+    private final LongBuffer absolutePositions;
+    private final LongBuffer offsets;
+    private final int size;
+
+    private AlignmentChunkIndex(final LongBuffer absolutePositions, final LongBuffer offsets) {
+        assert absolutePositions.limit() == offsets.limit() : "index sizes must be consistent.";
+        this.absolutePositions = absolutePositions;
+        this.offsets = offsets;
+        this.size = absolutePositions.limit();
+    }
+
+    /**
+     * Load the index of an alignment. The memory-mapped .index2 file is used when it exists and matches the entries
+     * file. Otherwise, the legacy .index file is loaded on the heap.
+     *
+     * @param basename basename of the alignment.
+     * @return the index of the alignment.
+     * @throws IOException if neither index can be read.
+     */
+    public static AlignmentChunkIndex load(final String basename) throws IOException {
+        final AlignmentChunkIndex mapped = map(basename);
+        return mapped != null ? mapped : loadLegacy(basename);
+    }
+
+    /**
+     * Load the legacy, protobuf .index file of an alignment on the heap.
+     *
+     * @param basename basename of the alignment.
+     * @return the index of the alignment.
+     * @throws IOException if the index cannot be read.
+     */
+    public static AlignmentChunkIndex loadLegacy(final String basename) throws IOException {
+        final GZIPInputStream indexStream = new GZIPInputStream(new RepositionableInputStream(basename + ".index"));
+        try {
+            final CodedInputStream codedInput = CodedInputStream.newInstance(indexStream);
+            codedInput.setSizeLimit(Integer.MAX_VALUE);
+            final Alignments.AlignmentIndex index = Alignments.AlignmentIndex.parseFrom(codedInput);
+            final long[] absolutePositions = new long[index.getAbsolutePositionsCount()];
+            final long[] offsets = new long[index.getOffsetsCount()];
+            for (int i = 0; i < absolutePositions.length; i++) {
+                absolutePositions[i] = index.getAbsolutePositions(i);
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = index.getOffsets(i);
+            }
+            return new AlignmentChunkIndex(LongBuffer.wrap(absolutePositions), LongBuffer.wrap(offsets));
+        } finally {
+            IOUtils.closeQuietly(indexStream);
+        }
+    }
+
+    /**
+     * Memory-map the .index2 file of an alignment.
+     *
+     * @param basename basename of the alignment.
+     * @return the mapped index, or null if the file does not exist, is not local, or was not built for the current
+     * entries file.
+     * @throws IOException if an error occurs mapping the file.
+     */
+    public static AlignmentChunkIndex map(final String basename) throws IOException {
+        final File file = new File(basename + MAPPED_INDEX_EXTENSION);
+        if (!file.exists()) {
+            return null;
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                LOG.warn("Ignoring truncated index " + file.getPath());
+                return null;
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LOG.warn("Ignoring index with unsupported format " + file.getPath());
+                return null;
+            }
+            final long numChunks = buffer.getLong(8);
+            final long entriesLength = buffer.getLong(16);
+            final long entriesLastModified = buffer.getLong(24);
+            final File entries = new File(basename + ".entries");
+            final File legacyIndex = new File(basename + ".index");
+            if (entries.length() != entriesLength || entries.lastModified() != entriesLastModified
+                    || file.lastModified() < entries.lastModified()
+                    || (legacyIndex.exists() && file.lastModified() < legacyIndex.lastModified())) {
+                LOG.warn("Ignoring stale index " + file.getPath() + ", the alignment has changed since it was built.");
+                return null;
+            }
+            if (channel.size() != HEADER_SIZE + 16 * numChunks) {
+                LOG.warn("Ignoring truncated index " + file.getPath());
+                return null;
+            }
+            buffer.position(HEADER_SIZE);
+            final LongBuffer longs = buffer.slice().asLongBuffer();
+            longs.limit((int) numChunks);
+            final LongBuffer absolutePositions = longs.slice();
+            longs.clear();
+            longs.position((int) numChunks);
+            final LongBuffer offsets = longs.slice();
+            return new AlignmentChunkIndex(absolutePositions, offsets);
+        } finally {
+            // the mapping remains valid after the channel is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Write the .index2 file of an alignment.
+     *
+     * @param basename          basename of the alignment.
+     * @param offsets           offset of each indexed chunk in the entries file.
+     * @param absolutePositions absolute position of the first entry of each indexed chunk.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void writeMapped(final String basename, final LongList offsets, final LongList absolutePositions)
+            throws IOException {
+        new AlignmentChunkIndex(LongBuffer.wrap(absolutePositions.toLongArray()),
+                LongBuffer.wrap(offsets.toLongArray())).writeMapped(basename);
+    }
+
+    /**
+     * Write this index in the .index2 format, for the current entries file of the alignment. The entries and .index
+     * files must be complete when this method is called.
+     *
+     * @param basename basename of the alignment.
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeMapped(final String basename) throws IOException {
+        final File entries = new File(basename + ".entries");
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(basename + MAPPED_INDEX_EXTENSION)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(size);
+            output.writeLong(entries.length());
+            output.writeLong(entries.lastModified());
+            for (int i = 0; i < size; i++) {
+                output.writeLong(absolutePositions.get(i));
+            }
+            for (int i = 0; i < size; i++) {
+                output.writeLong(offsets.get(i));
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Return the number of indexed chunks.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the offset in the entries file of an indexed chunk.
+     */
+    public long getOffset(final int index) {
+        return offsets.get(index);
+    }
+
+    /**
+     * Return the absolute position of the first entry of an indexed chunk.
+     */
+    public long getAbsolutePosition(final int index) {
+        return absolutePositions.get(index);
+    }
+
+    /**
+     * Search the absolute positions for a key, with the same contract as {@link java.util.Arrays#binarySearch(long[], long)}.
+     *
+     * @param absolutePosition the key to search for.
+     * @return index of the key if found, otherwise (-(insertion point) - 1).
+     */
+    public int binarySearch(final long absolutePosition) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midValue = absolutePositions.get(mid);
+            if (midValue < absolutePosition) {
+                low = mid + 1;
+            } else if (midValue > absolutePosition) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -50,6 +50,7 @@ import org.apache.commons.logging.LogFactory;
 import java.io.*;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 
 /**
@@ -114,6 +115,66 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
         return doc;
     }
 
+    /**
+     * Groups of optional fields that decompressCollection restores on the entries it returns.
+     */
+    private EnumSet<AlignmentEntryField> fields = EnumSet.allOf(AlignmentEntryField.class);
+    private boolean decodeQualities = true;
+    private boolean decodeVariations = true;
+    private boolean decodeSamples = true;
+    private boolean decodeLinks = true;
+    private boolean decodeSoftClips = true;
+    /**
+     * Index of the last group of streams that decompressBits needs to decode for the requested fields. Streams are
+     * arithmetic coded without a length prefix, so the groups written after the last one needed are simply not read.
+     */
+    private int lastStreamGroup = STREAMS_SOFT_CLIP_QUALITIES;
+    private static final int STREAMS_CORE = 0;
+    private static final int STREAMS_READ_QUALITIES = 1;
+    private static final int STREAMS_SAMPLES = 2;
+    private static final int STREAMS_PAIR_FLAGS_AND_SCORES = 3;
+    private static final int STREAMS_SOFT_CLIP_BASES = 4;
+    private static final int STREAMS_LINK_OFFSETS = 5;
+    private static final int STREAMS_SOFT_CLIP_QUALITIES = 6;
+
+    /**
+     * Restrict the optional fields restored on decompressed entries. Core fields are always restored. Entries
+     * decompressed after this call may lack the fields that were not requested.
+     *
+     * @param fields groups of optional fields to restore.
+     */
+    public void setFields(final EnumSet<AlignmentEntryField> fields) {
+        this.fields = EnumSet.copyOf(fields);
+        decodeVariations = fields.contains(AlignmentEntryField.SEQUENCE_VARIATIONS);
+        // variations get the quality of their bases from the read quality scores:
+        decodeQualities = decodeVariations || fields.contains(AlignmentEntryField.READ_QUALITY_SCORES);
+        decodeSamples = fields.contains(AlignmentEntryField.SAMPLE_AND_READ_ORIGIN);
+        decodeLinks = fields.contains(AlignmentEntryField.LINKS);
+        decodeSoftClips = fields.contains(AlignmentEntryField.SOFT_CLIPS);
+        int last = STREAMS_CORE;
+        if (decodeQualities) {
+            last = STREAMS_READ_QUALITIES;
+        }
+        if (decodeSamples) {
+            last = STREAMS_SAMPLES;
+        }
+        if (fields.contains(AlignmentEntryField.PAIR_FLAGS) || fields.contains(AlignmentEntryField.SCORE)) {
+            last = STREAMS_PAIR_FLAGS_AND_SCORES;
+        }
+        if (decodeLinks) {
+            // links need the pair flags to restore insert sizes:
+            last = STREAMS_LINK_OFFSETS;
+        }
+        if (decodeSoftClips) {
+            last = STREAMS_SOFT_CLIP_QUALITIES;
+        }
+        lastStreamGroup = last;
+    }
+
+    public EnumSet<AlignmentEntryField> getFields() {
+        return EnumSet.copyOf(fields);
+    }
+
     private int previousPosition;
     private int previousTargetIndex;
     private int deltaPosIndex = 0;
@@ -450,8 +511,12 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
                 originalIndex++;
             }
         }
-        restoreStrings(result);
-        restoreLinks(result);
+        if (decodeSoftClips) {
+            restoreStrings(result);
+        }
+        if (decodeLinks) {
+            restoreLinks(result);
+        }
         ++chunkIndex;
         return result.build();
     }
@@ -1176,21 +1241,33 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
 
         decodeQueryIndices("queryIndices", numEntriesInChunk, bitInput, queryIndices);
 
+        if (lastStreamGroup < STREAMS_READ_QUALITIES) {
+            return streamVersion;
+        }
         if (streamVersion >= 2) {
 
             decodeArithmetic("numReadQualityScores", numEntriesInChunk, bitInput, numReadQualityScores);
             decodeArithmetic("allReadQualityScores", numEntriesInChunk, bitInput, allReadQualityScores);
         }
+        if (lastStreamGroup < STREAMS_SAMPLES) {
+            return streamVersion;
+        }
         if (streamVersion >= 3) {
 
             decodeArithmetic("sampleIndices", numEntriesInChunk, bitInput, sampleIndices);
             decodeArithmetic("readOriginIndices", numEntriesInChunk, bitInput, readOriginIndices);
         }
+        if (lastStreamGroup < STREAMS_PAIR_FLAGS_AND_SCORES) {
+            return streamVersion;
+        }
         if (streamVersion >= 4) {
 
             decodeArithmetic("pairFlags", numEntriesInChunk, bitInput, pairFlags);
             decodeArithmetic("scores", numEntriesInChunk, bitInput, scores);
         }
+        if (lastStreamGroup < STREAMS_SOFT_CLIP_BASES) {
+            return streamVersion;
+        }
         if (streamVersion >= 6) {
 
             decodeArithmetic("softClipLeftBasesNum", numEntriesInChunk, bitInput, numSoftClipLeftBases);
@@ -1201,6 +1278,9 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
         if (streamVersion >= 7) {
             decodeArithmetic("linkOffsetOptimization", numEntriesInChunk, bitInput, linkOffsetOptimization);
         }
+        if (lastStreamGroup < STREAMS_SOFT_CLIP_QUALITIES) {
+            return streamVersion;
+        }
         if (streamVersion >= 9) {
             decodeArithmetic("softClipLeftQualityScores", numEntriesInChunk, bitInput, softClipLeftQualityScores);
             decodeArithmetic("softClipRightQualityScores", numEntriesInChunk, bitInput, softClipRightQualityScores);
@@ -1830,7 +1910,7 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
             previousTargetIndex += deltaTarget;
             deltaPosIndex++;
         }
-        if (streamVersion >= 2) {
+        if (decodeQualities && streamVersion >= 2) {
             final int numReadQualScores = numReadQualityScores.get(numReadQualScoresIndex++);
             if (numReadQualScores > 0) {
 
@@ -1881,37 +1961,54 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
         if (anInt != MISSING_VALUE) {
             result.setQueryAlignedLength(decodeQueryAlignedLength(anInt, targetAlignedLength));
         }
-        anInt = sampleIndices.getInt(index);
-        if (anInt != MISSING_VALUE) {
-            result.setSampleIndex(anInt);
-        }
-        anInt = readOriginIndices.getInt(index);
-        if (anInt != MISSING_VALUE) {
-            result.setReadOriginIndex(anInt);
-        }
-        anInt = pairFlags.getInt(index);
-        if (anInt != MISSING_VALUE) {
-            result.setPairFlags(restoreSamFlags(anInt, result.getMatchingReverseStrand()));
-        }
-        anInt = scores.getInt(index);
-        if (anInt != MISSING_VALUE) {
-            result.setScore(Float.intBitsToFloat(anInt));
+        if (decodeSamples) {
+            anInt = sampleIndices.getInt(index);
+            if (anInt != MISSING_VALUE) {
+                result.setSampleIndex(anInt);
+            }
+            anInt = readOriginIndices.getInt(index);
+            if (anInt != MISSING_VALUE) {
+                result.setReadOriginIndex(anInt);
+            }
         }
-        Alignments.RelatedAlignmentEntry link = pairLinks.decode(originalIndex, result, reduced.getPairAlignmentLink());
-        if (link != null) {
-            result.setPairAlignmentLink(link);
+        if (lastStreamGroup >= STREAMS_PAIR_FLAGS_AND_SCORES) {
+            anInt = pairFlags.getInt(index);
+            if (anInt != MISSING_VALUE) {
+                result.setPairFlags(restoreSamFlags(anInt, result.getMatchingReverseStrand()));
+            }
+            anInt = scores.getInt(index);
+            if (anInt != MISSING_VALUE) {
+                result.setScore(Float.intBitsToFloat(anInt));
+            }
         }
-        link = forwardSpliceLinks.decode(originalIndex, result, reduced.getSplicedForwardAlignmentLink());
-        if (link != null) {
-            result.setSplicedForwardAlignmentLink(link);
+        if (decodeLinks) {
+            Alignments.RelatedAlignmentEntry link = pairLinks.decode(originalIndex, result, reduced.getPairAlignmentLink());
+            if (link != null) {
+                result.setPairAlignmentLink(link);
+            }
+            link = forwardSpliceLinks.decode(originalIndex, result, reduced.getSplicedForwardAlignmentLink());
+            if (link != null) {
+                result.setSplicedForwardAlignmentLink(link);
+            }
+            link = backwardSpliceLinks.decode(originalIndex, result, reduced.getSplicedBackwardAlignmentLink());
+            if (link != null) {
+                result.setSplicedBackwardAlignmentLink(link);
+            }
+
+            decodeInsertSize(result, index);
+        } else {
+            result.clearPairAlignmentLink();
+            result.clearSplicedForwardAlignmentLink();
+            result.clearSplicedBackwardAlignmentLink();
+            result.clearInsertSize();
         }
-        link = backwardSpliceLinks.decode(originalIndex, result, reduced.getSplicedBackwardAlignmentLink());
-        if (link != null) {
-            result.setSplicedBackwardAlignmentLink(link);
+        if (!decodeVariations) {
+            result.clearSequenceVariations();
+            if (!fields.contains(AlignmentEntryField.READ_QUALITY_SCORES)) {
+                result.clearReadQualityScores();
+            }
+            return result.build();
         }
-
-        decodeInsertSize(result, index);
-
         final boolean templateHasSequenceVariations = reduced.getSequenceVariationsCount() > 0;
         final int numVariations = variationCount.getInt(index);
 
@@ -2001,6 +2098,9 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
             }
 
         }
+        if (!fields.contains(AlignmentEntryField.READ_QUALITY_SCORES)) {
+            result.clearReadQualityScores();
+        }
         return result.build();
     }
 
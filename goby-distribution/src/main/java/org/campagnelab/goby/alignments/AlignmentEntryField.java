@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+/**
+ * Optional groups of alignment entry fields that a reader can be asked to decode. Core fields (query index,
+ * target index, position, strand, query and target aligned lengths, query length and position, mapping quality,
+ * number of mismatches and indels, fragment index and multiplicity) are always decoded. Fields of groups that are
+ * not requested with {@link AlignmentReader#setFields(java.util.EnumSet)} may be absent from the entries
+ * returned by the reader.
+ *
+ * @author Fabien Campagne
+ */
+public enum AlignmentEntryField {
+    /**
+     * Sequence variations, including the quality scores of the bases that differ from the reference.
+     */
+    SEQUENCE_VARIATIONS,
+    /**
+     * Quality scores of the bases of the read.
+     */
+    READ_QUALITY_SCORES,
+    /**
+     * Soft clipped bases and their quality scores.
+     */
+    SOFT_CLIPS,
+    /**
+     * Pair and splice links to related entries, and the insert size.
+     */
+    LINKS,
+    /**
+     * Sample index and read origin index.
+     */
+    SAMPLE_AND_READ_ORIGIN,
+    /**
+     * SAM pair flags.
+     */
+    PAIR_FLAGS,
+    /**
+     * Alignment score.
+     */
+    SCORE
+}
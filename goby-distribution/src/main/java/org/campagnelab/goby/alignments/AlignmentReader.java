@@ -23,6 +23,7 @@ import it.unimi.dsi.fastutil.objects.ObjectList;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.Properties;
 
@@ -271,4 +272,15 @@ public interface AlignmentReader extends Closeable, Iterator<Alignments.Alignmen
      * @return A list of read origin info messages.
      */
     ReadOriginInfo getReadOriginInfo();
+
+    /**
+     * Restrict the optional fields that this reader decodes. Core fields are always decoded, while fields of groups
+     * that are not requested may be absent from the entries returned by the reader. Decoding fewer fields makes
+     * passes that only need positions (e.g., coverage) faster. Must be called before entries are read. The default
+     * implementation ignores the request and returns complete entries.
+     *
+     * @param fields groups of optional fields to decode.
+     */
+    default void setFields(EnumSet<AlignmentEntryField> fields) {
+    }
 }
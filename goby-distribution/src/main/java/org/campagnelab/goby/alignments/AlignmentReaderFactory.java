@@ -19,6 +19,7 @@
 package org.campagnelab.goby.alignments;
 
 import java.io.IOException;
+import java.util.EnumSet;
 
 /**
  * A factory that returns alignment reader. This interface can be subclassed to provide specific implementations of
@@ -113,4 +114,15 @@ public interface AlignmentReaderFactory {
     AlignmentReader[] createReader(String[] basenames, boolean upgrade) throws IOException;
 
     String[] getBasenames(String[] inputFilenames);
+
+    /**
+     * Returns a factory whose readers decode only the given optional fields, see
+     * {@link AlignmentReader#setFields(EnumSet)}.
+     *
+     * @param fields groups of optional fields to decode.
+     * @return a factory that creates readers with this factory and restricts the fields they decode.
+     */
+    default AlignmentReaderFactory withFields(EnumSet<AlignmentEntryField> fields) {
+        return new FieldMaskAlignmentReaderFactory(this, fields);
+    }
 }
@@ -25,7 +25,6 @@ import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
-import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.lang.MutableString;
@@ -36,8 +35,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.campagnelab.goby.compression.ChunkCodec;
 import org.campagnelab.goby.compression.FastBufferedMessageChunksReader;
+import org.campagnelab.goby.compression.ReadAheadChunkDecoder;
 import org.campagnelab.goby.exception.GobyRuntimeException;
 import org.campagnelab.goby.util.AlignmentHelper;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
 
 import java.io.*;
 import java.util.*;
@@ -56,9 +58,32 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      */
     private static final Log LOG = LogFactory.getLog(AlignmentReaderImpl.class);
 
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(AlignmentReaderImpl.class,
+            "parallel-decode:boolean, when true, read compressed chunks ahead of the consumer and decode them on a pool of worker threads:false",
+            "decode-threads:integer, number of threads used to decode chunks when parallel-decode is true. Zero selects the number of available processors:0",
+            "read-ahead:integer, maximum number of chunks decoded ahead of the consumer when parallel-decode is true:4"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
     private InputStream headerStream;
     private int numberOfAlignedReads;
     private final FastBufferedMessageChunksReader alignmentEntryReader;
+    /**
+     * Decodes chunks ahead of the consumer on worker threads, or null when chunks are decoded on the calling thread.
+     */
+    private ReadAheadChunkDecoder readAheadDecoder;
+    /**
+     * Groups of optional fields that handlers restore on decoded entries.
+     */
+    private volatile EnumSet<AlignmentEntryField> fields = EnumSet.allOf(AlignmentEntryField.class);
+    /**
+     * Handler installed on the entries reader, which decodes chunks when no read-ahead decoder is used.
+     */
+    private AlignmentCollectionHandler entriesHandler;
     private Alignments.AlignmentCollection collection;
     private Properties stats;
     private String basename;
@@ -81,7 +106,7 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      * Other possible extensions that can follow a Goby alignment basename.
      */
     public static final String[] COMPACT_ALIGNMENT_FILE_POSSIBLE_EXTS = {
-            ".index", ".perm", ".tmh"
+            ".index", ".index2", ".perm", ".tmh", ".tmh2"
     };
     private Alignments.AlignmentEntry nextEntry;
     private Alignments.AlignmentEntry nextEntryNoFilter;
@@ -247,7 +272,8 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         alignmentEntryReader = new FastBufferedMessageChunksReader(startOffset > 0 ? startOffset : 0,
                 endOffset > 0 ? endOffset : Long.MAX_VALUE,
                 new FastBufferedInputStream(stream));
-        alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
+        alignmentEntryReader.setHandler(newCollectionHandler());
+        installReadAheadDecoder();
         LOG.trace("start offset :" + startOffset + " end offset " + endOffset);
 
         stats = new Properties();
@@ -304,7 +330,8 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
             final InputStream stream = new RepositionableInputStream(entriesFile);
 
             alignmentEntryReader = new FastBufferedMessageChunksReader(startOffset, endOffset, new FastBufferedInputStream(stream));
-            alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
+            alignmentEntryReader.setHandler(newCollectionHandler());
+            installReadAheadDecoder();
         } else {
             alignmentEntryReader = null;
         }
@@ -363,7 +390,8 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
     public AlignmentReaderImpl(final InputStream entriesStream) throws IOException {
         super(true, null);
         alignmentEntryReader = new FastBufferedMessageChunksReader(0, Long.MAX_VALUE, new FastBufferedInputStream(entriesStream));
-        alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
+        alignmentEntryReader.setHandler(newCollectionHandler());
+        installReadAheadDecoder();
     }
 
     /**
@@ -380,7 +408,43 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
             throws IOException {
         super(true, null);
         alignmentEntryReader = new FastBufferedMessageChunksReader(start, end, stream);
-        alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
+        alignmentEntryReader.setHandler(newCollectionHandler());
+        installReadAheadDecoder();
+    }
+
+    /**
+     * Install a read-ahead decoder when the parallel-decode option is set.
+     *
+     * @throws IOException If the position of the entries reader cannot be determined.
+     */
+    private void installReadAheadDecoder() throws IOException {
+        if (doc().getBoolean("parallel-decode")) {
+            readAheadDecoder = new ReadAheadChunkDecoder(alignmentEntryReader, this::newCollectionHandler,
+                    doc().getInteger("decode-threads"), doc().getInteger("read-ahead"));
+        }
+    }
+
+    /**
+     * Create a handler that restores the fields requested with setFields. The entries reader handler is kept so that
+     * later calls to setFields reach it.
+     *
+     * @return a new alignment collection handler.
+     */
+    private AlignmentCollectionHandler newCollectionHandler() {
+        final AlignmentCollectionHandler handler = new AlignmentCollectionHandler();
+        handler.setFields(fields);
+        if (entriesHandler == null) {
+            entriesHandler = handler;
+        }
+        return handler;
+    }
+
+    @Override
+    public void setFields(final EnumSet<AlignmentEntryField> fields) {
+        this.fields = EnumSet.copyOf(fields);
+        if (entriesHandler != null) {
+            entriesHandler.setFields(fields);
+        }
     }
 
     private int numberOfEntries() {
@@ -461,6 +525,9 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
     private boolean hasNextEntry() {
         //    System.out.println("hasNextEntry");
         if (nextEntryNoFilter != null) return true;
+        if (readAheadDecoder != null) {
+            return hasNextEntryReadAhead();
+        }
 
         if (collection != null && alignmentEntryReader.getEntryIndex() < collection.getAlignmentEntriesCount()) {
             nextEntryNoFilter = collection.getAlignmentEntries(alignmentEntryReader.getEntryIndex());
@@ -508,6 +575,23 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
 
     }
 
+    /**
+     * Same as hasNextEntry, but obtains decoded collections from the read-ahead decoder.
+     *
+     * @return true if the input has more entries, false otherwise.
+     */
+    private boolean hasNextEntryReadAhead() {
+        if (collection == null || readAheadDecoder.getEntryIndex() >= collection.getAlignmentEntriesCount()) {
+            collection = (Alignments.AlignmentCollection) readAheadDecoder.next();
+            if (collection == null || collection.getAlignmentEntriesCount() == 0) {
+                return false;
+            }
+        }
+        nextEntryNoFilter = collection.getAlignmentEntries(readAheadDecoder.getEntryIndex());
+        readAheadDecoder.incrementEntryIndex();
+        return true;
+    }
+
     private Alignments.AlignmentEntry nextEntry() {
         //      System.out.println("nextEntry");
         if (!hasNextEntry()) {
@@ -607,12 +691,12 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
             return;
         }
         final long absolutePosition = recodePosition(targetIndex, position);
-        int offsetIndex = Arrays.binarySearch(indexAbsolutePositions.elements(), absolutePosition);
+        int offsetIndex = chunkIndex.binarySearch(absolutePosition);
         offsetIndex = offsetIndex < 0 ? -1 - offsetIndex : offsetIndex;
         // NB offsetIndex contains absolutePosition in the first entry, but the chunk before it also likely
         // contains entries with this absolute position. We therefore substract one to position on the chunk
         // before.
-        offsetIndex = offsetIndex >= indexOffsets.size() ? indexOffsets.size() - 1 : Math.max(offsetIndex - 1, 0);
+        offsetIndex = offsetIndex >= chunkIndex.size() ? chunkIndex.size() - 1 : Math.max(offsetIndex - 1, 0);
 
 
         if (offsetIndex < 0) {
@@ -622,8 +706,8 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
 
         // max below ensures we never go back to before the start of the slice the reader was restricted to at
         // construction time:
-        final long newBytePosition = Math.max(startOffset, indexOffsets.getLong(offsetIndex));
-        final long currentPosition = alignmentEntryReader.position();
+        final long newBytePosition = Math.max(startOffset, chunkIndex.getOffset(offsetIndex));
+        final long currentPosition = readAheadDecoder != null ? readAheadDecoder.position() : alignmentEntryReader.position();
         if (newBytePosition >= currentPosition) {
 
             seek(newBytePosition);
@@ -644,6 +728,9 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      */
     protected void seek(long byteOffset) throws IOException {
         alignmentEntryReader.seek(byteOffset);
+        if (readAheadDecoder != null) {
+            readAheadDecoder.reset();
+        }
         nextEntry = null;
         nextEntryNoFilter = null;
         collection = null;
@@ -673,20 +760,20 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         if (targetIndex >= targetPositionOffsets.length) return Long.MAX_VALUE;
 
         final long absolutePosition = recodePosition(targetIndex, position);
-        int offsetIndex = Arrays.binarySearch(indexAbsolutePositions.elements(), absolutePosition);
+        int offsetIndex = chunkIndex.binarySearch(absolutePosition);
         offsetIndex = offsetIndex < 0 ? -1 - offsetIndex : offsetIndex;
-        offsetIndex = offsetIndex >= indexOffsets.size() ? indexOffsets.size() - 1 : offsetIndex - 1;
+        offsetIndex = offsetIndex >= chunkIndex.size() ? chunkIndex.size() - 1 : offsetIndex - 1;
         if (offsetIndex + chunkOffset < 0) {
             // empty alignment.
             return Long.MIN_VALUE;
         }
 
-        if (offsetIndex + chunkOffset < indexOffsets.size()) {
-            final long byteOffset = indexOffsets.getLong(offsetIndex + chunkOffset);
+        if (offsetIndex + chunkOffset < chunkIndex.size()) {
+            final long byteOffset = chunkIndex.getOffset(offsetIndex + chunkOffset);
             return byteOffset;
         } else {
             // return an end-offset past the beginning of the last chunk:
-            return indexOffsets.getLong(offsetIndex) + 10;
+            return chunkIndex.getOffset(offsetIndex) + 10;
         }
 
     }
@@ -766,11 +853,14 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         return RepositionableInputStream.resourceExist(basename + ".index");
     }
 
-    private LongArrayList indexOffsets = new LongArrayList();
-    private LongArrayList indexAbsolutePositions = new LongArrayList();
+    /**
+     * Offsets and absolute positions of the indexed chunks. Memory-mapped from the .index2 file when it is available.
+     */
+    private AlignmentChunkIndex chunkIndex;
 
     /**
-     * Read the index. The header is also loaded.
+     * Read the index. The header is also loaded. The memory-mapped .index2 index is used when present, otherwise
+     * the legacy .index file is loaded.
      *
      * @throws IOException If an error occurs loading the index or header.
      */
@@ -779,37 +869,18 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         if (indexed && !indexLoaded) {
             // header is needed to access target lengths:
             readHeader();
-            final GZIPInputStream indexStream = new GZIPInputStream(new RepositionableInputStream(basename + ".index"));
-            try {
-                final CodedInputStream codedInput = CodedInputStream.newInstance(indexStream);
-                codedInput.setSizeLimit(Integer.MAX_VALUE);
-                final Alignments.AlignmentIndex index = Alignments.AlignmentIndex.parseFrom(codedInput);
-                indexOffsets.clear();
-                indexAbsolutePositions.clear();
-
-                for (final long offset : index.getOffsetsList()) {
-                    indexOffsets.add(offset);
-                }
-                for (final long absolutePosition : index.getAbsolutePositionsList()) {
-                    indexAbsolutePositions.add(absolutePosition);
-                }
-                // trimming is essential for the binary search to work reliably with the result of elements():
-                indexAbsolutePositions.trim();
-                indexOffsets.trim();
+            chunkIndex = AlignmentChunkIndex.load(basename);
 
 // calculate the coding offset for each target index. This information will be used by recode
-                targetPositionOffsets = new long[targetLengths.length];
-                targetPositionOffsets[0] = 0;
-                for (int targetIndex = 1; targetIndex < targetLengths.length; targetIndex++) {
-                    targetPositionOffsets[targetIndex] =
-                            targetLengths[targetIndex - 1] +
-                                    targetPositionOffsets[targetIndex - 1];
+            targetPositionOffsets = new long[targetLengths.length];
+            targetPositionOffsets[0] = 0;
+            for (int targetIndex = 1; targetIndex < targetLengths.length; targetIndex++) {
+                targetPositionOffsets[targetIndex] =
+                        targetLengths[targetIndex - 1] +
+                                targetPositionOffsets[targetIndex - 1];
 
-                }
-                indexLoaded = true;
-            } finally {
-                IOUtils.closeQuietly(indexStream);
             }
+            indexLoaded = true;
         }
         if (!indexLoaded && !indexed) {
             LOG.warn("Trying to read index for an alignment that is not indexed.");
@@ -830,6 +901,9 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      * {@inheritDoc}
      */
     public void close() {
+        if (readAheadDecoder != null) {
+            readAheadDecoder.close();
+        }
         if (alignmentEntryReader != null) {
             alignmentEntryReader.close();
         }
@@ -852,13 +926,13 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
 
     @Override
     public ReferenceLocation getMinLocation() throws IOException {
-        long minAbsoluteIndex = indexAbsolutePositions.get(0);
+        long minAbsoluteIndex = chunkIndex.getAbsolutePosition(0);
         return decodeAbsoluteLocation(minAbsoluteIndex);
     }
 
     @Override
     public ReferenceLocation getMaxLocation() throws IOException {
-        long maxAbsoluteIndex = indexAbsolutePositions.get(indexAbsolutePositions.size() - 1);
+        long maxAbsoluteIndex = chunkIndex.getAbsolutePosition(chunkIndex.size() - 1);
         return decodeAbsoluteLocation(maxAbsoluteIndex);
     }
 
@@ -869,12 +943,12 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         if (!isIndexed()) throw new RuntimeException("Alignment must be sorted and indexed to obtain locations.");
 
         readIndex();
-        int i = 0;
         ObjectList<ReferenceLocation> result = new ObjectArrayList<ReferenceLocation>();
         long lastFileOffsetPushed = -1;
 
-        for (long absoluteLocation : indexAbsolutePositions) {
-            long offsetInEntriesFile = indexOffsets.get(i);
+        for (int i = 0; i < chunkIndex.size(); i++) {
+            final long absoluteLocation = chunkIndex.getAbsolutePosition(i);
+            long offsetInEntriesFile = chunkIndex.getOffset(i);
             long compressedByteAmountSincePreviousLocation = offsetInEntriesFile - lastFileOffsetPushed;
             if (lastFileOffsetPushed == -1 || compressedByteAmountSincePreviousLocation > bytesPerSlice) {
                 final ReferenceLocation location = decodeAbsoluteLocation(absoluteLocation);
@@ -882,7 +956,6 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
                 result.add(location);
                 lastFileOffsetPushed = offsetInEntriesFile;
             }
-            i++;
         }
         return result;
     }
@@ -900,7 +973,8 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
 
         readIndex();
         ObjectList<ReferenceLocation> result = new ObjectArrayList<ReferenceLocation>();
-        for (long absoluteLocation : indexAbsolutePositions) {
+        for (int i = 0; i < chunkIndex.size(); i++) {
+            final long absoluteLocation = chunkIndex.getAbsolutePosition(i);
             final ReferenceLocation location = decodeAbsoluteLocation(absoluteLocation - (absoluteLocation % modulo));
 
             result.add(location);
@@ -21,21 +21,51 @@
 package org.campagnelab.goby.alignments;
 
 import com.google.protobuf.CodedInputStream;
-import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.ints.AbstractIntIterator;
+import it.unimi.dsi.fastutil.ints.AbstractIntSet;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongArrays;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Iterator;
-import java.util.List;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
 import java.util.zip.GZIPInputStream;
 
 /**
  * Reads alignments too many hits data structure written with
  * {@link AlignmentTooManyHitsWriter}.
+ * <p>
+ * Ambiguous queries are kept as three parallel int columns sorted by query index: query indices, number of hits
+ * and length of match. Queries are looked up by binary search over the query index column. The columns are
+ * memory-mapped from the .tmh2 file when it exists and matches the .tmh file, so that opening the reader takes
+ * constant time and does not allocate heap memory. Otherwise, the legacy .tmh protobuf file is decoded into
+ * sorted arrays on the heap. The .tmh2 layout is:
+ * </p>
+ * <pre>
+ * int  magic number
+ * int  format version
+ * long number of ambiguous queries (n)
+ * long length of the .tmh file the columns were built for
+ * long last-modified time of the .tmh file the columns were built for, in milliseconds
+ * int  aligner threshold
+ * int[n] query indices, sorted in increasing order
+ * int[n] number of hits
+ * int[n] length of match, -1 when unknown
+ * </pre>
+ * All values are stored big-endian. The .tmh2 file is ignored when the length or last-modified time of the .tmh
+ * file differ from those recorded, or when it is older than the .tmh file.
  *
  * @author Fabien Campagne
  *         Date: Apr 30, 2009
@@ -47,16 +77,39 @@ public class AlignmentTooManyHitsReader {
      */
     private static final Log LOG = LogFactory.getLog(AlignmentTooManyHitsReader.class);
 
+    /**
+     * Extension of the memory-mapped too many hits file.
+     */
+    public static final String MAPPED_EXTENSION = ".tmh2";
+
+    private static final int MAGIC = 0x474d4832; // "GMH2"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4;
+
+    /**
+     * Columns are split in segments of 2^SEGMENT_SHIFT ints, because a single buffer cannot map more than 2GB.
+     */
+    private static final int SEGMENT_SHIFT = 28;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private static final IntBuffer[] EMPTY_COLUMN = new IntBuffer[0];
+
+    /**
+     * Query indices of the ambiguous queries, in increasing order.
+     */
+    private IntBuffer[] queryIndices = EMPTY_COLUMN;
 
     /**
-     * A map from query index to the number of hits at that index.
+     * Number of hits of each ambiguous query, in the order of queryIndices.
      */
-    private Int2IntMap queryIndex2NumHits = new Int2IntAVLTreeMap();
+    private IntBuffer[] numHits = EMPTY_COLUMN;
 
     /**
-     * A map from query index to depth/length of match.
+     * Depth/length of match of each ambiguous query, in the order of queryIndices.
      */
-    private Int2IntMap queryIndex2Depth = new Int2IntAVLTreeMap();
+    private IntBuffer[] lengthOfMatch = EMPTY_COLUMN;
+
+    private int size;
 
     /**
      * The threshold used by the aligner to determine that a query is ambiguous and
@@ -64,60 +117,241 @@ public class AlignmentTooManyHitsReader {
      */
     private int alignerThreshold;
     private boolean closed;
+    private boolean mapped;
 
     public AlignmentTooManyHitsReader(final String basename) throws IOException {
         final String filename = basename + ".tmh";
         final File optionalFile = new File(filename);
 
+        if (optionalFile.exists()) {
+            mapped = map(basename, optionalFile);
+            if (!mapped) {
+                loadLegacy(optionalFile);
+            }
+        } else {
+
+            // the file does not exist. Log this fact, and act as if no query had too many hits.
+            LOG.info("basename " + optionalFile + " has no 'too many hits' information ("
+                    + basename + ".tmh does not exist)."
+                    + " Assuming no queries have too many hits.");
+        }
+    }
+
+    /**
+     * Decode the protobuf .tmh file into sorted columns on the heap.
+     */
+    private void loadLegacy(final File optionalFile) throws IOException {
         InputStream tmhStream = null;
         try {
-            if (optionalFile.exists()) {
-                try {
-                    tmhStream = new GZIPInputStream(new FileInputStream(optionalFile));
-                } catch (IOException e) {
-                    // try not compressed for compatibility with 1.6-:
-                    LOG.trace("falling back to legacy 1.6- uncompressed TMH.");
-
-                    tmhStream = new FileInputStream(optionalFile);
-                }
+            try {
+                tmhStream = new GZIPInputStream(new FileInputStream(optionalFile));
+            } catch (IOException e) {
+                // try not compressed for compatibility with 1.6-:
+                LOG.trace("falling back to legacy 1.6- uncompressed TMH.");
 
-                // accept very large too many hits messages, since these may describe more than 60 million reads:
-                final CodedInputStream codedInput = CodedInputStream.newInstance(tmhStream);
-                codedInput.setSizeLimit(Integer.MAX_VALUE);
-
-                final Alignments.AlignmentTooManyHits tmh = Alignments.AlignmentTooManyHits.parseFrom(codedInput);
-
-                queryIndex2NumHits.defaultReturnValue(-1);
-                queryIndex2Depth.defaultReturnValue(-1);
-                final List<Alignments.AmbiguousLocation> hitsList = tmh.getHitsList();
-                final Iterator<Alignments.AmbiguousLocation> iterator = hitsList.iterator();
-                while (iterator.hasNext()) {
-                    Alignments.AmbiguousLocation hit = iterator.next();
-                    queryIndex2NumHits.put(hit.getQueryIndex(), hit.getAtLeastNumberOfHits());
-                    if (hit.hasLengthOfMatch()) {
-                        queryIndex2Depth.put(hit.getQueryIndex(), hit.getLengthOfMatch());
-                    }
+                tmhStream = new FileInputStream(optionalFile);
+            }
 
-                }
+            // accept very large too many hits messages, since these may describe more than 60 million reads:
+            final CodedInputStream codedInput = CodedInputStream.newInstance(tmhStream);
+            codedInput.setSizeLimit(Integer.MAX_VALUE);
 
-                this.alignerThreshold = tmh.getAlignerThreshold();
-            } else {
+            final Alignments.AlignmentTooManyHits tmh = Alignments.AlignmentTooManyHits.parseFrom(codedInput);
+            final int numLocations = tmh.getHitsCount();
+            final int[] sortedQueryIndices = new int[numLocations];
+            final int[] sortedNumHits = new int[numLocations];
+            final int[] sortedLengthOfMatch = new int[numLocations];
+            final int length = sortHits(tmh, sortedQueryIndices, sortedNumHits, sortedLengthOfMatch);
+            queryIndices = wrap(sortedQueryIndices, length);
+            numHits = wrap(sortedNumHits, length);
+            lengthOfMatch = wrap(sortedLengthOfMatch, length);
+            size = length;
+            this.alignerThreshold = tmh.getAlignerThreshold();
+        } finally {
+            if (tmhStream != null) {
+                tmhStream.close();
+            }
+        }
+    }
 
-                // the file does not exist. Log this fact, and act as if no query had too many hits.
-                LOG.info("basename " + optionalFile + " has no 'too many hits' information ("
-                        + basename + ".tmh does not exist)."
-                        + " Assuming no queries have too many hits.");
+    /**
+     * Sort the hits of a too many hits message by query index. When a query index occurs several times, the last
+     * occurrence is kept.
+     *
+     * @return the number of distinct query indices, stored at the start of the arrays.
+     */
+    static int sortHits(final Alignments.AlignmentTooManyHits tmh, final int[] sortedQueryIndices,
+                        final int[] sortedNumHits, final int[] sortedLengthOfMatch) {
+        final int numLocations = tmh.getHitsCount();
+        // sort (query index, position in message) pairs, so that the last occurrence of a query sorts last:
+        final long[] order = new long[numLocations];
+        for (int i = 0; i < numLocations; i++) {
+            order[i] = ((long) tmh.getHits(i).getQueryIndex() << 32) | i;
+        }
+        LongArrays.radixSort(order);
+        int length = 0;
+        for (int i = 0; i < numLocations; i++) {
+            final int queryIndex = (int) (order[i] >>> 32);
+            if (i + 1 < numLocations && (int) (order[i + 1] >>> 32) == queryIndex) {
+                continue;
             }
-        } finally
+            final Alignments.AmbiguousLocation hit = tmh.getHits((int) order[i]);
+            sortedQueryIndices[length] = queryIndex;
+            sortedNumHits[length] = hit.getAtLeastNumberOfHits();
+            sortedLengthOfMatch[length] = hit.hasLengthOfMatch() ? hit.getLengthOfMatch() : -1;
+            length++;
+        }
+        return length;
+    }
 
-        {
-            if (tmhStream != null) {
-                tmhStream.close();
+    private static IntBuffer[] wrap(final int[] column, final int length) {
+        final IntBuffer[] segments = new IntBuffer[(length + SEGMENT_MASK) >>> SEGMENT_SHIFT];
+        for (int i = 0; i < segments.length; i++) {
+            final int start = i << SEGMENT_SHIFT;
+            segments[i] = IntBuffer.wrap(column, start, Math.min(SEGMENT_MASK + 1, length - start)).slice();
+        }
+        return segments;
+    }
+
+    /**
+     * Memory-map the .tmh2 file.
+     *
+     * @return false if the file does not exist, or was not built for the current .tmh file.
+     */
+    private boolean map(final String basename, final File tmhFile) throws IOException {
+        final File file = new File(basename + MAPPED_EXTENSION);
+        if (!file.exists()) {
+            return false;
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                LOG.warn("Ignoring truncated too many hits file " + file.getPath());
+                return false;
             }
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                LOG.warn("Ignoring too many hits file with unsupported format " + file.getPath());
+                return false;
+            }
+            final long numQueries = header.getLong(8);
+            if (header.getLong(16) != tmhFile.length() || header.getLong(24) != tmhFile.lastModified()
+                    || file.lastModified() < tmhFile.lastModified()) {
+                LOG.warn("Ignoring stale too many hits file " + file.getPath()
+                        + ", the .tmh file has changed since it was built.");
+                return false;
+            }
+            if (numQueries > Integer.MAX_VALUE || channel.size() != HEADER_SIZE + 12 * numQueries) {
+                LOG.warn("Ignoring truncated too many hits file " + file.getPath());
+                return false;
+            }
+            alignerThreshold = header.getInt(32);
+            size = (int) numQueries;
+            queryIndices = mapColumn(channel, HEADER_SIZE, size);
+            numHits = mapColumn(channel, HEADER_SIZE + 4L * size, size);
+            lengthOfMatch = mapColumn(channel, HEADER_SIZE + 8L * size, size);
+            return true;
+        } finally {
+            // the mappings remain valid after the channel is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    private static IntBuffer[] mapColumn(final FileChannel channel, final long start, final int length)
+            throws IOException {
+        final IntBuffer[] segments = new IntBuffer[(length + SEGMENT_MASK) >>> SEGMENT_SHIFT];
+        for (int i = 0; i < segments.length; i++) {
+            final long first = (long) i << SEGMENT_SHIFT;
+            final long segmentLength = Math.min(SEGMENT_MASK + 1, length - first);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + 4 * first, 4 * segmentLength)
+                    .asIntBuffer();
+        }
+        return segments;
+    }
+
+    /**
+     * Write the .tmh2 file for the .tmh file of an alignment.
+     *
+     * @param basename            basename of the alignment.
+     * @param alignerThreshold    threshold of the aligner.
+     * @param sortedQueryIndices  query indices, sorted in increasing order, without duplicates.
+     * @param sortedNumHits       number of hits of each query.
+     * @param sortedLengthOfMatch length of match of each query, -1 when unknown.
+     * @param length              number of queries to write.
+     * @throws IOException if the file cannot be written.
+     */
+    static void writeMapped(final String basename, final int alignerThreshold, final int[] sortedQueryIndices,
+                            final int[] sortedNumHits, final int[] sortedLengthOfMatch, final int length)
+            throws IOException {
+        writeMapped(basename, alignerThreshold, wrap(sortedQueryIndices, length), wrap(sortedNumHits, length),
+                wrap(sortedLengthOfMatch, length), length);
+    }
+
+    /**
+     * Write the queries of this reader in the .tmh2 format, for the current .tmh file of the alignment.
+     *
+     * @param basename basename of the alignment.
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeMapped(final String basename) throws IOException {
+        assert !closed : "TMH reader was already closed.";
+        writeMapped(basename, alignerThreshold, queryIndices, numHits, lengthOfMatch, size);
+    }
+
+    private static void writeMapped(final String basename, final int alignerThreshold, final IntBuffer[] queryIndices,
+                                    final IntBuffer[] numHits, final IntBuffer[] lengthOfMatch, final int size)
+            throws IOException {
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(basename + MAPPED_EXTENSION)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(size);
+            final File tmhFile = new File(basename + ".tmh");
+            output.writeLong(tmhFile.length());
+            output.writeLong(tmhFile.lastModified());
+            output.writeInt(alignerThreshold);
+            for (final IntBuffer[] column : new IntBuffer[][]{queryIndices, numHits, lengthOfMatch}) {
+                for (int i = 0; i < size; i++) {
+                    output.writeInt(get(column, i));
+                }
+            }
+        } finally {
+            output.close();
         }
+    }
+
+    private static int get(final IntBuffer[] column, final int index) {
+        return column[index >>> SEGMENT_SHIFT].get(index & SEGMENT_MASK);
+    }
 
+    /**
+     * Return the position of a query in the sorted columns, or -1 if the query is not ambiguous.
+     */
+    private int find(final int queryIndex) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int value = get(queryIndices, middle);
+            if (value < queryIndex) {
+                low = middle + 1;
+            } else if (value > queryIndex) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
     }
 
+    /**
+     * Returns true when the queries were memory-mapped from the .tmh2 file.
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
 
     /**
      * The number of hits against the reference that the aligner considered was too many to report.
@@ -140,7 +374,8 @@ public class AlignmentTooManyHitsReader {
      */
     public final int getNumberOfHits(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.get(queryIndex);
+        final int index = find(queryIndex);
+        return index == -1 ? -1 : get(numHits, index);
     }
 
     /**
@@ -153,12 +388,47 @@ public class AlignmentTooManyHitsReader {
      */
     public final int getLengthOfMatch(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2Depth.get(queryIndex);
+        final int index = find(queryIndex);
+        return index == -1 ? -1 : get(lengthOfMatch, index);
     }
 
+    /**
+     * Returns the ambiguous query indices. The set is a read-only view of the sorted query index column, which
+     * iterates query indices in increasing order.
+     */
     public final IntSet getQueryIndices() {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.keySet();
+        return new AbstractIntSet() {
+            @Override
+            public IntIterator iterator() {
+                return new AbstractIntIterator() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public int nextInt() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return get(queryIndices, next++);
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(final int queryIndex) {
+                return find(queryIndex) != -1;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
     /**
@@ -169,7 +439,7 @@ public class AlignmentTooManyHitsReader {
      */
     public boolean isQueryAmbiguous(final int queryIndex) {
         assert !closed : "TMH reader was already closed.";
-        return queryIndex2NumHits.containsKey(queryIndex);
+        return find(queryIndex) != -1;
     }
 
     /**
@@ -187,7 +457,7 @@ public class AlignmentTooManyHitsReader {
      */
     public final boolean isQueryAmbiguous(final int queryIndex, final int k) {
         assert !closed : "TMH reader was already closed.";
-        final int atLeastNumberOfHits = queryIndex2NumHits.get(queryIndex);
+        final int atLeastNumberOfHits = getNumberOfHits(queryIndex);
         if (atLeastNumberOfHits == -1) {
             return false;
         }
@@ -223,10 +493,9 @@ public class AlignmentTooManyHitsReader {
     }
 
     public void close() {
-        this.queryIndex2Depth.clear();
-        this.queryIndex2NumHits.clear();
-        this.queryIndex2Depth = null;
-        this.queryIndex2NumHits = null;
+        queryIndices = null;
+        numHits = null;
+        lengthOfMatch = null;
         closed = true;
     }
 }
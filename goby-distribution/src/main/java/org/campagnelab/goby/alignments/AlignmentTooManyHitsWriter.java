@@ -30,7 +30,8 @@ import java.util.zip.GZIPOutputStream;
 
 /**
  * Writes the too many hit data structure Protocol Buffer format.
- * See Alignements.proto for the specification of this format.
+ * See Alignements.proto for the specification of this format. The hits are also written sorted by query index
+ * to the .tmh2 file, which {@link AlignmentTooManyHitsReader} memory-maps.
  *
  * @author Fabien Campagne
  *         Date: May 5, 2009
@@ -38,6 +39,7 @@ import java.util.zip.GZIPOutputStream;
  */
 public class AlignmentTooManyHitsWriter implements Closeable {
     private boolean tooManyHitsWritten;
+    private final String outputBasename;
     private final OutputStream tooManyHitsOutput;
     private final Alignments.AlignmentTooManyHits.Builder tooManyHits;
     private Alignments.AmbiguousLocation.Builder newAmbiguousLocation;
@@ -49,6 +51,7 @@ public class AlignmentTooManyHitsWriter implements Closeable {
 
 
     public AlignmentTooManyHitsWriter(final String outputBasename, final int alignerThreshold) throws IOException {
+        this.outputBasename = outputBasename;
         tooManyHitsOutput = new GZIPOutputStream(new FileOutputStream(outputBasename + ".tmh"));
         newAmbiguousLocation = Alignments.AmbiguousLocation.newBuilder();
         tooManyHits = Alignments.AlignmentTooManyHits.newBuilder();
@@ -77,14 +80,26 @@ public class AlignmentTooManyHitsWriter implements Closeable {
 
     public void write() throws IOException {
         if (!tooManyHitsWritten) {
-            tooManyHits.build().writeTo(tooManyHitsOutput);
+            final Alignments.AlignmentTooManyHits message = tooManyHits.build();
+            message.writeTo(tooManyHitsOutput);
             tooManyHitsOutput.close();
+            writeMapped(message);
             tooManyHitsWritten = true;
             //recover the memory:
             tooManyHits.clear();
         }
     }
 
+    private void writeMapped(final Alignments.AlignmentTooManyHits message) throws IOException {
+        final int numLocations = message.getHitsCount();
+        final int[] queryIndices = new int[numLocations];
+        final int[] numHits = new int[numLocations];
+        final int[] lengthOfMatch = new int[numLocations];
+        final int length = AlignmentTooManyHitsReader.sortHits(message, queryIndices, numHits, lengthOfMatch);
+        AlignmentTooManyHitsReader.writeMapped(outputBasename, message.getAlignerThreshold(),
+                queryIndices, numHits, lengthOfMatch, length);
+    }
+
     public Alignments.AmbiguousLocation.Builder getNewAmbiguousLocation() {
         return newAmbiguousLocation;
     }
@@ -71,7 +71,8 @@ public class AlignmentWriterImpl implements AlignmentWriter {
     private boolean allReadQualityScores = true;
     @RegisterThis
     public static DynamicOptionClient doc = new DynamicOptionClient(AlignmentWriterImpl.class,
-            "permutate-query-indices:boolean, when true permutates query indices to small values (improves compression, but looses the ability to track alignments back to reads):false"
+            "permutate-query-indices:boolean, when true permutates query indices to small values (improves compression, but looses the ability to track alignments back to reads):false",
+            "write-mapped-index:boolean, when true sorted alignments also get an uncompressed .index2 index that readers memory-map instead of loading the .index:true"
     );
     private ObjectArrayList<Alignments.ReadOriginInfo.Builder> readOriginInfoBuilderList;
     private boolean entriesHaveAmbiguity = true;
@@ -122,7 +123,11 @@ public class AlignmentWriterImpl implements AlignmentWriter {
     private int firstTargetIndexInChunk;
     private boolean firstEntryInChunk = true;
     private int firstPositionInChunk;
-    private final LongArrayList indexOffsets = new LongArrayList();
+    /**
+     * Index of the chunk that starts at each indexed absolute position. Chunk indices are translated to offsets in
+     * the entries file when the index is written, since offsets are only known once chunks have been encoded.
+     */
+    private final IntArrayList indexChunks = new IntArrayList();
     private final LongArrayList indexAbsolutePositions = new LongArrayList();
     private boolean indexWritten;
     private long[] targetPositionOffsets;
@@ -132,12 +137,23 @@ public class AlignmentWriterImpl implements AlignmentWriter {
     private boolean queryIndicesWerePermuted;
 
     public AlignmentWriterImpl(final String outputBasename) throws IOException {
+        this(outputBasename, MessageChunksWriter.doc().getString("codec"));
+    }
+
+    /**
+     * Create a writer that encodes alignment entries with a specific chunk codec.
+     *
+     * @param outputBasename basename of the alignment to write.
+     * @param codecName      name of the chunk codec used to encode entries, e.g., hybrid-1 or snappy.
+     * @throws IOException if the alignment files cannot be created.
+     */
+    public AlignmentWriterImpl(final String outputBasename, final String codecName) throws IOException {
         alignmentEntries = new FileOutputStream(outputBasename + ".entries");
         headerOutput = new GZIPOutputStream(new FileOutputStream(outputBasename + ".header"));
         statsWriter = new FileWriter(outputBasename + ".stats");
         this.basename = outputBasename;
         collectionBuilder = Alignments.AlignmentCollection.newBuilder();
-        entriesChunkWriter = new MessageChunksWriter(alignmentEntries);
+        entriesChunkWriter = new MessageChunksWriter(alignmentEntries, codecName);
         entriesChunkWriter.setParser(new AlignmentCollectionHandler());
         newEntry = Alignments.AlignmentEntry.newBuilder();
         queryIdentifiers = new IndexedIdentifier();
@@ -318,13 +334,11 @@ public class AlignmentWriterImpl implements AlignmentWriter {
             firstPositionInChunk = builtEntry.getPosition();
             firstEntryInChunk = false;
         }
-        final long currentChunkOffset = entriesChunkWriter.writeAsNeeded(collectionBuilder,
+        entriesChunkWriter.writeAsNeeded(collectionBuilder,
                 builtEntry.hasMultiplicity() ? builtEntry.getMultiplicity() : 1);
-        // LOG.warn(String.format("#entriesWritten: %d currentChunkOffset: %d previousChunkOffset: %d",
-        //        entriesChunkWriter.getTotalEntriesWritten(), currentChunkOffset, previousChunkOffset));
         if (sortedState && entriesChunkWriter.getAppendedInChunk() == 0) {
             // we have just written a new chunk.
-            pushIndex(currentChunkOffset, firstTargetIndexInChunk, firstPositionInChunk);
+            pushIndex(entriesChunkWriter.getCurrentChunkIndex(), firstTargetIndexInChunk, firstPositionInChunk);
             firstEntryInChunk = true;
 
 
@@ -335,8 +349,7 @@ public class AlignmentWriterImpl implements AlignmentWriter {
 
     }
 
-    private void pushIndex(final long startOfChunkOffset, final int firstTargetIndexInChunk, final int firstPositionInChunk) {
-        final long newOffset = Math.max(startOfChunkOffset, 0);
+    private void pushIndex(final int chunkIndex, final int firstTargetIndexInChunk, final int firstPositionInChunk) {
         final int size = indexAbsolutePositions.size();
         // remove duplicates because the behavior of binary search is undefined for duplicates:
         /**
@@ -350,13 +363,13 @@ public class AlignmentWriterImpl implements AlignmentWriter {
 
         if (size == 0 || codedPosition != indexAbsolutePositions.get(size - 1)) {
 
-            indexOffsets.add(newOffset);
+            indexChunks.add(chunkIndex);
             indexAbsolutePositions.add(codedPosition);
             if (LOG.isTraceEnabled()) {
-                LOG.trace(String.format("INDEX Pushing targetIndex= %d position= %d offset-in-file= %d absolutePosition= %d",
+                LOG.trace(String.format("INDEX Pushing targetIndex= %d position= %d chunk-index= %d absolutePosition= %d",
                         firstTargetIndexInChunk,
                         firstPositionInChunk,
-                        newOffset, codedPosition));
+                        chunkIndex, codedPosition));
             }
         }
     }
@@ -426,16 +439,26 @@ public class AlignmentWriterImpl implements AlignmentWriter {
     private void writeIndex() throws IOException {
         if (!indexWritten) {
             // Push the last chunkoffset:
-            pushIndex(entriesChunkWriter.getCurrentChunkStartOffset(),
+            pushIndex(entriesChunkWriter.getCurrentChunkIndex(),
                     firstTargetIndexInChunk, firstPositionInChunk);
             GZIPOutputStream indexOutput = null;
             try {
                 indexOutput = new GZIPOutputStream(new FileOutputStream(basename + ".index"));
                 final Alignments.AlignmentIndex.Builder indexBuilder = Alignments.AlignmentIndex.newBuilder();
-                assert (indexOffsets.size() == indexAbsolutePositions.size()) : "index sizes must be consistent.";
+                assert (indexChunks.size() == indexAbsolutePositions.size()) : "index sizes must be consistent.";
+                final LongArrayList indexOffsets = new LongArrayList(indexChunks.size());
+                for (final int chunkIndex : indexChunks) {
+                    indexOffsets.add(entriesChunkWriter.getChunkStartOffset(chunkIndex));
+                }
                 indexBuilder.addAllOffsets(indexOffsets);
                 indexBuilder.addAllAbsolutePositions(indexAbsolutePositions);
                 indexBuilder.build().writeTo(indexOutput);
+                indexOutput.close();
+                indexOutput = null;
+                if (doc.getBoolean("write-mapped-index")) {
+                    // written last, so that it is not older than the entries and .index files:
+                    AlignmentChunkIndex.writeMapped(basename, indexOffsets, indexAbsolutePositions);
+                }
             } finally {
                 if (indexOutput != null) indexOutput.close();
                 indexWritten = true;
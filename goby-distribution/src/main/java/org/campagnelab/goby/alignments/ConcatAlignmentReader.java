@@ -492,6 +492,17 @@ public class ConcatAlignmentReader extends AbstractConcatAlignmentReader {
         }
     }
 
+    /**
+     * Restrict the optional fields decoded by the underlying readers.
+     *
+     * @param fields groups of optional fields to decode.
+     */
+    public void setFields(final EnumSet<AlignmentEntryField> fields) {
+        for (final AlignmentReader reader : readers) {
+            reader.setFields(fields);
+        }
+    }
+
     @Override
     public ReferenceLocation getMinLocation() throws IOException {
         ReferenceLocation minLocation = readers[0].getMinLocation();
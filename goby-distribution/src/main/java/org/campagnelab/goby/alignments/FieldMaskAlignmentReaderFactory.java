@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+/**
+ * Wraps another factory and restricts the optional fields decoded by the readers it creates.
+ *
+ * @author Fabien Campagne
+ */
+public class FieldMaskAlignmentReaderFactory implements AlignmentReaderFactory {
+    private final AlignmentReaderFactory delegate;
+    private final EnumSet<AlignmentEntryField> fields;
+
+    /**
+     * Create a factory whose readers decode only the given optional fields.
+     *
+     * @param delegate factory that creates the readers.
+     * @param fields   groups of optional fields to decode.
+     */
+    public FieldMaskAlignmentReaderFactory(final AlignmentReaderFactory delegate,
+                                           final EnumSet<AlignmentEntryField> fields) {
+        this.delegate = delegate;
+        this.fields = EnumSet.copyOf(fields);
+    }
+
+    private AlignmentReader mask(final AlignmentReader reader) {
+        reader.setFields(fields);
+        return reader;
+    }
+
+    @Override
+    public AlignmentReader createReader(final String basename) throws IOException {
+        return mask(delegate.createReader(basename));
+    }
+
+    @Override
+    public AlignmentReader createReader(final String basename, final boolean upgrade) throws IOException {
+        return mask(delegate.createReader(basename, upgrade));
+    }
+
+    @Override
+    public AlignmentReader[] createReaderArray(final int numElements) throws IOException {
+        return delegate.createReaderArray(numElements);
+    }
+
+    @Override
+    public AlignmentReader createReader(final String basename,
+                                        final int startReferenceIndex, final int startPosition,
+                                        final int endReferenceIndex, final int endPosition) throws IOException {
+        return mask(delegate.createReader(basename, startReferenceIndex, startPosition, endReferenceIndex, endPosition));
+    }
+
+    @Override
+    public AlignmentReader createReader(final String basename, final GenomicRange range) throws IOException {
+        return mask(delegate.createReader(basename, range));
+    }
+
+    @Override
+    public AlignmentReader createReader(final String basename, final long startOffset, final long endOffset)
+            throws IOException {
+        return mask(delegate.createReader(basename, startOffset, endOffset));
+    }
+
+    @Override
+    public FileSlice getSlice(final String basename, final GenomicRange range) throws IOException {
+        return delegate.getSlice(basename, range);
+    }
+
+    @Override
+    public AlignmentReader[] createReader(final String[] basenames, final boolean upgrade) throws IOException {
+        final AlignmentReader[] readers = delegate.createReader(basenames, upgrade);
+        for (final AlignmentReader reader : readers) {
+            mask(reader);
+        }
+        return readers;
+    }
+
+    @Override
+    public String[] getBasenames(final String[] inputFilenames) {
+        return delegate.getBasenames(inputFilenames);
+    }
+}
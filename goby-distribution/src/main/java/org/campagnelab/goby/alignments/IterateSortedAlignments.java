@@ -26,6 +26,8 @@ import org.campagnelab.goby.alignments.processors.AlignmentProcessorFactory;
 import org.campagnelab.goby.alignments.processors.AlignmentProcessorInterface;
 import org.campagnelab.goby.alignments.processors.DefaultAlignmentProcessorFactory;
 import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.ints.*;
@@ -56,6 +58,15 @@ public abstract class IterateSortedAlignments<T> {
      */
     private static final Logger LOG = LoggerFactory.getLogger(IterateSortedAlignments.class);
 
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(IterateSortedAlignments.class,
+            "window-map:boolean, when true accumulate bases in a circular array indexed by position instead of sorted trees:true"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
     private boolean filterByReferenceNames;
     private ObjectSet<String> includeReferenceNames = new ObjectOpenHashSet<String>();
     private DoubleIndexedIdentifier referenceIds;
@@ -320,7 +331,8 @@ public abstract class IterateSortedAlignments<T> {
         // skip to will go to the next entry in or after currentMinTargetIndex with at least position 0
         int lastPosition = -1;
         int lastTarget = -1;
-        PositionToBasesMap<T> positionToBases = new PositionToBasesMap<T>();
+        PositionToBasesMap<T> positionToBases = doc().getBoolean("window-map") ?
+                new WindowPositionToBasesMap<T>() : new PositionToBasesMap<T>();
 
 
         int currentPosition;
@@ -637,7 +649,7 @@ public abstract class IterateSortedAlignments<T> {
 
             if (positionToBases.containsKey(intermediatePosition)) {
                 processPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
-                positionToBases.remove(intermediatePosition);
+                recycle(positionToBases.remove(intermediatePosition));
                 lastPosition = Math.max(intermediatePosition, lastPosition);
             }
 
@@ -669,7 +681,7 @@ public abstract class IterateSortedAlignments<T> {
             if (positionToBases.containsKey(intermediatePosition)) {
 
                 processPositions(lastReferenceIndex, intermediatePosition, (T) positionToBases.get(intermediatePosition));
-                positionToBases.remove(intermediatePosition);
+                recycle((T) positionToBases.remove(intermediatePosition));
                 lastRemovedPosition = intermediatePosition;
             }
         }
@@ -721,6 +733,16 @@ public abstract class IterateSortedAlignments<T> {
 
     public abstract void processPositions(int referenceIndex, int intermediatePosition, T positionBaseInfos);
 
+    /**
+     * Called when the information accumulated for a position has been processed and removed from positionToBases.
+     * Override this method to reuse the information for positions observed later. The default implementation does
+     * nothing.
+     *
+     * @param positionBaseInfos information for the position that was processed, or null.
+     */
+    protected void recycle(final T positionBaseInfos) {
+    }
+
     /**
      * Implement this call-back method to observe a candidate indel that begins at startPosition.
      *
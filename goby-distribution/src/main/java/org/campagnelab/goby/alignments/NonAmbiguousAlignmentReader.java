@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.BitSet;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Properties;
@@ -242,6 +243,11 @@ public class NonAmbiguousAlignmentReader implements AlignmentReader {
         delegate.readIndex();
     }
 
+    @Override
+    public void setFields(final EnumSet<AlignmentEntryField> fields) {
+        delegate.setFields(fields);
+    }
+
     public void close() {
         delegate.close();
         if (!allQueriesHaveAmbiguity) {
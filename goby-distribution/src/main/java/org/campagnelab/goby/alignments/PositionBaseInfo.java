@@ -18,6 +18,8 @@
 
 package org.campagnelab.goby.alignments;
 
+import org.campagnelab.goby.util.pool.Resettable;
+
 /**
  * Base info for class IterateSortedAlignmentsListImpl.
  *
@@ -25,7 +27,7 @@ package org.campagnelab.goby.alignments;
  *         Date: Mar 21, 2011
  *         Time: 1:53:47 PM
  */
-public class PositionBaseInfo {
+public class PositionBaseInfo implements Resettable {
     public PositionBaseInfo() {
 
     }
@@ -78,5 +80,24 @@ public class PositionBaseInfo {
         return from == '-' || to == '-';
     }
 
+    /**
+     * Restore the state of a newly constructed instance, so that the instance can be reused for another base.
+     */
+    @Override
+    public void reset() {
+        readIndex = 0;
+        readerIndex = 0;
+        qualityScore = Byte.MIN_VALUE;
+        readMappingQuality = Byte.MIN_VALUE;
+        matchesReference = false;
+        from = ' ';
+        to = ' ';
+        position = 0;
+        matchesForwardStrand = false;
+        numVariationsInRead = 0;
+        insertSize = 0;
+        alignmentEntry = null;
+    }
+
 
 }
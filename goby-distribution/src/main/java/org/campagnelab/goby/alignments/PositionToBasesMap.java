@@ -3,13 +3,13 @@ package org.campagnelab.goby.alignments;
 import it.unimi.dsi.fastutil.ints.*;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 
-import java.util.Collection;
-import java.util.Map;
-import java.util.Observer;
-import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.function.IntConsumer;
 
 /**
+ * Map from positions to the information accumulated at each position, while iterating sorted alignments. Keys are
+ * kept sorted in a tree. See {@link WindowPositionToBasesMap} for an implementation specialized for positions that
+ * form a sliding window.
+ *
  * @author Fabien Campagne
  * Date: 1/26/13
  * Time: 12:37 PM
@@ -71,8 +71,8 @@ public class PositionToBasesMap<T> {
         delegate.put(keyPos, positionBaseInfos);
     }
 
-    public ObjectSet<Map.Entry<Integer, T>> entrySet() {
-        return delegate.entrySet();
+    public ObjectSet<Int2ObjectMap.Entry<T>> entrySet() {
+        return delegate.int2ObjectEntrySet();
     }
 
     /**
@@ -119,7 +119,7 @@ public class PositionToBasesMap<T> {
         if (sortedKeys.isEmpty()) return 0;
         return sortedKeys.lastInt()-sortedKeys.firstInt();
     }
-    public void trimWidth(int startFlapLength, Consumer<Integer> processFunction) {
+    public void trimWidth(int startFlapLength, IntConsumer processFunction) {
         if (isEmpty()) return;
         int firstPosition=firstPosition();
         while (width()>startFlapLength*2 ) {
@@ -0,0 +1,393 @@
+package org.campagnelab.goby.alignments;
+
+import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.objects.ObjectLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * A PositionToBasesMap that stores positions in a circular array instead of sorted trees. Positions observed while
+ * iterating sorted alignments always form a sliding window: new positions are added near the end of the window, and
+ * processed positions are removed from its start. The value for a position is stored in the slot
+ * (position &amp; mask) of the array, and the positions that hold a value, or were marked as ignored, are tracked in
+ * primitive bit sets. Get, put and remove therefore take constant time and do not allocate.
+ * <p>
+ * The array grows as needed up to MAX_CAPACITY positions. Positions that would make the window wider than that
+ * (e.g., the first read after a long gap in coverage, while the end of the previous read is still being processed)
+ * are kept in an overflow tree, and moved to the array once the window has been consumed.
+ * </p>
+ *
+ * @author Fabien Campagne
+ */
+public class WindowPositionToBasesMap<T> extends PositionToBasesMap<T> {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final int MAX_CAPACITY = 1 << 16;
+
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private long[] present = new long[INITIAL_CAPACITY >> 6];
+    private long[] ignored = new long[INITIAL_CAPACITY >> 6];
+    private int mask = INITIAL_CAPACITY - 1;
+    /**
+     * The window covers positions in [start, end). The window is empty when start == end.
+     */
+    private int start;
+    private int end;
+    /**
+     * Number of positions with a value in the window.
+     */
+    private int windowSize;
+    /**
+     * Values for positions after the end of the window, that do not fit in the array.
+     */
+    private final Int2ObjectAVLTreeMap<T> overflow = new Int2ObjectAVLTreeMap<T>();
+    private final IntAVLTreeSet overflowIgnored = new IntAVLTreeSet();
+
+    @Override
+    public String toString() {
+        if (isEmpty()) {
+            return "key span: []\n";
+        }
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format("key span: [%d-%d]%n", firstPosition(), lastPosition()));
+        for (final int position : keySet()) {
+            builder.append(get(position).toString());
+            builder.append("\n");
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public IntSet keySet() {
+        final IntLinkedOpenHashSet keys = new IntLinkedOpenHashSet(size());
+        for (int position = start; position < end; position++) {
+            if (isSet(present, position)) {
+                keys.add(position);
+            }
+        }
+        keys.addAll(overflow.keySet());
+        return keys;
+    }
+
+    @Override
+    public boolean containsKey(final int position) {
+        if (inWindow(position)) {
+            return isSet(present, position);
+        }
+        return !overflow.isEmpty() && overflow.containsKey(position);
+    }
+
+    @Override
+    public int size() {
+        return windowSize + overflow.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return windowSize == 0 && overflow.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        for (int position = start; position < end; position++) {
+            clearSlot(position);
+        }
+        start = end = 0;
+        windowSize = 0;
+        overflow.clear();
+        overflowIgnored.clear();
+    }
+
+    @Override
+    public T remove(final int position) {
+        if (!inWindow(position)) {
+            if (overflow.isEmpty() && overflowIgnored.isEmpty()) {
+                return null;
+            }
+            overflowIgnored.remove(position);
+            return overflow.remove(position);
+        }
+        final T value = get(position);
+        if (isSet(present, position)) {
+            windowSize--;
+        }
+        clearSlot(position);
+        shrink();
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(final int position) {
+        if (inWindow(position)) {
+            return (T) values[position & mask];
+        }
+        return overflow.isEmpty() ? null : overflow.get(position);
+    }
+
+    @Override
+    public void put(final int position, final T value) {
+        if (reserve(position)) {
+            if (!isSet(present, position)) {
+                set(present, position);
+                windowSize++;
+            }
+            values[position & mask] = value;
+        } else {
+            overflow.put(position, value);
+        }
+    }
+
+    @Override
+    public ObjectSet<Int2ObjectMap.Entry<T>> entrySet() {
+        final ObjectSet<Int2ObjectMap.Entry<T>> entries = new ObjectLinkedOpenHashSet<Int2ObjectMap.Entry<T>>(size());
+        for (int position = start; position < end; position++) {
+            if (isSet(present, position)) {
+                entries.add(new AbstractInt2ObjectMap.BasicEntry<T>(position, get(position)));
+            }
+        }
+        entries.addAll(overflow.int2ObjectEntrySet());
+        return entries;
+    }
+
+    @Override
+    public int firstPosition() {
+        if (windowSize > 0) {
+            for (int position = start; position < end; position++) {
+                if (isSet(present, position)) {
+                    return position;
+                }
+            }
+        }
+        if (overflow.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return overflow.firstIntKey();
+    }
+
+    private int lastPosition() {
+        if (!overflow.isEmpty()) {
+            return overflow.lastIntKey();
+        }
+        for (int position = end - 1; position >= start; position--) {
+            if (isSet(present, position)) {
+                return position;
+            }
+        }
+        throw new NoSuchElementException();
+    }
+
+    @Override
+    public void markIgnoredPosition(final int position) {
+        if (reserve(position)) {
+            set(ignored, position);
+        } else {
+            overflowIgnored.add(position);
+        }
+    }
+
+    @Override
+    public boolean isIgnoredPosition(final int position) {
+        if (inWindow(position)) {
+            return isSet(ignored, position);
+        }
+        return !overflowIgnored.isEmpty() && overflowIgnored.contains(position);
+    }
+
+    @Override
+    public void removeFirst() {
+        if (isEmpty()) return;
+        remove(firstPosition());
+    }
+
+    @Override
+    public void removeUpTo(final int intermediatePosition) {
+        while (!isEmpty()) {
+            final int first = firstPosition();
+            if (first > intermediatePosition) {
+                break;
+            }
+            remove(first);
+        }
+    }
+
+    @Override
+    public int width() {
+        if (isEmpty()) return 0;
+        return lastPosition() - firstPosition();
+    }
+
+    @Override
+    public void trimWidth(final int startFlapLength, final IntConsumer processFunction) {
+        while (width() > startFlapLength * 2) {
+            final int firstPosition = firstPosition();
+            processFunction.accept(firstPosition);
+            remove(firstPosition);
+        }
+    }
+
+    private boolean inWindow(final int position) {
+        return position >= start && position < end;
+    }
+
+    /**
+     * Make sure the window covers a position, growing or extending it as needed.
+     *
+     * @param position a position.
+     * @return true if the position is covered by the window, false if it belongs in the overflow.
+     */
+    private boolean reserve(final int position) {
+        if (inWindow(position)) {
+            return true;
+        }
+        if (!overflow.isEmpty() && position >= overflow.firstIntKey() ||
+                !overflowIgnored.isEmpty() && position >= overflowIgnored.firstInt()) {
+            // keep every position of the window before the positions in the overflow.
+            return false;
+        }
+        if (start == end) {
+            start = position;
+            end = position + 1;
+            return true;
+        }
+        final int newStart = Math.min(start, position);
+        final int newEnd = Math.max(end, position + 1);
+        final long width = (long) newEnd - newStart;
+        if (width > MAX_CAPACITY) {
+            if (position >= end) {
+                return false;
+            }
+            // a position far before the window: move the window to the overflow and start a new window here.
+            spill();
+            start = position;
+            end = position + 1;
+            return true;
+        }
+        if (width > values.length) {
+            grow((int) width);
+        }
+        start = newStart;
+        end = newEnd;
+        return true;
+    }
+
+    private void grow(final int width) {
+        final int capacity = Integer.highestOneBit(width - 1) << 1;
+        final Object[] newValues = new Object[capacity];
+        final long[] newPresent = new long[capacity >> 6];
+        final long[] newIgnored = new long[capacity >> 6];
+        final int newMask = capacity - 1;
+        for (int position = start; position < end; position++) {
+            final int slot = position & mask;
+            final int newSlot = position & newMask;
+            newValues[newSlot] = values[slot];
+            if (isSet(present, position)) {
+                newPresent[newSlot >>> 6] |= 1L << newSlot;
+            }
+            if (isSet(ignored, position)) {
+                newIgnored[newSlot >>> 6] |= 1L << newSlot;
+            }
+        }
+        values = newValues;
+        present = newPresent;
+        ignored = newIgnored;
+        mask = newMask;
+    }
+
+    /**
+     * Move the content of the window to the overflow, leaving the window empty.
+     */
+    @SuppressWarnings("unchecked")
+    private void spill() {
+        for (int position = start; position < end; position++) {
+            if (isSet(present, position)) {
+                overflow.put(position, (T) values[position & mask]);
+            }
+            if (isSet(ignored, position)) {
+                overflowIgnored.add(position);
+            }
+            clearSlot(position);
+        }
+        start = end = 0;
+        windowSize = 0;
+    }
+
+    /**
+     * Advance the start of the window past positions that hold no value and are not ignored. When the window
+     * becomes empty, the first positions of the overflow are moved to the window.
+     */
+    private void shrink() {
+        while (start < end && !isOccupied(start)) {
+            start++;
+        }
+        while (end > start && !isOccupied(end - 1)) {
+            end--;
+        }
+        if (start == end) {
+            start = end = 0;
+            refill();
+        }
+    }
+
+    private void refill() {
+        if (overflow.isEmpty() && overflowIgnored.isEmpty()) {
+            return;
+        }
+        int first = Integer.MAX_VALUE;
+        if (!overflow.isEmpty()) {
+            first = overflow.firstIntKey();
+        }
+        if (!overflowIgnored.isEmpty()) {
+            first = Math.min(first, overflowIgnored.firstInt());
+        }
+        final int limit = (int) Math.min(Integer.MAX_VALUE, (long) first + MAX_CAPACITY);
+        final Int2ObjectSortedMap<T> movedValues = overflow.headMap(limit);
+        final IntSortedSet movedIgnored = overflowIgnored.headSet(limit);
+        int last = first;
+        if (!movedValues.isEmpty()) {
+            last = Math.max(last, movedValues.lastIntKey());
+        }
+        if (!movedIgnored.isEmpty()) {
+            last = Math.max(last, movedIgnored.lastInt());
+        }
+        start = first;
+        end = last + 1;
+        if (end - start > values.length) {
+            grow(end - start);
+        }
+        for (final Int2ObjectMap.Entry<T> entry : movedValues.int2ObjectEntrySet()) {
+            final int position = entry.getIntKey();
+            values[position & mask] = entry.getValue();
+            set(present, position);
+            windowSize++;
+        }
+        final IntIterator iterator = movedIgnored.iterator();
+        while (iterator.hasNext()) {
+            set(ignored, iterator.nextInt());
+        }
+        movedValues.clear();
+        movedIgnored.clear();
+    }
+
+    private boolean isOccupied(final int position) {
+        return isSet(present, position) || isSet(ignored, position);
+    }
+
+    private void clearSlot(final int position) {
+        final int slot = position & mask;
+        values[slot] = null;
+        present[slot >>> 6] &= ~(1L << slot);
+        ignored[slot >>> 6] &= ~(1L << slot);
+    }
+
+    private boolean isSet(final long[] bits, final int position) {
+        final int slot = position & mask;
+        return (bits[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void set(final long[] bits, final int position) {
+        final int slot = position & mask;
+        bits[slot >>> 6] |= 1L << slot;
+    }
+}
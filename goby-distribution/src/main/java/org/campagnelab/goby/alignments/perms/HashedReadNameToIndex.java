@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments.perms;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts read names to query indices with the semantics of {@link ReadNameToIndex}, but keeps the names that
+ * may be requested again outside of the Java heap. Names are stored in an open-addressing table (linear probing)
+ * keyed by a 64-bit fingerprint of the name. Each slot holds the fingerprint, the query index, the number of times
+ * the name was requested and a reference to the bytes of the name, which are compared to the requested name to
+ * resolve fingerprint collisions. Name bytes are appended to segments of direct memory and compacted when most of
+ * them belong to names that were forgotten. Memory use is therefore proportional to the number of names in
+ * flight, about 24 bytes per slot plus the length of the names.
+ *
+ * @author Fabien Campagne
+ */
+public class HashedReadNameToIndex implements ReadNameToIndexInterface {
+    /**
+     * Used to log informational and debug messages.
+     */
+    private static final Log LOG = LogFactory.getLog(HashedReadNameToIndex.class);
+
+    private static final int MIN_CAPACITY = 1 << 10;
+    /**
+     * Largest number of slots, so that each slot buffer holds less than 2^31 bytes.
+     */
+    private static final int MAX_CAPACITY = 1 << 27;
+    private static final int DEFAULT_SEGMENT_SIZE = 1 << 26;
+    /**
+     * Name references are coded as <code>(offset &lt;&lt; LENGTH_BITS) | length</code>.
+     */
+    private static final int LENGTH_BITS = 24;
+
+    /**
+     * Number of bytes in each segment of names.
+     */
+    private final int segmentSize;
+
+    private int capacity;
+    private int mask;
+    private int size;
+    /**
+     * Fingerprint of the name of each slot, zero for empty slots.
+     */
+    private LongBuffer fingerprints;
+    private IntBuffer queryIndices;
+    private IntBuffer timesRequested;
+    private LongBuffer names;
+
+    private final ObjectArrayList<ByteBuffer> segments = new ObjectArrayList<ByteBuffer>();
+    /**
+     * Offset where the next name will be written, in the concatenation of the segments.
+     */
+    private long arenaEnd;
+    /**
+     * Number of bytes of the names still in the table.
+     */
+    private long liveBytes;
+
+    private int smallIndexCounter;
+    private byte[] scratch = new byte[256];
+    private int numCompactions;
+
+    public HashedReadNameToIndex() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create a table that stores names in segments of the given size.
+     *
+     * @param segmentSize number of bytes in each segment of names, at least the length of the longest name.
+     */
+    HashedReadNameToIndex(final int segmentSize) {
+        super();
+        this.segmentSize = segmentSize;
+        allocate(MIN_CAPACITY);
+    }
+
+    @Override
+    public int getQueryIndex(final String readName, final int maxObservations) {
+        final int length = encode(readName);
+        long fingerprint = fingerprint(scratch, length);
+        if (fingerprint == 0) {
+            fingerprint = 1;
+        }
+        final int slot = find(fingerprint, length);
+        if (slot >= 0) {
+            final int queryIndex = queryIndices.get(slot);
+            final int timesSeen = timesRequested.get(slot) + 1;
+            // decide if we have reached max observations for this query index:
+            if (timesSeen >= maxObservations) {
+                remove(slot);
+            } else {
+                timesRequested.put(slot, timesSeen);
+            }
+            return queryIndex;
+        }
+        final int queryIndex = smallIndexCounter++;
+        if (maxObservations > 1) {
+            // keep the name until it has been requested maxObservations times:
+            final long name = storeName(length);
+            put(-slot - 1, fingerprint, queryIndex, 1, name);
+            size++;
+            liveBytes += length;
+            if (size > capacity - (capacity >> 2)) {
+                if (capacity == MAX_CAPACITY) {
+                    throw new GobyRuntimeException(String.format("More than %d read names are waiting for " +
+                            "their last alignment.", size));
+                }
+                rehash(capacity << 1);
+            }
+        }
+        return queryIndex;
+    }
+
+    /**
+     * Return the number of names that may be requested again.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the number of segments that currently hold names.
+     */
+    int numSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Return the number of times the names were compacted.
+     */
+    int numCompactions() {
+        return numCompactions;
+    }
+
+    @Override
+    public void setPruneLimit(final byte limit) {
+        // names are kept until they have been requested as many times as expected.
+    }
+
+    @Override
+    public void close() {
+        fingerprints = null;
+        queryIndices = null;
+        timesRequested = null;
+        names = null;
+        segments.clear();
+    }
+
+    /**
+     * Return a 64-bit fingerprint of the bytes of a name.
+     */
+    long fingerprint(final byte[] bytes, final int length) {
+        long hash = length;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 0x9E3779B97F4A7C15L + bytes[i];
+        }
+        return HashCommon.murmurHash3(hash);
+    }
+
+    /**
+     * Write the bytes of a name to the scratch buffer.
+     *
+     * @return the number of bytes of the name.
+     */
+    private int encode(final String readName) {
+        final int length = readName.length();
+        if (scratch.length < length) {
+            scratch = new byte[length * 2];
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = readName.charAt(i);
+            if (c >= 0x80) {
+                final byte[] bytes = readName.getBytes(StandardCharsets.UTF_8);
+                if (scratch.length < bytes.length) {
+                    scratch = new byte[bytes.length];
+                }
+                System.arraycopy(bytes, 0, scratch, 0, bytes.length);
+                return bytes.length;
+            }
+            scratch[i] = (byte) c;
+        }
+        return length;
+    }
+
+    /**
+     * Find the slot of the name in the scratch buffer.
+     *
+     * @return the slot of the name, or -slot-1 where slot is the empty slot where the name can be inserted.
+     */
+    private int find(final long fingerprint, final int length) {
+        int slot = home(fingerprint);
+        long slotFingerprint;
+        while ((slotFingerprint = fingerprints.get(slot)) != 0) {
+            if (slotFingerprint == fingerprint && sameName(names.get(slot), length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    private int home(final long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    private boolean sameName(final long name, final int length) {
+        if ((int) (name & ((1L << LENGTH_BITS) - 1)) != length) {
+            return false;
+        }
+        final long offset = name >>> LENGTH_BITS;
+        final ByteBuffer segment = segments.get((int) (offset / segmentSize));
+        final int position = (int) (offset % segmentSize);
+        for (int i = 0; i < length; i++) {
+            if (segment.get(position + i) != scratch[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void put(final int slot, final long fingerprint, final int queryIndex, final int times, final long name) {
+        fingerprints.put(slot, fingerprint);
+        queryIndices.put(slot, queryIndex);
+        timesRequested.put(slot, times);
+        names.put(slot, name);
+    }
+
+    /**
+     * Remove the name of a slot, shifting back the names that follow it in the probe sequence.
+     */
+    private void remove(final int slot) {
+        liveBytes -= names.get(slot) & ((1L << LENGTH_BITS) - 1);
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        long fingerprint;
+        while ((fingerprint = fingerprints.get(next)) != 0) {
+            // the name at next can fill the hole if the hole is between its home slot and next:
+            if (((next - home(fingerprint)) & mask) >= ((next - hole) & mask)) {
+                put(hole, fingerprint, queryIndices.get(next), timesRequested.get(next), names.get(next));
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        fingerprints.put(hole, 0);
+        size--;
+        if (size < capacity >> 3 && capacity > MIN_CAPACITY) {
+            rehash(capacity >> 1);
+        }
+    }
+
+    private void allocate(final int newCapacity) {
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+        fingerprints = ByteBuffer.allocateDirect(newCapacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        queryIndices = ByteBuffer.allocateDirect(newCapacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        timesRequested = ByteBuffer.allocateDirect(newCapacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        names = ByteBuffer.allocateDirect(newCapacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    private void rehash(final int newCapacity) {
+        final int oldCapacity = capacity;
+        final LongBuffer oldFingerprints = fingerprints;
+        final IntBuffer oldQueryIndices = queryIndices;
+        final IntBuffer oldTimesRequested = timesRequested;
+        final LongBuffer oldNames = names;
+        allocate(newCapacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            final long fingerprint = oldFingerprints.get(slot);
+            if (fingerprint != 0) {
+                int newSlot = home(fingerprint);
+                while (fingerprints.get(newSlot) != 0) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                put(newSlot, fingerprint, oldQueryIndices.get(slot), oldTimesRequested.get(slot), oldNames.get(slot));
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Resized read name table to %d slots for %d names.", newCapacity, size));
+        }
+    }
+
+    /**
+     * Append the name in the scratch buffer to the segments. Names do not cross segment boundaries.
+     *
+     * @return the reference to the name.
+     */
+    private long storeName(final int length) {
+        if (length > segmentSize) {
+            throw new GobyRuntimeException(String.format("Read names longer than %d bytes are not supported.",
+                    segmentSize));
+        }
+        if (arenaEnd % segmentSize + length > segmentSize || arenaEnd / segmentSize == segments.size()) {
+            // a new segment is needed, reclaim the space of forgotten names first if they use most of the segments:
+            if (liveBytes < arenaEnd / 2) {
+                compact();
+            }
+            if (arenaEnd % segmentSize + length > segmentSize) {
+                arenaEnd = (arenaEnd / segmentSize + 1) * segmentSize;
+            }
+            while (arenaEnd / segmentSize >= segments.size()) {
+                segments.add(ByteBuffer.allocateDirect(segmentSize));
+            }
+        }
+        final ByteBuffer segment = segments.get((int) (arenaEnd / segmentSize));
+        final int position = (int) (arenaEnd % segmentSize);
+        for (int i = 0; i < length; i++) {
+            segment.put(position + i, scratch[i]);
+        }
+        final long name = (arenaEnd << LENGTH_BITS) | length;
+        arenaEnd += length;
+        return name;
+    }
+
+    /**
+     * Move the names still in the table to the start of the segments, in the order they were written, and release
+     * the segments that are no longer used.
+     */
+    private void compact() {
+        numCompactions++;
+        final int[] slots = new int[size];
+        int numSlots = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (fingerprints.get(slot) != 0) {
+                slots[numSlots++] = slot;
+            }
+        }
+        IntArrays.quickSort(slots, 0, numSlots, new AbstractIntComparator() {
+            public int compare(final int slot1, final int slot2) {
+                return Long.compare(names.get(slot1), names.get(slot2));
+            }
+        });
+        long end = 0;
+        for (int i = 0; i < numSlots; i++) {
+            final long name = names.get(slots[i]);
+            final int length = (int) (name & ((1L << LENGTH_BITS) - 1));
+            final long offset = name >>> LENGTH_BITS;
+            if (end % segmentSize + length > segmentSize) {
+                end = (end / segmentSize + 1) * segmentSize;
+            }
+            // names only move toward the start of the arena, so a name is never overwritten before it is moved:
+            final ByteBuffer from = segments.get((int) (offset / segmentSize));
+            final ByteBuffer to = segments.get((int) (end / segmentSize));
+            final int fromPosition = (int) (offset % segmentSize);
+            final int toPosition = (int) (end % segmentSize);
+            for (int j = 0; j < length; j++) {
+                to.put(toPosition + j, from.get(fromPosition + j));
+            }
+            names.put(slots[i], (end << LENGTH_BITS) | length);
+            end += length;
+        }
+        arenaEnd = end;
+        final int usedSegments = (int) (arenaEnd / segmentSize) + 1;
+        if (segments.size() > usedSegments) {
+            segments.size(usedSegments);
+        }
+    }
+}
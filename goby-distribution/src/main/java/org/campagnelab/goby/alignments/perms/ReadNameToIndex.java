@@ -33,7 +33,7 @@ import org.apache.commons.logging.LogFactory;
  *         Date: 3/5/12
  *         Time: 5:10 PM
  */
-public class ReadNameToIndex {
+public class ReadNameToIndex implements ReadNameToIndexInterface {
     /**
      * Used to log informational and debug messages.
      */
@@ -65,6 +65,7 @@ public class ReadNameToIndex {
     private final Object2ByteMap<MutableString> timesRequested = new Object2ByteAVLTreeMap<MutableString>();
     private final Object2IntMap<MutableString> namesToIndex = new Object2IntAVLTreeMap<MutableString>();
 
+    @Override
     public int getQueryIndex(final String readName, final int maxObservations) {
         final MutableString readNameMutable = new MutableString(readName).compact();
         final int timesRequestedInt = timesRequested.getByte(readNameMutable);
@@ -95,11 +96,13 @@ public class ReadNameToIndex {
     }
 
 
+    @Override
     public void setPruneLimit(byte limit) {
         globalQueryMaxOccurences = limit;
     }
 
 
+    @Override
     public void close() {
         // TODO close output writer.
     }
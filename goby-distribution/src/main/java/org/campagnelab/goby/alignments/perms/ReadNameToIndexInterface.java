@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.alignments.perms;
+
+/**
+ * Converts read names to query indices, keeping a read name to index association only until the read name has
+ * been requested as many times as expected.
+ *
+ * @author Fabien Campagne
+ */
+public interface ReadNameToIndexInterface {
+    /**
+     * Return the query index of a read name. A new query index is allocated the first time a name is requested,
+     * and returned again for the same name until the name has been requested maxObservations times. The name is
+     * then forgotten, and a new query index is allocated the next time it is requested.
+     *
+     * @param readName        name of the read.
+     * @param maxObservations number of times the name is expected to be requested.
+     * @return the query index of the read.
+     */
+    int getQueryIndex(String readName, int maxObservations);
+
+    void setPruneLimit(byte limit);
+
+    /**
+     * Release resources held by this object.
+     */
+    void close();
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.baseinfo;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+
+/**
+ * The genomic index of a .sbi file: for each chunk of the file, the offset of the chunk and the smallest and
+ * largest genomic positions of the records it contains. Records do not need to be sorted, but region queries only
+ * read chunks whose position range overlaps the region, so they are efficient when records were written in genomic
+ * order. The index also records the reference id associated with each reference index. Positions are coded as
+ * <code>(referenceIndex &lt;&lt; 32) | position</code>. The .sbix layout is:
+ * <pre>
+ * int  magic number
+ * int  format version
+ * long length of the .sbi file the index was built for
+ * int  number of reference names (m)
+ * m x (int reference index, UTF reference id)
+ * int  number of indexed chunks (n)
+ * n x (long offset in the .sbi file, long smallest coded position, long largest coded position)
+ * </pre>
+ * All values are stored big-endian.
+ *
+ * @author Fabien Campagne
+ */
+public class SequenceBaseInformationIndex {
+    private static final Log LOG = LogFactory.getLog(SequenceBaseInformationIndex.class);
+
+    /**
+     * Extension of the index file.
+     */
+    public static final String INDEX_EXTENSION = ".sbix";
+
+    private static final int MAGIC = 0x53424958; // "SBIX"
+    private static final int VERSION = 1;
+
+    private final long[] offsets;
+    private final long[] minPositions;
+    private final long[] maxPositions;
+    private final Object2IntMap<String> referenceIndices;
+
+    private SequenceBaseInformationIndex(final long[] offsets, final long[] minPositions, final long[] maxPositions,
+                                         final Object2IntMap<String> referenceIndices) {
+        this.offsets = offsets;
+        this.minPositions = minPositions;
+        this.maxPositions = maxPositions;
+        this.referenceIndices = referenceIndices;
+    }
+
+    /**
+     * Code a genomic position so that coded positions sort by reference index, then position.
+     */
+    public static long codePosition(final int referenceIndex, final int position) {
+        return ((long) referenceIndex << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Load the index of a .sbi file.
+     *
+     * @param basename basename of the .sbi file.
+     * @return the index, or null if the index does not exist or was built for a different .sbi file.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public static SequenceBaseInformationIndex load(final String basename) throws IOException {
+        final File file = new File(basename + INDEX_EXTENSION);
+        if (!file.exists()) {
+            return null;
+        }
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() > VERSION) {
+                LOG.warn("Ignoring index with unsupported format " + file.getPath());
+                return null;
+            }
+            final long sbiLength = input.readLong();
+            if (new File(basename + ".sbi").length() != sbiLength) {
+                LOG.warn("Ignoring stale index " + file.getPath() + ", the .sbi file has changed since it was built.");
+                return null;
+            }
+            final int numReferences = input.readInt();
+            final Object2IntMap<String> referenceIndices = new Object2IntOpenHashMap<String>(numReferences);
+            referenceIndices.defaultReturnValue(-1);
+            for (int i = 0; i < numReferences; i++) {
+                final int referenceIndex = input.readInt();
+                referenceIndices.put(input.readUTF(), referenceIndex);
+            }
+            final int numChunks = input.readInt();
+            final long[] offsets = new long[numChunks];
+            final long[] minPositions = new long[numChunks];
+            final long[] maxPositions = new long[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                offsets[i] = input.readLong();
+                minPositions[i] = input.readLong();
+                maxPositions[i] = input.readLong();
+            }
+            return new SequenceBaseInformationIndex(offsets, minPositions, maxPositions, referenceIndices);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Write the index of a .sbi file.
+     *
+     * @param basename       basename of the .sbi file.
+     * @param offsets        offset of each chunk in the .sbi file.
+     * @param minPositions   smallest coded position of the records of each chunk.
+     * @param maxPositions   largest coded position of the records of each chunk.
+     * @param referenceIds   reference id for each reference index that has one.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(final String basename, final LongList offsets, final LongList minPositions,
+                             final LongList maxPositions, final Int2ObjectMap<String> referenceIds) throws IOException {
+        assert offsets.size() == minPositions.size() && offsets.size() == maxPositions.size() : "index sizes must be consistent.";
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(basename + INDEX_EXTENSION)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(new File(basename + ".sbi").length());
+            output.writeInt(referenceIds.size());
+            for (final Int2ObjectMap.Entry<String> entry : referenceIds.int2ObjectEntrySet()) {
+                output.writeInt(entry.getIntKey());
+                output.writeUTF(entry.getValue());
+            }
+            output.writeInt(offsets.size());
+            for (int i = 0; i < offsets.size(); i++) {
+                output.writeLong(offsets.getLong(i));
+                output.writeLong(minPositions.getLong(i));
+                output.writeLong(maxPositions.getLong(i));
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Return the reference index of a reference id, or -1 if no record of the file has this reference id.
+     */
+    public int getReferenceIndex(final String referenceId) {
+        return referenceIndices.getInt(referenceId);
+    }
+
+    /**
+     * Return the number of indexed chunks.
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * Return the offset of a chunk in the .sbi file.
+     */
+    public long getOffset(final int chunk) {
+        return offsets[chunk];
+    }
+
+    /**
+     * Return the chunks that may contain records in a genomic range, in file order.
+     *
+     * @param referenceIndex index of the reference sequence.
+     * @param start          first position of the range.
+     * @param end            last position of the range, inclusive.
+     * @return indices of the overlapping chunks.
+     */
+    public IntList getOverlappingChunks(final int referenceIndex, final int start, final int end) {
+        final long rangeStart = codePosition(referenceIndex, start);
+        final long rangeEnd = codePosition(referenceIndex, end);
+        final IntList result = new IntArrayList();
+        for (int chunk = 0; chunk < offsets.length; chunk++) {
+            if (minPositions[chunk] <= rangeEnd && maxPositions[chunk] >= rangeStart) {
+                result.add(chunk);
+            }
+        }
+        return result;
+    }
+}
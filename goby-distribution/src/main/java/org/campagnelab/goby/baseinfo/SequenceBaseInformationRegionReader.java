@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.baseinfo;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the records of a .sbi file in a genomic range. The .sbix index of the file is used to read only the chunks
+ * whose records may fall in the range, and records of these chunks outside the range are skipped. Records are
+ * returned in file order.
+ *
+ * @author Fabien Campagne
+ */
+public class SequenceBaseInformationRegionReader implements Iterator<BaseInformationRecords.BaseInformation>,
+        Iterable<BaseInformationRecords.BaseInformation>, Closeable {
+    private final String sbiPath;
+    private final int referenceIndex;
+    private final int start;
+    private final int end;
+    /**
+     * Byte ranges of consecutive chunks to read: the start offset of the first chunk and of the last chunk of each
+     * range.
+     */
+    private final LongArrayList rangeStarts = new LongArrayList();
+    private final LongArrayList rangeEnds = new LongArrayList();
+    private int rangeIndex;
+    private SequenceBaseInformationReader reader;
+    private BaseInformationRecords.BaseInformation nextRecord;
+
+    /**
+     * Initialize the reader for a range of a reference sequence identified by name.
+     *
+     * @param path        path or basename of the .sbi file.
+     * @param referenceId identifier of the reference sequence (typically chromosome name).
+     * @param start       first position of the range.
+     * @param end         last position of the range, inclusive.
+     * @throws IOException if the index of the file cannot be read.
+     */
+    public SequenceBaseInformationRegionReader(final String path, final String referenceId, final int start,
+                                               final int end) throws IOException {
+        this(path, loadIndex(path), referenceId, start, end);
+    }
+
+    /**
+     * Initialize the reader for a range of a reference sequence identified by index.
+     *
+     * @param path           path or basename of the .sbi file.
+     * @param referenceIndex index of the reference sequence.
+     * @param start          first position of the range.
+     * @param end            last position of the range, inclusive.
+     * @throws IOException if the index of the file cannot be read.
+     */
+    public SequenceBaseInformationRegionReader(final String path, final int referenceIndex, final int start,
+                                               final int end) throws IOException {
+        this(path, loadIndex(path), referenceIndex, start, end);
+    }
+
+    private SequenceBaseInformationRegionReader(final String path, final SequenceBaseInformationIndex index,
+                                                final String referenceId, final int start, final int end) {
+        this(path, index, index.getReferenceIndex(referenceId), start, end);
+    }
+
+    private SequenceBaseInformationRegionReader(final String path, final SequenceBaseInformationIndex index,
+                                                final int referenceIndex, final int start, final int end) {
+        super();
+        this.sbiPath = SequenceBaseInformationReader.getBasename(path) + ".sbi";
+        this.referenceIndex = referenceIndex;
+        this.start = start;
+        this.end = end;
+        if (referenceIndex >= 0) {
+            final IntList chunks = index.getOverlappingChunks(referenceIndex, start, end);
+            int previousChunk = -2;
+            for (final int chunk : chunks) {
+                if (chunk == previousChunk + 1) {
+                    rangeEnds.set(rangeEnds.size() - 1, index.getOffset(chunk));
+                } else {
+                    rangeStarts.add(index.getOffset(chunk));
+                    rangeEnds.add(index.getOffset(chunk));
+                }
+                previousChunk = chunk;
+            }
+        }
+    }
+
+    private static SequenceBaseInformationIndex loadIndex(final String path) throws IOException {
+        final String basename = SequenceBaseInformationReader.getBasename(path);
+        final SequenceBaseInformationIndex index = SequenceBaseInformationIndex.load(basename);
+        if (index == null) {
+            throw new IOException("The .sbi file " + basename + " has no valid " +
+                    SequenceBaseInformationIndex.INDEX_EXTENSION + " index. Write the file again to index it.");
+        }
+        return index;
+    }
+
+    /**
+     * Returns true if the range has more records.
+     */
+    public boolean hasNext() {
+        try {
+            while (nextRecord == null) {
+                if (reader != null && reader.hasNext()) {
+                    final BaseInformationRecords.BaseInformation record = reader.next();
+                    if (record.getReferenceIndex() == referenceIndex &&
+                            record.getPosition() >= start && record.getPosition() <= end) {
+                        nextRecord = record;
+                    }
+                } else {
+                    if (reader != null) {
+                        reader.close();
+                        reader = null;
+                    }
+                    if (rangeIndex == rangeStarts.size()) {
+                        return false;
+                    }
+                    // the reader returns the chunks that start between the offsets:
+                    reader = new SequenceBaseInformationReader(rangeStarts.getLong(rangeIndex),
+                            rangeEnds.getLong(rangeIndex) + 1, sbiPath);
+                    rangeIndex++;
+                }
+            }
+        } catch (IOException e) {
+            throw new GobyRuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next record in the range.
+     */
+    public BaseInformationRecords.BaseInformation next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final BaseInformationRecords.BaseInformation record = nextRecord;
+        nextRecord = null;
+        return record;
+    }
+
+    /**
+     * This operation is not supported.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("Cannot remove from a reader.");
+    }
+
+    /**
+     * Make the reader "iterable" for java "for each" loops. The reader can only be iterated once.
+     *
+     * @return this object
+     */
+    public Iterator<BaseInformationRecords.BaseInformation> iterator() {
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        rangeIndex = rangeStarts.size();
+    }
+}
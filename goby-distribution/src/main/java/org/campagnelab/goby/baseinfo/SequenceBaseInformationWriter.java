@@ -20,6 +20,10 @@ package org.campagnelab.goby.baseinfo;
  */
 
 import edu.cornell.med.icb.util.VersionUtils;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.commons.io.IOUtils;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords.BaseInformation;
 import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords.BaseInformationCollection;
@@ -34,7 +38,8 @@ import java.util.List;
 import java.util.Properties;
 
 /**
- * Write for sequence base information.
+ * Write for sequence base information. Writers created with a basename also write a .sbix genomic index of the
+ * chunks of the .sbi file (see {@link SequenceBaseInformationIndex}).
  *
  * @author Fabien Campagne
  *         Created by fac2003 on 8/27/16.
@@ -45,6 +50,22 @@ public class SequenceBaseInformationWriter implements Closeable {
     private String basename;
     private final MessageChunksWriter messageChunkWriter;
     private long recordIndex;
+    /**
+     * The .sbi output stream, when this writer opened it.
+     */
+    private OutputStream sbiOutput;
+
+    // data structures to build the index:
+    private long chunkMinPosition = Long.MAX_VALUE;
+    private long chunkMaxPosition = Long.MIN_VALUE;
+    /**
+     * Index of each indexed chunk. Chunk indices are translated to offsets in the .sbi file when the index is
+     * written, since offsets are only known once chunks have been encoded.
+     */
+    private final IntArrayList indexChunks = new IntArrayList();
+    private final LongArrayList indexMinPositions = new LongArrayList();
+    private final LongArrayList indexMaxPositions = new LongArrayList();
+    private final Int2ObjectMap<String> referenceIds = new Int2ObjectOpenHashMap<>();
     public List<StatAccumulator> ACCUMULATORS = new ArrayList<>();
 
     {
@@ -73,6 +94,11 @@ public class SequenceBaseInformationWriter implements Closeable {
         this.basename = BasenameUtils.getBasename(basename,FileExtensionHelper.COMPACT_SEQUENCE_BASE_INFORMATION);
     }
 
+    private SequenceBaseInformationWriter(final FileOutputStream output) {
+        this((OutputStream) output);
+        sbiOutput = output;
+    }
+
     public SequenceBaseInformationWriter(final OutputStream output) {
         collectionBuilder = BaseInformationCollection.newBuilder();
         messageChunkWriter = new MessageChunksWriter(output);
@@ -86,6 +112,11 @@ public class SequenceBaseInformationWriter implements Closeable {
     @Override
     public void close() throws IOException {
         messageChunkWriter.close(collectionBuilder);
+        if (sbiOutput != null) {
+            sbiOutput.close();
+            pushIndex();
+            writeIndex();
+        }
         Properties p = getCustomProperties();
         for (StatAccumulator accumulator : ACCUMULATORS) {
             accumulator.setProperties(p);
@@ -201,10 +232,41 @@ public class SequenceBaseInformationWriter implements Closeable {
         for (StatAccumulator accumulator : ACCUMULATORS) {
             accumulator.observe(baseInfo);
         }
+        final long codedPosition = SequenceBaseInformationIndex.codePosition(baseInfo.getReferenceIndex(), baseInfo.getPosition());
+        chunkMinPosition = Math.min(chunkMinPosition, codedPosition);
+        chunkMaxPosition = Math.max(chunkMaxPosition, codedPosition);
+        if (baseInfo.hasReferenceId() && !referenceIds.containsKey(baseInfo.getReferenceIndex())) {
+            referenceIds.put(baseInfo.getReferenceIndex(), baseInfo.getReferenceId());
+        }
         messageChunkWriter.writeAsNeeded(collectionBuilder);
+        if (messageChunkWriter.getAppendedInChunk() == 0) {
+            // we have just written a new chunk.
+            pushIndex();
+        }
         recordIndex += 1;
     }
 
+    /**
+     * Record the position range of the chunk just flushed, if it has records.
+     */
+    private void pushIndex() {
+        if (chunkMinPosition <= chunkMaxPosition) {
+            indexChunks.add(messageChunkWriter.getCurrentChunkIndex());
+            indexMinPositions.add(chunkMinPosition);
+            indexMaxPositions.add(chunkMaxPosition);
+            chunkMinPosition = Long.MAX_VALUE;
+            chunkMaxPosition = Long.MIN_VALUE;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final LongArrayList indexOffsets = new LongArrayList(indexChunks.size());
+        for (final int chunkIndex : indexChunks) {
+            indexOffsets.add(messageChunkWriter.getChunkStartOffset(chunkIndex));
+        }
+        SequenceBaseInformationIndex.write(basename, indexOffsets, indexMinPositions, indexMaxPositions, referenceIds);
+    }
+
     public void setNumEntriesPerChunk(final int numEntriesPerChunk) {
         messageChunkWriter.setNumEntriesPerChunk(numEntriesPerChunk);
     }
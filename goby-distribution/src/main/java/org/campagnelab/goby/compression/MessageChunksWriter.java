@@ -20,6 +20,8 @@
 
 package org.campagnelab.goby.compression;
 
+import com.google.protobuf.Message;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.campagnelab.goby.alignments.AlignmentCollectionHandler;
 import org.campagnelab.goby.util.WarningCounter;
 import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
@@ -29,12 +31,21 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper class to write many messages concatenated to a large output file. This helper
  * compresses each message before it is written to the output stream, and interleaves
  * messages with boundaries and size information. Boundaries make
  * it possible to split the file efficiently (e.g., see Hadoop FileSplit mechanism).
+ * <p>
+ * When the parallel-encode option is set, full chunks are handed to a bounded pool of encoder threads and the
+ * resulting bytes are written to the output in the order the chunks were flushed. The start offset of a chunk
+ * is then only known once the chunk has been written. Clients that index chunks should record the index returned
+ * by {@link #getCurrentChunkIndex()} and translate it with {@link #getChunkStartOffset(int)} after {@link #close}.
+ * </p>
  *
  * @author Fabien Campagne
  * Date: Apr 24, 2009
@@ -74,7 +85,10 @@ public class MessageChunksWriter {
             "compressing-codec:boolean, when true compress protocol buffers with new chunk codec.:false",
             "template-compression:boolean, when true use template compression.:true",
             "codec:string, name of the chunk codec to use.:gzip",
-            String.format("chunk-size:integer, the number of entries per chunk.:%d", OPTION_NOT_SET));
+            String.format("chunk-size:integer, the number of entries per chunk.:%d", OPTION_NOT_SET),
+            "parallel-encode:boolean, when true compress chunks on a pool of encoder threads while the client keeps appending entries.:false",
+            "encode-threads:integer, number of encoder threads when parallel-encode is true. Zero selects the number of available processors.:0",
+            "max-pending-chunks:integer, maximum number of chunks waiting to be written when parallel-encode is true. Zero selects twice the number of encoder threads.:0");
 
     public static DynamicOptionClient doc() {
         DynamicOptionRegistry.register(AlignmentCollectionHandler.doc());
@@ -83,6 +97,25 @@ public class MessageChunksWriter {
     }
 
     private boolean useTemplateCompression;
+    private ProtobuffCollectionHandler handler;
+    /**
+     * Start offset of each chunk written so far, in the order chunks were flushed.
+     */
+    private final LongArrayList chunkStartOffsets = new LongArrayList();
+    /**
+     * Number of chunks flushed so far, including chunks that are still being encoded.
+     */
+    private int numChunksFlushed;
+    /**
+     * Pool of encoder threads, or null when chunks are encoded by the thread that flushes them.
+     */
+    private ExecutorService encoderPool;
+    private int maxPendingChunks;
+    private final ArrayDeque<Future<ByteArrayOutputStream>> pendingChunks = new ArrayDeque<Future<ByteArrayOutputStream>>();
+    /**
+     * Codecs not currently used by an encoder thread.
+     */
+    private final ConcurrentLinkedQueue<ChunkCodec> idleCodecs = new ConcurrentLinkedQueue<ChunkCodec>();
 
 
     /**
@@ -99,9 +132,19 @@ public class MessageChunksWriter {
     }
 
     public MessageChunksWriter(final OutputStream output) {
+        this(output, doc.getString("codec"));
+    }
+
+    /**
+     * Create a writer that encodes chunks with a specific codec, rather than with the codec configured with the
+     * codec option.
+     *
+     * @param output    where chunks are written.
+     * @param codecName name of the chunk codec, e.g., gzip or snappy.
+     */
+    public MessageChunksWriter(final OutputStream output, final String codecName) {
         this.out = new DataOutputStream(output);
         compressingCodec = doc.getBoolean("compressing-codec");
-        final String codecName = doc.getString("codec");
         chunkCodec = ChunkCodecHelper.load(codecName);
         assert chunkCodec != null : "ChunkCodec could not be loaded. Check your configuration.";
 
@@ -112,6 +155,18 @@ public class MessageChunksWriter {
             numEntriesPerChunk = chunkCodec.getSuggestedChunkSize();
         }
         chunkSizeWarning.warn(LOG, "Using chunk-size=" + numEntriesPerChunk);
+        if (doc.getBoolean("parallel-encode")) {
+            final int numThreads = doc.getInteger("encode-threads") > 0 ? doc.getInteger("encode-threads") :
+                    Runtime.getRuntime().availableProcessors();
+            maxPendingChunks = doc.getInteger("max-pending-chunks") > 0 ? doc.getInteger("max-pending-chunks") :
+                    2 * numThreads;
+            final AtomicInteger threadIndex = new AtomicInteger();
+            encoderPool = Executors.newFixedThreadPool(numThreads, runnable -> {
+                final Thread thread = new Thread(runnable, "chunk-encoder-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
     private static WarningCounter chunkSizeWarning = new WarningCounter(1);
@@ -150,6 +205,8 @@ public class MessageChunksWriter {
 
     /**
      * Return the offset of the beginning of the current chunk (in byte, from position zero in the file).
+     * When parallel-encode is active, this is the offset of the last chunk written, which may lag behind the
+     * last chunk flushed. Use {@link #getCurrentChunkIndex()} in this case.
      *
      * @return offset of the beginning of the current chunk
      */
@@ -157,62 +214,146 @@ public class MessageChunksWriter {
         return currentChunkStartOffset;
     }
 
+    /**
+     * Return the index of the last chunk flushed, or zero if no chunk has been flushed yet.
+     *
+     * @return index of the current chunk.
+     */
+    public int getCurrentChunkIndex() {
+        return Math.max(0, numChunksFlushed - 1);
+    }
+
+    /**
+     * Return the offset where a chunk starts in the output (in byte, from position zero in the file). The chunk
+     * must have been written, which is guaranteed for all chunks after {@link #close}.
+     *
+     * @param chunkIndex index of the chunk, as returned by {@link #getCurrentChunkIndex()}.
+     * @return offset of the beginning of the chunk, or zero if the output has no chunks.
+     */
+    public long getChunkStartOffset(final int chunkIndex) {
+        if (chunkStartOffsets.isEmpty()) {
+            return 0;
+        }
+        assert chunkIndex < chunkStartOffsets.size() : "chunk must have been written to obtain its offset.";
+        return chunkStartOffsets.getLong(chunkIndex);
+    }
+
     /**
      * Force the writing of the collection to the output stream.
      *
      * @param collectionBuilder The builder prepared with the growing collection of entries.
      */
     public synchronized void flush(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder) {
-        // Write the separation between two chunks: eight bytes with value 0xFF.
-
         // If we are flushing a completely empty file, that's OK, the flush() should occur.
         // Otherwise, only flush if we've appended entries.
         if (totalEntriesWritten == 0 || numAppended > 0) {
-            // the position just before this chunk is written is recorded:
-            currentChunkStartOffset = writtenBytes;
+            final Message protobuffCollection = collectionBuilder.clone().build();
+            numAppended = 0;
+            collectionBuilder.clear();
+            numChunksFlushed++;
             try {
-                assert out.size() == Integer.MAX_VALUE || out.size() == writtenBytes;
-
-                //     System.out.println("Writting new chunk at position "+currentChunkStartOffset);
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("writing zero bytes length=" + DELIMITER_LENGTH);
+                if (encoderPool == null) {
+                    // compress the collection on this thread:
+                    writeChunk(chunkCodec.encode(protobuffCollection));
+                } else {
+                    pendingChunks.add(encoderPool.submit(() -> encodeWithIdleCodec(protobuffCollection)));
+                    writePendingChunks(maxPendingChunks);
                 }
+            } catch (IOException e) {
+                throw new RuntimeException("Error encountered when writting a chunk.", e);
+            }
+        }
+    }
 
-                out.writeByte(chunkCodec.registrationCode());
-                writtenBytes += 1;
-                for (int i = 0; i < DELIMITER_LENGTH; i++) {
-                    out.writeByte(DELIMITER_CONTENT);
-                    writtenBytes += 1;
-                }
-                final com.google.protobuf.Message protobuffCollection = collectionBuilder.clone().build();
-                // compress the read collection:
+    /**
+     * Write chunks that have been encoded, in order. Waits for encoding to complete until at most maxPending chunks
+     * remain to be written.
+     *
+     * @param maxPending maximum number of chunks that may remain pending when this method returns.
+     * @throws IOException if a chunk cannot be encoded or written.
+     */
+    private void writePendingChunks(final int maxPending) throws IOException {
+        while (!pendingChunks.isEmpty() && (pendingChunks.size() > maxPending || pendingChunks.peek().isDone())) {
+            try {
+                writeChunk(pendingChunks.poll().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
 
-                final ByteArrayOutputStream compressedBytes = chunkCodec.encode(protobuffCollection);
-                final int serializedSize = compressedBytes.size();
+    private ByteArrayOutputStream encodeWithIdleCodec(final Message protobuffCollection) throws IOException {
+        ChunkCodec codec = idleCodecs.poll();
+        if (codec == null) {
+            codec = ChunkCodecHelper.withRegistrationCode(chunkCodec.registrationCode());
+            codec.setHandler(newHandler());
+        }
+        try {
+            return codec.encode(protobuffCollection);
+        } finally {
+            idleCodecs.add(codec);
+        }
+    }
 
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("serialized compressed size: " + serializedSize);
-                }
+    /**
+     * Create a handler of the same type as the one installed with setParser, for use by an encoder thread.
+     */
+    private ProtobuffCollectionHandler newHandler() throws IOException {
+        try {
+            final ProtobuffCollectionHandler newHandler = handler.getClass().newInstance();
+            newHandler.setUseTemplateCompression(useTemplateCompression);
+            return newHandler;
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IOException("Unable to create a collection handler for encoder thread.", e);
+        }
+    }
 
-                // write the compressed size followed by the compressed stream:
-                out.writeInt(serializedSize);
-                writtenBytes += 4;
-                final byte[] bytes = compressedBytes.toByteArray();
-                out.write(bytes);
-                writtenBytes += bytes.length;
-                compressedBytes.close();
-                totalBytesWritten += serializedSize + 4 + DELIMITER_LENGTH;
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("current offset: " + totalBytesWritten);
+    /**
+     * Write an encoded chunk to the output, preceded by the codec registration code, the chunk delimiter and the
+     * size of the compressed stream.
+     *
+     * @param compressedBytes chunk bytes produced by the codec.
+     * @throws IOException if an error occurs writing to the output.
+     */
+    private void writeChunk(final ByteArrayOutputStream compressedBytes) throws IOException {
+        // the position just before this chunk is written is recorded:
+        currentChunkStartOffset = writtenBytes;
+        chunkStartOffsets.add(currentChunkStartOffset);
+        assert out.size() == Integer.MAX_VALUE || out.size() == writtenBytes;
 
-                }
-                out.flush();
-                numAppended = 0;
-                collectionBuilder.clear();
-            } catch (IOException e) {
-                throw new RuntimeException("Error encountered when writting a chunk.", e);
-            }
+        // Write the separation between two chunks: eight bytes with value 0xFF.
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("writing zero bytes length=" + DELIMITER_LENGTH);
+        }
+
+        out.writeByte(chunkCodec.registrationCode());
+        writtenBytes += 1;
+        for (int i = 0; i < DELIMITER_LENGTH; i++) {
+            out.writeByte(DELIMITER_CONTENT);
+            writtenBytes += 1;
         }
+        final int serializedSize = compressedBytes.size();
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("serialized compressed size: " + serializedSize);
+        }
+
+        // write the compressed size followed by the compressed stream:
+        out.writeInt(serializedSize);
+        writtenBytes += 4;
+        final byte[] bytes = compressedBytes.toByteArray();
+        out.write(bytes);
+        writtenBytes += bytes.length;
+        compressedBytes.close();
+        totalBytesWritten += serializedSize + 4 + DELIMITER_LENGTH;
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("current offset: " + totalBytesWritten);
+
+        }
+        out.flush();
     }
 
     /**
@@ -224,6 +365,10 @@ public class MessageChunksWriter {
     public void close(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder)
             throws IOException {
         flush(collectionBuilder);
+        if (encoderPool != null) {
+            writePendingChunks(0);
+            encoderPool.shutdown();
+        }
         out.writeByte(0xFF);  // termination codec is always GZIP
         writtenBytes += 1;
         for (int i = 0; i < DELIMITER_LENGTH; i++) {
@@ -296,6 +441,7 @@ public class MessageChunksWriter {
         }
         protobuffCollectionHandler.setUseTemplateCompression(useTemplateCompression);
         chunkCodec.setHandler(protobuffCollectionHandler);
+        handler = protobuffCollectionHandler;
 
         //     chunkCodec = new GZipChunkCodec();
 
@@ -0,0 +1,207 @@
+package org.campagnelab.goby.compression;
+
+import com.google.protobuf.Message;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Decodes the chunks of a {@link MessageChunksReader} on a pool of worker threads. Compressed chunks are still
+ * fetched sequentially from the reader by the calling thread, but up to readAhead chunks are decoded in parallel
+ * ahead of the consumer. Decoded collections are returned in file order.
+ * <p>
+ * Each worker decodes with its own codec and collection handler instances, since codecs and handlers keep
+ * per-chunk state.
+ * </p>
+ *
+ * @author Fabien Campagne
+ */
+public class ReadAheadChunkDecoder implements Closeable {
+    private static final Log LOG = LogFactory.getLog(ReadAheadChunkDecoder.class);
+
+    private static ExecutorService sharedPool;
+
+    private final MessageChunksReader reader;
+    private final Supplier<ProtobuffCollectionHandler> handlerFactory;
+    private final int readAhead;
+    private final ExecutorService pool;
+    private final ArrayDeque<PendingChunk> pending = new ArrayDeque<PendingChunk>();
+    /**
+     * Codecs not currently used by a worker. Codecs are recycled across chunks to avoid installing a new handler
+     * for each chunk.
+     */
+    private final ConcurrentLinkedQueue<ChunkCodec> idleCodecs = new ConcurrentLinkedQueue<ChunkCodec>();
+    private boolean exhausted;
+    private long position;
+    private int entryIndex;
+
+    /**
+     * Create a read-ahead decoder.
+     *
+     * @param reader         reader positioned at the start of a chunk.
+     * @param handlerFactory creates a new collection handler for each codec instance used by workers.
+     * @param numThreads     number of decoding threads. Zero selects the number of available processors.
+     * @param readAhead      maximum number of chunks decoded ahead of the consumer.
+     * @throws IOException if the position of the reader cannot be determined.
+     */
+    public ReadAheadChunkDecoder(final MessageChunksReader reader,
+                                 final Supplier<ProtobuffCollectionHandler> handlerFactory,
+                                 final int numThreads, final int readAhead) throws IOException {
+        this.reader = reader;
+        this.handlerFactory = handlerFactory;
+        this.readAhead = Math.max(1, readAhead);
+        this.pool = getSharedPool(numThreads);
+        this.position = reader.position();
+    }
+
+    /**
+     * Return the pool shared by all read-ahead decoders in this JVM. The size of the pool is determined by the first
+     * caller.
+     */
+    private static synchronized ExecutorService getSharedPool(final int numThreads) {
+        if (sharedPool == null) {
+            final int size = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+            final AtomicInteger threadIndex = new AtomicInteger();
+            sharedPool = Executors.newFixedThreadPool(size, runnable -> {
+                final Thread thread = new Thread(runnable, "chunk-decoder-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            LOG.debug("Decoding chunks with " + size + " threads.");
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Return the next decoded collection, in file order.
+     *
+     * @return the next collection, or null when the reader has no more chunks.
+     */
+    public Message next() {
+        fill();
+        final PendingChunk chunk = pending.poll();
+        if (chunk == null) {
+            return null;
+        }
+        // keep the pipeline full while the consumer iterates through this chunk:
+        fill();
+        position = chunk.positionAfter;
+        entryIndex = 0;
+        try {
+            return chunk.collection.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new GobyRuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the current entry index and increment.
+     *
+     * @return The current entry index
+     */
+    public int incrementEntryIndex() {
+        return entryIndex++;
+    }
+
+    /**
+     * Returns the index of the next entry to read in the last collection returned by next().
+     *
+     * @return The current entry index.
+     */
+    public int getEntryIndex() {
+        return entryIndex;
+    }
+
+    /**
+     * Return the position in the input just after the last chunk returned by next(). This is the position the reader
+     * would have without read-ahead.
+     *
+     * @return a position in bytes.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Discard chunks that were read ahead. Must be called after the underlying reader is repositioned.
+     *
+     * @throws IOException if the position of the reader cannot be determined.
+     */
+    public void reset() throws IOException {
+        for (final PendingChunk chunk : pending) {
+            chunk.collection.cancel(false);
+        }
+        pending.clear();
+        exhausted = false;
+        entryIndex = 0;
+        position = reader.position();
+    }
+
+    /**
+     * Discard chunks that were read ahead. The underlying reader is not closed.
+     */
+    @Override
+    public void close() {
+        for (final PendingChunk chunk : pending) {
+            chunk.collection.cancel(false);
+        }
+        pending.clear();
+        exhausted = true;
+    }
+
+    private void fill() {
+        while (!exhausted && pending.size() < readAhead) {
+            if (!reader.hasNext(null, 0)) {
+                exhausted = true;
+                break;
+            }
+            final byte[] compressedBytes = reader.getCompressedBytes();
+            if (compressedBytes == null) {
+                exhausted = true;
+                break;
+            }
+            final byte registrationCode = reader.getChunkCodec().registrationCode();
+            final long positionAfter;
+            try {
+                positionAfter = reader.position();
+            } catch (IOException e) {
+                throw new GobyRuntimeException(e);
+            }
+            final Future<Message> collection = pool.submit(() -> decode(registrationCode, compressedBytes));
+            pending.add(new PendingChunk(collection, positionAfter));
+        }
+    }
+
+    private Message decode(final byte registrationCode, final byte[] compressedBytes) throws IOException {
+        ChunkCodec codec = idleCodecs.poll();
+        if (codec == null || codec.registrationCode() != registrationCode) {
+            codec = ChunkCodecHelper.withRegistrationCode(registrationCode);
+            codec.setHandler(handlerFactory.get());
+        }
+        try {
+            return codec.decode(compressedBytes);
+        } finally {
+            idleCodecs.add(codec);
+        }
+    }
+
+    private static final class PendingChunk {
+        final Future<Message> collection;
+        final long positionAfter;
+
+        PendingChunk(final Future<Message> collection, final long positionAfter) {
+            this.collection = collection;
+            this.positionAfter = positionAfter;
+        }
+    }
+}
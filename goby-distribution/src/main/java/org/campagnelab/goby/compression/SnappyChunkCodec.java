@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.compression;
+
+import com.google.protobuf.Message;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
+import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
+import org.campagnelab.goby.util.dynoptions.RegisterThis;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A codec that compresses chunks with Snappy, a fast LZ77-type compressor. Compression ratios are lower than with
+ * the other codecs, but chunks are written and read much faster, which is useful for short-lived intermediate
+ * files (e.g., the splits written by sort). When the alignment-templates option is set, alignment chunks are first
+ * reduced by the alignment collection handler, as done by the hybrid codecs, and only the left-over collection is
+ * compressed with Snappy.
+ *
+ * @author Fabien Campagne
+ */
+public class SnappyChunkCodec implements ChunkCodec {
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(SnappyChunkCodec.class,
+            "alignment-templates:boolean, when true alignment chunks are reduced with the template compression of " +
+                    "the hybrid codecs before the left-over collection is compressed with Snappy. This gives smaller " +
+                    "but slower chunks.:false"
+    );
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    public static final byte REGISTRATION_CODE = -7;
+
+    private ProtobuffCollectionHandler handler;
+    private final boolean useAlignmentTemplates;
+    private final CRC32 crc32 = new CRC32();
+
+    public SnappyChunkCodec() {
+        useAlignmentTemplates = doc().getBoolean("alignment-templates");
+    }
+
+    @Override
+    public String name() {
+        return "snappy";
+    }
+
+    @Override
+    public byte registrationCode() {
+        return REGISTRATION_CODE;
+    }
+
+    @Override
+    public void setHandler(final ProtobuffCollectionHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public ByteArrayOutputStream encode(final Message readCollection) throws IOException {
+        if (readCollection == null) {
+            return null;
+        }
+        final byte[] templateBytes;
+        final Message leftOver;
+        if (useAlignmentTemplates && handler.getType() == ProtobuffCollectionHandler.TYPE_ALIGNMENTS) {
+            final ByteArrayOutputStream templateStream = new ByteArrayOutputStream();
+            leftOver = handler.compressCollection(readCollection, templateStream);
+            templateBytes = templateStream.toByteArray();
+        } else {
+            leftOver = readCollection;
+            templateBytes = ByteArrays.EMPTY_ARRAY;
+        }
+        final byte[] compressed;
+        try {
+            compressed = Snappy.compress(leftOver.toByteArray());
+        } catch (SnappyException e) {
+            throw new IOException(e);
+        }
+        crc32.reset();
+        crc32.update(templateBytes);
+        crc32.update(compressed);
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(8 + templateBytes.length + compressed.length);
+        final DataOutputStream completeChunkData = new DataOutputStream(result);
+        completeChunkData.writeInt(templateBytes.length);
+        completeChunkData.writeInt((int) crc32.getValue());
+        completeChunkData.write(templateBytes);
+        completeChunkData.write(compressed);
+        completeChunkData.flush();
+        return result;
+    }
+
+    @Override
+    public Message decode(final byte[] bytes) throws IOException {
+        final int templateSize = (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+        final int storedChecksum = (bytes[4] & 0xFF) << 24 | (bytes[5] & 0xFF) << 16 | (bytes[6] & 0xFF) << 8 | (bytes[7] & 0xFF);
+        crc32.reset();
+        crc32.update(bytes, 8, bytes.length - 8);
+        if ((int) crc32.getValue() != storedChecksum) {
+            throw new InvalidChecksumException();
+        }
+        final int offset = 8 + templateSize;
+        final byte[] uncompressed;
+        try {
+            uncompressed = new byte[Snappy.uncompressedLength(bytes, offset, bytes.length - offset)];
+            Snappy.uncompress(bytes, offset, bytes.length - offset, uncompressed, 0);
+        } catch (SnappyException e) {
+            throw new IOException(e);
+        }
+        final Message leftOver = handler.parse(new FastByteArrayInputStream(uncompressed));
+        if (templateSize == 0) {
+            return leftOver;
+        }
+        return handler.decompressCollection(leftOver, Arrays.copyOfRange(bytes, 8, offset));
+    }
+
+    @Override
+    public int getSuggestedChunkSize() {
+        return 10000;
+    }
+
+    @Override
+    public boolean validate(final byte firstByte, final DataInputStream input) {
+        try {
+            final byte b = input.readByte();
+            final byte c = input.readByte();
+            final byte d = input.readByte();
+            final int fullCodecContentSize = firstByte << 24 | (b & 0xFF) << 16 | (c & 0xFF) << 8 | (d & 0xFF);
+            if (fullCodecContentSize < 8) {
+                return false;
+            }
+            final int templateSize = input.readInt();
+            final int storedChecksum = input.readInt();
+            if (templateSize < 0 || templateSize > fullCodecContentSize - 8) {
+                return false;
+            }
+            final byte[] bytes = new byte[fullCodecContentSize - 8];
+            input.readFully(bytes);
+            crc32.reset();
+            crc32.update(bytes);
+            return (int) crc32.getValue() == storedChecksum;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -20,11 +20,13 @@ package org.campagnelab.goby.modes;
 
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import org.campagnelab.goby.exception.GobyRuntimeException;
 import org.campagnelab.goby.readers.FastXEntry;
 import org.campagnelab.goby.readers.FastXReader;
 import org.campagnelab.goby.reads.*;
 import org.campagnelab.goby.util.barcode.BarcodeMatcher;
 import org.campagnelab.goby.util.barcode.BarcodeMatcherResult;
+import org.campagnelab.goby.util.barcode.HashedBarcodeMatcher;
 import org.campagnelab.goby.util.barcode.PostBarcodeMatcher;
 import org.campagnelab.goby.util.barcode.PreBarcodeMatcher;
 import edu.cornell.med.icb.io.TSVReader;
@@ -41,6 +43,10 @@ import org.slf4j.LoggerFactory;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Fabien Campagne
@@ -93,6 +99,19 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
     private String outputFilename;
     private int minimalMatchLength;
     private int trim5Prime;
+    /**
+     * Number of threads used to match reads to barcodes. Zero selects the number of available processors.
+     */
+    private int numThreads;
+
+    /**
+     * Number of reads matched in parallel before they are written.
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    private int countMatched;
+    private int countNoMatch;
+    private int countAmbiguous;
 
     @Override
     public String getModeName() {
@@ -154,6 +173,7 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         }
         minimalMatchLength = jsapResult.getInt("minimal-match-length");
         maxMismatches = jsapResult.getInt("max-mismatches");
+        numThreads = jsapResult.getInt("num-threads");
 
         return this;
     }
@@ -179,114 +199,58 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
             singleWriter = new ReadsWriterImpl(new FileOutputStream(outputFilename));
         }
 
-        final BarcodeMatcher matcher = is3Prime ? new PostBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches) :
-                new PreBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches);
+        final BarcodeMatcher matcher = new HashedBarcodeMatcher(is3Prime ?
+                new PostBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches) :
+                new PreBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches));
 
-        final MutableString sequence = new MutableString();
-        final ByteList qualitiesNoBarcode = new ByteArrayList();
+        final int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
         try {
-            int countMatched = 0;
-            int countNoMatch = 0;
-            int countAmbiguous = 0;
+            countMatched = 0;
+            countNoMatch = 0;
+            countAmbiguous = 0;
             final boolean retainReadIndex = inputFilenames.length == 1;
             progress.displayFreeMemory = true;
             for (final String inputReadsFilename : inputFilenames) {
                 if (inputReadsFilename.toLowerCase().endsWith(".compact-reads")) {
                     progress.start("Progressing .compact-reads file " + inputReadsFilename);
+                    final ObjectArrayList<Reads.ReadEntry> batch = new ObjectArrayList<Reads.ReadEntry>(BATCH_SIZE);
                     for (final Reads.ReadEntry readEntry : new ReadsReader(inputReadsFilename)) {
-                        ReadsReader.decodeSequence(readEntry, sequence);
-                        MutableString trimmed = trim5Prime > 0 ? sequence.substring(trim5Prime, sequence.length() - trim5Prime) : sequence;
-
-                        final BarcodeMatcherResult match = matcher.matchSequence(trimmed);
-                        if (match != null) {
-                            // remove the barcode from the sequence:
-                            final int barcodeIndex = match.getBarcodeIndex();
-                            if (match.isAmbiguous()) {
-                                ++countAmbiguous;
-                            }
-                            final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
-                            assert writer != null : "writer cannot be null. Make sure barcode indices start at zero.";
-                            writer.setSequence(match.sequenceOf(trimmed));
-                            writer.setBarcodeIndex(barcodeIndex);
-
-                            if (readEntry.hasDescription()) {
-                                writer.setDescription(readEntry.getDescription());
-                            }
-                            if (readEntry.hasReadIdentifier()) {
-                                writer.setIdentifier(readEntry.getReadIdentifier());
-                            }
-                            if (readEntry.hasQualityScores()) {
-                                qualitiesNoBarcode.clear();
-                                qualitiesNoBarcode.addElements(0, readEntry.getQualityScores().toByteArray(),
-                                        match.getSequenceStartPosition() + trim5Prime,
-                                        match.getSequenceStartPosition() + trim5Prime + match.getSequenceLength() - match.getBarcodeMatchLength());
-                                writer.setQualityScores(qualitiesNoBarcode.toByteArray());
-                            }
-                            if (readEntry.hasSequencePair()) {
-                                ReadsReader.decodeSequence(readEntry, sequence, true);
-                                writer.setPairSequence(sequence);
-                                if (readEntry.hasQualityScoresPair()) {
-                                    final byte[] qualityScores = readEntry.getQualityScoresPair().toByteArray();
-                                    writer.setQualityScoresPair(qualityScores);
-                                    assert sequence.length() == qualityScores.length : "pair sequence lenght must match pair quality score length";
-                                }
-                            }
-                            if (retainReadIndex) {
-                                writer.appendEntry(readEntry.getReadIndex());
-                            } else {
-                                writer.appendEntry();
-                            }
-                            ++countMatched;
-                        } else {
-                            ++countNoMatch;
+                        batch.add(readEntry);
+                        if (batch.size() == BATCH_SIZE) {
+                            processCompactReads(batch, matcher, executor, threads, writers, singleWriter, retainReadIndex);
+                            batch.clear();
                         }
-                        progress.lightUpdate();
                     }
+                    processCompactReads(batch, matcher, executor, threads, writers, singleWriter, retainReadIndex);
                     progress.stop();
                 } else {
                     final FastXReader fastxReader = new FastXReader(inputReadsFilename);
                     fastxReader.setUseCasavaQualityFilter(true);
                     progress.start("Progressing fasta/fastq file " + inputReadsFilename);
+                    final ObjectArrayList<FastXEntry> batch = new ObjectArrayList<FastXEntry>(BATCH_SIZE);
                     for (final FastXEntry readEntry : new FastXReader(inputReadsFilename)) {
-                        final BarcodeMatcherResult match = matcher.matchSequence(readEntry.getSequence());
-                        if (match != null) {
-                            // remove the barcode from the sequence:
-                            final int barcodeIndex = match.getBarcodeIndex();
-                            if (match.isAmbiguous()) {
-                                ++countAmbiguous;
-                            }
-                            final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
-                            writer.setSequence(match.sequenceOf(readEntry.getSequence()));
-                            writer.setBarcodeIndex(barcodeIndex);
-
-                            if (includeDescriptions) {
-                                writer.setDescription(readEntry.getEntryHeader());
-                            }
-                            if (includeIdentifiers) {
-                                final MutableString description = readEntry.getEntryHeader();
-                                final String identifier = description.toString().split("[\\s]")[0];
-                                writer.setIdentifier(identifier);
-                            }
-                            if (readEntry.getQuality().length() > 0) {
-                                writer.setQualityScores(FastaToCompactMode.convertQualityScores(qualityEncoding,
-                                        readEntry.getQuality().subSequence(
-                                                match.getSequenceStartPosition(),
-                                                match.getSequenceStartPosition() + match.getSequenceLength()),
-                                        false, apiMode));
-                            }
-                            writer.appendEntry();
-                            ++countMatched;
-                        } else {
-                            ++countNoMatch;
+                        try {
+                            // the reader reuses its entry:
+                            batch.add(readEntry.clone());
+                        } catch (CloneNotSupportedException e) {
+                            throw new GobyRuntimeException(e);
+                        }
+                        if (batch.size() == BATCH_SIZE) {
+                            processFastXReads(batch, matcher, executor, threads, writers, singleWriter);
+                            batch.clear();
                         }
-                        progress.lightUpdate();
                     }
+                    processFastXReads(batch, matcher, executor, threads, writers, singleWriter);
                     progress.stop();
                 }
             }
             System.out.format("barcode found in %g %% of the reads %n", percent(countMatched, countMatched + countNoMatch));
             System.out.format("Found %g %% ambiguous matches %n", percent(countAmbiguous, countMatched));
         } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
             for (int i = 0; i < writers.length; i++) {
                 if (writers[i] != null) {
                     writers[i].close();
@@ -300,6 +264,159 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
 
     }
 
+    /**
+     * Match a batch of .compact-reads entries to barcodes, then write the matching reads in input order.
+     */
+    private void processCompactReads(final ObjectArrayList<Reads.ReadEntry> batch, final BarcodeMatcher matcher,
+                                     final ExecutorService executor, final int threads,
+                                     final ReadsWriter[] writers, final ReadsWriter singleWriter,
+                                     final boolean retainReadIndex) throws IOException {
+        final MutableString[] sequences = new MutableString[batch.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            final MutableString sequence = new MutableString();
+            ReadsReader.decodeSequence(batch.get(i), sequence);
+            sequences[i] = trim5Prime > 0 ? sequence.substring(trim5Prime, sequence.length() - trim5Prime) : sequence;
+        }
+        final BarcodeMatcherResult[] matches = matchSequences(matcher, sequences, executor, threads);
+        final MutableString sequence = new MutableString();
+        final ByteList qualitiesNoBarcode = new ByteArrayList();
+        for (int readIndex = 0; readIndex < sequences.length; readIndex++) {
+            final Reads.ReadEntry readEntry = batch.get(readIndex);
+            final MutableString trimmed = sequences[readIndex];
+            final BarcodeMatcherResult match = matches[readIndex];
+            if (match != null) {
+                // remove the barcode from the sequence:
+                final int barcodeIndex = match.getBarcodeIndex();
+                if (match.isAmbiguous()) {
+                    ++countAmbiguous;
+                }
+                final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
+                assert writer != null : "writer cannot be null. Make sure barcode indices start at zero.";
+                writer.setSequence(match.sequenceOf(trimmed));
+                writer.setBarcodeIndex(barcodeIndex);
+
+                if (readEntry.hasDescription()) {
+                    writer.setDescription(readEntry.getDescription());
+                }
+                if (readEntry.hasReadIdentifier()) {
+                    writer.setIdentifier(readEntry.getReadIdentifier());
+                }
+                if (readEntry.hasQualityScores()) {
+                    qualitiesNoBarcode.clear();
+                    qualitiesNoBarcode.addElements(0, readEntry.getQualityScores().toByteArray(),
+                            match.getSequenceStartPosition() + trim5Prime,
+                            match.getSequenceStartPosition() + trim5Prime + match.getSequenceLength() - match.getBarcodeMatchLength());
+                    writer.setQualityScores(qualitiesNoBarcode.toByteArray());
+                }
+                if (readEntry.hasSequencePair()) {
+                    ReadsReader.decodeSequence(readEntry, sequence, true);
+                    writer.setPairSequence(sequence);
+                    if (readEntry.hasQualityScoresPair()) {
+                        final byte[] qualityScores = readEntry.getQualityScoresPair().toByteArray();
+                        writer.setQualityScoresPair(qualityScores);
+                        assert sequence.length() == qualityScores.length : "pair sequence lenght must match pair quality score length";
+                    }
+                }
+                if (retainReadIndex) {
+                    writer.appendEntry(readEntry.getReadIndex());
+                } else {
+                    writer.appendEntry();
+                }
+                ++countMatched;
+            } else {
+                ++countNoMatch;
+            }
+            progress.lightUpdate();
+        }
+    }
+
+    /**
+     * Match a batch of fasta/fastq entries to barcodes, then write the matching reads in input order.
+     */
+    private void processFastXReads(final ObjectArrayList<FastXEntry> batch, final BarcodeMatcher matcher,
+                                   final ExecutorService executor, final int threads,
+                                   final ReadsWriter[] writers, final ReadsWriter singleWriter) throws IOException {
+        final MutableString[] sequences = new MutableString[batch.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = batch.get(i).getSequence();
+        }
+        final BarcodeMatcherResult[] matches = matchSequences(matcher, sequences, executor, threads);
+        for (int readIndex = 0; readIndex < sequences.length; readIndex++) {
+            final FastXEntry readEntry = batch.get(readIndex);
+            final BarcodeMatcherResult match = matches[readIndex];
+            if (match != null) {
+                // remove the barcode from the sequence:
+                final int barcodeIndex = match.getBarcodeIndex();
+                if (match.isAmbiguous()) {
+                    ++countAmbiguous;
+                }
+                final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
+                writer.setSequence(match.sequenceOf(readEntry.getSequence()));
+                writer.setBarcodeIndex(barcodeIndex);
+
+                if (includeDescriptions) {
+                    writer.setDescription(readEntry.getEntryHeader());
+                }
+                if (includeIdentifiers) {
+                    final MutableString description = readEntry.getEntryHeader();
+                    final String identifier = description.toString().split("[\\s]")[0];
+                    writer.setIdentifier(identifier);
+                }
+                if (readEntry.getQuality().length() > 0) {
+                    writer.setQualityScores(FastaToCompactMode.convertQualityScores(qualityEncoding,
+                            readEntry.getQuality().subSequence(
+                                    match.getSequenceStartPosition(),
+                                    match.getSequenceStartPosition() + match.getSequenceLength()),
+                            false, apiMode));
+                }
+                writer.appendEntry();
+                ++countMatched;
+            } else {
+                ++countNoMatch;
+            }
+            progress.lightUpdate();
+        }
+    }
+
+    /**
+     * Match sequences to barcodes. When an executor is provided, the sequences are split in one slice per thread
+     * and the slices are matched in parallel.
+     *
+     * @return the match of each sequence, or null for sequences without a barcode.
+     */
+    private BarcodeMatcherResult[] matchSequences(final BarcodeMatcher matcher, final MutableString[] sequences,
+                                                  final ExecutorService executor, final int threads) throws IOException {
+        final BarcodeMatcherResult[] matches = new BarcodeMatcherResult[sequences.length];
+        if (executor == null || sequences.length < threads) {
+            for (int i = 0; i < sequences.length; i++) {
+                matches[i] = matcher.matchSequence(sequences[i]);
+            }
+            return matches;
+        }
+        final int sliceSize = (sequences.length + threads - 1) / threads;
+        final ObjectArrayList<Future<?>> results = new ObjectArrayList<Future<?>>();
+        for (int sliceStart = 0; sliceStart < sequences.length; sliceStart += sliceSize) {
+            final int start = sliceStart;
+            final int end = Math.min(sequences.length, sliceStart + sliceSize);
+            results.add(executor.submit(() -> {
+                for (int i = start; i < end; i++) {
+                    matches[i] = matcher.matchSequence(sequences[i]);
+                }
+            }));
+        }
+        try {
+            for (final Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new GobyRuntimeException(e.getCause());
+        }
+        return matches;
+    }
+
     private double percent(final int countMatched, final int total) {
         return (double) countMatched / (double) total * 100d;
     }
@@ -324,6 +441,15 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         }
     }
 
+    /**
+     * Set the number of threads used to match reads to barcodes. Zero selects the number of available processors.
+     *
+     * @param numThreads the number of threads
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     /**
      * Get the quality encoding scale used for the input fastq file.
      *
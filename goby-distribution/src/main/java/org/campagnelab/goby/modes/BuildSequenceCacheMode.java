@@ -20,10 +20,12 @@ package org.campagnelab.goby.modes;
 
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import org.campagnelab.goby.reads.MappedSequenceCache;
 import org.campagnelab.goby.reads.RandomAccessSequenceCache;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.FilenameUtils;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -59,6 +61,11 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
 
     private String basename;
 
+    /**
+     * When true, also write the memory-mapped layout of the cache.
+     */
+    private boolean writeMapped;
+
     @Override
     public String getModeName() {
         return MODE_NAME;
@@ -83,6 +90,7 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
 
         inputFile = jsapResult.getString("input");
         basename = jsapResult.getString("basename");
+        writeMapped = !jsapResult.getBoolean("no-mapped");
         if (basename==null) {
             String filename=inputFile;
             if (filename.endsWith(".gz")) {
@@ -124,6 +132,15 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
 
             System.out.println("Done loading input. Starting to write random access cacheBuilder.");
             cacheBuilder.save(basename);
+            if (writeMapped) {
+                cacheBuilder.saveMapped(basename);
+            } else {
+                // the mapped layout of a previous build would describe another genome:
+                final File mappedFile = new File(basename + MappedSequenceCache.MAPPED_EXTENSION);
+                if (mappedFile.exists() && !mappedFile.delete()) {
+                    throw new IOException("Could not delete the previous mapped genome " + mappedFile.getPath());
+                }
+            }
             System.out.println("Compressed genome was written to basename "+basename);
         } finally {
             IOUtils.closeQuietly(input);
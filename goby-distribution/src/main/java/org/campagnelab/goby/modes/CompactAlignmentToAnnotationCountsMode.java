@@ -37,10 +37,13 @@ import org.campagnelab.goby.exception.GobyRuntimeException;
 import org.campagnelab.goby.util.Timer;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.IntegerSchedule;
 import edu.rit.pj.ParallelRegion;
 import edu.rit.pj.ParallelTeam;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.ints.IntSortedSet;
 import it.unimi.dsi.fastutil.objects.*;
@@ -105,6 +108,10 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
     private String statsFilename;
     private ParallelTeam team;
     private boolean parallel;
+    /**
+     * Number of threads used to count reads on the reference sequences of one alignment.
+     */
+    private int parallelReferences;
     private boolean doComparison;
     private final DifferentialExpressionCalculator deCalculator = new DifferentialExpressionCalculator();
     private final DifferentialExpressionAnalysis deAnalyzer = new DifferentialExpressionAnalysis();
@@ -154,6 +161,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
         parseGenomicRange(jsapResult);
 
         parallel = jsapResult.getBoolean("parallel", false);
+        parallelReferences = jsapResult.getInt("parallel-references");
         writeAnnotationCounts = jsapResult.getBoolean("write-annotation-counts");
         omitNonInformativeColumns = jsapResult.getBoolean("omit-non-informative-columns");
         inputFilenames = jsapResult.getStringArray("input");
@@ -517,30 +525,53 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                 new DefaultAlignmentReaderFactory();
         final int numberOfReferences;
         final DoubleIndexedIdentifier referenceIds;
+        final boolean sorted;
+        final long numAlignedReadsInHeader;
         {
             final AlignmentReader reader = factory.createReader(inputBasename);
             reader.readHeader();
             numberOfReferences = reader.getNumberOfTargets();
 
             referenceIds = new DoubleIndexedIdentifier(reader.getTargetIdentifiers());
+            sorted = reader.isSorted();
+            numAlignedReadsInHeader = reader.getNumberOfAlignedReads();
             reader.close();
         }
         System.out.println(String.format("Alignment contains %d reference sequences", numberOfReferences));
         if (genomicRange != null) {
             genomicRange.resolveChromosomeIndices(referenceIds);
         }
-        final AnnotationCountIterateAlignments iterateAlignment = new AnnotationCountIterateAlignments();
-        iterateAlignment.setWeightInfo(weightParams, weights);
-        iterateAlignment.parseIncludeReferenceArgument(includeReferenceNameCommas);
-
-        // Iterate through the alignment and retrieve algs:
+        final AnnotationCountInterface[] algs;
+        final IntSortedSet referencesToProcess;
+        final boolean countsPrepared;
+        final long numAlignedReadsInSample;
         System.out.println("Loading alignment " + inputBasename + "..");
-        iterateAlignment.setAlignmentReaderFactory(factory);
-        iterateAlignment.iterate(genomicRange, inputBasename);
+        if (parallelReferences > 1 && sorted && range == null) {
+            referencesToProcess = new IntAVLTreeSet();
+            for (int referenceIndex = 0; referenceIndex < numberOfReferences; referenceIndex++) {
+                if (!filterByReferenceNames ||
+                        includeReferenceNames.contains(referenceIds.getId(referenceIndex).toString())) {
+                    referencesToProcess.add(referenceIndex);
+                }
+            }
+            algs = countReferencesInParallel(allAnnots, factory, inputBasename, weights, referenceIds,
+                    numberOfReferences, referencesToProcess);
+            countsPrepared = true;
+            numAlignedReadsInSample = numAlignedReadsInHeader;
+        } else {
+            final AnnotationCountIterateAlignments iterateAlignment = new AnnotationCountIterateAlignments();
+            iterateAlignment.setWeightInfo(weightParams, weights);
+            iterateAlignment.parseIncludeReferenceArgument(includeReferenceNameCommas);
 
-        final long numAlignedReadsInSample = iterateAlignment.getNumAlignedReadsInSample();
-        final AnnotationCountInterface[] algs = iterateAlignment.getAlgs();
-        final IntSortedSet referencesToProcess = iterateAlignment.getReferencesSelected();
+            // Iterate through the alignment and retrieve algs:
+            iterateAlignment.setAlignmentReaderFactory(factory);
+            iterateAlignment.iterate(genomicRange, inputBasename);
+
+            algs = iterateAlignment.getAlgs();
+            referencesToProcess = iterateAlignment.getReferencesSelected();
+            countsPrepared = false;
+            numAlignedReadsInSample = iterateAlignment.getNumAlignedReadsInSample();
+        }
 
         final String sampleId = FilenameUtils.getBaseName(inputBasename);
 
@@ -555,7 +586,7 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
             }
         }
 
-        writeAnnotationCounts(allAnnots, writer, inputBasename, referenceIds, algs, referencesToProcess);
+        writeAnnotationCounts(allAnnots, writer, inputBasename, referenceIds, algs, referencesToProcess, countsPrepared);
 
         if (outputFilename == null) {
             // output filename was not provided on the command line. We close each basename output.
@@ -565,6 +596,79 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
     }
 
 
+    /**
+     * Count reads on the reference sequences of a sorted alignment with parallelReferences threads. Each reference
+     * sequence that has annotations is iterated by its own AnnotationCountIterateAlignments, which uses the alignment
+     * index to skip directly to the reference. Counters are gathered by reference index, so that annotations are
+     * written in the same order as when the alignment is iterated sequentially.
+     *
+     * @return counters indexed by reference index, ready to be queried. Elements are null for reference sequences
+     *         without annotations.
+     */
+    private AnnotationCountInterface[] countReferencesInParallel(final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots,
+                                                                 final AlignmentReaderFactory factory,
+                                                                 final String inputBasename,
+                                                                 final WeightsInfo weights,
+                                                                 final DoubleIndexedIdentifier referenceIds,
+                                                                 final int numberOfReferences,
+                                                                 final IntSortedSet referencesToProcess) {
+        final IntArrayList annotatedReferences = new IntArrayList();
+        for (final int referenceIndex : referencesToProcess) {
+            if (allAnnots.containsKey(referenceIds.getId(referenceIndex).toString())) {
+                annotatedReferences.add(referenceIndex);
+            }
+        }
+        final AnnotationCountInterface[] algs = new AnnotationCountInterface[numberOfReferences];
+        if (annotatedReferences.isEmpty()) {
+            return algs;
+        }
+        final ParallelTeam referenceTeam = new ParallelTeam(Math.min(parallelReferences, annotatedReferences.size()));
+        LOG.info(String.format("Counting %d reference sequences of %s on %d threads.", annotatedReferences.size(),
+                inputBasename, referenceTeam.getThreadCount()));
+        try {
+            referenceTeam.execute(new ParallelRegion() {
+                @Override
+                public void run() throws Exception {
+                    execute(0, annotatedReferences.size() - 1, new IntegerForLoop() {
+                        @Override
+                        public IntegerSchedule schedule() {
+                            // reference sequences have very different lengths, hand them out one at a time:
+                            return IntegerSchedule.dynamic(1);
+                        }
+
+                        @Override
+                        public void run(final int startIndex, final int endIndex) throws IOException {
+                            for (int i = startIndex; i <= endIndex; ++i) {
+                                final int referenceIndex = annotatedReferences.getInt(i);
+                                final AnnotationCountIterateAlignments iterateAlignment = new AnnotationCountIterateAlignments();
+                                iterateAlignment.setWeightInfo(weightParams, weights);
+                                iterateAlignment.parseIncludeReferenceArgument(referenceIds.getId(referenceIndex).toString());
+                                iterateAlignment.setAlignmentReaderFactory(factory);
+                                iterateAlignment.iterate(inputBasename);
+                                final AnnotationCountInterface alg = iterateAlignment.getAlgs()[referenceIndex];
+                                prepareCounts(alg);
+                                // each reference index is written by exactly one thread:
+                                algs[referenceIndex] = alg;
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (Exception e) {
+            throw new GobyRuntimeException(e);
+        }
+        return algs;
+    }
+
+    /**
+     * Prepare counters populated with the reads of one reference sequence for queries.
+     */
+    private static void prepareCounts(final AnnotationCountInterface alg) {
+        alg.sortReads();
+        alg.accumulate();
+        alg.baseCount();
+    }
+
     public static WeightsInfo loadWeights(final String inputBasename, final boolean useWeights, final String id) {
         WeightsInfo weights = null;
         if (useWeights) {
@@ -588,7 +692,8 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
     private void writeAnnotationCounts(final Object2ObjectMap<String, ObjectList<Annotation>> allAnnots,
                                        final BufferedWriter writer, final String inputBasename,
                                        final DoubleIndexedIdentifier referenceIds, final AnnotationCountInterface[] algs,
-                                       final IntSet referencesToProcess) throws IOException {
+                                       final IntSet referencesToProcess,
+                                       final boolean countsPrepared) throws IOException {
 
         // collect all element ids:
         if (doComparison) {
@@ -662,9 +767,9 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
             }
 
             final ObjectList<Annotation> annots = allAnnots.get(chromosomeName);
-            algs[referenceIndex].sortReads();
-            algs[referenceIndex].accumulate();
-            algs[referenceIndex].baseCount();
+            if (!countsPrepared) {
+                prepareCounts(algs[referenceIndex]);
+            }
             if (doComparison) {
                 for (final Annotation annot : annots) {
                     final String geneID = annot.getId();
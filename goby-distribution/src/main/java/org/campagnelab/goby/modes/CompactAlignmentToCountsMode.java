@@ -27,6 +27,7 @@ import org.campagnelab.goby.counts.CountWriterHelper2;
 import org.campagnelab.goby.counts.CountsArchiveWriter;
 import org.campagnelab.goby.counts.CountsWriterHelperI;
 import org.campagnelab.goby.counts.CountsWriterI;
+import org.campagnelab.goby.exception.GobyRuntimeException;
 import org.campagnelab.goby.algorithmic.dsv.DiscoverVariantPositionData;
 import org.campagnelab.goby.modes.dsv.IterateSortedAlignmentsListImpl;
 import org.campagnelab.goby.util.Timer;
@@ -42,6 +43,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.EnumSet;
 
 import static org.campagnelab.goby.counts.CountsArchiveWriter.COUNT_ARCHIVE_MODIFIER_DEFAULT;
 
@@ -66,7 +68,8 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
      * The mode description help text.
      */
     private static final String MODE_DESCRIPTION =
-            "Converts a compact alignment to counts.";
+            "Converts a compact alignment to counts. The coverage of sorted alignments is computed as entries are "
+                    + "read, in memory that does not grow with the number of aligned reads.";
 
     /**
      * The output file.
@@ -87,6 +90,7 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
     private static final Logger LOG = LoggerFactory.getLogger(CompactAlignmentToCountsMode.class);
     private boolean verbose;
     private boolean filterAmbiguousReads;
+    private boolean inMemory;
 
     @Override
     public String getModeName() {
@@ -157,6 +161,7 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
         weightParams = CompactAlignmentToAnnotationCountsMode.configureWeights(jsapResult);
 
 
+        inMemory = jsapResult.getBoolean("in-memory");
         filterAmbiguousReads = jsapResult.getBoolean("filter-ambiguous-reads");
         if (filterAmbiguousReads) {
             System.out.println("Ambiguous reads will not be considered when estimating count statistics.");
@@ -210,6 +215,9 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
         }   */
 
         final int numberOfReferences = reader.getNumberOfTargets();
+        // coverage of sorted alignments is computed as entries are read. Start counts and weighted counts are not
+        // computed in position order, and need the entire alignment:
+        final boolean streaming = reader.isSorted() && !inMemory && accumulatePeakHistogram && !weightParams.useWeights;
 
         final DoubleIndexedIdentifier referenceIds = new DoubleIndexedIdentifier(reader.getTargetIdentifiers());
         reader.close();
@@ -246,7 +254,7 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
                     referencesToProcess.add(referenceIndex);
                 }
 
-                if (referencesToProcess.contains(referenceIndex)) {
+                if (referencesToProcess.contains(referenceIndex) && !streaming) {
                     if (accumulatePeakHistogram) {
                         final ComputeCountInterface algo = new ComputeCount();
                         algs[referenceIndex] = chooseAlgorithm(weightParams, weights, algo);
@@ -258,7 +266,13 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
             }
         }
 
+        if (streaming) {
+            processSortedAlignment(basename, referenceIds, referencesToProcess, countArchive);
+            return;
+        }
         final AlignmentReader referenceReader = new AlignmentReaderImpl(basename);
+        // counts only need the position, length, strand and multiplicity of entries:
+        referenceReader.setFields(EnumSet.noneOf(AlignmentEntryField.class));
         referenceReader.readHeader();
 
         // read the alignment:
@@ -300,6 +314,68 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
         System.out.println(timer);
     }
 
+    /**
+     * Write coverage counts for a sorted alignment, one reference at a time, as the alignment entries are read.
+     */
+    private void processSortedAlignment(final String basename, final DoubleIndexedIdentifier referenceIds,
+                                        final IntSet referencesToProcess,
+                                        final CountsArchiveWriter countArchive) throws IOException {
+        final Timer timer = new Timer();
+        timer.start();
+        final IntSet referencesWritten = new IntOpenHashSet();
+        final AlignmentReader referenceReader = new AlignmentReaderImpl(basename);
+        // counts only need the position, length, strand and multiplicity of entries:
+        referenceReader.setFields(EnumSet.noneOf(AlignmentEntryField.class));
+        referenceReader.readHeader();
+        int currentReferenceIndex = -1;
+        CountsWriterI countsWriterI = null;
+        StreamingComputeCount algorithm = null;
+        for (final Alignments.AlignmentEntry alignmentEntry : referenceReader) {
+            final int referenceIndex = alignmentEntry.getTargetIndex();
+            if (!referencesToProcess.contains(referenceIndex)) {
+                continue;
+            }
+            if (referenceIndex != currentReferenceIndex) {
+                if (algorithm != null) {
+                    algorithm.close();
+                    countArchive.returnWriter(countsWriterI);
+                }
+                if (!referencesWritten.add(referenceIndex)) {
+                    throw new GobyRuntimeException("The entries of reference " + referenceIds.getId(referenceIndex)
+                            + " are not contiguous in sorted alignment " + basename);
+                }
+                final String chromosomeName = referenceIds.getId(referenceIndex).toString();
+                if (verbose) {
+                    System.out.println("Writing counts for reference " + chromosomeName);
+                }
+                countsWriterI = countArchive.newCountWriter(referenceIndex, chromosomeName);
+                algorithm = new StreamingComputeCount(countsWriterI);
+                currentReferenceIndex = referenceIndex;
+            }
+            final int startPosition = alignmentEntry.getPosition();
+            final int alignmentLength = alignmentEntry.getTargetAlignedLength();
+            for (int i = 0; i < alignmentEntry.getMultiplicity(); ++i) {
+                algorithm.populate(startPosition, startPosition + alignmentLength);
+            }
+        }
+        referenceReader.close();
+        if (algorithm != null) {
+            algorithm.close();
+            countArchive.returnWriter(countsWriterI);
+        }
+        // references without entries get empty counts, like in the in-memory method:
+        for (final int referenceIndex : referencesToProcess) {
+            if (!referencesWritten.contains(referenceIndex)) {
+                countsWriterI = countArchive.newCountWriter(referenceIndex, referenceIds.getId(referenceIndex).toString());
+                countsWriterI.close();
+                countArchive.returnWriter(countsWriterI);
+            }
+        }
+        countArchive.close();
+        timer.stop();
+        System.out.println(timer);
+    }
+
     private void processSortedAlignmentFullGenome(final String basename, AlignmentReader reader, AlignmentReaderFactory factory) throws IOException {
         reader.close();
         System.out.println("Processing in large alignment mode: " + basename);
@@ -20,13 +20,16 @@ package org.campagnelab.goby.modes;
 
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import edu.cornell.med.icb.io.TSVReader;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.*;
 import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
 import org.campagnelab.goby.Release1_9_7_2;
 import org.campagnelab.goby.algorithmic.data.CovariateInfo;
 import org.campagnelab.goby.algorithmic.data.GroupComparison;
@@ -34,7 +37,11 @@ import org.campagnelab.goby.alignments.AlignmentReaderImpl;
 import org.campagnelab.goby.alignments.ConcatSortedAlignmentReader;
 import org.campagnelab.goby.alignments.NonAmbiguousAlignmentReaderFactory;
 import org.campagnelab.goby.alignments.ReadIndexStats;
+import org.campagnelab.goby.alignments.ReferenceLocation;
 import org.campagnelab.goby.alignments.processors.*;
+import org.campagnelab.goby.baseinfo.SequenceBaseInformationReader;
+import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
+import org.campagnelab.goby.exception.GobyRuntimeException;
 import org.campagnelab.goby.modes.dsv.*;
 import org.campagnelab.goby.modes.formats.*;
 import org.campagnelab.goby.reads.RandomAccessSequenceCache;
@@ -47,10 +54,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This mode discovers sequence variants within groups of samples or between groups of samples.
@@ -104,7 +117,7 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
      * between the genome and the allele.
      */
     private boolean overrideReferenceWithGenome = true;
-    private FormatConfigurator formatConfigurator = new DummyFormatConfigurator();
+    private FormatConfigurator<SequenceVariationOutputFormat> formatConfigurator = new DummyFormatConfigurator();
     private ArrayList<GroupComparison> groupComparisonsList = new ArrayList<GroupComparison>();
     private int maxThresholdPerSite;
     private boolean callIndels = Release1_9_7_2.callIndels;
@@ -120,6 +133,30 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
      */
     private String modelPath;
 
+    /**
+     * Output formats whose output can be written one region at a time and concatenated. Formats that aggregate
+     * statistics across sites, or do not write text, are always processed as a single region.
+     */
+    private static final EnumSet<OutputFormat> PARALLEL_REGION_FORMATS = EnumSet.of(
+            OutputFormat.VARIANT_DISCOVERY, OutputFormat.BETWEEN_GROUPS, OutputFormat.COMPARE_GROUPS,
+            OutputFormat.ALLELE_FREQUENCIES, OutputFormat.GENOTYPES, OutputFormat.SOMATIC_VARIATIONS,
+            OutputFormat.METHYLATION, OutputFormat.SEQUENCE_BASE_INFORMATION);
+
+    private OutputFormat outputFormat;
+    private RandomAccessSequenceInterface genome;
+    private int startFlapSize;
+    /**
+     * Number of genomic regions processed in parallel.
+     */
+    private int parallelRegions = 1;
+    private String includeReferenceNames;
+    private String startPositionArgument;
+    private String endPositionArgument;
+    /**
+     * Minimum number of methylation events needed to report a site, for the methylation formats.
+     */
+    private int methylationEventThreshold;
+
 
     public void setDisableAtLeastQuarterFilter(boolean disableAtLeastQuarterFilter) {
         this.disableAtLeastQuarterFilter = disableAtLeastQuarterFilter;
@@ -233,8 +270,57 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         realignmentFactory = configureProcessor(jsapResult);
         final String formatString = jsapResult.getString("format");
 
-        final OutputFormat format = OutputFormat.valueOf(formatString.toUpperCase());
+        outputFormat = OutputFormat.valueOf(formatString.toUpperCase());
+        if (outputFormat == OutputFormat.INDEL_COUNTS) {
+            callIndels = true;
+        }
+        if (outputFormat == OutputFormat.METHYLATION || outputFormat == OutputFormat.METHYLATION_REGIONS) {
+            adjustThresholdsForMethylation();
+        }
+        final SequenceVariationOutputFormat formatter = createFormatter(outputFormat);
+
+        genotypeFilters = createGenotypeFilters(outputFormat);
+        System.out.println("Filtering reads that have these criteria:");
+        for (final GenotypeFilter filter : genotypeFilters) {
+            System.out.println(filter.describe());
+        }
+        String covInfoFilename = jsapResult.getString("covariates");
+        if (covInfoFilename != null) {
+            covInfo = CovariateInfo.parse(covInfoFilename);
+        }
 
+        modelPath = jsapResult.getString("model-path");
+
+
+        genome = configureGenome(testGenome, jsapResult);
+
+        startFlapSize = jsapResult.getInt("start-flap-size", 100);
+        parallelRegions = jsapResult.getInt("parallel-regions", 1);
+        includeReferenceNames = jsapResult.getString("include-reference-names");
+        startPositionArgument = jsapResult.getString("start-position");
+        endPositionArgument = jsapResult.getString("end-position");
+        if (callIndels) {
+            System.err.println("Indel calling was activated.");
+        }
+        if (parallelRegions > 1 && (!PARALLEL_REGION_FORMATS.contains(outputFormat) ||
+                outputFormat == OutputFormat.METHYLATION &&
+                        MethylationRateVCFOutputFormat.doc().getBoolean("estimate-intra-group-differences"))) {
+            System.err.printf("--parallel-regions is not supported with format %s, processing the genome as one region.%n",
+                    outputFormat);
+            parallelRegions = 1;
+        }
+        sortedPositionIterator = createIterator(formatter);
+        sortedPositionIterator.parseIncludeReferenceArgument(jsapResult);
+        return this;
+    }
+
+    /**
+     * Create and configure a formatter for the output format.
+     *
+     * @param format output format.
+     * @return a new formatter.
+     */
+    private SequenceVariationOutputFormat createFormatter(final OutputFormat format) {
         SequenceVariationOutputFormat formatter = null;
         switch (format) {
             case VARIANT_DISCOVERY:
@@ -261,15 +347,14 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
                 break;
             case METHYLATION_REGIONS:
                 formatter = new MethylationRegionsOutputFormat();
-                methylFormat((MethylationFormat) formatter);
+                ((MethylationFormat) formatter).setMinimumEventThreshold(methylationEventThreshold);
                 break;
             case METHYLATION:
                 formatter = new MethylationRateVCFOutputFormat();
-                methylFormat((MethylationFormat) formatter);
+                ((MethylationFormat) formatter).setMinimumEventThreshold(methylationEventThreshold);
                 break;
             case INDEL_COUNTS:
                 formatter = new IndelCountOutputFormat();
-                callIndels = true;
                 break;
             default:
                 ObjectArrayList<OutputFormat> values = ObjectArrayList.wrap(OutputFormat.values());
@@ -278,8 +363,18 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
                 System.exit(1);
         }
 
-        // set base filters according to output format:
-        genotypeFilters = new ObjectArrayList<GenotypeFilter>();
+        formatConfigurator.configureFormatter(formatter);
+        return formatter;
+    }
+
+    /**
+     * Create the base filters most appropriate for the output format.
+     *
+     * @param format output format.
+     * @return a new list of filters.
+     */
+    private ObjectArrayList<GenotypeFilter> createGenotypeFilters(final OutputFormat format) {
+        final ObjectArrayList<GenotypeFilter> genotypeFilters = new ObjectArrayList<GenotypeFilter>();
         switch (format) {
 
             case METHYLATION:
@@ -348,44 +443,34 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
             default:
                 throw new InternalError("Filters must be configured for new output format.");
         }
-        System.out.println("Filtering reads that have these criteria:");
-        for (final GenotypeFilter filter : genotypeFilters) {
-            System.out.println(filter.describe());
-        }
-        String covInfoFilename = jsapResult.getString("covariates");
-        if (covInfoFilename != null) {
-            covInfo = CovariateInfo.parse(covInfoFilename);
-        }
-
-        modelPath = jsapResult.getString("model-path");
-
-
-        final RandomAccessSequenceInterface genome = configureGenome(testGenome, jsapResult);
+        return genotypeFilters;
+    }
 
-        final int startFlapSize = jsapResult.getInt("start-flap-size", 100);
-        if (callIndels) {
-            System.err.println("Indel calling was activated.");
-        }
-        formatConfigurator.configureFormatter(formatter);
-        sortedPositionIterator = new DiscoverVariantIterateSortedAlignments(formatter);
-        sortedPositionIterator.setCallIndels(callIndels);
-        sortedPositionIterator.setGenome(genome);
-        sortedPositionIterator.SUB_SAMPLE_SIZE = maxThresholdPerSite;
-        sortedPositionIterator.setStartFlapLength(startFlapSize);
-        sortedPositionIterator.parseIncludeReferenceArgument(jsapResult);
-        sortedPositionIterator.setMinimumVariationSupport(minimumVariationSupport);
-        sortedPositionIterator.setThresholdDistinctReadIndices(thresholdDistinctReadIndices);
-        return this;
+    /**
+     * Create an iterator that writes to the formatter. The caller must set the reference names and window to iterate
+     * over.
+     *
+     * @param formatter formatter for the output of the iterator.
+     * @return a new iterator.
+     */
+    private DiscoverVariantIterateSortedAlignments createIterator(final SequenceVariationOutputFormat formatter) {
+        final DiscoverVariantIterateSortedAlignments iterator = new DiscoverVariantIterateSortedAlignments(formatter);
+        iterator.setCallIndels(callIndels);
+        iterator.setGenome(genome);
+        iterator.SUB_SAMPLE_SIZE = maxThresholdPerSite;
+        iterator.setStartFlapLength(startFlapSize);
+        iterator.setMinimumVariationSupport(minimumVariationSupport);
+        iterator.setThresholdDistinctReadIndices(thresholdDistinctReadIndices);
+        return iterator;
     }
 
-    private void methylFormat(MethylationFormat formatter) {
+    private void adjustThresholdsForMethylation() {
         // methylated bases match the reference. Do not filter on minimum variation support.
-        int tmp = minimumVariationSupport;
-        this.minimumVariationSupport = -1;
-        this.thresholdDistinctReadIndices = 1;
         // need at least so many methylation/non-methylation event to record site in output
         // the value configure put in minimumVariationSupport as minimum coverage for the site.
-        formatter.setMinimumEventThreshold(tmp);
+        methylationEventThreshold = minimumVariationSupport;
+        this.minimumVariationSupport = -1;
+        this.thresholdDistinctReadIndices = 1;
         System.out.println("Methylation format ignores thresholdDistinctReadIndices. Additionally, the minimum coverage needed for a site to be reported can be changed with --minimum-variation-support.");
     }
 
@@ -550,7 +635,7 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
      *
      * @param configurator
      */
-    public void setFormatConfigurator(FormatConfigurator configurator) {
+    public void setFormatConfigurator(FormatConfigurator<SequenceVariationOutputFormat> configurator) {
         this.formatConfigurator = configurator;
     }
 
@@ -792,19 +877,274 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         }
 
 
-        sortedPositionIterator.allocateStorage(basenames.length, numberOfGroups);
-        sortedPositionIterator.initialize(this, outputInfo, genotypeFilters);
-        // install a reader factory that filters out ambiguous reads:
-        sortedPositionIterator.setAlignmentReaderFactory(new NonAmbiguousAlignmentReaderFactory());
-        sortedPositionIterator.setAlignmentProcessorFactory(realignmentFactory);
-        sortedPositionIterator.setOverrideReferenceWithGenome(overrideReferenceWithGenome);
-        sortedPositionIterator.setMaxThreshold(maxThresholdPerSite);
-        sortedPositionIterator.setCallIndels(callIndels);
+        if (parallelRegions > 1) {
+            executeParallelRegions(basenames);
+            return;
+        }
+        initializeIterator(sortedPositionIterator, basenames, outputInfo, genotypeFilters);
         sortedPositionIterator.iterate(basenames);
 
         sortedPositionIterator.finish();
     }
 
+    private void initializeIterator(final DiscoverVariantIterateSortedAlignments iterator, final String[] basenames,
+                                    final OutputInfo output, final ObjectArrayList<GenotypeFilter> filters) {
+        iterator.allocateStorage(basenames.length, numberOfGroups);
+        iterator.initialize(this, output, filters);
+        // install a reader factory that filters out ambiguous reads:
+        iterator.setAlignmentReaderFactory(new NonAmbiguousAlignmentReaderFactory());
+        iterator.setAlignmentProcessorFactory(realignmentFactory);
+        iterator.setOverrideReferenceWithGenome(overrideReferenceWithGenome);
+        iterator.setMaxThreshold(maxThresholdPerSite);
+        iterator.setCallIndels(callIndels);
+    }
+
+    /**
+     * Cut the genome into regions that hold about the same number of compressed alignment bytes, discover variants
+     * in each region on its own thread, then concatenate the output of the regions in genomic order. Each region is
+     * processed with the start flap, exactly as if the region had been given with --start-position and
+     * --end-position, so that regions can be concatenated without duplicate or missing sites. With the
+     * sequence_base_information format, each region writes its own .sbi shard instead, and the statistics of the
+     * shards are merged in the .sbip of the output (see {@link #mergeShardProperties(String[])}).
+     *
+     * @param basenames basenames of the sorted input alignments.
+     * @throws IOException if an error occurs reading the alignments or writing the output.
+     */
+    private void executeParallelRegions(final String[] basenames) throws IOException {
+        final ObjectList<String[]> regions = splitRegions(basenames);
+        LOG.info("Discovering variants in {} regions with {} threads.", regions.size(), parallelRegions);
+        final File outputFile = outputInfo.isToConsole(outputInfo.getFilename()) ? null :
+                new File(outputInfo.getFilename()).getAbsoluteFile();
+        final File[] regionOutputs = new File[regions.size()];
+        final boolean sharded = outputFormat == OutputFormat.SEQUENCE_BASE_INFORMATION;
+        final String[] shardBasenames = new String[regions.size()];
+        final ObjectArrayList<DiscoverVariantIterateSortedAlignments> iterators =
+                new ObjectArrayList<DiscoverVariantIterateSortedAlignments>();
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelRegions);
+        try {
+            // formatters are initialized on this thread, since they read the state of the mode:
+            for (int regionIndex = 0; regionIndex < regions.size(); regionIndex++) {
+                if (sharded) {
+                    shardBasenames[regionIndex] = String.format("%s-shard-%d",
+                            SequenceBaseInformationReader.getBasename(outputInfo.getFilename()), regionIndex);
+                    regionOutputs[regionIndex] = new File(shardBasenames[regionIndex] + ".sbi");
+                } else {
+                    regionOutputs[regionIndex] = File.createTempFile("discover-variants-region-" + regionIndex + "-", ".tmp",
+                            outputFile == null ? null : outputFile.getParentFile());
+                    regionOutputs[regionIndex].deleteOnExit();
+                }
+                final DiscoverVariantIterateSortedAlignments iterator = createIterator(createFormatter(outputFormat));
+                iterator.parseIncludeReferenceArgument(includeReferenceNames);
+                iterator.setStartPositionArgument(regions.get(regionIndex)[0]);
+                iterator.setEndPositionArgument(regions.get(regionIndex)[1]);
+                initializeIterator(iterator, basenames, new OutputInfo(regionOutputs[regionIndex].getPath()),
+                        createGenotypeFilters(outputFormat));
+                iterators.add(iterator);
+            }
+            final ObjectArrayList<Future<?>> results = new ObjectArrayList<Future<?>>();
+            for (final DiscoverVariantIterateSortedAlignments iterator : iterators) {
+                results.add(executor.submit(() -> {
+                    iterator.iterate(basenames);
+                    iterator.finish();
+                    return null;
+                }));
+            }
+            for (final Future<?> result : results) {
+                result.get();
+            }
+            if (sharded) {
+                mergeShardProperties(shardBasenames);
+            } else {
+                concatenateRegionOutputs(regionOutputs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GobyRuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new GobyRuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            for (final File regionOutput : regionOutputs) {
+                if (regionOutput != null && !sharded) {
+                    FileUtils.deleteQuietly(regionOutput);
+                }
+            }
+        }
+    }
+
+    /**
+     * Split the input alignments into at most parallelRegions regions with about the same number of compressed bytes.
+     * Region boundaries are chosen among the chunk locations of the alignment indices, as done by
+     * {@link SuggestPositionSlicesMode}. Regions are restricted to the window defined by --start-position and
+     * --end-position, when these arguments are provided.
+     *
+     * @param basenames basenames of the sorted input alignments.
+     * @return start and end position arguments (ref-id,ref-position, end inclusive) of each region, in genomic order.
+     * @throws IOException if an error occurs reading the alignment indices.
+     */
+    private ObjectList<String[]> splitRegions(final String[] basenames) throws IOException {
+        final ConcatSortedAlignmentReader input = new ConcatSortedAlignmentReader(basenames);
+        try {
+            input.readHeader();
+            final DoubleIndexedIdentifier ids = new DoubleIndexedIdentifier(input.getTargetIdentifiers());
+            final int[] targetLengths = input.getTargetLength();
+            final int lastTargetIndex = ids.size() - 1;
+            ReferenceLocation first = new ReferenceLocation(0, 0);
+            ReferenceLocation last = new ReferenceLocation(lastTargetIndex, Math.max(0, targetLengths[lastTargetIndex] - 1));
+            if (startPositionArgument != null && endPositionArgument != null) {
+                first = parseLocation(ids, startPositionArgument);
+                last = parseLocation(ids, endPositionArgument);
+            }
+            long totalBytes = 0;
+            for (final String basename : basenames) {
+                totalBytes += new File(basename + ".entries").length();
+            }
+            final int bytesPerRegion = (int) Math.min(Integer.MAX_VALUE, Math.max(1, totalBytes / parallelRegions));
+            final ObjectArrayList<ReferenceLocation> candidates = new ObjectArrayList<ReferenceLocation>();
+            for (final ReferenceLocation location : input.getLocationsByBytes(bytesPerRegion)) {
+                if (location.compareTo(first) > 0 && location.compareTo(last) <= 0 &&
+                        (candidates.isEmpty() || location.compareTo(candidates.top()) > 0)) {
+                    candidates.add(location);
+                }
+            }
+            final ObjectArrayList<ReferenceLocation> breakpoints = new ObjectArrayList<ReferenceLocation>();
+            breakpoints.add(first);
+            final int numBreakpoints = Math.min(parallelRegions - 1, candidates.size());
+            for (int i = 1; i <= numBreakpoints; i++) {
+                final ReferenceLocation candidate = candidates.get((int) ((long) candidates.size() * i / (numBreakpoints + 1)));
+                if (candidate.compareTo(breakpoints.top()) > 0) {
+                    breakpoints.add(candidate);
+                }
+            }
+            final ObjectList<String[]> regions = new ObjectArrayList<String[]>();
+            for (int i = 0; i < breakpoints.size(); i++) {
+                final ReferenceLocation start = breakpoints.get(i);
+                ReferenceLocation end = last;
+                if (i + 1 < breakpoints.size()) {
+                    // end positions are inclusive, stop just before the start of the next region:
+                    final ReferenceLocation next = breakpoints.get(i + 1);
+                    end = next.position > 0 ? new ReferenceLocation(next.targetIndex, next.position - 1) :
+                            new ReferenceLocation(next.targetIndex - 1, Math.max(0, targetLengths[next.targetIndex - 1] - 1));
+                }
+                final String[] region = restrictToIncludedReferences(ids, targetLengths, start, end);
+                if (region != null) {
+                    regions.add(region);
+                }
+            }
+            return regions;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static ReferenceLocation parseLocation(final DoubleIndexedIdentifier ids, final String argument) {
+        final String[] tokens = argument.split("[:,]");
+        final int targetIndex = ids.getIndex(tokens[0]);
+        if (targetIndex == -1) {
+            throw new IllegalArgumentException("Reference identifier does not exist in the alignment: " + tokens[0]);
+        }
+        return new ReferenceLocation(targetIndex, Integer.parseInt(tokens[1]));
+    }
+
+    /**
+     * Restrict a region to the references selected by --include-reference-names. The region is shrunk so that it
+     * starts and ends on a selected reference, because the iteration skips to the start position on the first
+     * selected reference.
+     *
+     * @return the start and end position arguments of the region, or null if the region contains no selected reference.
+     */
+    private String[] restrictToIncludedReferences(final DoubleIndexedIdentifier ids, final int[] targetLengths,
+                                                  ReferenceLocation start, ReferenceLocation end) {
+        if (includeReferenceNames != null) {
+            final List<String> names = Arrays.asList(includeReferenceNames.split("[,]"));
+            int firstIncluded = -1;
+            int lastIncluded = -1;
+            for (int targetIndex = start.targetIndex; targetIndex <= end.targetIndex; targetIndex++) {
+                if (names.contains(ids.getId(targetIndex).toString())) {
+                    if (firstIncluded == -1) {
+                        firstIncluded = targetIndex;
+                    }
+                    lastIncluded = targetIndex;
+                }
+            }
+            if (firstIncluded == -1) {
+                return null;
+            }
+            if (firstIncluded != start.targetIndex) {
+                start = new ReferenceLocation(firstIncluded, 0);
+            }
+            if (lastIncluded != end.targetIndex) {
+                end = new ReferenceLocation(lastIncluded, Math.max(0, targetLengths[lastIncluded] - 1));
+            }
+        }
+        return new String[]{ids.getId(start.targetIndex) + "," + start.position,
+                ids.getId(end.targetIndex) + "," + end.position};
+    }
+
+    /**
+     * Write the .sbip file of the output, with the number of records and the statistics of all the .sbi shards
+     * written by the regions. Each shard keeps its own .sbip, so that shards can also be read on their own.
+     *
+     * @param shardBasenames basenames of the shards, in genomic order.
+     * @throws IOException if an error occurs reading or writing properties.
+     */
+    private void mergeShardProperties(final String[] shardBasenames) throws IOException {
+        final List<Properties> shardProperties = new ObjectArrayList<Properties>();
+        for (final String shardBasename : shardBasenames) {
+            final Properties properties = new Properties();
+            final FileInputStream input = new FileInputStream(shardBasename + ".sbip");
+            try {
+                properties.load(input);
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+            shardProperties.add(properties);
+        }
+        SequenceBaseInformationWriter.writeProperties(
+                SequenceBaseInformationReader.getBasename(outputInfo.getFilename()), shardProperties);
+    }
+
+    /**
+     * Write the outputs of the regions, in order, to the output of the mode. Header lines are identical in all the
+     * region outputs and are only kept from the first region.
+     *
+     * @param regionOutputs output files of the regions, in genomic order.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    private void concatenateRegionOutputs(final File[] regionOutputs) throws IOException {
+        final PrintWriter output = outputInfo.getPrintWriter();
+        try {
+            final ObjectArrayList<String> firstLines = new ObjectArrayList<String>();
+            for (int regionIndex = 0; regionIndex < regionOutputs.length; regionIndex++) {
+                final LineIterator lines = FileUtils.lineIterator(regionOutputs[regionIndex]);
+                try {
+                    int lineIndex = 0;
+                    boolean inHeader = regionIndex > 0;
+                    while (lines.hasNext()) {
+                        final String line = lines.nextLine();
+                        if (regionIndex == 0) {
+                            firstLines.add(line);
+                        } else if (inHeader) {
+                            // skip the lines shared with the first region:
+                            inHeader = lineIndex < firstLines.size() && line.equals(firstLines.get(lineIndex++));
+                            if (inHeader) {
+                                continue;
+                            }
+                        }
+                        output.println(line);
+                    }
+                } finally {
+                    LineIterator.closeQuietly(lines);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
 
     /**
      * Main method.
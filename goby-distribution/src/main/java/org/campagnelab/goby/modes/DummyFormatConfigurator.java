@@ -26,7 +26,7 @@ import org.campagnelab.goby.modes.formats.SequenceVariationOutputFormat;
  *         Date: 8/19/11
  *         Time: 5:00 PM
  */
-public class DummyFormatConfigurator extends FormatConfigurator {
+public class DummyFormatConfigurator extends FormatConfigurator<SequenceVariationOutputFormat> {
     @Override
     public void configureFormatter(SequenceVariationOutputFormat formatter) {
         // do nothing.
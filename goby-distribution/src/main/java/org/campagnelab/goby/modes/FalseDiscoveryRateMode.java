@@ -21,11 +21,15 @@ package org.campagnelab.goby.modes;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.io.TSVReader;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.objects.*;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
@@ -36,7 +40,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.Collections;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -44,7 +47,9 @@ import java.util.zip.GZIPOutputStream;
  * in the output in the same order that the lines are read from the input. However, since each line is independent, this
  * mode garantees that sorting the output by a  identifier column (unique for each line) will yield the same output
  * irrespective of the order in which the input files are presented to the mode. The FDR adjustment is done with a subset of
- * P-value kept in memory, and only the P-values. The data files are scanned a second time to read other columns and
+ * P-value kept in memory, and only the P-values, stored in primitive columns (see {@link ColumnarStatistics}). Lines
+ * whose P-values are all above the q-value threshold are only counted. With --external-memory, the P-values are kept
+ * on disk instead (see {@link ExternalColumnarStatistics}). The data files are scanned a second time to read other columns and
  * produce the combined output.  The fdr mode also has an option to keep the top lines (ranked by p-values), so that it hasResult
  * also possible to examine the top hundred hits, even in cases when the adjusted q-value does not reach the pre-specified
  * threshold.
@@ -79,17 +84,16 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
     private ObjectArraySet<String> adjustedColumnIds = new ObjectArraySet<String>();
     private boolean vcf;
     private int topHitNum;
-    private int numIgnoredObservations;
-    /**
-     * Store a map between the element index in the input files, and the index of the element in the set we keep in memory.
-     */
-    private Int2IntMap elementPermutation = new Int2IntOpenHashMap();
+    private long numIgnoredObservations;
 
     /**
      * The list of element indices to report as top hits.
      */
-    private IntArraySet topHitsElementIndices;
+    private LongSet topHitsElementIndices;
     private String[] columnSelectionFilter;
+    private boolean externalMemory;
+    private int runSize;
+    private String tempDir = "/tmp";
 
 
     @Override
@@ -122,6 +126,9 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         selectedPValueColumns = jsapResult.getStringArray("column");
         columnSelectionFilter = jsapResult.getStringArray("column-selection-filter");
         vcf = jsapResult.getBoolean("vcf");
+        externalMemory = jsapResult.getBoolean("external-memory");
+        runSize = jsapResult.getInt("run-size");
+        tempDir = jsapResult.getString("temp-dir");
         if (outputFilename.endsWith(".vcf")) {
             vcf = true;
         }
@@ -138,13 +145,15 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
     @Override
     public void execute() throws IOException {
         Writer stream = null;
+        // rows are only kept for lines with at least one P-value below the threshold, the store grows as needed:
+        final StatisticsStore data = externalMemory ?
+                new ExternalColumnarStatistics(new File(tempDir), runSize, topHitNum + 2) :
+                new ColumnarStatistics(1 << 16);
         try {
             stream = outputFilename == null ? new OutputStreamWriter(System.out)
                     : outputFilename.endsWith(".gz") ?
                     new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFilename))) :
                     new FileWriter(outputFilename);
-            // start with an array of size 1M. This improves loading time for large datasets.
-            DifferentialExpressionResults data = new DifferentialExpressionResults(10000000);
 
             ObjectList<String> columnIdList = vcf ? getVCFColumns(inputFiles) : getTSVColumns(inputFiles);
             // supplement selectedPValueColumns with the columns that match the selection filters:
@@ -164,14 +173,14 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
             if (vcf) appendPValueColumns(inputFiles, selection);
 
             selectedPValueColumns = selection.toArray(new String[selection.size()]);
-            DifferentialExpressionCalculator deCalculator = new DifferentialExpressionCalculator();
 
             if (vcf) {
-                loadVCF(inputFiles, data, deCalculator, columnIdList);
+                loadVCF(inputFiles, data);
             } else {
-                loadTSV(inputFiles, data, deCalculator, columnIdList);
+                loadTSV(inputFiles, data, columnIdList);
             }
-            //    data.write(new PrintWriter(System.out), '\t', deCalculator);
+            LOG.info(String.format("Kept P-values for %d lines, %d lines were above the q-value threshold.",
+                    data.getNumberOfRows(), numIgnoredObservations));
             BenjaminiHochbergAdjustment fdr = new BenjaminiHochbergAdjustment();
             fdr.setNumberAboveThreshold(numIgnoredObservations);
             for (String column : selectedPValueColumns) {
@@ -187,12 +196,12 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 }
             }
 
-            Collections.sort(data, new ElementIndexComparator());
+            // rows are stored by increasing element index, the order in which lines are combined:
             if (vcf) {
-                combineVCF(inputFiles, data, deCalculator, columnIdList, stream);
+                combineVCF(inputFiles, data, stream);
 
             } else {
-                combineTSV(inputFiles, data, deCalculator, columnIdList, stream);
+                combineTSV(inputFiles, data, columnIdList, stream);
             }
 
 
@@ -200,6 +209,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
             if (outputFilename != null) {
                 IOUtils.closeQuietly(stream);
             }
+            data.close();
         }
     }
 
@@ -229,15 +239,10 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private void recordTopHits(final DifferentialExpressionResults data) {
-        topHitsElementIndices = new IntArraySet();
-        int num = 0;
-        for (final DifferentialExpressionInfo info : data) {
-            topHitsElementIndices.add(Integer.parseInt(info.getElementId().toString()));
-            if (num++ > topHitNum) {
-                break;
-            }
-        }
+    private void recordTopHits(final StatisticsStore data) {
+        topHitsElementIndices = new LongOpenHashSet();
+        // rows ranked by the last adjusted column:
+        topHitsElementIndices.addAll(LongArrayList.wrap(data.getTopElementIndices(topHitNum + 2)));
     }
 
 
@@ -253,10 +258,9 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         return false;
     }
 
-    private void loadVCF(String[] inputFiles, DifferentialExpressionResults data,
-                         DifferentialExpressionCalculator deCalculator, ObjectList<String> columnIdList) throws IOException {
+    private void loadVCF(String[] inputFiles, StatisticsStore data) throws IOException {
 
-        int elementIndex = 0;
+        long elementIndex = 0;
         for (String filename : inputFiles) {
             System.out.printf("Loading %s%n", filename);
             VCFParser parser = new VCFParser(filename);
@@ -280,23 +284,19 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                         System.exit(1);
                     }
                     final String statName = selectedFieldName.toLowerCase();
-                    if (!data.isStatisticDefined(new MutableString(statName))) {
+                    if (!data.isStatisticDefined(statName)) {
                         data.declareStatistic(statName);
                     }
                     selectedInfoFieldGlobalIndices.add(selectedField.globalFieldIndex);
                 }
+                final double[] pValues = new double[selectedInfoFieldGlobalIndices.size()];
                 ProgressLogger pg = new ProgressLogger(LOG);
                 pg.itemsName = "line";
                 pg.displayFreeMemory = true;
                 pg.start();
                 while (parser.hasNextDataLine()) {
 
-                    // prepare elementId and stat info:
                     int index = 0;
-                    final String elementId = Integer.toString(elementIndex);
-                    final DifferentialExpressionInfo info = createInfo(deCalculator,
-                            selectedInfoFieldGlobalIndices.size(),
-                            elementId);
                     // keep all lines if we don't adjust any column:
 
                     boolean keepLine = selectedInfoFieldGlobalIndices.isEmpty();
@@ -307,11 +307,10 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                         if (pValue < qValueThreshold) {
                             keepLine = true;
                         }
-                        info.statistics().set(index++, pValue);
+                        pValues[index++] = pValue;
                     }
                     if (keepLine) {
-                        data.add(info);
-                        elementPermutation.put(elementIndex, data.size() - 1);
+                        data.addRow(elementIndex, pValues);
                     } else {
                         numIgnoredObservations++;
                     }
@@ -331,22 +330,8 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private DifferentialExpressionInfo createInfo(DifferentialExpressionCalculator deCalculator, int numPValueColumns, String elementId) {
-        deCalculator.defineElement(elementId);
-
-        // determine capacity to be twice the number of selected columns, since we need one column for the p-value
-        // and one for the q-value.
-        final int capacity = numPValueColumns * 2;
-        final DifferentialExpressionInfo info = new DifferentialExpressionInfo(elementId, capacity);
-        // we set the size to load only the p-values:
-        info.statistics().size(numPValueColumns);
-        // the fdr will create the columns it needs (within capacity) to store corresponding q-values.
-        return info;
-    }
-
-    private void loadTSV(String[] inputFiles, DifferentialExpressionResults data, DifferentialExpressionCalculator deCalculator,
-                         ObjectList<String> columnIdList) throws IOException {
-        int elementIndex = 0;
+    private void loadTSV(String[] inputFiles, StatisticsStore data, ObjectList<String> columnIdList) throws IOException {
+        long elementIndex = 0;
         for (String filename : inputFiles) {
             System.out.println("Loading P-values from " + filename);
             TSVReader reader = new TSVReader(new FileReader(filename), '\t');
@@ -362,7 +347,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                         if (column.equalsIgnoreCase(selectedColumn)) {
 
                             final String statName = column.toLowerCase();
-                            if (!data.isStatisticDefined(new MutableString(statName))) {
+                            if (!data.isStatisticDefined(statName)) {
                                 data.declareStatistic(statName);
                             }
                             doubleColumnIndices.add(columnIndex);
@@ -370,16 +355,15 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                     }
                     columnIndex++;
                 }
+                final double[] pValues = new double[doubleColumnIndices.size()];
 
                 while (reader.hasNext()) {
 
 
                     if (!reader.isCommentLine()) {
                         reader.next();
-                        final String elementId = Integer.toString(elementIndex);
                         int index = 0;
 
-                        final DifferentialExpressionInfo info = createInfo(deCalculator, selectedPValueColumns.length, elementId);
                         boolean keepLine = doubleColumnIndices.isEmpty();
                         for (int j = 0; j < reader.numTokens(); j++) {
                             if (doubleColumnIndices.contains(j)) {
@@ -387,15 +371,14 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                                 if (pValue < qValueThreshold) {
                                     keepLine = true;
                                 }
-                                info.statistics().set(index++, pValue);
+                                pValues[index++] = pValue;
                             } else {
                                 reader.getString();
                             }
 
                         }
                         if (keepLine) {
-                            data.add(info);
-                            elementPermutation.put(elementIndex, data.size() - 1);
+                            data.addRow(elementIndex, pValues);
                         } else {
                             ++numIgnoredObservations;
                         }
@@ -414,9 +397,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private void combineVCF(String[] inputFiles, DifferentialExpressionResults data,
-                            DifferentialExpressionCalculator deCalculator,
-                            ObjectList<String> columnIdList, Writer writer) throws IOException {
+    private void combineVCF(String[] inputFiles, StatisticsStore data, Writer writer) throws IOException {
 
         Columns columns = new Columns();
         ObjectArrayList<String> sampleIdList = new ObjectArrayList();
@@ -471,7 +452,9 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         }
 
         vcfWriter.writeHeader();
-        int elementIndex = 0;
+        final IntList adjustedColumnIndices = adjustedColumnIndices(data);
+        final StatisticsStore.RowCursor rows = data.cursor();
+        long elementIndex = 0;
         for (String filename : inputFiles) {
             System.out.printf("Combining %s%n", filename);
             VCFParser parser = new VCFParser(filename);
@@ -516,17 +499,10 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
                 while (parser.hasNextDataLine()) {
 
-                    final String elementId = Integer.toString(elementIndex);
                     boolean keepThisLine = false;
-                    if (elementPermutation.containsKey(elementIndex)) {
-                        final int permutedIndex = elementPermutation.get(elementIndex);
-                        final DifferentialExpressionInfo differentialExpressionInfo = data.get(permutedIndex);
-                        assert Integer.parseInt(differentialExpressionInfo.getElementId().toString()) == elementIndex : " element index must match with data element retrived";
-                        for (final String adjustedColumn : adjustedColumnIds) {
-                            final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                            final DoubleArrayList list = differentialExpressionInfo.statistics();
-
-                            final double adjustedPValue = list.get(adjustedColumnIndex);
+                    if (rows.seek(elementIndex)) {
+                        for (final int adjustedColumnIndex : adjustedColumnIndices) {
+                            final double adjustedPValue = rows.get(adjustedColumnIndex);
                             keepThisLine = determineKeepThisLine(keepThisLine, adjustedPValue);
                             if (topHitNum != 0 && topHitsElementIndices.isEmpty()) {
                                 // early stop: there are no q-values below the threshold and we have seen enough top hits already.
@@ -544,8 +520,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                             keepThisLine = true;
                         }
                         if (keepThisLine) {
-                            final DifferentialExpressionInfo info = differentialExpressionInfo;
-                            assert info.getElementId().equals(elementId) : " elementId must match";
                             // transfer previous columsn and fields:
                             infoFieldIndex = 0;
                             sampleIndex = 0;
@@ -606,12 +580,9 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                             }
                             // add new INFO field values (the adjusted p-values):
                             statIndex = 0;
-                            for (String adjustedColumn : adjustedColumnIds) {
+                            for (final int adjustedColumnIndex : adjustedColumnIndices) {
 
-                                int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                                final DoubleArrayList list = differentialExpressionInfo.statistics();
-
-                                double newColValue = list.get(adjustedColumnIndex);
+                                double newColValue = rows.get(adjustedColumnIndex);
                                 vcfWriter.setInfo(statIndexToInfoFieldIndex.get(statIndex), Double.toString(newColValue));
                                 statIndex++;
 
@@ -630,6 +601,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 parser.close();
             }
         }
+        rows.close();
     }
 
     private boolean determineKeepThisLine(boolean keepThisLine, double adjustedPValue) {
@@ -640,12 +612,13 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         return keepThisLine;
     }
 
-    private void combineTSV(String[] inputFiles, DifferentialExpressionResults data,
-                            DifferentialExpressionCalculator deCalculator, ObjectList<String> columnIdList,
+    private void combineTSV(String[] inputFiles, StatisticsStore data, ObjectList<String> columnIdList,
                             Writer out) throws IOException {
 
         PrintWriter printer = new PrintWriter(out);
-        int elementIndex = 0;
+        final IntList adjustedColumnIndices = adjustedColumnIndices(data);
+        final StatisticsStore.RowCursor rows = data.cursor();
+        long elementIndex = 0;
         // write the TSV header first:
 
         boolean first = true;
@@ -686,7 +659,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
                             final String statName = column.toLowerCase();
 
-                            if (!data.isStatisticDefined(new MutableString(statName))) {
+                            if (!data.isStatisticDefined(statName)) {
                                 data.declareStatistic(statName);
                             }
                             doubleColumnIndices.add(columnIndex);
@@ -699,19 +672,11 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                     first = true;
                     if (!reader.isCommentLine()) {
                         reader.next();
-                        final String elementId = Integer.toString(elementIndex);
                         boolean keepThisLine = doubleColumnIndices.isEmpty();
-                        if (elementPermutation.containsKey(elementIndex)) {
-                            final int permutedIndex = elementPermutation.get(elementIndex);
-                            final DifferentialExpressionInfo differentialExpressionInfo = data.get(permutedIndex);
-                            assert Integer.parseInt(differentialExpressionInfo.getElementId().toString()) == elementIndex : " element index must match with data element retrived";
+                        if (rows.seek(elementIndex)) {
                             {
-                                final DoubleArrayList list = differentialExpressionInfo.statistics();
-
-                                for (final String adjustedColumn : adjustedColumnIds) {
-                                    final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-
-                                    final double adjustedPValue = list.get(adjustedColumnIndex);
+                                for (final int adjustedColumnIndex : adjustedColumnIndices) {
+                                    final double adjustedPValue = rows.get(adjustedColumnIndex);
                                     keepThisLine = determineKeepThisLine(keepThisLine, adjustedPValue);
                                 }
                                 if (topHitNum != 0 && topHitsElementIndices.isEmpty()) {
@@ -729,8 +694,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                             }
                             if (keepThisLine) {
                                 int index = 0;
-                                final DifferentialExpressionInfo info = differentialExpressionInfo;
-                                assert info.getElementId().equals(elementId) : " elementId must match";
                                 first = true;
                                 for (int j = 0; j < reader.numTokens(); j++) {
                                     if (doubleColumnIndices.contains(j)) {
@@ -738,7 +701,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                                         if (!first) {
                                             printer.write('\t');
                                         }
-                                        printer.print(info.statistics().get(index));
+                                        printer.print(rows.get(index));
                                         first = false;
                                         index++;
                                     } else {
@@ -750,13 +713,11 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                                     }
                                 }
                                 first = false;
-                                for (final String adjustedColumn : adjustedColumnIds) {
-                                    final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                                    final DoubleArrayList list = differentialExpressionInfo.statistics();
+                                for (final int adjustedColumnIndex : adjustedColumnIndices) {
                                     if (!first) {
                                         printer.write('\t');
                                     }
-                                    printer.print(list.get(adjustedColumnIndex));
+                                    printer.print(rows.get(adjustedColumnIndex));
                                     first = false;
                                 }
                                 printer.printf("%n");
@@ -776,10 +737,21 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 reader.close();
             }
         }
-
+        rows.close();
         printer.flush();
     }
 
+    /**
+     * Return the statistic index of each adjusted column, in the order of adjustedColumnIds.
+     */
+    private IntList adjustedColumnIndices(final StatisticsStore data) {
+        final IntList indices = new IntArrayList();
+        for (final String adjustedColumn : adjustedColumnIds) {
+            indices.add(data.getStatisticIndex(adjustedColumn));
+        }
+        return indices;
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(FalseDiscoveryRateMode.class);
 
     private ObjectList<String> getTSVColumns(final String[] inputFiles) throws IOException {
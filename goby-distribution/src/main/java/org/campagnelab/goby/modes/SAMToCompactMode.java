@@ -29,6 +29,7 @@ import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.campagnelab.goby.alignments.*;
 import org.campagnelab.goby.alignments.perms.QueryIndexPermutation;
+import org.campagnelab.goby.alignments.perms.HashedReadNameToIndex;
 import org.campagnelab.goby.alignments.perms.ReadNameToIndex;
 import org.campagnelab.goby.compression.MessageChunksWriter;
 import org.campagnelab.goby.readers.sam.ConversionConfig;
@@ -89,7 +90,8 @@ public class SAMToCompactMode extends AbstractGobyMode {
 
     @RegisterThis
     public static DynamicOptionClient doc = new DynamicOptionClient(SAMToCompactMode.class,
-            "ignore-read-origin:boolean, When this flag is true do not import read groups.:false"
+            "ignore-read-origin:boolean, When this flag is true do not import read groups.:false",
+            "hashed-read-names:boolean, When this flag is true keep the names of reads waiting for their other alignments in an off-heap hash table instead of heap tree maps.:false"
     );
 
     private String inputFile;
@@ -181,7 +183,8 @@ public class SAMToCompactMode extends AbstractGobyMode {
         config.storeReadOrigin = !doc().getBoolean("ignore-read-origin");
         config.preserveReadName = jsapResult.getBoolean("preserve-read-name");
 
-        config.nameToQueryIndices = new ReadNameToIndex("ignore-this-for-now");
+        config.nameToQueryIndices = doc().getBoolean("hashed-read-names") ? new HashedReadNameToIndex() :
+                new ReadNameToIndex("ignore-this-for-now");
 
         System.out.printf("Store read origin: %b%n", config.storeReadOrigin);
         final String genomeFilename = jsapResult.getString("input-genome");
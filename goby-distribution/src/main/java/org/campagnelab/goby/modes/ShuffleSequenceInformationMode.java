@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.modes;
+
+import com.google.protobuf.Message;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+import it.unimi.dsi.fastutil.bytes.Byte2ObjectMap;
+import it.unimi.dsi.fastutil.bytes.Byte2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
+import org.campagnelab.goby.baseinfo.BasenameUtils;
+import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
+import org.campagnelab.goby.baseinfo.SequenceSegmentInformationWriter;
+import org.campagnelab.goby.compression.ChunkCodec;
+import org.campagnelab.goby.compression.ChunkCodecHelper;
+import org.campagnelab.goby.compression.MessageChunksWriter;
+import org.campagnelab.goby.compression.ProtobuffCollectionHandler;
+import org.campagnelab.goby.compression.SequenceBaseInfoCollectionHandler;
+import org.campagnelab.goby.compression.SequenceSegmentInfoCollectionHandler;
+import org.campagnelab.goby.util.FileExtensionHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Shuffle the records of a .sbi or .ssi file, so that training pipelines that read the file sequentially do not
+ * receive records in genomic order. The shuffle is an external block shuffle: chunks of the input (as written by
+ * {@link MessageChunksWriter}) are read in a random order, and their records go through a bounded in-memory buffer
+ * from which records are drawn at random. Each chunk is read once with a single seek, and memory use is bounded
+ * by the buffer size. The same seed and buffer size always produce the same output.
+ *
+ * @author Fabien Campagne
+ */
+public class ShuffleSequenceInformationMode extends AbstractGobyMode {
+    /**
+     * Used to log informational and debug messages.
+     */
+    private static final Log LOG = LogFactory.getLog(ShuffleSequenceInformationMode.class);
+
+    /**
+     * The mode name.
+     */
+    private static final String MODE_NAME = "shuffle-sequence-information";
+
+    /**
+     * The mode description help text.
+     */
+    private static final String MODE_DESCRIPTION = "Shuffle the records of a .sbi or .ssi file. Chunks of the " +
+            "input are read in a random order and their records are drawn at random from a bounded in-memory buffer. " +
+            "The output is reproducible for a given seed and buffer size.";
+
+    /**
+     * Number of bytes before the compressed bytes of a chunk: codec registration code, delimiter and size.
+     */
+    private static final int CHUNK_HEADER_LENGTH = 1 + MessageChunksWriter.DELIMITER_LENGTH +
+            MessageChunksWriter.SIZE_OF_MESSAGE_LENGTH;
+
+    private String inputFilename;
+    private String outputFilename;
+    private long seed;
+    private int bufferSize = 100000;
+
+    @Override
+    public String getModeName() {
+        return MODE_NAME;
+    }
+
+    @Override
+    public String getModeDescription() {
+        return MODE_DESCRIPTION;
+    }
+
+    public void setInputFilename(final String inputFilename) {
+        this.inputFilename = inputFilename;
+    }
+
+    public void setOutputFilename(final String outputFilename) {
+        this.outputFilename = outputFilename;
+    }
+
+    public void setSeed(final long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Set the maximum number of records held in memory to shuffle records across chunks.
+     */
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Configure.
+     *
+     * @param args command line arguments
+     * @return this object for chaining
+     * @throws IOException   error parsing
+     * @throws JSAPException error parsing
+     */
+    @Override
+    public AbstractCommandLineMode configure(final String[] args) throws IOException, JSAPException {
+        final JSAPResult jsapResult = parseJsapArguments(args);
+        inputFilename = jsapResult.getString("input");
+        outputFilename = jsapResult.getString("output");
+        bufferSize = jsapResult.getInt("buffer-size");
+        if (jsapResult.contains("seed")) {
+            seed = jsapResult.getLong("seed");
+        } else {
+            seed = System.nanoTime();
+            LOG.info(String.format("Shuffling with seed %d, use --seed %d to reproduce this output.", seed, seed));
+        }
+        return this;
+    }
+
+    /**
+     * Shuffle the input.
+     *
+     * @throws IOException if the input/output files cannot be read/written
+     */
+    @Override
+    public void execute() throws IOException {
+        final RecordFormat format = isSegmentInformation(inputFilename) ? new SegmentInformationFormat() :
+                new BaseInformationFormat();
+        final String inputBasename = BasenameUtils.getBasename(inputFilename, format.extensions());
+        final String outputBasename = BasenameUtils.getBasename(outputFilename, format.extensions());
+        final File input = new File(inputBasename + format.extensions()[0]);
+        if (input.getCanonicalFile().equals(new File(outputBasename + format.extensions()[0]).getCanonicalFile())) {
+            throw new IOException("The output must be written to a different file than the input.");
+        }
+        final Random random = new Random(seed);
+        final Properties properties = new Properties();
+        final FileInputStream propertiesStream = new FileInputStream(inputBasename + format.extensions()[1]);
+        try {
+            properties.load(propertiesStream);
+        } finally {
+            IOUtils.closeQuietly(propertiesStream);
+        }
+        properties.setProperty("shuffle.seed", Long.toString(seed));
+        properties.setProperty("shuffle.bufferSize", Integer.toString(bufferSize));
+
+        final RandomAccessFile file = new RandomAccessFile(input, "r");
+        try {
+            final long[] offsets = readChunkOffsets(file).toLongArray();
+            LongArrays.shuffle(offsets, random);
+            LOG.info(String.format("Shuffling %d chunks of %s", offsets.length, input.getPath()));
+
+            final Byte2ObjectMap<ChunkCodec> codecs = new Byte2ObjectOpenHashMap<ChunkCodec>();
+            final ObjectArrayList<Message> buffer = new ObjectArrayList<Message>(Math.min(bufferSize, 1 << 20));
+            final byte[] header = new byte[CHUNK_HEADER_LENGTH];
+            long numRecords = 0;
+            format.open(outputBasename, properties);
+            try {
+                for (final long offset : offsets) {
+                    file.seek(offset);
+                    file.readFully(header);
+                    final byte registrationCode = header[0];
+                    final byte[] compressedBytes = new byte[ByteBuffer.wrap(header).getInt(CHUNK_HEADER_LENGTH - 4)];
+                    file.readFully(compressedBytes);
+                    ChunkCodec codec = codecs.get(registrationCode);
+                    if (codec == null) {
+                        codec = ChunkCodecHelper.withRegistrationCode(registrationCode);
+                        codec.setHandler(format.newHandler());
+                        codecs.put(registrationCode, codec);
+                    }
+                    for (final Message record : format.getRecords(codec.decode(compressedBytes))) {
+                        if (buffer.size() < bufferSize) {
+                            buffer.add(record);
+                        } else {
+                            // emit a random record of the buffer and keep the new record in its place:
+                            final int index = random.nextInt(bufferSize);
+                            format.append(buffer.get(index));
+                            buffer.set(index, record);
+                            numRecords++;
+                        }
+                    }
+                }
+                // drain the buffer in random order:
+                for (int size = buffer.size(); size > 0; size--) {
+                    final int index = random.nextInt(size);
+                    format.append(buffer.get(index));
+                    buffer.set(index, buffer.get(size - 1));
+                    numRecords++;
+                }
+            } finally {
+                format.close();
+            }
+            LOG.info(String.format("Wrote %d shuffled records to %s", numRecords, outputBasename));
+        } finally {
+            file.close();
+        }
+    }
+
+    private static boolean isSegmentInformation(final String filename) {
+        for (final String extension : FileExtensionHelper.COMPACT_SEQUENCE_SEGMENT_INFORMATION) {
+            if (filename.endsWith(extension)) {
+                return true;
+            }
+        }
+        return !filename.endsWith(".sbi") && !new File(filename + ".sbi").exists() &&
+                new File(filename + ".ssi").exists();
+    }
+
+    /**
+     * Return the start offset of each chunk of a file written with {@link MessageChunksWriter}. Only the chunk
+     * headers are read, the compressed bytes of the chunks are skipped.
+     *
+     * @param file the file.
+     * @return start offsets, in file order.
+     * @throws IOException if the file cannot be read or is not a file of chunks.
+     */
+    static LongArrayList readChunkOffsets(final RandomAccessFile file) throws IOException {
+        final LongArrayList offsets = new LongArrayList();
+        final byte[] header = new byte[CHUNK_HEADER_LENGTH];
+        final long length = file.length();
+        long position = 0;
+        while (position + CHUNK_HEADER_LENGTH <= length) {
+            file.seek(position);
+            file.readFully(header);
+            for (int i = 1; i <= MessageChunksWriter.DELIMITER_LENGTH; i++) {
+                if (header[i] != MessageChunksWriter.DELIMITER_CONTENT) {
+                    throw new IOException(String.format("No chunk delimiter found at position %d", position));
+                }
+            }
+            final int numBytes = ByteBuffer.wrap(header).getInt(CHUNK_HEADER_LENGTH - 4);
+            if (numBytes <= 0) {
+                // the last chunk is empty:
+                break;
+            }
+            offsets.add(position);
+            position += CHUNK_HEADER_LENGTH + numBytes;
+        }
+        return offsets;
+    }
+
+    /**
+     * Reads collections of one type of record and writes these records.
+     */
+    private abstract static class RecordFormat {
+        /**
+         * Extensions of the format, data file first, then properties file.
+         */
+        abstract String[] extensions();
+
+        abstract ProtobuffCollectionHandler newHandler();
+
+        abstract List<? extends Message> getRecords(Message collection);
+
+        abstract void open(String basename, Properties properties) throws IOException;
+
+        abstract void append(Message record) throws IOException;
+
+        abstract void close() throws IOException;
+    }
+
+    private static class BaseInformationFormat extends RecordFormat {
+        private SequenceBaseInformationWriter writer;
+
+        @Override
+        String[] extensions() {
+            return FileExtensionHelper.COMPACT_SEQUENCE_BASE_INFORMATION;
+        }
+
+        @Override
+        ProtobuffCollectionHandler newHandler() {
+            return new SequenceBaseInfoCollectionHandler();
+        }
+
+        @Override
+        List<? extends Message> getRecords(final Message collection) {
+            return ((BaseInformationRecords.BaseInformationCollection) collection).getRecordsList();
+        }
+
+        @Override
+        void open(final String basename, final Properties properties) throws IOException {
+            writer = new SequenceBaseInformationWriter(basename);
+            // statistics are recomputed by the writer, other properties are kept:
+            writer.setCustomProperties(properties);
+        }
+
+        @Override
+        void append(final Message record) throws IOException {
+            writer.appendEntry((BaseInformationRecords.BaseInformation) record);
+        }
+
+        @Override
+        void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static class SegmentInformationFormat extends RecordFormat {
+        private SequenceSegmentInformationWriter writer;
+
+        @Override
+        String[] extensions() {
+            return FileExtensionHelper.COMPACT_SEQUENCE_SEGMENT_INFORMATION;
+        }
+
+        @Override
+        ProtobuffCollectionHandler newHandler() {
+            return new SequenceSegmentInfoCollectionHandler();
+        }
+
+        @Override
+        List<? extends Message> getRecords(final Message collection) {
+            return ((SegmentInformationRecords.SegmentInformationCollection) collection).getRecordsList();
+        }
+
+        @Override
+        void open(final String basename, final Properties properties) throws IOException {
+            writer = new SequenceSegmentInformationWriter(basename);
+            writer.setCustomProperties(properties);
+        }
+
+        @Override
+        void append(final Message record) throws IOException {
+            writer.appendEntry((SegmentInformationRecords.SegmentInformation) record);
+        }
+
+        @Override
+        void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Main entry point.
+     *
+     * @param args command line arguments
+     * @throws IOException   error with IO
+     * @throws JSAPException error with command line processing
+     */
+    public static void main(final String[] args) throws IOException, JSAPException {
+        new ShuffleSequenceInformationMode().configure(args).execute();
+    }
+}
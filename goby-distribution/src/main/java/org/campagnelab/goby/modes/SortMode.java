@@ -26,6 +26,7 @@ import edu.cornell.med.icb.util.ICBStringUtils;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -75,6 +76,10 @@ public class SortMode extends AbstractGobyMode {
     private int filesPerMerge = 30;
     private long splitSize = -1;
     private String tempDir = "/tmp";
+    /**
+     * Name of the codec used to write temporary splits, or null to use the configured codec.
+     */
+    private String tempCodec;
 
     private double memoryPercentageForWork = 0.75;
     private int splitSizeScalingFactor = 100;
@@ -206,6 +211,24 @@ public class SortMode extends AbstractGobyMode {
         }
     }
 
+    /**
+     * Set the chunk codec used to write the temporary files of the sort. The final output is written with the
+     * configured codec.
+     *
+     * @param tempCodec name of the codec, e.g., snappy, or null/empty to use the configured codec.
+     */
+    public void setTempCodec(final String tempCodec) {
+        this.tempCodec = StringUtils.isBlank(tempCodec) ? null : tempCodec;
+    }
+
+    /**
+     * Create a writer for a temporary sorted split.
+     */
+    private AlignmentWriterImpl newTempWriter(final String outputBasename) throws IOException {
+        return tempCodec == null ? new AlignmentWriterImpl(outputBasename) :
+                new AlignmentWriterImpl(outputBasename, tempCodec);
+    }
+
     /**
      * Get splitSizeScalingFactor.
      * The larger the value of split-size-scaling-factor the more splits will be made because this
@@ -294,6 +317,7 @@ public class SortMode extends AbstractGobyMode {
         filesPerMerge = jsapResult.getInt("files-per-merge");
         setSplitSize(jsapResult.getLong("split-size"));
         tempDir = jsapResult.getString("temp-dir");
+        setTempCodec(jsapResult.getString("temp-codec"));
         dryRun = jsapResult.getBoolean("dry-run");
 
         setMemoryPercentageForWork(jsapResult.getDouble("memory-percentage-for-work"));
@@ -555,7 +579,7 @@ public class SortMode extends AbstractGobyMode {
                     final String subOutputFilename = tempDir + "/" + subBasename;
                     LOG.debug(String.format("[%s] Sorting %s to %s",
                             threadId, toSort.toString(), subOutputFilename));
-                    writer = new AlignmentWriterImpl(subOutputFilename);
+                    writer = newTempWriter(subOutputFilename);
                     alignmentIterator.setOutputFilename(subOutputFilename);
                     alignmentIterator.setBasename(subBasename);
 
@@ -608,6 +632,7 @@ public class SortMode extends AbstractGobyMode {
         new File(basename + ".entries").deleteOnExit();
         new File(basename + ".header").deleteOnExit();
         new File(basename + ".index").deleteOnExit();
+        new File(basename + ".index2").deleteOnExit();
         new File(basename + ".stats").deleteOnExit();
 
     }
@@ -670,7 +695,8 @@ public class SortMode extends AbstractGobyMode {
                         subOutputFilename = tempDir + "/" + subBasename;
                     }
                     if (!dryRun) {
-                        writer = new AlignmentWriterImpl(subOutputFilename);
+                        writer = lastMerge ? new AlignmentWriterImpl(subOutputFilename) :
+                                newTempWriter(subOutputFilename);
                         HeaderUtil.copyHeader(concatReader,writer);
                         writer.setSorted(true);
 
@@ -711,6 +737,7 @@ public class SortMode extends AbstractGobyMode {
                         deleteFile(new File(mergeFromBasename + ".entries"), true);
                         deleteFile(new File(mergeFromBasename + ".header"), true);
                         deleteFile(new File(mergeFromBasename + ".index"), true);
+                        deleteFile(new File(mergeFromBasename + ".index2"), true);
                         deleteFile(new File(mergeFromBasename + ".stats"), true);
                     }
 
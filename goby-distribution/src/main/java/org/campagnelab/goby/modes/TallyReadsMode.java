@@ -22,22 +22,46 @@ import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import it.unimi.dsi.bits.BitVector;
 import it.unimi.dsi.bits.LongArrayBitVector;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
 import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
 import it.unimi.dsi.io.OutputBitStream;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.campagnelab.goby.exception.GobyRuntimeException;
 import org.campagnelab.goby.reads.*;
 
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Tally the number of times sequences appear in a set of read files. Exact sequence comparison
  * is performed.
+ * <p>
+ * With --partitions, reads are not tallied in a single in-memory map. The 2-bit encoding of each read is written
+ * to one of several partition files on disk, chosen by a hash of the encoding, so that identical reads land in the
+ * same partition. Partitions are then tallied independently on a pool of threads, with a map keyed by a 64-bit
+ * fingerprint of the encoding (reads with the same fingerprint are compared byte by byte). The filter of each
+ * partition is sorted by read index and the partition filters are merged into the output filter. Memory use is
+ * bounded by the size of the partitions tallied concurrently.
+ * </p>
  *
  * @author Fabien Campagne
  *         Date: May 4 2009
@@ -60,6 +84,12 @@ public class TallyReadsMode extends AbstractGobyMode {
 
     private boolean colorSpace;
     private final int MAX_PROCESS_READS = Integer.MAX_VALUE;
+    /**
+     * Number of partitions the reads are split into, or zero to tally reads in memory.
+     */
+    private int numPartitions;
+    private int numThreads;
+    private String tempDir = "/tmp";
 
     @Override
     public String getModeName() {
@@ -87,12 +117,49 @@ public class TallyReadsMode extends AbstractGobyMode {
         inputFilename = jsapResult.getString("input");
         outputBasename = jsapResult.getString("output");
         colorSpace = jsapResult.getBoolean("color-space");
+        numPartitions = jsapResult.getInt("partitions");
+        numThreads = jsapResult.getInt("num-threads");
+        tempDir = jsapResult.getString("temp-dir");
         return this;
     }
 
+    public void setInputFilename(final String inputFilename) {
+        this.inputFilename = inputFilename;
+    }
+
+    public void setOutputBasename(final String outputBasename) {
+        this.outputBasename = outputBasename;
+    }
+
+    public void setColorSpace(final boolean colorSpace) {
+        this.colorSpace = colorSpace;
+    }
+
+    /**
+     * Set the number of partitions the reads are split into on disk. Zero tallies reads in memory.
+     */
+    public void setNumPartitions(final int numPartitions) {
+        this.numPartitions = numPartitions;
+    }
+
+    /**
+     * Set the number of partitions tallied in parallel. Zero selects the number of available processors.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public void setTempDir(final String tempDir) {
+        this.tempDir = tempDir;
+    }
+
 
     @Override
     public void execute() throws IOException {
+        if (numPartitions > 0) {
+            executePartitioned();
+            return;
+        }
         final MutableString sequence = new MutableString();
 
         final ProgressLogger progress = new ProgressLogger();
@@ -208,6 +275,264 @@ public class TallyReadsMode extends AbstractGobyMode {
         System.exit(0);
     }
 
+    /**
+     * Tally reads in partitions written to disk, see the class documentation.
+     */
+    private void executePartitioned() throws IOException {
+        final File directory = File.createTempFile("tally-reads-", ".dir", new File(tempDir));
+        FileUtils.forceDelete(directory);
+        FileUtils.forceMkdir(directory);
+        try {
+            final int numberOfReads = partitionReads(directory);
+            final int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+            final ProgressLogger progress = new ProgressLogger();
+            progress.displayFreeMemory = true;
+            progress.itemsName = "partitions";
+            progress.expectedUpdates = numPartitions;
+            progress.start("second pass: tallying partitions with " + threads + " threads.");
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final long[] totals = new long[3];
+            try {
+                final ObjectArrayList<Future<long[]>> results = new ObjectArrayList<Future<long[]>>();
+                for (int partition = 0; partition < numPartitions; partition++) {
+                    final int index = partition;
+                    results.add(executor.submit(() -> tallyPartition(directory, index)));
+                }
+                for (final Future<long[]> result : results) {
+                    final long[] partitionTotals = result.get();
+                    for (int i = 0; i < totals.length; i++) {
+                        totals[i] += partitionTotals[i];
+                    }
+                    progress.update();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GobyRuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new GobyRuntimeException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+            progress.stop("second pass");
+            mergePartitionFilters(directory, totals[0]);
+            System.out.printf("Saved filter with %d elements %n", totals[0]);
+            printSummary(numberOfReads, totals[0], totals[1], totals[2]);
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Write the read index, length and 2-bit encoding of each read to the partition selected by the fingerprint of
+     * the encoding.
+     *
+     * @return the number of reads, one more than the largest read index.
+     */
+    private int partitionReads(final File directory) throws IOException {
+        final ProgressLogger progress = new ProgressLogger();
+        progress.displayFreeMemory = true;
+        progress.start("first pass: writing reads to " + numPartitions + " partitions.");
+        final DataOutputStream[] partitions = new DataOutputStream[numPartitions];
+        final ReadsReader readsReader = new ReadsReader(new FileInputStream(inputFilename));
+        int numReads = 0;
+        try {
+            for (int partition = 0; partition < numPartitions; partition++) {
+                partitions[partition] = new DataOutputStream(new FastBufferedOutputStream(
+                        new FileOutputStream(partitionFile(directory, partition, "reads"))));
+            }
+            final MutableString sequence = new MutableString();
+            byte[] byteBuffer = new byte[1];
+            for (final Reads.ReadEntry readEntry : readsReader) {
+                byteBuffer = toByteBuffer(sequence, byteBuffer, readEntry);
+                final long fingerprint = fingerprint(byteBuffer, 0, byteBuffer.length, sequence.length());
+                final DataOutputStream output = partitions[(int) ((fingerprint >>> 1) % numPartitions)];
+                output.writeInt(readEntry.getReadIndex());
+                output.writeInt(sequence.length());
+                output.write(byteBuffer);
+                numReads = Math.max(numReads, readEntry.getReadIndex() + 1);
+                progress.lightUpdate();
+            }
+        } finally {
+            readsReader.close();
+            for (final DataOutputStream partition : partitions) {
+                IOUtils.closeQuietly(partition);
+            }
+        }
+        progress.stop("first pass finished.");
+        System.out.println("numReads=" + numReads);
+        return numReads;
+    }
+
+    /**
+     * Tally the reads of one partition. The first read of each distinct sequence is kept in the filter of the
+     * partition, with the number of reads that have this sequence as multiplicity. The filter is written as
+     * <code>(readIndex &lt;&lt; 32) | multiplicity</code> longs, sorted by read index.
+     *
+     * @return number of reads in the filter, number of sequences seen more than once and the number of reads with
+     * these sequences.
+     */
+    private long[] tallyPartition(final File directory, final int partition) throws IOException {
+        final File readsFile = partitionFile(directory, partition, "reads");
+        if (readsFile.length() > Integer.MAX_VALUE - 8) {
+            throw new IOException(String.format("Partition %d is too large (%d bytes), increase the number of " +
+                    "partitions.", partition, readsFile.length()));
+        }
+        final byte[] data = FileUtils.readFileToByteArray(readsFile);
+        FileUtils.forceDelete(readsFile);
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final IntArrayList offsets = new IntArrayList();
+        for (int offset = 0; offset < data.length; offset += 8 + buffer.getInt(offset + 4) / 4 + 1) {
+            offsets.add(offset);
+        }
+        final int numReads = offsets.size();
+        // index of the first read with a fingerprint, and of the next read with a different sequence and the same
+        // fingerprint:
+        final Long2IntOpenHashMap firstWithFingerprint = new Long2IntOpenHashMap(numReads);
+        firstWithFingerprint.defaultReturnValue(-1);
+        final int[] nextWithFingerprint = new int[numReads];
+        // number of reads with the sequence of a read, zero when an earlier read has the same sequence:
+        final int[] counts = new int[numReads];
+        for (int read = 0; read < numReads; read++) {
+            final int offset = offsets.getInt(read);
+            final int numBytes = buffer.getInt(offset + 4) / 4 + 1;
+            final long fingerprint = fingerprint(data, offset + 8, numBytes, buffer.getInt(offset + 4));
+            final int first = firstWithFingerprint.get(fingerprint);
+            int candidate = first;
+            while (candidate != -1 && !sameSequence(data, offsets.getInt(candidate), offset, numBytes)) {
+                candidate = nextWithFingerprint[candidate];
+            }
+            if (candidate == -1) {
+                nextWithFingerprint[read] = first;
+                firstWithFingerprint.put(fingerprint, read);
+                counts[read] = 1;
+            } else {
+                counts[candidate]++;
+            }
+        }
+        final LongArrayList filter = new LongArrayList(firstWithFingerprint.size());
+        long numRedundant = 0;
+        long redundancySum = 0;
+        for (int read = 0; read < numReads; read++) {
+            if (counts[read] > 0) {
+                filter.add(((long) buffer.getInt(offsets.getInt(read)) << 32) | counts[read]);
+                if (counts[read] > 1) {
+                    numRedundant++;
+                    redundancySum += counts[read];
+                }
+            }
+        }
+        final long[] sorted = filter.toLongArray();
+        LongArrays.radixSort(sorted);
+        final DataOutputStream output = new DataOutputStream(new FastBufferedOutputStream(
+                new FileOutputStream(partitionFile(directory, partition, "filter"))));
+        try {
+            for (final long element : sorted) {
+                output.writeLong(element);
+            }
+        } finally {
+            output.close();
+        }
+        return new long[]{sorted.length, numRedundant, redundancySum};
+    }
+
+    /**
+     * Merge the filters of the partitions into the output filter, with the layout written by
+     * {@link ReadSet#save(String, String)}.
+     *
+     * @param size total number of reads in the partition filters.
+     */
+    private void mergePartitionFilters(final File directory, final long size) throws IOException {
+        final ObjectHeapPriorityQueue<PartitionFilter> queue = new ObjectHeapPriorityQueue<PartitionFilter>(
+                new Comparator<PartitionFilter>() {
+                    public int compare(final PartitionFilter filter1, final PartitionFilter filter2) {
+                        return Long.compare(filter1.element, filter2.element);
+                    }
+                });
+        final ObjectArrayList<PartitionFilter> filters = new ObjectArrayList<PartitionFilter>();
+        final OutputBitStream out = new OutputBitStream(outputBasename + "-keep.filter");
+        try {
+            for (int partition = 0; partition < numPartitions; partition++) {
+                final PartitionFilter filter = new PartitionFilter(partitionFile(directory, partition, "filter"));
+                filters.add(filter);
+                if (filter.advance()) {
+                    queue.enqueue(filter);
+                }
+            }
+            // smallest stored multiplicity, as written by the in-memory tally:
+            out.writeGamma(1);
+            out.writeGamma((int) size);
+            int previous = -1;
+            while (!queue.isEmpty()) {
+                final PartitionFilter filter = queue.first();
+                final int readIndex = (int) (filter.element >>> 32);
+                out.writeDelta(readIndex - previous);
+                out.writeGamma((int) filter.element);
+                previous = readIndex;
+                if (filter.advance()) {
+                    queue.changed();
+                } else {
+                    queue.dequeue();
+                }
+            }
+        } finally {
+            out.close();
+            for (final PartitionFilter filter : filters) {
+                IOUtils.closeQuietly(filter.input);
+            }
+        }
+    }
+
+    /**
+     * Reads the filter of a partition.
+     */
+    private static class PartitionFilter {
+        private final DataInputStream input;
+        private long remaining;
+        private long element;
+
+        PartitionFilter(final File file) throws IOException {
+            remaining = file.length() / 8;
+            input = new DataInputStream(new FastBufferedInputStream(new FileInputStream(file)));
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            element = input.readLong();
+            remaining--;
+            return true;
+        }
+    }
+
+    private static File partitionFile(final File directory, final int partition, final String type) {
+        return new File(directory, String.format("partition-%d.%s", partition, type));
+    }
+
+    /**
+     * Return a 64-bit fingerprint of the 2-bit encoding of a read.
+     */
+    private static long fingerprint(final byte[] bytes, final int offset, final int numBytes, final int length) {
+        long hash = length;
+        for (int i = offset; i < offset + numBytes; i++) {
+            hash = hash * 0x9E3779B97F4A7C15L + bytes[i];
+        }
+        return HashCommon.murmurHash3(hash);
+    }
+
+    private static boolean sameSequence(final byte[] data, final int offset1, final int offset2, final int numBytes) {
+        // compare lengths, then encodings:
+        for (int i = 4; i < 8 + numBytes; i++) {
+            if (data[offset1 + i] != data[offset2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private byte[] toByteBuffer(final MutableString sequence, byte[] byteBuffer, final Reads.ReadEntry readEntry) throws IOException {
         ReadsReader.decodeSequence(readEntry, sequence);
         final int i = sequence.length();
@@ -316,12 +641,16 @@ public class TallyReadsMode extends AbstractGobyMode {
                 System.exit(1);
             }
         }
+        printSummary(numReads, distinctReadIndices.count(), num, sum);
+    }
+
+    private static void printSummary(final long numReads, final long numUniqueReads, final long num, final long sum) {
         System.out.println("Number of reads: " + numReads);
-        System.out.printf("Number of unique reads: %d %n", distinctReadIndices.count());
+        System.out.printf("Number of unique reads: %d %n", numUniqueReads);
         System.out.printf("Number of reads occuring more than once (count>=2): %d %n", num);
         System.out.printf("Redunduncy sum: %d %n", sum);
         // we still need to map the first redundant read:
-        final int avoidableMappings = sum - counts.size();
+        final long avoidableMappings = sum - num;
         System.out.printf("Could avoid: %d alignments %n", avoidableMappings);
         System.out.printf("Fraction of redundant reads: %3.3g %% %n", (100d * ((double) num) / (double) numReads));
         System.out.printf("Fraction of time saved: %3.3g %% %n", (100d * ((double) avoidableMappings) / (double) numReads));
@@ -46,7 +46,7 @@ public class UpgradeMode extends AbstractGobyMode {
     /**
      * The mode description help text.
      */
-    private static final String MODE_DESCRIPTION = "Upgrade goby files to a new version of Goby. We try to devise Goby format to avoid upgrade steps, but sometimes upgrading the data structures cannot be avoided (e.g., when we fix bugs that existed in earlier versions). This tool converts data structures to the latest Goby format.";
+    private static final String MODE_DESCRIPTION = "Upgrade goby files to a new version of Goby. We try to devise Goby format to avoid upgrade steps, but sometimes upgrading the data structures cannot be avoided (e.g., when we fix bugs that existed in earlier versions). This tool converts data structures to the latest Goby format. Sorted alignments that only have a legacy .index also get the memory-mapped .index2 index, and alignments with a legacy .tmh the memory-mapped .tmh2 file.";
 
 
     UpgradeModeCore delegate = new UpgradeModeCore();
@@ -26,6 +26,7 @@ import it.unimi.dsi.logging.ProgressLogger;
 import org.campagnelab.goby.GobyVersion;
 import org.campagnelab.goby.alignments.*;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -83,6 +84,25 @@ public class UpgradeModeCore {
                     System.exit(1);
                 }
             }
+            if (reader.isIndexed() && AlignmentChunkIndex.map(reader.basename()) == null) {
+                // produce the memory-mapped index from the legacy index:
+                AlignmentChunkIndex.loadLegacy(reader.basename()).writeMapped(reader.basename());
+                if (!silent) {
+                    System.out.printf("wrote %s%s %n", reader.basename(), AlignmentChunkIndex.MAPPED_INDEX_EXTENSION);
+                }
+            }
+            if (new File(reader.basename() + ".tmh").exists()) {
+                final AlignmentTooManyHitsReader tmhReader = new AlignmentTooManyHitsReader(reader.basename());
+                if (!tmhReader.isMapped()) {
+                    // produce the memory-mapped too many hits file from the legacy .tmh:
+                    tmhReader.writeMapped(reader.basename());
+                    if (!silent) {
+                        System.out.printf("wrote %s%s %n", reader.basename(), AlignmentTooManyHitsReader.MAPPED_EXTENSION);
+                    }
+                }
+                tmhReader.close();
+            }
+            reader.close();
         } catch (IOException e) {
             System.err.println("Could not read alignment " + basename);
             e.printStackTrace();
@@ -217,8 +217,7 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
             DiscoverVariantPositionData positionBaseInfos = positionToBases.get(keyPos);
             //   System.out.printf("Observing indel at position %d %n", keyPos);
             if (positionBaseInfos == null) {
-                positionBaseInfos = new DiscoverVariantPositionData(keyPos, genome.get(referenceIndex, keyPos));
-                positionBaseInfos.SUB_SAMPLE_SIZE = SUB_SAMPLE_SIZE;
+                positionBaseInfos = borrowPositionData(keyPos, genome.get(referenceIndex, keyPos));
                 positionToBases.put(keyPos, positionBaseInfos);
             }
 
@@ -23,12 +23,20 @@ package org.campagnelab.goby.modes.dsv;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import org.campagnelab.goby.algorithmic.dsv.DiscoverVariantPositionData;
 import org.campagnelab.goby.alignments.*;
+import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
 import org.campagnelab.goby.util.WarningCounter;
 import org.campagnelab.goby.util.dynoptions.DynamicOptionClient;
 import org.campagnelab.goby.util.dynoptions.RegisterThis;
+import org.campagnelab.goby.util.pool.NullResettableObjectPool;
+import org.campagnelab.goby.util.pool.QueueResettableObjectPool;
+import org.campagnelab.goby.util.pool.ResettableObjectPoolInterface;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
 /**
  * @author Fabien Campagne
  *         Date: Sep 7, 2010
@@ -40,9 +48,52 @@ public abstract class IterateSortedAlignmentsListImpl
 
     protected IterateSortedAlignmentsListImpl() {
         this.SUB_SAMPLE_SIZE = doc.getInteger("sub-sample-size");
-
+        if (doc.getBoolean("recycle-positions")) {
+            baseInfoPool = new QueueResettableObjectPool<PositionBaseInfo>() {
+                @Override
+                public PositionBaseInfo makeObject() {
+                    numBaseInfosAllocated++;
+                    return new PositionBaseInfo();
+                }
+            };
+            positionDataPool = new QueueResettableObjectPool<DiscoverVariantPositionData>() {
+                @Override
+                public DiscoverVariantPositionData makeObject() {
+                    numPositionDataAllocated++;
+                    return new DiscoverVariantPositionData();
+                }
+            };
+        } else {
+            baseInfoPool = new NullResettableObjectPool<PositionBaseInfo>() {
+                @Override
+                public PositionBaseInfo makeObject() {
+                    numBaseInfosAllocated++;
+                    return new PositionBaseInfo();
+                }
+            };
+            positionDataPool = new NullResettableObjectPool<DiscoverVariantPositionData>() {
+                @Override
+                public DiscoverVariantPositionData makeObject() {
+                    numPositionDataAllocated++;
+                    return new DiscoverVariantPositionData();
+                }
+            };
+        }
     }
 
+    /**
+     * Pools of the objects created for each observed base and each observed position. Objects are returned to the
+     * pools when their position has been processed.
+     */
+    private final ResettableObjectPoolInterface<PositionBaseInfo> baseInfoPool;
+    private final ResettableObjectPoolInterface<DiscoverVariantPositionData> positionDataPool;
+    private long numBaseInfosAllocated;
+    private long numBaseInfosBorrowed;
+    private long numPositionDataAllocated;
+    private long numPositionDataBorrowed;
+    private long numGarbageCollections;
+    private long garbageCollectionTime;
+
     public static final DynamicOptionClient doc() {
         return doc;
     }
@@ -55,7 +106,9 @@ public abstract class IterateSortedAlignmentsListImpl
                     "when too much is too much. Any position with more covering bases will be sub-sampled to reduce computational load " +
                     "and make performance predictable. The default parameter is set at half a million bases.:500000" +*/
             "sub-sample-size:integer, The number of bases to keep when coverage exceeds the maximum and sub-sampling " +
-                    "is needed to improve performance.:10000"
+                    "is needed to improve performance.:10000",
+            "recycle-positions:boolean, when true reuse the objects that hold base and position information once " +
+                    "a position has been processed, instead of allocating new ones for each base.:true"
     );
     /**
      * Used to log debug and informational messages.
@@ -84,7 +137,7 @@ public abstract class IterateSortedAlignmentsListImpl
                     alignmentEntry.getQueryIndex(), currentRefPosition, currentReadIndex));
         } */
 
-        final PositionBaseInfo info = new PositionBaseInfo();
+        final PositionBaseInfo info = borrowBaseInfo();
 
         info.readerIndex = alignmentEntry.getSampleIndex();
         //     System.out.printf("observing ref readerIndex=%d%n",info.readerIndex);
@@ -126,7 +179,7 @@ public abstract class IterateSortedAlignmentsListImpl
                     alignmentEntry.getQueryIndex(), currentRefPosition, currentReadIndex, fromChar, toChar));
         }
         */
-        final PositionBaseInfo info = new PositionBaseInfo();
+        final PositionBaseInfo info = borrowBaseInfo();
         info.readerIndex = alignmentEntry.getSampleIndex();
         //    System.out.printf("observing var readerIndex=%d%n",info.readerIndex);
 
@@ -156,10 +209,10 @@ public abstract class IterateSortedAlignmentsListImpl
         final int position = info.position;
         DiscoverVariantPositionData list = positionToBases.get(position);
         if (list == null) {
-            int genomeReferenceIndex=alignmentToGenomeTargetIndices[currentReferenceIndex];
-            char referenceBase = getGenome() != null ? getGenome().get(genomeReferenceIndex, position) : '\0';
-            list = new DiscoverVariantPositionData(position, referenceBase);
-            list.SUB_SAMPLE_SIZE=SUB_SAMPLE_SIZE;
+            final RandomAccessSequenceInterface genome = getGenome();
+            final char referenceBase = genome != null ?
+                    genome.get(alignmentToGenomeTargetIndices[currentReferenceIndex], position) : '\0';
+            list = borrowPositionData(position, referenceBase);
             positionToBases.put(position, list);
         } else {
             assert list.getZeroBasedPosition() == position : "info position must match list position.";
@@ -170,5 +223,114 @@ public abstract class IterateSortedAlignmentsListImpl
 
     }
 
+    /**
+     * Obtain a cleared PositionBaseInfo, reusing an instance from a processed position when possible.
+     */
+    protected final PositionBaseInfo borrowBaseInfo() {
+        numBaseInfosBorrowed++;
+        return baseInfoPool.borrowObject();
+    }
+
+    /**
+     * Obtain an empty DiscoverVariantPositionData for a position, reusing an instance from a processed position
+     * when possible.
+     *
+     * @param position      zero-based position on the reference sequence.
+     * @param referenceBase base of the reference sequence at position.
+     * @return data for the position.
+     */
+    protected final DiscoverVariantPositionData borrowPositionData(final int position, final char referenceBase) {
+        numPositionDataBorrowed++;
+        final DiscoverVariantPositionData list = positionDataPool.borrowObject();
+        list.setPosition(position, referenceBase);
+        list.SUB_SAMPLE_SIZE = SUB_SAMPLE_SIZE;
+        return list;
+    }
+
+    /**
+     * Return a processed position and its bases to the pools. Bases that filters removed from the list are not
+     * returned and will be garbage collected.
+     */
+    @Override
+    protected void recycle(final DiscoverVariantPositionData list) {
+        if (list == null) {
+            return;
+        }
+        for (final PositionBaseInfo info : list) {
+            baseInfoPool.returnObject(info);
+        }
+        positionDataPool.returnObject(list);
+    }
+
+    @Override
+    public void iterate(final String... basenames) throws IOException {
+        final long collections = countGarbageCollections();
+        final long collectionTime = garbageCollectionTime();
+        super.iterate(basenames);
+        numGarbageCollections += countGarbageCollections() - collections;
+        garbageCollectionTime += garbageCollectionTime() - collectionTime;
+        LOG.info(String.format("Allocated %,d of %,d bases and %,d of %,d positions observed. " +
+                        "%,d garbage collections took %,d ms.",
+                numBaseInfosAllocated, numBaseInfosBorrowed, numPositionDataAllocated, numPositionDataBorrowed,
+                numGarbageCollections, garbageCollectionTime));
+    }
 
+    /**
+     * Return the number of PositionBaseInfo instances allocated since this iterator was created. Without recycling,
+     * this is equal to the number of bases observed.
+     */
+    public long getNumBaseInfosAllocated() {
+        return numBaseInfosAllocated;
+    }
+
+    /**
+     * Return the number of bases observed since this iterator was created.
+     */
+    public long getNumBaseInfosObserved() {
+        return numBaseInfosBorrowed;
+    }
+
+    /**
+     * Return the number of DiscoverVariantPositionData instances allocated since this iterator was created.
+     */
+    public long getNumPositionDataAllocated() {
+        return numPositionDataAllocated;
+    }
+
+    /**
+     * Return the number of positions observed since this iterator was created.
+     */
+    public long getNumPositionsObserved() {
+        return numPositionDataBorrowed;
+    }
+
+    /**
+     * Return the number of garbage collections that occurred (in any thread) while this iterator was iterating.
+     */
+    public long getNumGarbageCollections() {
+        return numGarbageCollections;
+    }
+
+    /**
+     * Return the time spent in garbage collection (in ms) while this iterator was iterating.
+     */
+    public long getGarbageCollectionTime() {
+        return garbageCollectionTime;
+    }
+
+    private static long countGarbageCollections() {
+        long count = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long garbageCollectionTime() {
+        long time = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
 }
@@ -19,6 +19,7 @@
 package org.campagnelab.goby.modes.formats;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 import it.unimi.dsi.lang.MutableString;
@@ -28,8 +29,10 @@ import org.campagnelab.goby.modes.DiscoverSequenceVariantsMode;
 import org.campagnelab.goby.modes.dsv.DiscoverVariantIterateSortedAlignments;
 import org.campagnelab.goby.predictions.FormatIndelVCF;
 import org.campagnelab.goby.predictions.FormatIndelVCF2;
+import org.campagnelab.goby.predictions.GenotypePrediction;
 import org.campagnelab.goby.predictions.GenotypePredictor;
 import org.campagnelab.goby.predictions.MergeIndelFrom;
+import org.campagnelab.goby.predictions.PredictionSite;
 import org.campagnelab.goby.readers.vcf.ColumnType;
 import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
 import org.campagnelab.goby.stats.VCFWriter;
@@ -71,7 +74,8 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
     public static final DynamicOptionClient doc = new DynamicOptionClient(GenotypesOutputFormat.class,
             "model-path:string, path to a variationanalysis deep learning model to call genotypes:${GOBY_HOME}/models/genotyping/1510204519948/bestscore-ComputationGraph.bin",
             "minimum-p:float, minimum probability in any sample to report a genotype.:0.0",
-            "stringent-p:float, minimum probability in all samples to report a genotype.:0.0"
+            "stringent-p:float, minimum probability in all samples to report a genotype.:0.0",
+            "batch-size:integer, number of sites buffered and predicted together by the model. Use 1 to predict each site as soon as it is observed.:32"
     );
     private int positionColumnIndex;
     private int numberOfGroups;
@@ -151,6 +155,7 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
         }
         minimumP = doc.getFloat("minimum-p");
         stringentP = doc.getFloat("stringent-p");
+        batchSize = doc.getInteger("batch-size");
         //extract prefix and model directory from model path input.
         modelPrefix = predictor.getModelPrefix(customPath);
         modelPath = predictor.getModelPath(customPath);
@@ -215,15 +220,80 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
     ObjectArraySet<String> alleleSet = new ObjectArraySet<String>();
     MutableString genotypeBuffer = new MutableString();
 
+    /**
+     * A site kept until the genotypes of a batch of sites have been predicted. The counts and bases are copies,
+     * because the iterator reuses its instances for the next positions.
+     */
+    private static class PendingSite {
+        final String referenceId;
+        final int referenceIndex;
+        final int position;
+        final SampleCountInfo[] sampleCounts;
+        final DiscoverVariantPositionData list;
+
+        PendingSite(final String referenceId, final int referenceIndex, final int position,
+                    final SampleCountInfo[] sampleCounts, final DiscoverVariantPositionData list) {
+            this.referenceId = referenceId;
+            this.referenceIndex = referenceIndex;
+            this.position = position;
+            this.sampleCounts = sampleCounts;
+            this.list = list;
+        }
+    }
+
+    private int batchSize = 1;
+    private final ObjectArrayList<PendingSite> pendingSites = new ObjectArrayList<PendingSite>();
+
     @Override
     public void writeRecord(final DiscoverVariantIterateSortedAlignments iterator, final SampleCountInfo[] sampleCounts,
                             final int referenceIndex, int position, final DiscoverVariantPositionData list,
                             final int groupIndexA, final int groupIndexB) {
+        final String referenceId = iterator.getReferenceId(referenceIndex).toString();
+        if (batchSize <= 1) {
+            writeSite(referenceId, referenceIndex, position, sampleCounts, list,
+                    predictSite(sampleCounts, referenceId, position, referenceIndex, list));
+            return;
+        }
+        pendingSites.add(new PendingSite(referenceId, referenceIndex, position, SampleCountInfo.copy(sampleCounts),
+                list.copy()));
+        if (pendingSites.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Predict the genotypes of the sites buffered so far in one batch, and write the sites in the order they
+     * were observed.
+     */
+    private void flush() {
+        if (pendingSites.isEmpty()) {
+            return;
+        }
+        final List<PredictionSite> sites = new ArrayList<PredictionSite>();
+        if (predictor.modelIsLoaded()) {
+            for (final PendingSite pending : pendingSites) {
+                addPredictionSites(sites, pending.sampleCounts, pending.referenceId, pending.position,
+                        pending.referenceIndex, pending.list);
+            }
+        }
+        final List<GenotypePrediction> predictions = predictBatch(sites);
+        int offset = 0;
+        for (final PendingSite pending : pendingSites) {
+            final int numSites = predictor.modelIsLoaded() ? pending.sampleCounts.length : 0;
+            writeSite(pending.referenceId, pending.referenceIndex, pending.position, pending.sampleCounts, pending.list,
+                    predictions.subList(offset, offset + numSites));
+            offset += numSites;
+        }
+        pendingSites.clear();
+    }
+
+    private void writeSite(final String currentReferenceId, final int referenceIndex, final int position,
+                           final SampleCountInfo[] sampleCounts, final DiscoverVariantPositionData list,
+                           final List<GenotypePrediction> predictions) {
 
         int positionFormat = position + 1;  // report  1-based position
         fillVariantCountArrays(sampleCounts);
 
-        CharSequence currentReferenceId = iterator.getReferenceId(referenceIndex);
         statsWriter.setId(".");
         statsWriter.setInfo(biomartFieldIndex,
                 String.format("%s:%d:%d", currentReferenceId, positionFormat,
@@ -236,7 +306,7 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
        if (position == location || position - 1 == location || position + 1 == location) {
            System.out.println("STOP");
        } */
-        predictGenotypes(sampleCounts, currentReferenceId.toString(), position, referenceIndex, list);
+        setModelGenotypes(predictions);
         writeGenotypes(statsWriter, sampleCounts, positionFormat);
 
         writeZygozity(sampleCounts);
@@ -276,17 +346,57 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
 
     String modelGenotypes[];
 
+    /**
+     * Predict the genotype of each sample at a site and store the predictions in the writer.
+     */
     protected void predictGenotypes(SampleCountInfo[] sampleCounts, String referenceId, int position, int referenceIndex, DiscoverVariantPositionData list) {
-        if (!predictor.modelIsLoaded()) {
+        setModelGenotypes(predictSite(sampleCounts, referenceId, position, referenceIndex, list));
+    }
+
+    private List<GenotypePrediction> predictSite(SampleCountInfo[] sampleCounts, String referenceId, int position,
+                                                 int referenceIndex, DiscoverVariantPositionData list) {
+        final List<PredictionSite> sites = new ArrayList<PredictionSite>(sampleCounts.length);
+        if (predictor.modelIsLoaded()) {
+            addPredictionSites(sites, sampleCounts, referenceId, position, referenceIndex, list);
+        }
+        return predictBatch(sites);
+    }
+
+    /**
+     * Add one prediction site per sample.
+     */
+    private void addPredictionSites(List<PredictionSite> sites, SampleCountInfo[] sampleCounts, String referenceId,
+                                    int position, int referenceIndex, DiscoverVariantPositionData list) {
+        for (int sampleIndex = 0; sampleIndex < sampleCounts.length; sampleIndex++) {
+            sites.add(new PredictionSite(genome, referenceId, sampleCounts, referenceIndex, position, list,
+                    new int[]{sampleIndex}));
+        }
+    }
+
+    private List<GenotypePrediction> predictBatch(List<PredictionSite> sites) {
+        if (sites.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // the predictor is shared by the formats of all the regions processed in parallel:
+        synchronized (predictor) {
+            return predictor.predictBatch(sites);
+        }
+    }
+
+    /**
+     * Store the genotypes predicted for each sample at a site. No genotype is stored when the list of
+     * predictions is empty because the model is not loaded.
+     */
+    private void setModelGenotypes(List<GenotypePrediction> predictions) {
+        if (predictions.isEmpty()) {
             Arrays.fill(modelGenotypes, null);
             Arrays.fill(modelProbabilities, 0);
             return;
         }
         int sampleIndex = 0;
-        for (SampleCountInfo sample : sampleCounts) {
-            predictor.predict(genome, referenceId, sampleCounts, referenceIndex, position, list, new int[]{sampleIndex});
-            modelGenotypes[sampleIndex] = predictor.getCalledGenotype();
-            modelProbabilities[sampleIndex] = predictor.getProbabilityOfCalledGenotype();
+        for (GenotypePrediction prediction : predictions) {
+            modelGenotypes[sampleIndex] = prediction.getCalledGenotype();
+            modelProbabilities[sampleIndex] = prediction.getProbabilityOfCalledGenotype();
             statsWriter.setSampleValue(modelCallIndex, sampleIndex, modelGenotypes[sampleIndex]);
             statsWriter.setSampleValue(modelProbabilityIndex, sampleIndex, modelProbabilities[sampleIndex]);
             sampleIndex++;
@@ -537,6 +647,7 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
 
 
     public void close() {
+        flush();
         statsWriter.close();
     }
 
@@ -2,6 +2,7 @@ package org.campagnelab.goby.modes.formats;
 
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 import org.apache.commons.io.FilenameUtils;
@@ -13,6 +14,8 @@ import org.campagnelab.goby.alignments.AlignmentReaderImpl;
 import org.campagnelab.goby.alignments.DefaultAlignmentReaderFactory;
 import org.campagnelab.goby.modes.DiscoverSequenceVariantsMode;
 import org.campagnelab.goby.modes.dsv.DiscoverVariantIterateSortedAlignments;
+import org.campagnelab.goby.predictions.PredictionSite;
+import org.campagnelab.goby.predictions.SomaticPrediction;
 import org.campagnelab.goby.predictions.SomaticPredictor;
 import org.campagnelab.goby.readers.vcf.ColumnType;
 import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
@@ -25,8 +28,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.ServiceLoader;
 
 /**
@@ -68,7 +73,8 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
     public static final DynamicOptionClient doc = new DynamicOptionClient(SomaticVariationOutputFormat.class,
             "model-path:string, path to a neural net model that estimates the probability of somatic variations:${GOBY_HOME}/models/somatic-variation/somatic-1497017665774/bestAUC-ComputationGraph.bin",
             "model-p-mutated-threshold:float, minimum threshold on the model probability mutated to output a site:0.99",
-            "focus-on-varmap:string, path to a varmap file, created with vcf-to-genotype-map, will report only positions in the map:"
+            "focus-on-varmap:string, path to a varmap file, created with vcf-to-genotype-map, will report only positions in the map:",
+            "batch-size:integer, number of candidate sites buffered and predicted together by the model. Use 1 to predict each site as soon as it is observed.:32"
     );
     /**
      * We will store the largest candidate somatic frequency here.
@@ -230,6 +236,7 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
 
         //set optional column vars from doc
         this.modelPThreshold = doc.getFloat("model-p-mutated-threshold");
+        this.batchSize = doc.getInteger("batch-size");
 
 
         //extract prefix and model directory from model path input.
@@ -462,22 +469,130 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
     }
 
 
+    /**
+     * A candidate somatic site kept until a batch of sites has been predicted. The counts and bases are copies,
+     * because the iterator reuses its instances for the next positions.
+     */
+    private static class PendingSite {
+        final RandomAccessSequenceInterface genome;
+        final String referenceId;
+        final int referenceIndex;
+        final int position;
+        final SampleCountInfo[] sampleCounts;
+        final DiscoverVariantPositionData list;
+
+        PendingSite(final RandomAccessSequenceInterface genome, final String referenceId, final int referenceIndex,
+                    final int position, final SampleCountInfo[] sampleCounts, final DiscoverVariantPositionData list) {
+            this.genome = genome;
+            this.referenceId = referenceId;
+            this.referenceIndex = referenceIndex;
+            this.position = position;
+            this.sampleCounts = sampleCounts;
+            this.list = list;
+        }
+    }
+
+    private int batchSize = 1;
+    private final ObjectArrayList<PendingSite> pendingSites = new ObjectArrayList<PendingSite>();
+
     public void writeRecord(final DiscoverVariantIterateSortedAlignments iterator, final SampleCountInfo[] sampleCounts,
                             final int referenceIndex, int position, final DiscoverVariantPositionData list,
                             final int groupIndexA, final int groupIndexB) {
 
         updateSampleProportions();
-        this.pos = position;
-        this.referenceIndex = referenceIndex;
-        position = position + 1; // report  1-based position
-        genotypeFormatter.fillVariantCountArrays(sampleCounts);
-
-        currentReferenceId = iterator.getReferenceId(referenceIndex);
+        final String referenceId = iterator.getReferenceId(referenceIndex).toString();
 
-        if (varmapHelper != null && varmapHelper.getVariant(currentReferenceId.toString(), position) == null) {
+        if (varmapHelper != null && varmapHelper.getVariant(referenceId, position + 1) == null) {
             // skip positions not in the varmap when a focus varmap is provided.
             return;
         }
+        allocateIsSomaticCandidate(sampleCounts);
+
+        // Do not write record if alleleSet is empty, IGV VCF track cannot handle that.
+        if (isPossibleSomaticVariation(sampleCounts)) {
+            if (batchSize <= 1) {
+                final PendingSite site = new PendingSite(iterator.getGenome(), referenceId, referenceIndex, position,
+                        sampleCounts, list);
+                final List<PredictionSite> predictionSites = new ArrayList<PredictionSite>();
+                addPredictionSites(predictionSites, site);
+                writeSite(site, predictBatch(predictionSites));
+            } else {
+                pendingSites.add(new PendingSite(iterator.getGenome(), referenceId, referenceIndex, position,
+                        SampleCountInfo.copy(sampleCounts), list.copy()));
+                if (pendingSites.size() >= batchSize) {
+                    flush();
+                }
+            }
+        }
+
+        updateSampleCumulativeCounts(sampleCounts);
+    }
+
+    /**
+     * Predict the candidate sites buffered so far in one batch, and write the sites in the order they were observed.
+     */
+    private void flush() {
+        if (pendingSites.isEmpty()) {
+            return;
+        }
+        final List<PredictionSite> predictionSites = new ArrayList<PredictionSite>();
+        for (final PendingSite site : pendingSites) {
+            addPredictionSites(predictionSites, site);
+        }
+        final List<SomaticPrediction> predictions = predictBatch(predictionSites);
+        int offset = 0;
+        for (final PendingSite site : pendingSites) {
+            final int numPredictions = numPredictionSites();
+            writeSite(site, predictions.subList(offset, offset + numPredictions));
+            offset += numPredictions;
+        }
+        pendingSites.clear();
+    }
+
+    private List<SomaticPrediction> predictBatch(final List<PredictionSite> predictionSites) {
+        assert predictor.modelIsLoaded() : "model must be found with path: " + modelPath + " prefix: " + modelPrefix;
+        // the predictor is shared by the formats of all the regions processed in parallel:
+        synchronized (predictor) {
+            return predictor.predictBatch(predictionSites);
+        }
+    }
+
+    /**
+     * Add the sites to predict for a candidate site: one per pair of somatic and germline sample.
+     */
+    private void addPredictionSites(final List<PredictionSite> predictionSites, final PendingSite site) {
+        for (int somaticSampleIndex : somaticSampleIndices) {
+
+            int fatherSampleIndex = sample2FatherSampleIndex[somaticSampleIndex];
+            int motherSampleIndex = sample2MotherSampleIndex[somaticSampleIndex];
+            int germlineSampleIndices[] = sample2GermlineSampleIndices[somaticSampleIndex];
+            for (int germlineSampleIndex : germlineSampleIndices) {
+                //sampleIdxs convention: [father, mother, somatic, germline]. some of these fields will be -1
+                // when the model only uses some of the samples
+                int[] readerIdxs = new int[]{fatherSampleIndex, motherSampleIndex, somaticSampleIndex, germlineSampleIndex};
+                predictionSites.add(new PredictionSite(site.genome, site.referenceId, site.sampleCounts,
+                        site.referenceIndex, site.position, site.list, readerIdxs));
+            }
+        }
+    }
+
+    private int numPredictionSites() {
+        int count = 0;
+        for (int somaticSampleIndex : somaticSampleIndices) {
+            count += sample2GermlineSampleIndices[somaticSampleIndex].length;
+        }
+        return count;
+    }
+
+    private void writeSite(final PendingSite site, final List<SomaticPrediction> predictions) {
+        final SampleCountInfo[] sampleCounts = site.sampleCounts;
+        this.pos = site.position;
+        this.referenceIndex = site.referenceIndex;
+        final int position = site.position + 1; // report  1-based position
+        genotypeFormatter.fillVariantCountArrays(sampleCounts);
+
+        currentReferenceId = site.referenceId;
+
         statsWriter.setId(".");
         statsWriter.setInfo(igvFieldIndex,
                 String.format("%s:%d-%d", currentReferenceId, position,
@@ -487,23 +602,16 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
         statsWriter.setPosition(position);
 
         allocateIsSomaticCandidate(sampleCounts);
+        estimateSomaticFrequencies(sampleCounts);
+        estimatePriority(sampleCounts);
+        applyPredictions(predictions);
 
-        // Do not write record if alleleSet is empty, IGV VCF track cannot handle that.
-        if (isPossibleSomaticVariation(sampleCounts)) {
-            estimateSomaticFrequencies(sampleCounts);
-            estimatePriority(sampleCounts);
-            estimateProbability(iterator, sampleCounts, list);
-
-            if (isSomaticCandidate()) {
-                genotypeFormatter.predictGenotypes(sampleCounts, currentReferenceId.toString(), position, referenceIndex, list);
-                genotypeFormatter.writeGenotypes(statsWriter, sampleCounts, position);
-
-                statsWriter.writeRecord();
-            }
+        if (isSomaticCandidate()) {
+            genotypeFormatter.predictGenotypes(sampleCounts, currentReferenceId.toString(), position, referenceIndex, site.list);
+            genotypeFormatter.writeGenotypes(statsWriter, sampleCounts, position);
 
+            statsWriter.writeRecord();
         }
-
-        updateSampleCumulativeCounts(sampleCounts);
     }
 
 
@@ -559,7 +667,7 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
 
 
     public void close() {
-
+        flush();
         statsWriter.close();
     }
 
@@ -585,37 +693,26 @@ public class SomaticVariationOutputFormat implements SequenceVariationOutputForm
         this.sample2MotherSampleIndex = sample2MotherSampleIndex;
     }
 
-    private void estimateProbability(DiscoverVariantIterateSortedAlignments iterator, SampleCountInfo[] sampleCounts, DiscoverVariantPositionData list) {
-
+    /**
+     * Store the predictions made for a candidate site, in the order of the sites added by addPredictionSites.
+     */
+    private void applyPredictions(final List<SomaticPrediction> predictions) {
+        final Iterator<SomaticPrediction> iterator = predictions.iterator();
         for (int somaticSampleIndex : somaticSampleIndices) {
-
-            int fatherSampleIndex = sample2FatherSampleIndex[somaticSampleIndex];
-            int motherSampleIndex = sample2MotherSampleIndex[somaticSampleIndex];
             int germlineSampleIndices[] = sample2GermlineSampleIndices[somaticSampleIndex];
             for (int germlineSampleIndex : germlineSampleIndices) {
-                assert predictor.modelIsLoaded() : "model must be found with path: " + modelPath + " prefix: " + modelPrefix;
-
-                //sampleIdxs convention: [father, mother, somatic, germline]. some of these fields will be -1
-                // when the model only uses some of the samples
-                int[] readerIdxs= new int[]{fatherSampleIndex, motherSampleIndex, somaticSampleIndex, germlineSampleIndex};
-
-                predictor.predict(iterator.getGenome(),
-                        iterator.getReferenceId(referenceIndex).toString(),
-                        sampleCounts,
-                        referenceIndex, pos,
-                        list,
-                        readerIdxs);
+                final SomaticPrediction prediction = iterator.next();
 
-                double probabilityIsMutated = predictor.probabilityIsMutated();
+                double probabilityIsMutated = prediction.probabilityIsMutated();
                 statsWriter.setInfo(genotypeSomaticProbability[somaticSampleIndex], probabilityIsMutated);
                 String somaticAllele = ".";
-                if (predictor.hasSomaticAllele()) {
-                    somaticAllele = predictor.getSomaticAllele();
+                if (prediction.hasSomaticAllele()) {
+                    somaticAllele = prediction.getSomaticAllele();
                 }
                 statsWriter.setInfo(candidateSomaticAlleleIndex[somaticSampleIndex], somaticAllele);
-                statsWriter.setInfo(genotypeSomaticProbabilityUnMut[somaticSampleIndex], predictor.probabilityIsNotMutated());
-                if (predictor.hasSomaticFrequency()) {
-                    statsWriter.setInfo(candidateFrequencyIndex[somaticSampleIndex], predictor.getSomaticFrequency() * 100);
+                statsWriter.setInfo(genotypeSomaticProbabilityUnMut[somaticSampleIndex], prediction.probabilityIsNotMutated());
+                if (prediction.hasSomaticFrequency()) {
+                    statsWriter.setInfo(candidateFrequencyIndex[somaticSampleIndex], prediction.getSomaticFrequency() * 100);
                 }
                 // do not write the site if it is predicted not somatic.
                 if (probabilityIsMutated < modelPThreshold) {
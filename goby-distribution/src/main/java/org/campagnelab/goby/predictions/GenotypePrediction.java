@@ -0,0 +1,37 @@
+package org.campagnelab.goby.predictions;
+
+/**
+ * The result of a genotype prediction for one sample at one site. Unlike a GenotypePredictor, which holds the result
+ * of its last call to predict, instances of this class are immutable and can be kept while other sites are predicted.
+ */
+public class GenotypePrediction {
+    private final String calledGenotype;
+    private final double probabilityOfCalledGenotype;
+
+    /**
+     * @param calledGenotype              the genotype called by the model, e.g., A/C.
+     * @param probabilityOfCalledGenotype the probability of the called genotype.
+     */
+    public GenotypePrediction(final String calledGenotype, final double probabilityOfCalledGenotype) {
+        this.calledGenotype = calledGenotype;
+        this.probabilityOfCalledGenotype = probabilityOfCalledGenotype;
+    }
+
+    /**
+     * Capture the result of the last call to predict on a genotype predictor.
+     *
+     * @param predictor a predictor whose predict method was just called.
+     * @return the prediction for the site.
+     */
+    public static GenotypePrediction of(final GenotypePredictor predictor) {
+        return new GenotypePrediction(predictor.getCalledGenotype(), predictor.getProbabilityOfCalledGenotype());
+    }
+
+    public String getCalledGenotype() {
+        return calledGenotype;
+    }
+
+    public double getProbabilityOfCalledGenotype() {
+        return probabilityOfCalledGenotype;
+    }
+}
@@ -5,6 +5,8 @@ import org.campagnelab.goby.algorithmic.dsv.SampleCountInfo;
 import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -50,4 +52,21 @@ public interface GenotypePredictor extends Predictor {
      * @return
      */
     Properties getModelProperties();
+
+    /**
+     * Predict a batch of sites. Each site describes one sample (readerIdxs has one element). The default
+     * implementation predicts each site in turn with the single site API. Implementations backed by a neural net
+     * should override this method to score all the sites in one pass through the model.
+     *
+     * @param sites the sites to predict.
+     * @return one prediction per site, in the order of the sites.
+     */
+    default List<GenotypePrediction> predictBatch(final List<PredictionSite> sites) {
+        final List<GenotypePrediction> predictions = new ArrayList<GenotypePrediction>(sites.size());
+        for (final PredictionSite site : sites) {
+            site.predictWith(this);
+            predictions.add(GenotypePrediction.of(this));
+        }
+        return predictions;
+    }
 }
@@ -0,0 +1,47 @@
+package org.campagnelab.goby.predictions;
+
+import org.campagnelab.goby.algorithmic.dsv.DiscoverVariantPositionData;
+import org.campagnelab.goby.algorithmic.dsv.SampleCountInfo;
+import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
+
+/**
+ * The arguments of a single call to {@link Predictor#predict}, kept together so that several sites can be submitted
+ * to a predictor in one batch. The sampleCounts and list provided to a site must not be modified or reused until the
+ * site has been predicted.
+ */
+public class PredictionSite {
+    public final RandomAccessSequenceInterface genome;
+    public final String referenceId;
+    public final SampleCountInfo[] sampleCounts;
+    public final int referenceIndex;
+    public final int pos;
+    public final DiscoverVariantPositionData list;
+    public final int[] readerIdxs;
+
+    /**
+     * Describe a site to predict. See {@link Predictor#predict} for the meaning of the arguments.
+     */
+    public PredictionSite(final RandomAccessSequenceInterface genome,
+                          final String referenceId,
+                          final SampleCountInfo[] sampleCounts,
+                          final int referenceIndex, final int pos,
+                          final DiscoverVariantPositionData list,
+                          final int[] readerIdxs) {
+        this.genome = genome;
+        this.referenceId = referenceId;
+        this.sampleCounts = sampleCounts;
+        this.referenceIndex = referenceIndex;
+        this.pos = pos;
+        this.list = list;
+        this.readerIdxs = readerIdxs;
+    }
+
+    /**
+     * Predict this site with the single site API of a predictor.
+     *
+     * @param predictor the predictor to call.
+     */
+    public void predictWith(final Predictor predictor) {
+        predictor.predict(genome, referenceId, sampleCounts, referenceIndex, pos, list, readerIdxs);
+    }
+}
@@ -50,9 +50,13 @@ public class ProtoHelper {
         return defaultGenomicContext;
     }
 
-    static private MutableString genomicContext = new MutableString();
-
-    private static BaseToStringHelper baseConversion = new BaseToStringHelper();
+    /**
+     * Converts reference bases to strings. Each thread has its own helper, since the helper caches the strings of
+     * unusual bases, and sites are converted concurrently when discover-sequence-variants runs with
+     * --parallel-regions.
+     */
+    private static final ThreadLocal<BaseToStringHelper> baseConversion =
+            ThreadLocal.withInitial(BaseToStringHelper::new);
 
     /**
      * Convert to proto with a 21 bp genomic context length.
@@ -316,7 +320,9 @@ public class ProtoHelper {
             sampleBuilder.setFormattedCounts(sampleCounts[sampleIndex].toString());
             builder.addSamples(sampleBuilder.build());
         }
-        baseProgressLogger.update(list.size());
+        synchronized (baseProgressLogger) {
+            baseProgressLogger.update(list.size());
+        }
         list.clear();
         return builder.build();
     }
@@ -326,7 +332,7 @@ public class ProtoHelper {
     private static void transferGenomicContext(int contextLength, RandomAccessSequenceInterface genome, int genomeReferenceIndex,
                                                int position, DiscoverVariantPositionData list, BaseInformationRecords.BaseInformation.Builder builder, SampleCountInfo[] sampleCounts) {
         // store 10 bases of genomic context around the site:
-        genomicContext.setLength(0);
+        final MutableString genomicContext = new MutableString(contextLength);
         int referenceSequenceLength = genome.getLength(genomeReferenceIndex);
         if (referenceSequenceLength <= 0) {
             builder.setGenomicSequenceContext(defaultGenomicContext(contextLength));
@@ -335,21 +341,24 @@ public class ProtoHelper {
             int cl = (contextLength - 1) / 2;
             final int genomicStart = Math.max(position - cl, 0);
             final int genomicEnd = Math.min(position + (cl + 1), referenceSequenceLength);
-            int index = 0;
-            for (int refPos = genomicStart; refPos < genomicEnd; refPos++) {
-                genomicContext.insert(index++, baseConversion.convert(genome.get(genomeReferenceIndex, refPos)));
+            final int rangeLength = Math.max(genomicEnd - genomicStart, 0);
+            // the context is a few bases, allocate the buffer for each site since several threads may convert sites:
+            final byte[] genomicContextBases = new byte[rangeLength];
+            genome.getRange(genomeReferenceIndex, genomicStart, rangeLength, genomicContextBases);
+            for (int i = 0; i < rangeLength; i++) {
+                genomicContext.append((char) genomicContextBases[i]);
             }
             //pad zeros as needed
             for (int i = genomicStart; i < 0; i++) {
                 genomicContext.insert(0, "N");
             }
-            index = genomicContext.length();
+            int index = genomicContext.length();
             for (int i = genomicEnd; i > referenceSequenceLength; i--) {
                 genomicContext.insert(index++, "N");
             }
             builder.setGenomicSequenceContext(contextLength == genomicContext.length() ? genomicContext.toString() : defaultGenomicContext(contextLength));
         }
-        String refBase = baseConversion.convert(list.getReferenceBase());
+        String refBase = baseConversion.get().convert(list.getReferenceBase());
         if (refBase == null) {
             String referenceGenotype = sampleCounts[0].getReferenceGenotype();
             if (referenceGenotype.length() >= 1) {
@@ -424,11 +433,9 @@ public class ProtoHelper {
         }
     }
 
-    static Int2IntMap freqMap = new Int2IntAVLTreeMap();
-
     public static List<BaseInformationRecords.NumberWithFrequency> compressFreq(List<Integer> numList) {
-        //compress into map
-        freqMap.clear();
+        //compress into map, local to the call since sites may be converted by several threads:
+        final Int2IntMap freqMap = new Int2IntAVLTreeMap();
         for (int num : numList) {
             int freq = freqMap.getOrDefault(num, 0);
             freqMap.put(num, freq + 1);
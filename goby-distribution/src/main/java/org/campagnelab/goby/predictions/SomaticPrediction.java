@@ -0,0 +1,66 @@
+package org.campagnelab.goby.predictions;
+
+/**
+ * The result of a somatic prediction for one site. Unlike a SomaticPredictor, which holds the result of its last
+ * call to predict, instances of this class are immutable and can be kept while other sites are predicted.
+ */
+public class SomaticPrediction {
+    private final double probabilityIsMutated;
+    private final double probabilityIsNotMutated;
+    private final boolean hasSomaticFrequency;
+    private final float somaticFrequency;
+    private final String somaticAllele;
+
+    /**
+     * @param probabilityIsMutated    probability that the site has a somatic variation.
+     * @param probabilityIsNotMutated probability that the site does not have a somatic variation.
+     * @param hasSomaticFrequency     whether the model estimated the frequency of the somatic allele.
+     * @param somaticFrequency        frequency of the somatic allele, ignored when hasSomaticFrequency is false.
+     * @param somaticAllele           the somatic allele, or null when the model does not call one.
+     */
+    public SomaticPrediction(final double probabilityIsMutated, final double probabilityIsNotMutated,
+                             final boolean hasSomaticFrequency, final float somaticFrequency,
+                             final String somaticAllele) {
+        this.probabilityIsMutated = probabilityIsMutated;
+        this.probabilityIsNotMutated = probabilityIsNotMutated;
+        this.hasSomaticFrequency = hasSomaticFrequency;
+        this.somaticFrequency = somaticFrequency;
+        this.somaticAllele = somaticAllele;
+    }
+
+    /**
+     * Capture the result of the last call to predict on a somatic predictor.
+     *
+     * @param predictor a predictor whose predict method was just called.
+     * @return the prediction for the site.
+     */
+    public static SomaticPrediction of(final SomaticPredictor predictor) {
+        return new SomaticPrediction(predictor.probabilityIsMutated(), predictor.probabilityIsNotMutated(),
+                predictor.hasSomaticFrequency(), predictor.hasSomaticFrequency() ? predictor.getSomaticFrequency() : 0,
+                predictor.hasSomaticAllele() ? predictor.getSomaticAllele() : null);
+    }
+
+    public double probabilityIsMutated() {
+        return probabilityIsMutated;
+    }
+
+    public double probabilityIsNotMutated() {
+        return probabilityIsNotMutated;
+    }
+
+    public boolean hasSomaticFrequency() {
+        return hasSomaticFrequency;
+    }
+
+    public float getSomaticFrequency() {
+        return somaticFrequency;
+    }
+
+    public boolean hasSomaticAllele() {
+        return somaticAllele != null;
+    }
+
+    public String getSomaticAllele() {
+        return somaticAllele;
+    }
+}
@@ -4,6 +4,9 @@ import org.campagnelab.goby.algorithmic.dsv.DiscoverVariantPositionData;
 import org.campagnelab.goby.algorithmic.dsv.SampleCountInfo;
 import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This interface defines the contract of the somatic predictor implemented in the variationanalysis project.
  * Created by fac2003 on 11/14/16.
@@ -21,4 +24,21 @@ public interface SomaticPredictor extends Predictor {
     boolean hasSomaticAllele();
 
     String getSomaticAllele();
+
+    /**
+     * Predict a batch of sites. The default implementation predicts each site in turn with the single site API.
+     * Implementations backed by a neural net should override this method to score all the sites in one pass
+     * through the model.
+     *
+     * @param sites the sites to predict.
+     * @return one prediction per site, in the order of the sites.
+     */
+    default List<SomaticPrediction> predictBatch(final List<PredictionSite> sites) {
+        final List<SomaticPrediction> predictions = new ArrayList<SomaticPrediction>(sites.size());
+        for (final PredictionSite site : sites) {
+            site.predictWith(this);
+            predictions.add(SomaticPrediction.of(this));
+        }
+        return predictions;
+    }
 }
@@ -1,6 +1,7 @@
 package org.campagnelab.goby.readers.sam;
 
 import org.campagnelab.goby.alignments.perms.ReadNameToIndex;
+import org.campagnelab.goby.alignments.perms.ReadNameToIndexInterface;
 import org.campagnelab.goby.reads.QualityEncoding;
 import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
 
@@ -35,5 +36,5 @@ public class ConversionConfig {
         nameToQueryIndices = new ReadNameToIndex("ignore-this-for-now");
     }
 
-    public ReadNameToIndex nameToQueryIndices;
+    public ReadNameToIndexInterface nameToQueryIndices;
 }
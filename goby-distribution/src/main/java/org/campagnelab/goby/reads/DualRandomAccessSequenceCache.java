@@ -69,6 +69,11 @@ public class DualRandomAccessSequenceCache implements RandomAccessSequenceInterf
         delegate.getRange(referenceIndex, position, length, bases);
     }
 
+    @Override
+    public void getRange(int referenceIndex, int position, int length, byte[] dest) {
+        delegate.getRange(referenceIndex, position, length, dest);
+    }
+
     @Override
     public int getReferenceIndex(String referenceId) {
         return delegate.getReferenceIndex(referenceId);
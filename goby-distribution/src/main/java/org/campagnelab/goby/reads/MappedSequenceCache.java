@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2009-2016 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.reads;
+
+import it.unimi.dsi.bits.LongArrayBitVector;
+import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A genome stored in a single file that is memory-mapped read-only. Bases are packed two bits per base with the
+ * encoding of {@link RandomAccessSequenceCache}, runs of non-ACGT bases are stored as sorted [start, end) intervals,
+ * and a table stores the name and length of each sequence. Since nothing is deserialized, opening the cache is
+ * immediate and the pages of the genome are shared through the page cache by all the processes that map the same
+ * file.
+ * <p/>
+ * The file is named basename.bases2 and has the following layout (big-endian):
+ * <pre>
+ * header:   int magic, int version, int numSequences, int checksum of the sequence names and lengths
+ * table:    for each sequence, long dataOffset, long nameOffset, int length, int numNRuns, int nameLength, int reserved
+ * names:    UTF-8 bytes of each sequence name
+ * data:     for each sequence, numNRuns pairs of int (start, end), then (length+3)/4 bytes of packed bases
+ * </pre>
+ * The file is only used when it is at least as recent as basename.bases, and when its sequence lengths and checksum
+ * match those of basename.sizes and basename.names, so that a genome rebuilt without the mapped layout is not
+ * shadowed by the mapped layout of a previous build.
+ *
+ * @author Fabien Campagne
+ */
+public class MappedSequenceCache implements RandomAccessSequenceInterface {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedSequenceCache.class);
+    /**
+     * Extension of the mapped genome file.
+     */
+    public static final String MAPPED_EXTENSION = ".bases2";
+    private static final int MAGIC = 0x47424332; // GBC2
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int TABLE_RECORD_SIZE = 32;
+    /**
+     * Largest region mapped at once. Sequences are grouped into regions no larger than this, because a single mapping
+     * cannot exceed 2GB.
+     */
+    private static final long MAX_REGION_SIZE = Integer.MAX_VALUE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Object2IntMap<String> referenceNameMap;
+    private final String[] names;
+    private final int[] lengths;
+    private final int[] numNRuns;
+    /**
+     * The mapped region holding the data of each sequence.
+     */
+    private final ByteBuffer[] regions;
+    /**
+     * Offset of the N-runs of each sequence, in its region. Bases follow the runs.
+     */
+    private final int[] nRunsOffsets;
+    private final int[] basesOffsets;
+
+    private MappedSequenceCache(final int numSequences) {
+        referenceNameMap = new Object2IntOpenHashMap<String>(numSequences);
+        referenceNameMap.defaultReturnValue(-1);
+        names = new String[numSequences];
+        lengths = new int[numSequences];
+        numNRuns = new int[numSequences];
+        regions = new ByteBuffer[numSequences];
+        nRunsOffsets = new int[numSequences];
+        basesOffsets = new int[numSequences];
+    }
+
+    /**
+     * Determine if a mapped genome exists for this basename, and describes the same genome as the other files of
+     * the cache, when they exist.
+     *
+     * @param basename basename of the genome.
+     * @return True when basename.bases2 exists and is not older than basename.bases, and its sequence lengths and
+     *         checksum match basename.sizes and basename.names.
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean canMap(final String basename) {
+        final File file = new File(basename + MAPPED_EXTENSION);
+        if (!file.exists()) {
+            return false;
+        }
+        final File basesFile = new File(basename + ".bases");
+        if (basesFile.exists() && file.lastModified() < basesFile.lastModified()) {
+            LOG.warn(String.format("Ignoring %s, which is older than %s", file.getPath(), basesFile.getPath()));
+            return false;
+        }
+        final File sizesFile = new File(basename + ".sizes");
+        final File namesFile = new File(basename + ".names");
+        if (!sizesFile.exists() || !namesFile.exists()) {
+            // only the mapped layout was distributed, there is nothing to check it against.
+            return true;
+        }
+        try {
+            final IntList sizes = (IntList) BinIO.loadObject(sizesFile);
+            final Object2IntMap<String> referenceNameMap = (Object2IntMap<String>) BinIO.loadObject(namesFile);
+            final String[] names = new String[sizes.size()];
+            for (final Object2IntMap.Entry<String> entry : referenceNameMap.object2IntEntrySet()) {
+                final int index = entry.getIntValue();
+                if (index < 0 || index >= names.length) {
+                    LOG.warn(String.format("Ignoring %s, the names of the cache do not match its sizes", file.getPath()));
+                    return false;
+                }
+                names[index] = entry.getKey();
+            }
+            if (!matches(file, names, sizes)) {
+                LOG.warn(String.format("Ignoring %s, its sequences do not match %s and %s", file.getPath(),
+                        sizesFile.getPath(), namesFile.getPath()));
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Ignoring " + file.getPath() + ", the cache could not be checked", e);
+            return false;
+        } catch (ClassNotFoundException e) {
+            LOG.warn("Ignoring " + file.getPath() + ", the cache could not be checked", e);
+            return false;
+        }
+    }
+
+    /**
+     * Check the header and length table of a mapped genome against the sequences of the serialized cache.
+     */
+    private static boolean matches(final File file, final String[] names, final IntList sizes) throws IOException {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            final int numSequences = sizes.size();
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readInt() != numSequences
+                    || input.readInt() != checksum(names, sizes)) {
+                return false;
+            }
+            for (int i = 0; i < numSequences; i++) {
+                // skip dataOffset and nameOffset:
+                input.readLong();
+                input.readLong();
+                if (input.readInt() != sizes.getInt(i)) {
+                    return false;
+                }
+                // skip numNRuns, nameLength and reserved:
+                input.readInt();
+                input.readInt();
+                input.readInt();
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Checksum of the name and length of each sequence, in index order.
+     */
+    static int checksum(final String[] names, final IntList sizes) {
+        final CRC32 crc32 = new CRC32();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                crc32.update(names[i].getBytes(UTF8));
+            }
+            final int length = sizes.getInt(i);
+            crc32.update(length >>> 24);
+            crc32.update(length >>> 16);
+            crc32.update(length >>> 8);
+            crc32.update(length);
+        }
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * Memory-map the genome written for this basename.
+     *
+     * @param basename basename of the genome.
+     * @return the mapped genome.
+     * @throws IOException if the file cannot be mapped or does not have the expected format.
+     */
+    public static MappedSequenceCache map(final String basename) throws IOException {
+        final File file = new File(basename + MAPPED_EXTENSION);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Truncated mapped genome " + file.getPath());
+            }
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) > VERSION) {
+                throw new IOException("Unsupported mapped genome format " + file.getPath());
+            }
+            final int numSequences = header.getInt(8);
+            final MappedSequenceCache cache = new MappedSequenceCache(numSequences);
+            final ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                    (long) TABLE_RECORD_SIZE * numSequences);
+            final long[] dataOffsets = new long[numSequences + 1];
+            final long[] nameOffsets = new long[numSequences];
+            final int[] nameLengths = new int[numSequences];
+            for (int i = 0; i < numSequences; i++) {
+                final int record = i * TABLE_RECORD_SIZE;
+                dataOffsets[i] = table.getLong(record);
+                nameOffsets[i] = table.getLong(record + 8);
+                cache.lengths[i] = table.getInt(record + 16);
+                cache.numNRuns[i] = table.getInt(record + 20);
+                nameLengths[i] = table.getInt(record + 24);
+            }
+            dataOffsets[numSequences] = channel.size();
+            if (numSequences > 0) {
+                final long namesStart = nameOffsets[0];
+                final ByteBuffer namesBuffer = channel.map(FileChannel.MapMode.READ_ONLY, namesStart,
+                        dataOffsets[0] - namesStart);
+                for (int i = 0; i < numSequences; i++) {
+                    final byte[] bytes = new byte[nameLengths[i]];
+                    namesBuffer.position((int) (nameOffsets[i] - namesStart));
+                    namesBuffer.get(bytes);
+                    cache.names[i] = new String(bytes, UTF8);
+                    cache.referenceNameMap.put(cache.names[i], i);
+                }
+            }
+            // group consecutive sequences in as few mappings as possible:
+            int first = 0;
+            while (first < numSequences) {
+                int last = first;
+                while (last + 1 < numSequences && dataOffsets[last + 2] - dataOffsets[first] <= MAX_REGION_SIZE) {
+                    last++;
+                }
+                final long regionSize = dataOffsets[last + 1] - dataOffsets[first];
+                if (regionSize > MAX_REGION_SIZE) {
+                    throw new IOException("Sequence " + cache.names[first] + " is too large to be mapped.");
+                }
+                final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, dataOffsets[first], regionSize);
+                for (int i = first; i <= last; i++) {
+                    cache.regions[i] = region;
+                    cache.nRunsOffsets[i] = (int) (dataOffsets[i] - dataOffsets[first]);
+                    cache.basesOffsets[i] = cache.nRunsOffsets[i] + 8 * cache.numNRuns[i];
+                }
+                first = last + 1;
+            }
+            LOG.debug(String.format("Mapped %d sequences from %s", numSequences, file.getPath()));
+            return cache;
+        } finally {
+            // the mappings remain valid after the channel is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Write a mapped genome.
+     *
+     * @param basename       basename of the genome.
+     * @param names          name of each sequence, in index order.
+     * @param sizes          number of bases in each sequence.
+     * @param compressedData bases of each sequence, packed two bits per base.
+     * @param ignoreLists    for each sequence, bits set at the positions of non-ACGT bases.
+     * @throws IOException if the file cannot be written.
+     */
+    static void write(final String basename, final String[] names, final IntList sizes,
+                      final ObjectArrayList<byte[]> compressedData,
+                      final ObjectArrayList<LongArrayBitVector> ignoreLists) throws IOException {
+        final int numSequences = names.length;
+        final byte[][] nameBytes = new byte[numSequences][];
+        final IntList[] nRuns = new IntList[numSequences];
+        long namesSize = 0;
+        for (int i = 0; i < numSequences; i++) {
+            nameBytes[i] = names[i].getBytes(UTF8);
+            namesSize += nameBytes[i].length;
+            nRuns[i] = nRuns(ignoreLists.get(i), sizes.getInt(i));
+        }
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(basename + MAPPED_EXTENSION), 1 << 20));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(numSequences);
+            output.writeInt(checksum(names, sizes));
+            long nameOffset = HEADER_SIZE + (long) TABLE_RECORD_SIZE * numSequences;
+            long dataOffset = nameOffset + namesSize;
+            for (int i = 0; i < numSequences; i++) {
+                final int length = sizes.getInt(i);
+                final int numRuns = nRuns[i].size() / 2;
+                output.writeLong(dataOffset);
+                output.writeLong(nameOffset);
+                output.writeInt(length);
+                output.writeInt(numRuns);
+                output.writeInt(nameBytes[i].length);
+                output.writeInt(0);
+                nameOffset += nameBytes[i].length;
+                dataOffset += 8L * numRuns + packedSize(length);
+            }
+            for (final byte[] bytes : nameBytes) {
+                output.write(bytes);
+            }
+            for (int i = 0; i < numSequences; i++) {
+                for (final int bound : nRuns[i]) {
+                    output.writeInt(bound);
+                }
+                final byte[] bases = compressedData.get(i);
+                final int packedSize = packedSize(sizes.getInt(i));
+                output.write(bases, 0, Math.min(packedSize, bases.length));
+                for (int padding = bases.length; padding < packedSize; padding++) {
+                    output.writeByte(0);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    private static int packedSize(final int length) {
+        return (int) ((length + 3L) / 4);
+    }
+
+    /**
+     * Convert an ignore list to a list of [start, end) intervals.
+     */
+    private static IntList nRuns(final LongArrayBitVector ignoreList, final int length) {
+        final IntList bounds = new IntArrayList();
+        final long size = Math.min(ignoreList.length(), length);
+        long start = ignoreList.nextOne(0);
+        while (start != -1 && start < size) {
+            long end = ignoreList.nextZero(start);
+            if (end == -1 || end > size) {
+                end = size;
+            }
+            bounds.add((int) start);
+            bounds.add((int) end);
+            start = end < size ? ignoreList.nextOne(end) : -1;
+        }
+        return bounds;
+    }
+
+    @Override
+    public final char get(final int referenceIndex, final int position) {
+        if (position >= lengths[referenceIndex]) {
+            return 'N';
+        }
+        final ByteBuffer region = regions[referenceIndex];
+        final int b = region.get(basesOffsets[referenceIndex] + (position >> 2));
+        final int c = b >> (6 - ((position & 3) << 1)) & 0x3;
+        switch (c) {
+            case 2 * 1 + 1 * 1:
+                return 'A';
+            case 2 * 0 + 1 * 1:
+                return 'C';
+            case 2 * 1 + 1 * 0:
+                return 'T';
+            default:
+                // N bases are packed as G, only these need to be checked against the N-runs:
+                return isInNRun(referenceIndex, position) ? 'N' : 'G';
+        }
+    }
+
+    /**
+     * Binary search the N-runs of a sequence for the run that contains position.
+     */
+    private boolean isInNRun(final int referenceIndex, final int position) {
+        final ByteBuffer region = regions[referenceIndex];
+        final int runsOffset = nRunsOffsets[referenceIndex];
+        int low = 0;
+        int high = numNRuns[referenceIndex] - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int run = runsOffset + (mid << 3);
+            if (position < region.getInt(run)) {
+                high = mid - 1;
+            } else if (position >= region.getInt(run + 4)) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getLength(final int targetIndex) {
+        return lengths[targetIndex];
+    }
+
+    @Override
+    public void getRange(final int referenceIndex, final int position, final int length, final MutableString bases) {
+        bases.setLength(0);
+        for (int i = position; i < position + length; i++) {
+            bases.append(get(referenceIndex, i));
+        }
+    }
+
+    @Override
+    public void getRange(final int referenceIndex, final int position, final int length, final byte[] dest) {
+        final ByteBuffer region = regions[referenceIndex];
+        final int basesOffset = basesOffsets[referenceIndex];
+        final int end = Math.min(position + length, lengths[referenceIndex]);
+        final byte[] decoded = RandomAccessSequenceCache.DECODED_BYTES;
+        int index = 0;
+        for (int i = position; i < end; i++) {
+            if ((i & 3) == 0 && i + 4 <= end) {
+                final int offset = (region.get(basesOffset + (i >> 2)) & 0xff) << 2;
+                dest[index++] = decoded[offset];
+                dest[index++] = decoded[offset + 1];
+                dest[index++] = decoded[offset + 2];
+                dest[index++] = decoded[offset + 3];
+                i += 3;
+            } else {
+                dest[index++] = decoded[((region.get(basesOffset + (i >> 2)) & 0xff) << 2) + (i & 3)];
+            }
+        }
+        Arrays.fill(dest, index, length, (byte) 'N');
+
+        // overwrite the runs of non-ACGT bases that overlap the range, starting with the first run that ends after
+        // position:
+        final int runsOffset = nRunsOffsets[referenceIndex];
+        int low = 0;
+        int high = numNRuns[referenceIndex];
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (region.getInt(runsOffset + (mid << 3) + 4) <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int run = low; run < numNRuns[referenceIndex]; run++) {
+            final int start = region.getInt(runsOffset + (run << 3));
+            if (start >= end) {
+                break;
+            }
+            final int stop = Math.min(region.getInt(runsOffset + (run << 3) + 4), end);
+            Arrays.fill(dest, Math.max(start, position) - position, stop - position, (byte) 'N');
+        }
+    }
+
+    @Override
+    public int getReferenceIndex(final String referenceId) {
+        return referenceNameMap.getInt(referenceId);
+    }
+
+    @Override
+    public String getReferenceName(final int index) {
+        return names[index];
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+}
@@ -29,6 +29,7 @@ import org.apache.commons.io.LineIterator;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.util.Arrays;
 
 /**
  * Implementation of RandomAccessSequenceInterface backed by a 'samtools faidx' fasta indexed file.
@@ -121,6 +122,22 @@ public class PicardFastaIndexedSequence implements RandomAccessSequenceInterface
      //   System.out.println("got: " + bases);
     }
 
+    @Override
+    public void getRange(final int referenceIndex, final int position, final int length, final byte[] dest) {
+        if (referenceIndex != cachedReferenceIndex || position < cachedStart
+                || position + length > cachedStart + baseBuffer.length()) {
+            getRange(referenceIndex, position, Math.min(lengths[referenceIndex] - position, Math.max(length, 10000)),
+                    baseBuffer);
+        }
+        final char[] chars = baseBuffer.array();
+        final int offset = position - cachedStart;
+        final int available = Math.max(0, Math.min(length, baseBuffer.length() - offset));
+        for (int i = 0; i < available; i++) {
+            dest[i] = (byte) chars[offset + i];
+        }
+        Arrays.fill(dest, available, length, (byte) 'N');
+    }
+
     @Override
     public int getReferenceIndex(final String referenceId) {
         return (int) namesToIndices.getInt(referenceId);
@@ -38,6 +38,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.zip.GZIPInputStream;
 
@@ -62,6 +63,10 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
      */
     private int maxRefIndex;
     private int minRefIndex;
+    /**
+     * When the genome was loaded from its mapped layout, all queries are answered by this cache.
+     */
+    private MappedSequenceCache mapped;
 
     public RandomAccessSequenceCache() {
         super();
@@ -182,8 +187,29 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
         BinIO.storeObject(referenceNameMap, basename + ".names");
     }
 
+    /**
+     * Write this genome in the memory-mapped layout, see {@link MappedSequenceCache}. When this file exists, load
+     * maps it instead of deserializing the other files of the cache.
+     *
+     * @param basename basename of the genome.
+     * @throws IOException if the file cannot be written.
+     */
+    public void saveMapped(final String basename) throws IOException {
+        final String[] names = new String[numberOfSequences()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = getReferenceName(i);
+        }
+        MappedSequenceCache.write(basename, names, sizes, compressedData, referenceIgnoreLists);
+    }
+
     @SuppressWarnings("unchecked")
     public void load(final String basename) throws IOException, ClassNotFoundException {
+        if (MappedSequenceCache.canMap(basename)) {
+            mapped = MappedSequenceCache.map(basename);
+            minRefIndex = 0;
+            maxRefIndex = mapped.size() - 1;
+            return;
+        }
         sizes = (IntList) BinIO.loadObject(basename + ".sizes");
         compressedData = (ObjectArrayList<byte[]>) BinIO.loadObject(basename + ".bases");
         referenceIgnoreLists = (ObjectArrayList<LongArrayBitVector>) BinIO.loadObject(basename + ".ignore");
@@ -228,6 +254,9 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
     }
 
     public boolean canLoad(final String basename) {
+        if (MappedSequenceCache.canMap(basename)) {
+            return true;
+        }
         final String[] extensions = {
                 ".sizes", ".bases", ".ignore", ".names"
         };
@@ -253,24 +282,98 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
 
     @Override
     public void getRange(final int referenceIndex, final int position, final int length, final MutableString bases) {
+        if (mapped != null) {
+            mapped.getRange(referenceIndex, position, length, bases);
+            return;
+        }
         bases.setLength(0);
         for (int i = position; i < position + length; i++) {
             bases.append(get(referenceIndex, i));
         }
     }
 
+    /**
+     * The four bases packed in each possible byte, four entries per byte value.
+     */
+    static final byte[] DECODED_BYTES = new byte[256 * 4];
+
+    static {
+        // codes 0 to 3 as written by encode:
+        final byte[] bases = {'G', 'C', 'T', 'A'};
+        for (int b = 0; b < 256; b++) {
+            for (int k = 0; k < 4; k++) {
+                DECODED_BYTES[b * 4 + k] = bases[b >> (6 - 2 * k) & 0x3];
+            }
+        }
+    }
+
+    @Override
+    public void getRange(final int referenceIndex, final int position, final int length, final byte[] dest) {
+        if (mapped != null) {
+            mapped.getRange(referenceIndex, position, length, dest);
+            return;
+        }
+        final byte[] bytes = compressedData.get(referenceIndex);
+        final int end = Math.min(position + length, Math.min(sizes.getInt(referenceIndex), bytes.length * 4));
+        final int decoded = decodeRange(bytes, position, end, dest);
+        Arrays.fill(dest, decoded, length, (byte) 'N');
+
+        // overwrite the runs of non-ACGT bases:
+        final LongArrayBitVector ignoreList = referenceIgnoreLists.get(referenceIndex);
+        final long ignoreEnd = Math.min(end, ignoreList.length());
+        long start = position < ignoreEnd ? ignoreList.nextOne(position) : -1;
+        while (start != -1 && start < ignoreEnd) {
+            long stop = ignoreList.nextZero(start);
+            if (stop == -1 || stop > ignoreEnd) {
+                stop = ignoreEnd;
+            }
+            Arrays.fill(dest, (int) (start - position), (int) (stop - position), (byte) 'N');
+            start = stop < ignoreEnd ? ignoreList.nextOne(stop) : -1;
+        }
+    }
+
+    /**
+     * Decode packed bases from start (inclusive) to end (exclusive), a whole byte at a time when possible.
+     *
+     * @return the number of bases written to dest.
+     */
+    static int decodeRange(final byte[] bytes, final int start, final int end, final byte[] dest) {
+        int position = start;
+        int index = 0;
+        while (position < end && (position & 3) != 0) {
+            dest[index++] = DECODED_BYTES[((bytes[position >> 2] & 0xff) << 2) + (position & 3)];
+            position++;
+        }
+        while (position + 4 <= end) {
+            final int offset = (bytes[position >> 2] & 0xff) << 2;
+            dest[index++] = DECODED_BYTES[offset];
+            dest[index++] = DECODED_BYTES[offset + 1];
+            dest[index++] = DECODED_BYTES[offset + 2];
+            dest[index++] = DECODED_BYTES[offset + 3];
+            position += 4;
+        }
+        while (position < end) {
+            dest[index++] = DECODED_BYTES[((bytes[position >> 2] & 0xff) << 2) + (position & 3)];
+            position++;
+        }
+        return index;
+    }
+
     final LongArrayBitVector bits = LongArrayBitVector.getInstance();
 
     public int getRange(final int referenceIndex, final int position, final int length, String referenceName) {
         assert referenceIndex >= minRefIndex && referenceIndex <= maxRefIndex :
                 String.format("referenceindex %d obtained from referenceName "+ referenceName + " , is out of genome slice [%d-%d].", referenceIndex, referenceName,
                         minRefIndex, maxRefIndex);
-        final int maxSize = sizes.getInt(referenceIndex);
+        final int maxSize = getLength(referenceIndex);
         assert position + length < maxSize : "position must be less than size of the reference sequence (" + maxSize + ")";
 
 
         assert length < 15 : "length must be less than 15";
         bits.clear();
+        if (mapped != null) {
+            return getMappedRange(referenceIndex, position, length);
+        }
         final byte[] bytes = compressedData.get(referenceIndex);
         final LongArrayBitVector ignoreList = referenceIgnoreLists.get(referenceIndex);
 
@@ -308,6 +411,33 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
         return (int) bits.bits()[0];
     }
 
+    private int getMappedRange(final int referenceIndex, final int position, final int length) {
+        for (int i = 0; i < length; i++) {
+            switch (mapped.get(referenceIndex, position + i)) {
+                case 'A':
+                    bits.add(0);
+                    bits.add(0);
+                    break;
+                case 'C':
+                    bits.add(1);
+                    bits.add(0);
+                    break;
+                case 'T':
+                    bits.add(0);
+                    bits.add(1);
+                    break;
+                case 'G':
+                    bits.add(1);
+                    bits.add(1);
+                    break;
+                default:
+                    // a range that contain 'N' at any position is represented by -1.
+                    return -1;
+            }
+        }
+        return (int) bits.bits()[0];
+    }
+
     /**
      * Return the index of the reference sequence identified by name, or -1 if the sequence name
      * is not in the cache.
@@ -317,6 +447,9 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
      */
 
     public final int getReferenceIndex(final String referenceName) {
+        if (mapped != null) {
+            return mapped.getReferenceIndex(referenceName);
+        }
         return referenceNameMap.getInt(referenceName);
     }
 
@@ -328,11 +461,17 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
      */
 
     public final String getReferenceName(final int index) {
+        if (mapped != null) {
+            return mapped.getReferenceName(index);
+        }
         return indexToNameMap.get(index);
     }
 
     @Override
     public int size() {
+        if (mapped != null) {
+            return mapped.size();
+        }
         return referenceNameMap.size();
     }
 
@@ -340,7 +479,9 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
         assert referenceIndex >= minRefIndex && referenceIndex <= maxRefIndex :
                 String.format("referenceindex %d out of genome slice [%d-%d].", referenceIndex,
                         minRefIndex, maxRefIndex);
-
+        if (mapped != null) {
+            return mapped.get(referenceIndex, position);
+        }
         final int maxSize = sizes.getInt(referenceIndex);
         final LongArrayBitVector ignoreList = referenceIgnoreLists.get(referenceIndex);
         if (position >= maxSize) {
@@ -360,6 +501,9 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
 
 
     public int getLength(final int targetIndex) {
+        if (mapped != null) {
+            return mapped.getLength(targetIndex);
+        }
         return sizes.getInt(targetIndex);
     }
 
@@ -415,12 +559,18 @@ public class RandomAccessSequenceCache implements RandomAccessSequenceInterface
     }
 
     private int size(final int referenceIndex) {
+        if (mapped != null) {
+            return mapped.getLength(referenceIndex);
+        }
 
         final LongArrayBitVector ignoreList = referenceIgnoreLists.get(referenceIndex);
         return Math.min(ignoreList.size(), sizes.get(referenceIndex));
     }
 
     public int numberOfSequences() {
+        if (mapped != null) {
+            return mapped.size();
+        }
         return sizes.size();
     }
 
@@ -55,6 +55,22 @@ public interface RandomAccessSequenceInterface {
      */
     void getRange(final int referenceIndex, final int position, final int length, MutableString bases);
 
+    /**
+     * Copy bases from a range of positions in the cache. The bases written to dest are the characters that
+     * {@link #get(int, int)} returns for each position, one byte per base. Implementations decode the range in bulk,
+     * which is much faster than calling get for each position.
+     *
+     * @param referenceIndex index of the reference sequence.
+     * @param position       zero-based position where the range starts.
+     * @param length         length of the range for which bases should be returned.
+     * @param dest           where the bases will be written, starting at index zero. Must hold at least length bytes.
+     */
+    default void getRange(final int referenceIndex, final int position, final int length, final byte[] dest) {
+        for (int i = 0; i < length; i++) {
+            dest[i] = (byte) get(referenceIndex, position + i);
+        }
+    }
+
     /**
      * Return the index of the reference, or -1 if the name is not found in the genome.
      * @param referenceId name of the reference.
@@ -20,6 +20,7 @@ package org.campagnelab.goby.stats;
 
 import it.unimi.dsi.lang.MutableString;
 
+import java.io.IOException;
 import java.util.Collections;
 
 /**
@@ -47,7 +48,7 @@ public class BenjaminiHochbergAdjustment extends FDRAdjustment {
         double cummin = 1;
 
         int size = list.size();
-        int completeSize = size + ignoredElementsAboveThreshold;
+        long completeSize = size + ignoredElementsAboveThreshold;
         int rank = size;
 
         for (int index = size; index >= 1; --index) {
@@ -89,5 +90,46 @@ public class BenjaminiHochbergAdjustment extends FDRAdjustment {
         return list;
     }
 
-
+    /**
+     * Adjust a statistic kept in a {@link StatisticsStore}. Rows are visited by decreasing statistic, so that only
+     * the q-value column is written and the store can keep its rows on disk. Produces the same q-values as the
+     * adjustment of a DifferentialExpressionResults with the same P-values.
+     *
+     * @param store       store of statistics.
+     * @param statisticId identifier of the statistic to adjust (typically a P-value).
+     * @return the store, with a new statistic statisticId-BH-FDR-q-value.
+     * @throws IOException if the store cannot read or write its temporary files.
+     */
+    public StatisticsStore adjust(final StatisticsStore store, final String statisticId) throws IOException {
+        final int statisticIndex = store.getStatisticIndex(statisticId);
+        final StatisticsStore.RankedRows rows = store.rankDescending(statisticIndex);
+        try {
+            final int adjustedStatisticIndex = store.declareStatistic(statisticId + "-BH-FDR-q-value");
+            double cummin = 1;
+            final long size = store.getNumberOfRows();
+            final long completeSize = size + ignoredElementsAboveThreshold;
+            long rank = size;
+            while (rows.next()) {
+                final double pValue = rows.value();
+                double adjustedPValue = 1;
+                if (pValue == pValue) {
+                    adjustedPValue = pValue * (completeSize / (double) rank);
+                    if (adjustedPValue < cummin) {
+                        cummin = adjustedPValue;
+                    } else {
+                        // same as cummin in R p.adjust("BH"), see above:
+                        adjustedPValue = cummin;
+                    }
+                } else {
+                    // NaN p-values are ranked last, reset cummin:
+                    cummin = 1;
+                }
+                rows.set(adjustedStatisticIndex, adjustedPValue > 1 ? 1 : adjustedPValue);
+                --rank;
+            }
+        } finally {
+            rows.close();
+        }
+        return store;
+    }
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.stats;
+
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.doubles.DoubleArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Store statistics (typically P-values and their adjusted q-values) for a large number of elements in primitive
+ * columns. This is the columnar counterpart of {@link DifferentialExpressionResults}: each statistic is a double[]
+ * indexed by row, and each row records the index of the element it was loaded from as a long. A row costs
+ * 8 bytes plus 8 bytes per statistic, instead of one DifferentialExpressionInfo, its element id and its list of
+ * statistics. Rows must be added by increasing element index, so that element indices can be looked up without a
+ * map as the input is scanned again in order.
+ * <p/>
+ * Rows are never moved. Sorting by a statistic reorders a permutation of the row indices, see
+ * {@link #sortRowsBy(int)}. See {@link ExternalColumnarStatistics} for a store that keeps its columns on disk.
+ *
+ * @author Fabien Campagne
+ */
+public class ColumnarStatistics implements StatisticsStore {
+    private final IndexedIdentifier statisticIds = new IndexedIdentifier();
+    private final List<MutableString> sortedStatisticIds = new ObjectArrayList<MutableString>();
+    private double[][] columns = new double[0][];
+    private long[] elementIndices;
+    private int size;
+    /**
+     * Row indices, in the order of the last call to sortRowsBy. Null until rows are sorted.
+     */
+    private int[] rowOrder;
+
+    public ColumnarStatistics() {
+        this(1024);
+    }
+
+    /**
+     * Create a store.
+     *
+     * @param capacity number of rows to allocate initially. The store grows as needed.
+     */
+    public ColumnarStatistics(final int capacity) {
+        super();
+        elementIndices = new long[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Declare a new statistic. Values of the statistic are NaN for existing rows until they are set.
+     *
+     * @param statisticId Identifier for the new statistic.
+     * @return the index of the statistic.
+     */
+    public int declareStatistic(final String statisticId) {
+        final MutableString id = new MutableString(statisticId);
+        final int index = statisticIds.registerIdentifier(id);
+        if (index == columns.length) {
+            sortedStatisticIds.add(id);
+            columns = Arrays.copyOf(columns, index + 1);
+            columns[index] = new double[elementIndices.length];
+            Arrays.fill(columns[index], Double.NaN);
+        }
+        return index;
+    }
+
+    public boolean isStatisticDefined(final String statisticId) {
+        return statisticIds.containsKey(new MutableString(statisticId));
+    }
+
+    /**
+     * Return the index of a statistic, or -1 when the statistic has not been declared.
+     */
+    public int getStatisticIndex(final String statisticId) {
+        return statisticIds.getInt(new MutableString(statisticId));
+    }
+
+    public MutableString getStatisticIdForIndex(final int statisticIndex) {
+        return sortedStatisticIds.get(statisticIndex);
+    }
+
+    public int getNumberOfStatistics() {
+        return columns.length;
+    }
+
+    /**
+     * Number of rows in the store.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getNumberOfRows() {
+        return size;
+    }
+
+    /**
+     * Add a row for an element. Statistics of the new row are NaN until they are set.
+     *
+     * @param elementIndex index of the element, must be larger than the element index of the previous row.
+     * @return the index of the new row.
+     */
+    public int addRow(final long elementIndex) {
+        assert size == 0 || elementIndices[size - 1] < elementIndex : "rows must be added by increasing element index.";
+        if (size == elementIndices.length) {
+            final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * size);
+            if (capacity == size) {
+                throw new IllegalStateException("Too many rows for a columnar statistics store.");
+            }
+            elementIndices = LongArrays.ensureCapacity(elementIndices, capacity, size);
+            for (int i = 0; i < columns.length; i++) {
+                final double[] column = DoubleArrays.ensureCapacity(columns[i], capacity, size);
+                Arrays.fill(column, size, capacity, Double.NaN);
+                columns[i] = column;
+            }
+        }
+        elementIndices[size] = elementIndex;
+        rowOrder = null;
+        return size++;
+    }
+
+    public void addRow(final long elementIndex, final double[] values) {
+        final int row = addRow(elementIndex);
+        for (int i = 0; i < values.length; i++) {
+            columns[i][row] = values[i];
+        }
+    }
+
+    public long getElementIndex(final int row) {
+        return elementIndices[row];
+    }
+
+    public double get(final int row, final int statisticIndex) {
+        return columns[statisticIndex][row];
+    }
+
+    public void set(final int row, final int statisticIndex, final double value) {
+        columns[statisticIndex][row] = value;
+    }
+
+    /**
+     * Return the row of an element, using binary search over the element indices.
+     *
+     * @param elementIndex index of the element.
+     * @return the row that holds the element, or a negative value if the element has no row.
+     */
+    public int findRow(final long elementIndex) {
+        return LongArrays.binarySearch(elementIndices, 0, size, elementIndex);
+    }
+
+    /**
+     * Sort rows by increasing value of a statistic, NaN values last. The sort is stable with respect to the order of
+     * the previous call, or to the row order for the first call, like successive calls to Collections.sort on a
+     * DifferentialExpressionResults. Values of the store are not moved.
+     *
+     * @param statisticIndex index of the statistic to sort by.
+     * @return row indices in sorted order. The array is owned by the store.
+     */
+    public int[] sortRowsBy(final int statisticIndex) {
+        final int[] order = getRowOrder();
+        final double[] column = columns[statisticIndex];
+        IntArrays.mergeSort(order, 0, size, new IntComparator() {
+            public int compare(final int row1, final int row2) {
+                return Double.compare(column[row1], column[row2]);
+            }
+
+            public int compare(final Integer row1, final Integer row2) {
+                return compare(row1.intValue(), row2.intValue());
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Return row indices in the order of the last call to sortRowsBy, or in row order when rows have not been sorted.
+     * Only the first size() elements of the array are valid. The array is owned by the store.
+     */
+    public int[] getRowOrder() {
+        if (rowOrder == null) {
+            rowOrder = new int[size];
+            for (int row = 0; row < size; row++) {
+                rowOrder[row] = row;
+            }
+        }
+        return rowOrder;
+    }
+
+    /**
+     * Rank rows with {@link #sortRowsBy(int)} and visit them from the end of the order.
+     */
+    public RankedRows rankDescending(final int statisticIndex) {
+        final int[] order = sortRowsBy(statisticIndex);
+        final double[] column = columns[statisticIndex];
+        return new RankedRows() {
+            private int index = size;
+            private int row;
+
+            public boolean next() {
+                if (index == 0) {
+                    return false;
+                }
+                row = order[--index];
+                return true;
+            }
+
+            public double value() {
+                return column[row];
+            }
+
+            public void set(final int statisticIndex, final double value) {
+                columns[statisticIndex][row] = value;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    public long[] getTopElementIndices(final int n) {
+        final int[] order = getRowOrder();
+        final long[] result = new long[Math.min(n, size)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = elementIndices[order[i]];
+        }
+        return result;
+    }
+
+    /**
+     * Return a cursor that finds rows with a forward scan of the element indices, since element indices are
+     * requested in increasing order.
+     */
+    public RowCursor cursor() {
+        return new RowCursor() {
+            private int row;
+
+            public boolean seek(final long elementIndex) {
+                while (row < size && elementIndices[row] < elementIndex) {
+                    row++;
+                }
+                return row < size && elementIndices[row] == elementIndex;
+            }
+
+            public double get(final int statisticIndex) {
+                return columns[statisticIndex][row];
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    public void close() throws IOException {
+    }
+
+    @Override
+    public String toString() {
+        final MutableString buffer = new MutableString();
+        buffer.append("element-index ");
+        for (final MutableString statId : sortedStatisticIds) {
+            buffer.append(statId);
+            buffer.append(" ");
+        }
+        buffer.append("\n");
+        for (int row = 0; row < size; row++) {
+            buffer.append(elementIndices[row]);
+            for (final double[] column : columns) {
+                buffer.append(' ');
+                buffer.append(column[row]);
+            }
+            buffer.append('\n');
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.stats;
+
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A statistics store that keeps its columns on disk, for inputs with more rows than fit in memory. Rows are appended
+ * to a temporary rows file (element index followed by the loaded statistics). Each loaded statistic is also buffered
+ * as (value, row) pairs, which are sorted and spilled to a temporary run file every runSize rows. Ranking a statistic
+ * merges its runs, and derived statistics (the q-values) are written at the row offset of a memory-mapped column
+ * file. The rows file and the derived columns are then read sequentially by {@link #cursor()}. Memory use is bounded
+ * by 16 bytes per loaded statistic for each row of a run.
+ * <p/>
+ * Rows with the same value are ranked by decreasing row, whatever statistic was ranked before.
+ *
+ * @author Fabien Campagne
+ */
+public class ExternalColumnarStatistics implements StatisticsStore {
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalColumnarStatistics.class);
+    /**
+     * Number of doubles in each mapped segment of a derived column.
+     */
+    private static final int SEGMENT_SIZE = 1 << 27;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final IndexedIdentifier statisticIds = new IndexedIdentifier();
+    private final List<MutableString> sortedStatisticIds = new ObjectArrayList<MutableString>();
+    private final File directory;
+    private final int runSize;
+    private final int numTopElements;
+
+    private final File rowsFile;
+    private DataOutputStream rowsOutput;
+    private long numRows;
+    private long lastElementIndex = -1;
+    /**
+     * Number of statistics loaded with the rows. Statistics declared once loading is complete are derived.
+     */
+    private int numLoadedStatistics;
+    private boolean loaded;
+
+    private long[][] runKeys;
+    private long[][] runRows;
+    private int runLength;
+    private int numRuns;
+    private ObjectList<File>[] runFiles;
+    private final ObjectList<DerivedColumn> derivedColumns = new ObjectArrayList<DerivedColumn>();
+    /**
+     * Last rows visited by the previous ranking, in visit order.
+     */
+    private final long[] lastRankedRows;
+    private long numRanked;
+
+    /**
+     * Create a store.
+     *
+     * @param tempDir        directory where temporary files are created.
+     * @param runSize        number of rows sorted in memory before a run is written to disk.
+     * @param numTopElements number of element indices kept for {@link #getTopElementIndices(int)}.
+     */
+    public ExternalColumnarStatistics(final File tempDir, final int runSize, final int numTopElements) throws IOException {
+        super();
+        if (runSize < 1) {
+            throw new IllegalArgumentException("runSize must be at least 1.");
+        }
+        this.runSize = runSize;
+        this.numTopElements = numTopElements;
+        lastRankedRows = new long[numTopElements];
+        directory = File.createTempFile("fdr-", ".dir", tempDir);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create temporary directory " + directory);
+        }
+        directory.deleteOnExit();
+        rowsFile = new File(directory, "rows.bin");
+        rowsOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rowsFile), BUFFER_SIZE));
+    }
+
+    /**
+     * Declare a new statistic. Statistics declared before loading is complete are loaded with the rows, the others are
+     * derived and stored in a column file.
+     */
+    public int declareStatistic(final String statisticId) {
+        final MutableString id = new MutableString(statisticId);
+        final int index = statisticIds.registerIdentifier(id);
+        if (index == sortedStatisticIds.size()) {
+            sortedStatisticIds.add(id);
+            if (loaded) {
+                try {
+                    derivedColumns.add(new DerivedColumn(new File(directory, "derived-" + index + ".bin"), numRows));
+                } catch (IOException e) {
+                    throw new GobyRuntimeException(e);
+                }
+            } else {
+                if (numRows != 0) {
+                    throw new IllegalStateException("Statistics must be declared before rows are added.");
+                }
+                numLoadedStatistics = index + 1;
+            }
+        }
+        return index;
+    }
+
+    public boolean isStatisticDefined(final String statisticId) {
+        return statisticIds.containsKey(new MutableString(statisticId));
+    }
+
+    public int getStatisticIndex(final String statisticId) {
+        return statisticIds.getInt(new MutableString(statisticId));
+    }
+
+    public MutableString getStatisticIdForIndex(final int statisticIndex) {
+        return sortedStatisticIds.get(statisticIndex);
+    }
+
+    public int getNumberOfStatistics() {
+        return sortedStatisticIds.size();
+    }
+
+    public long getNumberOfRows() {
+        return numRows;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void addRow(final long elementIndex, final double[] values) throws IOException {
+        if (loaded) {
+            throw new IllegalStateException("Rows cannot be added once statistics have been ranked or read.");
+        }
+        assert elementIndex > lastElementIndex : "rows must be added by increasing element index.";
+        assert values.length == numLoadedStatistics : "a value is needed for each declared statistic.";
+        if (runKeys == null) {
+            runKeys = new long[numLoadedStatistics][runSize];
+            runRows = new long[numLoadedStatistics][runSize];
+            runFiles = new ObjectList[numLoadedStatistics];
+            for (int i = 0; i < numLoadedStatistics; i++) {
+                runFiles[i] = new ObjectArrayList<File>();
+            }
+        }
+        rowsOutput.writeLong(elementIndex);
+        for (int i = 0; i < numLoadedStatistics; i++) {
+            rowsOutput.writeDouble(values[i]);
+            runKeys[i][runLength] = sortableKey(values[i]);
+            runRows[i][runLength] = numRows;
+        }
+        lastElementIndex = elementIndex;
+        ++numRows;
+        if (++runLength == runSize) {
+            spillRuns();
+        }
+    }
+
+    /**
+     * Sort the current run of each loaded statistic and write it to disk, by decreasing value and decreasing row.
+     */
+    private void spillRuns() throws IOException {
+        for (int i = 0; i < numLoadedStatistics; i++) {
+            final long[] keys = runKeys[i];
+            final long[] rows = runRows[i];
+            LongArrays.radixSort(keys, rows, 0, runLength);
+            final File runFile = new File(directory, "run-" + i + "-" + numRuns + ".bin");
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), BUFFER_SIZE));
+            try {
+                for (int j = runLength - 1; j >= 0; j--) {
+                    output.writeLong(keys[j]);
+                    output.writeLong(rows[j]);
+                }
+            } finally {
+                output.close();
+            }
+            runFiles[i].add(runFile);
+        }
+        LOG.debug(String.format("Wrote run %d of %d rows.", numRuns, runLength));
+        ++numRuns;
+        runLength = 0;
+    }
+
+    /**
+     * Complete loading: close the rows file, and spill the last run when the others are on disk.
+     */
+    private void finishLoading() throws IOException {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        rowsOutput.close();
+        rowsOutput = null;
+        if (numRuns > 0 && runLength > 0) {
+            spillRuns();
+        }
+    }
+
+    public RankedRows rankDescending(final int statisticIndex) throws IOException {
+        finishLoading();
+        if (statisticIndex >= numLoadedStatistics) {
+            throw new UnsupportedOperationException("Only statistics loaded with the rows can be ranked.");
+        }
+        numRanked = 0;
+        if (runFiles == null) {
+            // no rows:
+            return new MergedRuns(new ObjectArrayList<RunReader>());
+        } else if (numRuns == 0) {
+            final long[] keys = runKeys[statisticIndex];
+            final long[] rows = runRows[statisticIndex];
+            LongArrays.radixSort(keys, rows, 0, runLength);
+            return new RankedBuffer(keys, rows, runLength);
+        } else {
+            final ObjectList<RunReader> readers = new ObjectArrayList<RunReader>();
+            for (final File runFile : runFiles[statisticIndex]) {
+                readers.add(new RunReader(runFile));
+            }
+            return new MergedRuns(readers);
+        }
+    }
+
+    /**
+     * Return the element indices of the rows ranked last by the previous ranking, in increasing order of the ranked
+     * statistic. At most numTopElements element indices are returned.
+     */
+    public long[] getTopElementIndices(final int n) {
+        final int count = (int) Math.min(Math.min(n, numTopElements), numRanked);
+        final long[] result = new long[count];
+        if (count == 0) {
+            return result;
+        }
+        final long recordSize = 8L * (1 + numLoadedStatistics);
+        try {
+            final RandomAccessFile rows = new RandomAccessFile(rowsFile, "r");
+            try {
+                for (int i = 0; i < count; i++) {
+                    final long index = numRanked - 1 - i;
+                    rows.seek(lastRankedRows[(int) (index % numTopElements)] * recordSize);
+                    result[i] = rows.readLong();
+                }
+            } finally {
+                rows.close();
+            }
+        } catch (IOException e) {
+            throw new GobyRuntimeException(e);
+        }
+        return result;
+    }
+
+    public RowCursor cursor() throws IOException {
+        finishLoading();
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(rowsFile), BUFFER_SIZE));
+        return new RowCursor() {
+            private final double[] values = new double[numLoadedStatistics];
+            private long row = -1;
+            private long elementIndex = -1;
+
+            public boolean seek(final long target) throws IOException {
+                while (elementIndex < target && row + 1 < numRows) {
+                    elementIndex = input.readLong();
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = input.readDouble();
+                    }
+                    row++;
+                }
+                return elementIndex == target;
+            }
+
+            public double get(final int statisticIndex) {
+                if (statisticIndex < numLoadedStatistics) {
+                    return values[statisticIndex];
+                }
+                return derivedColumns.get(statisticIndex - numLoadedStatistics).get(row);
+            }
+
+            public void close() {
+                IOUtils.closeQuietly(input);
+            }
+        };
+    }
+
+    /**
+     * Delete the temporary files of the store.
+     */
+    public void close() throws IOException {
+        IOUtils.closeQuietly(rowsOutput);
+        derivedColumns.clear();
+        runKeys = null;
+        runRows = null;
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private void recordRanked(final long row) {
+        if (numTopElements > 0) {
+            lastRankedRows[(int) (numRanked % numTopElements)] = row;
+        }
+        numRanked++;
+    }
+
+    private void set(final int statisticIndex, final long row, final double value) {
+        derivedColumns.get(statisticIndex - numLoadedStatistics).set(row, value);
+    }
+
+    /**
+     * Map a double to a long whose signed order is the order of Double.compare (NaN last).
+     */
+    static long sortableKey(final double value) {
+        final long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    static double valueOfKey(final long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+
+    /**
+     * Visits a run sorted in memory from its end.
+     */
+    private class RankedBuffer implements RankedRows {
+        private final long[] keys;
+        private final long[] rows;
+        private int index;
+
+        RankedBuffer(final long[] keys, final long[] rows, final int length) {
+            this.keys = keys;
+            this.rows = rows;
+            index = length;
+        }
+
+        public boolean next() {
+            if (index == 0) {
+                return false;
+            }
+            recordRanked(rows[--index]);
+            return true;
+        }
+
+        public double value() {
+            return valueOfKey(keys[index]);
+        }
+
+        public void set(final int statisticIndex, final double value) {
+            ExternalColumnarStatistics.this.set(statisticIndex, rows[index], value);
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Reads one run file, by decreasing value.
+     */
+    private static class RunReader {
+        private final DataInputStream input;
+        private long key;
+        private long row;
+
+        RunReader(final File file) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                key = input.readLong();
+                row = input.readLong();
+                return true;
+            } catch (EOFException e) {
+                input.close();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * K-way merge of the runs of a statistic.
+     */
+    private class MergedRuns implements RankedRows {
+        private final ObjectHeapPriorityQueue<RunReader> queue = new ObjectHeapPriorityQueue<RunReader>(
+                new Comparator<RunReader>() {
+                    public int compare(final RunReader reader1, final RunReader reader2) {
+                        final int byKey = Long.compare(reader2.key, reader1.key);
+                        return byKey != 0 ? byKey : Long.compare(reader2.row, reader1.row);
+                    }
+                });
+        private final ObjectList<RunReader> readers;
+        private RunReader current;
+        private long key;
+        private long row;
+
+        MergedRuns(final ObjectList<RunReader> readers) throws IOException {
+            this.readers = readers;
+            for (final RunReader reader : readers) {
+                if (reader.advance()) {
+                    queue.enqueue(reader);
+                }
+            }
+        }
+
+        public boolean next() throws IOException {
+            if (current != null) {
+                if (current.advance()) {
+                    queue.changed();
+                } else {
+                    queue.dequeue();
+                }
+            }
+            if (queue.isEmpty()) {
+                current = null;
+                return false;
+            }
+            current = queue.first();
+            key = current.key;
+            row = current.row;
+            recordRanked(row);
+            return true;
+        }
+
+        public double value() {
+            return valueOfKey(key);
+        }
+
+        public void set(final int statisticIndex, final double value) {
+            ExternalColumnarStatistics.this.set(statisticIndex, row, value);
+        }
+
+        public void close() {
+            for (final RunReader reader : readers) {
+                IOUtils.closeQuietly(reader.input);
+            }
+        }
+    }
+
+    /**
+     * A derived statistic, stored in a memory-mapped file at offset 8*row. Values are NaN until they are set.
+     */
+    private static class DerivedColumn {
+        private final DoubleBuffer[] segments;
+
+        DerivedColumn(final File file, final long numRows) throws IOException {
+            final int numSegments = (int) ((numRows + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new DoubleBuffer[numSegments];
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                final FileChannel channel = randomAccessFile.getChannel();
+                final double[] nans = new double[BUFFER_SIZE];
+                Arrays.fill(nans, Double.NaN);
+                for (int i = 0; i < numSegments; i++) {
+                    final long start = (long) i * SEGMENT_SIZE;
+                    final int length = (int) Math.min(SEGMENT_SIZE, numRows - start);
+                    segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start * 8, length * 8L).asDoubleBuffer();
+                    for (int filled = 0; filled < length; filled += nans.length) {
+                        segments[i].put(nans, 0, Math.min(nans.length, length - filled));
+                    }
+                }
+            } finally {
+                // the mappings remain valid once the file is closed:
+                randomAccessFile.close();
+            }
+        }
+
+        double get(final long row) {
+            return segments[(int) (row / SEGMENT_SIZE)].get((int) (row % SEGMENT_SIZE));
+        }
+
+        void set(final long row, final double value) {
+            segments[(int) (row / SEGMENT_SIZE)].put((int) (row % SEGMENT_SIZE), value);
+        }
+    }
+}
@@ -31,14 +31,14 @@ import org.apache.commons.logging.LogFactory;
  */
 public abstract class FDRAdjustment {
     private static final Log LOG = LogFactory.getLog(FDRAdjustment.class);
-    protected int ignoredElementsAboveThreshold;
+    protected long ignoredElementsAboveThreshold;
 
     /**
      * Set the number of elements that were not stored in list, because their P-value was already above threshold.
      *
      * @param ignoredElementsAboveThreshold the number of elements not in list.
      */
-    public void setNumberAboveThreshold(final int ignoredElementsAboveThreshold) {
+    public void setNumberAboveThreshold(final long ignoredElementsAboveThreshold) {
         this.ignoredElementsAboveThreshold = ignoredElementsAboveThreshold;
     }
 
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.stats;
+
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Statistics (typically P-values and their adjusted q-values) for elements identified by increasing element indices.
+ * Statistics declared before the first row is added are loaded with the rows. Statistics declared afterwards are
+ * derived from them, for instance by an FDR adjustment, through {@link #rankDescending(int)}. Rows are read back in
+ * element index order with a {@link RowCursor}.
+ *
+ * @author Fabien Campagne
+ */
+public interface StatisticsStore extends Closeable {
+    /**
+     * Declare a new statistic.
+     *
+     * @param statisticId Identifier for the new statistic.
+     * @return the index of the statistic.
+     */
+    int declareStatistic(String statisticId);
+
+    boolean isStatisticDefined(String statisticId);
+
+    /**
+     * Return the index of a statistic, or -1 when the statistic has not been declared.
+     */
+    int getStatisticIndex(String statisticId);
+
+    MutableString getStatisticIdForIndex(int statisticIndex);
+
+    int getNumberOfStatistics();
+
+    long getNumberOfRows();
+
+    /**
+     * Add a row for an element.
+     *
+     * @param elementIndex index of the element, must be larger than the element index of the previous row.
+     * @param values       values of the first values.length statistics.
+     */
+    void addRow(long elementIndex, double[] values) throws IOException;
+
+    /**
+     * Iterate over rows by decreasing value of a statistic loaded with the rows, NaN values first. Rows with the
+     * same value are visited by decreasing row, or in the reverse order of the previous ranking when the store keeps
+     * it.
+     *
+     * @param statisticIndex index of the statistic to rank rows by.
+     * @return rows in decreasing order of the statistic.
+     */
+    RankedRows rankDescending(int statisticIndex) throws IOException;
+
+    /**
+     * Return the element indices of the first rows in increasing order of the statistic last ranked.
+     *
+     * @param n maximum number of element indices to return.
+     */
+    long[] getTopElementIndices(int n);
+
+    /**
+     * Return a cursor over the rows, in element index order.
+     */
+    RowCursor cursor() throws IOException;
+
+    /**
+     * Rows ranked by a statistic.
+     */
+    interface RankedRows extends Closeable {
+        /**
+         * Move to the next row.
+         *
+         * @return false when all rows have been visited.
+         */
+        boolean next() throws IOException;
+
+        /**
+         * Value of the ranked statistic for the current row.
+         */
+        double value();
+
+        /**
+         * Set the value of a derived statistic for the current row.
+         */
+        void set(int statisticIndex, double value);
+    }
+
+    /**
+     * Reads rows in element index order.
+     */
+    interface RowCursor extends Closeable {
+        /**
+         * Move to the row of an element. Element indices must be requested in increasing order.
+         *
+         * @return true when the store has a row for this element.
+         */
+        boolean seek(long elementIndex) throws IOException;
+
+        /**
+         * Value of a statistic for the row found by the last successful seek.
+         */
+        double get(int statisticIndex);
+    }
+}
@@ -48,7 +48,7 @@ public final class FileExtensionHelper {
      * File extensions for alignment data in "compact reads" format.
      */
     public static final String[] COMPACT_ALIGNMENT_FILE_EXTS = {
-            ".entries", ".header", ".tmh", ".stats", ".counts", ".index"
+            ".entries", ".header", ".tmh", ".tmh2", ".stats", ".counts", ".index", ".index2"
     };
 
 
@@ -56,7 +56,7 @@ public final class FileExtensionHelper {
      * File extension for sequence base information data.
      */
     public static final String[] COMPACT_SEQUENCE_BASE_INFORMATION = {
-            ".sbi", ".sbip"
+            ".sbi", ".sbip", ".sbix"
     };
 
     /**
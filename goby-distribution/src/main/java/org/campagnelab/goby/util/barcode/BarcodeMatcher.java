@@ -72,6 +72,14 @@ public abstract class BarcodeMatcher {
 
     abstract BarcodeMatcherResult bestMatch(final MutableString sequence, final MutableString toFind, final int barcodeIndex, final int minMatchLength);
 
+    /**
+     * Returns the position in the sequence where a match of the given length starts.
+     * @param sequenceLength the length of the sequence
+     * @param matchLength the number of bases compared between the sequence and the barcode
+     * @return the start of the compared portion of the sequence
+     */
+    abstract int matchStart(final int sequenceLength, final int matchLength);
+
     /**
      * Determines which barcode this sequence matches or returns null if a barcode isn't found for
      * the sequence (withing the number of allowedMismatches).
@@ -104,11 +112,20 @@ public abstract class BarcodeMatcher {
         if (numAtBestMatch > 1) {
             bestMatch.setAmbiguous(true);
         }
-        final int bestBarcodeNum = bestMatch.getBarcodeIndex();
-        barcodeIndexToHitsMap.put(bestBarcodeNum, barcodeIndexToHitsMap.get(bestBarcodeNum) + 1);
+        countHit(bestMatch.getBarcodeIndex());
         return bestMatch;
     }
 
+    /**
+     * Increment the number of entries found for a barcode. Matchers may be shared by threads.
+     * @param barcodeIndex the index of the matched barcode
+     */
+    protected void countHit(final int barcodeIndex) {
+        synchronized (barcodeIndexToHitsMap) {
+            barcodeIndexToHitsMap.put(barcodeIndex, barcodeIndexToHitsMap.get(barcodeIndex) + 1);
+        }
+    }
+
     /**
      * Get the map of barcode index to the number of entries found for that barcode.
      * @return the map of barcode index to the number of entries found for that barcode
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.util.barcode;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Matches sequences to barcodes with hash tables rather than by comparing each sequence to every barcode.
+ * For each match length, a table maps the 2-bit encoding of every sequence within allowedMismatches of a
+ * barcode prefix to the barcodes (and number of differences) in its neighborhood. Matching a sequence
+ * takes one lookup per match length, independently of the number of barcodes. Results, including the
+ * ambiguous flag, are the same as those of the wrapped Pre or Post matcher. Sequences that contain bases
+ * other than A, C, G and T, and barcode sets whose neighborhoods would be too large to index, are matched
+ * by comparing barcodes one at a time.
+ *
+ * @author Fabien Campagne
+ */
+public class HashedBarcodeMatcher extends BarcodeMatcher {
+
+    /** Logging. */
+    private static final Log LOG = LogFactory.getLog(HashedBarcodeMatcher.class);
+
+    /** Longest match length encoded in a key. Longer matches are looked up by their first bases, then verified. */
+    static final int MAX_KEY_LENGTH = 32;
+
+    /** Maximum number of neighborhood entries to index. */
+    static final long MAX_INDEXED_NEIGHBORS = 1 << 22;
+
+    private static final int NO_HIT = Integer.MIN_VALUE;
+
+    /** The matcher that defines where barcodes are found in sequences. */
+    private final BarcodeMatcher matcher;
+
+    /** Length of the longest barcode (including adapter). */
+    private int maxBarcodeLength;
+
+    /**
+     * Tables indexed by match length, or null when barcodes are matched one at a time. Values are either a
+     * single hit, or -(i+1) when a key has several hits, stored in sharedHits[i]. A hit is encoded as
+     * barcodeIndex &lt;&lt; 8 | numberOfDiffs.
+     */
+    private Long2IntOpenHashMap[] tables;
+
+    private int[][] sharedHits;
+
+    /**
+     * Create a HashedBarcodeMatcher.
+     * @param matcher a PreBarcodeMatcher or PostBarcodeMatcher that defines the barcodes, where they are
+     * found in sequences and the number of allowed mismatches
+     */
+    public HashedBarcodeMatcher(final BarcodeMatcher matcher) {
+        this.matcher = matcher;
+        this.barcodes = matcher.barcodes;
+        this.barcodeLength = matcher.barcodeLength;
+        this.allowedMismatches = matcher.allowedMismatches;
+        if (barcodes != null) {
+            for (int i = 0; i < barcodes.length; i++) {
+                barcodeIndexToHitsMap.put(i, 0);
+            }
+        }
+        buildTables();
+    }
+
+    /**
+     * Returns true when sequences are matched with hash tables.
+     * @return true when the barcode neighborhoods are indexed
+     */
+    public boolean isIndexed() {
+        return tables != null;
+    }
+
+    @Override
+    BarcodeMatcherResult bestMatch(final MutableString sequence, final MutableString toFind, final int barcodeIndex, final int minMatchLength) {
+        return matcher.bestMatch(sequence, toFind, barcodeIndex, minMatchLength);
+    }
+
+    @Override
+    int matchStart(final int sequenceLength, final int matchLength) {
+        return matcher.matchStart(sequenceLength, matchLength);
+    }
+
+    @Override
+    public BarcodeMatcherResult matchSequence(final MutableString sequence) {
+        if (tables == null) {
+            return super.matchSequence(sequence);
+        }
+        final int sequenceLength = sequence.length();
+        final int longest = Math.min(sequenceLength, maxBarcodeLength);
+        if (longest >= barcodeLength && !isACGT(sequence, matchStart(sequenceLength, longest), longest)) {
+            return super.matchSequence(sequence);
+        }
+        int bestDiffs = Integer.MAX_VALUE;
+        int bestBarcodeIndex = -1;
+        boolean ambiguous = false;
+        for (int matchLength = longest; matchLength >= barcodeLength; matchLength--) {
+            final int start = matchStart(sequenceLength, matchLength);
+            final int keyLength = Math.min(matchLength, MAX_KEY_LENGTH);
+            final int value = tables[keyLength].get(encode(sequence, start, keyLength));
+            if (value == NO_HIT) {
+                continue;
+            }
+            final int numHits = value >= 0 ? 1 : sharedHits[-value - 1].length;
+            for (int i = 0; i < numHits; i++) {
+                final int hit = value >= 0 ? value : sharedHits[-value - 1][i];
+                final int barcodeIndex = hit >>> 8;
+                int numDiffs = hit & 0xFF;
+                if (matchLength > MAX_KEY_LENGTH) {
+                    // the key only covers the first bases of the match:
+                    if (barcodes[barcodeIndex].length() < matchLength) {
+                        continue;
+                    }
+                    numDiffs = numDifferences(sequence, barcodes[barcodeIndex], start, 0, matchLength);
+                    if (numDiffs > allowedMismatches) {
+                        continue;
+                    }
+                }
+                if (numDiffs < bestDiffs) {
+                    bestDiffs = numDiffs;
+                    bestBarcodeIndex = barcodeIndex;
+                    ambiguous = false;
+                } else if (numDiffs == bestDiffs && barcodeIndex != bestBarcodeIndex) {
+                    ambiguous = true;
+                    bestBarcodeIndex = Math.min(bestBarcodeIndex, barcodeIndex);
+                }
+            }
+        }
+        if (bestBarcodeIndex == -1) {
+            return null;
+        }
+        // the wrapped matcher determines the match length of the best barcode:
+        final BarcodeMatcherResult bestMatch = bestMatch(sequence, barcodes[bestBarcodeIndex], bestBarcodeIndex);
+        assert bestMatch.getNumberOfDiffs() == bestDiffs : "hashed and direct matches must agree";
+        // a perfect match stops the search of the wrapped matcher, so it is never ambiguous:
+        if (ambiguous && bestDiffs > 0) {
+            bestMatch.setAmbiguous(true);
+        }
+        countHit(bestBarcodeIndex);
+        return bestMatch;
+    }
+
+    private void buildTables() {
+        if (barcodes == null || barcodes.length == 0 || barcodeLength < 1 || allowedMismatches < 0
+                || allowedMismatches > 0xFF || barcodes.length > (Integer.MAX_VALUE >>> 8)) {
+            return;
+        }
+        maxBarcodeLength = 0;
+        for (final MutableString barcode : barcodes) {
+            if (!isACGT(barcode, 0, barcode.length())) {
+                LOG.info("Barcodes contain bases other than A, C, G or T, barcodes will not be indexed.");
+                return;
+            }
+            maxBarcodeLength = Math.max(maxBarcodeLength, barcode.length());
+        }
+        final int maxKeyLength = Math.min(maxBarcodeLength, MAX_KEY_LENGTH);
+        final int minKeyLength = Math.min(barcodeLength, maxKeyLength);
+        long numNeighbors = 0;
+        for (int keyLength = minKeyLength; keyLength <= maxKeyLength; keyLength++) {
+            for (final MutableString barcode : barcodes) {
+                if (barcode.length() >= keyLength) {
+                    numNeighbors += neighborhoodSize(keyLength);
+                }
+            }
+        }
+        if (numNeighbors > MAX_INDEXED_NEIGHBORS) {
+            LOG.info(String.format("Barcode neighborhoods have %d entries, barcodes will not be indexed.",
+                    numNeighbors));
+            return;
+        }
+        final Long2IntOpenHashMap[] newTables = new Long2IntOpenHashMap[maxKeyLength + 1];
+        final ObjectArrayList<IntArrayList> hitLists = new ObjectArrayList<IntArrayList>();
+        for (int keyLength = minKeyLength; keyLength <= maxKeyLength; keyLength++) {
+            final Long2IntOpenHashMap table = new Long2IntOpenHashMap();
+            table.defaultReturnValue(NO_HIT);
+            for (int barcodeIndex = 0; barcodeIndex < barcodes.length; barcodeIndex++) {
+                final MutableString barcode = barcodes[barcodeIndex];
+                if (barcode.length() >= keyLength) {
+                    addNeighbors(table, hitLists, encode(barcode, 0, keyLength), 0, keyLength, 0, barcodeIndex);
+                }
+            }
+            newTables[keyLength] = table;
+        }
+        sharedHits = new int[hitLists.size()][];
+        for (int i = 0; i < sharedHits.length; i++) {
+            sharedHits[i] = hitLists.get(i).toIntArray();
+        }
+        tables = newTables;
+        LOG.debug(String.format("Indexed %d barcode neighbors", numNeighbors));
+    }
+
+    /**
+     * Add the key and every key with at most allowedMismatches - numDiffs substitutions at positions
+     * fromPosition or after. Each neighbor is generated once, with its number of differences to the barcode.
+     */
+    private void addNeighbors(final Long2IntOpenHashMap table, final ObjectArrayList<IntArrayList> hitLists,
+                              final long key, final int fromPosition, final int keyLength, final int numDiffs,
+                              final int barcodeIndex) {
+        addHit(table, hitLists, key, barcodeIndex << 8 | numDiffs);
+        if (numDiffs == allowedMismatches) {
+            return;
+        }
+        for (int position = fromPosition; position < keyLength; position++) {
+            for (long substitution = 1; substitution <= 3; substitution++) {
+                addNeighbors(table, hitLists, key ^ (substitution << (2 * position)), position + 1, keyLength,
+                        numDiffs + 1, barcodeIndex);
+            }
+        }
+    }
+
+    private static void addHit(final Long2IntOpenHashMap table, final ObjectArrayList<IntArrayList> hitLists,
+                               final long key, final int hit) {
+        final int value = table.get(key);
+        if (value == NO_HIT) {
+            table.put(key, hit);
+        } else if (value >= 0) {
+            final IntArrayList hits = new IntArrayList(2);
+            hits.add(value);
+            hits.add(hit);
+            hitLists.add(hits);
+            table.put(key, -hitLists.size());
+        } else {
+            hitLists.get(-value - 1).add(hit);
+        }
+    }
+
+    /**
+     * The number of sequences within allowedMismatches of a sequence of the given length.
+     */
+    private long neighborhoodSize(final int length) {
+        long size = 0;
+        long combinations = 1;
+        for (int numDiffs = 0; numDiffs <= allowedMismatches && numDiffs <= length; numDiffs++) {
+            size += combinations;
+            combinations = combinations * (length - numDiffs) / (numDiffs + 1) * 3;
+        }
+        return size;
+    }
+
+    private static boolean isACGT(final MutableString sequence, final int start, final int length) {
+        for (int i = start; i < start + length; i++) {
+            if (baseCode(sequence.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encode length bases of sequence, starting at start, with two bits per base.
+     */
+    private static long encode(final MutableString sequence, final int start, final int length) {
+        long key = 0;
+        for (int i = 0; i < length; i++) {
+            key |= ((long) baseCode(sequence.charAt(start + i))) << (2 * i);
+        }
+        return key;
+    }
+
+    private static int baseCode(final char base) {
+        switch (base) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+}
@@ -78,6 +78,11 @@ public class PostBarcodeMatcher extends BarcodeMatcher {
                 leastNumDiffsBarcodeStartPos, barcodeMatchedLength);
     }
 
+    @Override
+    int matchStart(final int sequenceLength, final int matchLength) {
+        return sequenceLength - matchLength;
+    }
+
     /**
      * Determine the overlap portion of the two strings given their lengths.
      * @param sequence the string we are searching
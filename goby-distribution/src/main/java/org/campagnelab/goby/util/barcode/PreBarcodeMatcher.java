@@ -76,6 +76,11 @@ public class PreBarcodeMatcher extends BarcodeMatcher {
                 0, leastNumDiffsMatchedBarcodeLength);
     }
 
+    @Override
+    int matchStart(final int sequenceLength, final int matchLength) {
+        return 0;
+    }
+
     /**
      * Determine the overlap portion of the two strings given their lengths.
      * @param sequence the string we are searching
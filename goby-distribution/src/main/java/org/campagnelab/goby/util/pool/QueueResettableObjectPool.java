@@ -18,7 +18,7 @@
 
 package org.campagnelab.goby.util.pool;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 import java.util.Queue;
 
 /**
@@ -31,9 +31,10 @@ import java.util.Queue;
 public abstract class QueueResettableObjectPool<T extends Resettable> implements ResettableObjectPoolInterface<T> {
 
     /**
-     * The pool of objects waiting to be borrowed.
+     * The pool of objects waiting to be borrowed. An array backed queue does not allocate when objects are
+     * returned, once it has grown to the number of objects in circulation.
      */
-    private final Queue<T> queue = new LinkedList<T>();
+    private final Queue<T> queue = new ArrayDeque<T>();
 
     /**
      * Abstract class for making objects for the pool / to be borrowed.
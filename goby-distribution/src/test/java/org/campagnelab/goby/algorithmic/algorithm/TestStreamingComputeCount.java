@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.campagnelab.goby.counts.CountsWriterTestSupport;
+import org.campagnelab.goby.exception.GobyRuntimeException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Fabien Campagne
+ */
+public class TestStreamingComputeCount {
+    @Test
+    public void testSameTransitionsAsComputeCount() throws IOException {
+        final Random random = new Random(7);
+        for (int trial = 0; trial < 20; trial++) {
+            final int numReads = random.nextInt(60);
+            final int[] starts = new int[numReads];
+            for (int i = 0; i < numReads; i++) {
+                // some reads start at position zero:
+                starts[i] = Math.max(0, random.nextInt(200) - 10);
+            }
+            IntArrays.quickSort(starts);
+            final ComputeCount computeCount = new ComputeCount();
+            computeCount.startPopulating();
+            final CountsWriterTestSupport expected = new CountsWriterTestSupport(0);
+            final CountsWriterTestSupport streamed = new CountsWriterTestSupport(0);
+            final StreamingComputeCount streamingComputeCount = new StreamingComputeCount(streamed);
+            for (final int start : starts) {
+                final int end = start + random.nextInt(30);
+                computeCount.populate(start, end);
+                streamingComputeCount.populate(start, end);
+            }
+            computeCount.accumulate();
+            computeCount.baseCount(expected);
+            streamingComputeCount.close();
+            assertEquals(expected.countsAsText(), streamed.countsAsText());
+        }
+    }
+
+    @Test
+    public void testOverlappingReads() throws IOException {
+        final CountsWriterTestSupport writer = new CountsWriterTestSupport(0);
+        final StreamingComputeCount computeCount = new StreamingComputeCount(writer);
+        computeCount.populate(3, 7);
+        computeCount.populate(3, 8);
+        computeCount.populate(5, 10);
+        computeCount.populate(15, 20);
+        computeCount.close();
+        assertEquals("initial-count=0 (c=0,l=3)(c=2,l=2)(c=3,l=3)(c=2,l=1)(c=1,l=2)(c=0,l=4)(c=1,l=6)",
+                writer.countsAsText());
+    }
+
+    @Test(expected = GobyRuntimeException.class)
+    public void testUnsortedReads() throws IOException {
+        final StreamingComputeCount computeCount = new StreamingComputeCount(new CountsWriterTestSupport(0));
+        computeCount.populate(10, 20);
+        computeCount.populate(5, 20);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.algorithmic.algorithm;
+
+import org.campagnelab.goby.algorithmic.data.Annotation;
+import org.campagnelab.goby.algorithmic.data.Segment;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that SweepLineAnnotationCount agrees with a direct count over the reads and with AnnotationCount.
+ *
+ * @author Fabien Campagne
+ */
+public class TestSweepLineAnnotationCount {
+
+    private static final int[][] READS = {{3, 8}, {9, 10}, {5, 12}, {3, 7}, {8, 12}, {15, 18}};
+
+    private static SweepLineAnnotationCount prepare(final int[][] reads) {
+        final SweepLineAnnotationCount counter = new SweepLineAnnotationCount();
+        counter.startPopulating();
+        for (final int[] read : reads) {
+            counter.populate(read[0], read[1], 0);
+        }
+        counter.sortReads();
+        counter.accumulate();
+        counter.baseCount();
+        return counter;
+    }
+
+    @Test
+    public void testDepth() {
+        final SweepLineAnnotationCount counter = prepare(READS);
+        final int[] trueCount = {0, 0, 0, 2, 2, 3, 3, 3, 3, 3, 3, 2, 2, 0, 0, 1, 1, 1, 1, 0, 0};
+        for (int i = 0; i < trueCount.length; i++) {
+            for (int j = i; j < trueCount.length; j++) {
+                float sum = 0;
+                for (int p = i; p <= j; p++) {
+                    sum += trueCount[p];
+                }
+                assertEquals(sum / (j - i + 1), counter.averageReadsPerPosition(i, j), 0.0001);
+            }
+        }
+        assertEquals(0, counter.averageReadsPerPosition(5, 4), 0);
+    }
+
+    @Test
+    public void testCounts() {
+        final SweepLineAnnotationCount counter = prepare(READS);
+        assertEquals(2, counter.countReadsPartiallyOverlappingWithInterval(3, 4), 0);
+        assertEquals(0, counter.countReadsPartiallyOverlappingWithInterval(-1, 2), 0);
+        assertEquals(5, counter.countReadsPartiallyOverlappingWithInterval(3, 12), 0);
+        assertEquals(1, counter.countReadsPartiallyOverlappingWithInterval(13, 15), 0);
+        assertEquals(6, counter.countReadsPartiallyOverlappingWithInterval(0, 45), 0);
+
+        assertEquals(1, counter.countReadsStriclyWithinInterval(9, 10), 0);
+        assertEquals(2, counter.countReadsStriclyWithinInterval(3, 8), 0);
+        assertEquals(5, counter.countReadsStriclyWithinInterval(3, 12), 0);
+        assertEquals(0, counter.countReadsStriclyWithinInterval(15, 17), 0);
+        assertEquals(3, counter.countReadsStriclyWithinInterval(8, 18), 0);
+    }
+
+    @Test
+    public void testGeneExpression() {
+        final SweepLineAnnotationCount counter = prepare(READS);
+        final Annotation gene = new Annotation("gene", "chr1", "+");
+        gene.addSegment(new Segment(0, 4, "exon1", "+"));
+        gene.addSegment(new Segment(13, 20, "exon2", "+"));
+        gene.sortSegments();
+        // six reads overlap the gene, three of them are within the intron:
+        assertEquals(3, counter.geneExpressionCount(gene), 0);
+    }
+
+    @Test
+    public void testRandomReads() {
+        final Random random = new Random(2017);
+        for (int trial = 0; trial < 20; trial++) {
+            final int numReads = 1 + random.nextInt(300);
+            final int maxLength = 1 + random.nextInt(60);
+            final int[][] reads = new int[numReads][];
+            for (int i = 0; i < numReads; i++) {
+                // AnnotationCount ignores the coverage of reads that start at position zero:
+                final int start = 1 + random.nextInt(500);
+                reads[i] = new int[]{start, start + random.nextInt(maxLength)};
+            }
+            final SweepLineAnnotationCount counter = prepare(reads);
+
+            final AnnotationCount legacy = new AnnotationCount();
+            legacy.startPopulating();
+            for (final int[] read : reads) {
+                legacy.populate(read[0], read[1], 0);
+            }
+            legacy.sortReads();
+            legacy.accumulate();
+            legacy.baseCount();
+
+            for (int query = 0; query < 200; query++) {
+                final int start = random.nextInt(600);
+                final int end = start + random.nextInt(100);
+                int overlapping = 0;
+                int within = 0;
+                long coverage = 0;
+                for (final int[] read : reads) {
+                    if (read[0] <= end && read[1] >= start) {
+                        overlapping++;
+                        coverage += Math.min(read[1], end) - Math.max(read[0], start) + 1;
+                    }
+                    if (read[0] >= start && read[1] <= end) {
+                        within++;
+                    }
+                }
+                assertEquals(overlapping, counter.countReadsPartiallyOverlappingWithInterval(start, end), 0);
+                assertEquals(within, counter.countReadsStriclyWithinInterval(start, end), 0);
+                final float depth = ((float) coverage) / (end - start + 1);
+                assertEquals(depth, counter.averageReadsPerPosition(start, end), 0.001);
+
+                assertEquals(legacy.countReadsPartiallyOverlappingWithInterval(start, end),
+                        counter.countReadsPartiallyOverlappingWithInterval(start, end), 0);
+                assertEquals(legacy.averageReadsPerPosition(start, end),
+                        counter.averageReadsPerPosition(start, end), 0.001);
+            }
+        }
+    }
+}
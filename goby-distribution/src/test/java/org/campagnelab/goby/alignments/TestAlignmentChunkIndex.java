@@ -0,0 +1,119 @@
+package org.campagnelab.goby.alignments;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.modes.core.UpgradeModeCore;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the memory-mapped alignment index.
+ *
+ * @author Fabien Campagne
+ */
+public class TestAlignmentChunkIndex {
+    private static final String BASE_TEST_DIR = "test-results/alignments-chunk-index";
+    private static final int NUM_ENTRIES = 1000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void mappedMatchesLegacy() throws IOException {
+        final String basename = write("mapped");
+        assertTrue(new File(basename + AlignmentChunkIndex.MAPPED_INDEX_EXTENSION).exists());
+        final AlignmentChunkIndex legacy = AlignmentChunkIndex.loadLegacy(basename);
+        final AlignmentChunkIndex mapped = AlignmentChunkIndex.map(basename);
+        assertNotNull(mapped);
+        assertEquals(legacy.size(), mapped.size());
+        for (int i = 0; i < legacy.size(); i++) {
+            assertEquals(legacy.getOffset(i), mapped.getOffset(i));
+            assertEquals(legacy.getAbsolutePosition(i), mapped.getAbsolutePosition(i));
+            assertEquals(i, mapped.binarySearch(mapped.getAbsolutePosition(i)));
+        }
+        assertEquals(-1, mapped.binarySearch(-5));
+        assertEquals(-mapped.size() - 1, mapped.binarySearch(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void skipToWithMappedIndex() throws IOException {
+        final String basename = write("skip-to");
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+        for (int i = 0; i < NUM_ENTRIES; i += 61) {
+            final int targetIndex = i < NUM_ENTRIES / 2 ? 0 : 1;
+            final Alignments.AlignmentEntry entry = reader.skipTo(targetIndex, i * 10);
+            assertNotNull(entry);
+            assertEquals(i, entry.getQueryIndex());
+        }
+        reader.close();
+    }
+
+    @Test
+    public void staleIndexIsIgnored() throws IOException {
+        final String basename = write("stale");
+        FileUtils.writeStringToFile(new File(basename + ".entries"), "more", true);
+        assertNull(AlignmentChunkIndex.map(basename));
+    }
+
+    @Test
+    public void rewrittenEntriesOfSameLengthAreDetected() throws IOException {
+        final String basename = write("same-length");
+        final File entries = new File(basename + ".entries");
+        final File mappedFile = new File(basename + AlignmentChunkIndex.MAPPED_INDEX_EXTENSION);
+        assertNotNull(AlignmentChunkIndex.map(basename));
+        // rewrite the entries with the same length, as a tool that does not know about .index2 would:
+        FileUtils.writeByteArrayToFile(entries, FileUtils.readFileToByteArray(entries));
+        assertTrue(entries.setLastModified(mappedFile.lastModified() + 10000));
+        assertNull(AlignmentChunkIndex.map(basename));
+        // an entries file that is not newer than the index, but not the one it was built for, is also detected:
+        assertTrue(entries.setLastModified(mappedFile.lastModified() - 10000));
+        assertNull(AlignmentChunkIndex.map(basename));
+    }
+
+    @Test
+    public void indexOlderThanLegacyIndexIsIgnored() throws IOException {
+        final String basename = write("older");
+        final File mappedFile = new File(basename + AlignmentChunkIndex.MAPPED_INDEX_EXTENSION);
+        assertTrue(new File(basename + ".index").setLastModified(mappedFile.lastModified() + 10000));
+        assertNull(AlignmentChunkIndex.map(basename));
+    }
+
+    @Test
+    public void upgradeWritesMappedIndex() throws IOException {
+        final String basename = write("upgrade");
+        final File mappedFile = new File(basename + AlignmentChunkIndex.MAPPED_INDEX_EXTENSION);
+        assertTrue(mappedFile.delete());
+        final UpgradeModeCore upgrade = new UpgradeModeCore();
+        upgrade.setSilent(true);
+        upgrade.upgrade(basename);
+        assertTrue(mappedFile.exists());
+        assertEquals(AlignmentChunkIndex.loadLegacy(basename).size(), AlignmentChunkIndex.map(basename).size());
+    }
+
+    private String write(final String name) throws IOException {
+        final String basename = FilenameUtils.concat(BASE_TEST_DIR, name);
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        writer.setNumAlignmentEntriesPerChunk(7);
+        writer.setTargetLengths(new int[]{100000, 100000});
+        writer.setSorted(true);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            writer.setAlignmentEntry(i, i < NUM_ENTRIES / 2 ? 0 : 1, i * 10, 30, i % 2 == 0, 40);
+            writer.appendEntry();
+        }
+        writer.close();
+        return basename;
+    }
+}
@@ -0,0 +1,201 @@
+package org.campagnelab.goby.alignments;
+
+import com.google.protobuf.ByteString;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.compression.MessageChunksWriter;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that alignment readers restricted to some fields return the same core and requested fields as readers
+ * that decode complete entries.
+ *
+ * @author Fabien Campagne
+ */
+public class TestAlignmentEntryFields {
+    private static final String BASE_TEST_DIR = "test-results/alignments-entry-fields";
+    private static final String BASENAME = FilenameUtils.concat(BASE_TEST_DIR, "fields");
+    private static final int NUM_PAIRS = 300;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final String codec = MessageChunksWriter.doc().getString("codec");
+        MessageChunksWriter.doc().setValue("codec", "hybrid-1");
+        try {
+            final AlignmentWriterImpl writer = new AlignmentWriterImpl(BASENAME);
+            writer.setNumAlignmentEntriesPerChunk(50);
+            writer.setTargetLengths(new int[]{100000, 100000});
+            writer.setSorted(true);
+            for (int pairIndex = 0; pairIndex < NUM_PAIRS; pairIndex++) {
+                final int targetIndex = pairIndex < NUM_PAIRS / 2 ? 0 : 1;
+                final int position = pairIndex * 100;
+                final int matePosition = position + 40 + pairIndex % 7;
+                writer.appendEntry(entry(pairIndex, targetIndex, position, matePosition, 0));
+                writer.appendEntry(entry(pairIndex, targetIndex, matePosition, position, 1));
+            }
+            writer.close();
+        } finally {
+            MessageChunksWriter.doc().setValue("codec", codec);
+        }
+    }
+
+    private static Alignments.AlignmentEntry entry(final int queryIndex, final int targetIndex, final int position,
+                                                   final int matePosition, final int fragmentIndex) {
+        final boolean reverseStrand = fragmentIndex == 1;
+        final byte[] readQualities = new byte[30];
+        for (int i = 0; i < readQualities.length; i++) {
+            readQualities[i] = (byte) (20 + (i + queryIndex) % 20);
+        }
+        final Alignments.AlignmentEntry.Builder builder = Alignments.AlignmentEntry.newBuilder()
+                .setQueryIndex(queryIndex)
+                .setTargetIndex(targetIndex)
+                .setPosition(position)
+                .setMatchingReverseStrand(reverseStrand)
+                .setQueryPosition(0)
+                .setQueryLength(30)
+                .setQueryAlignedLength(28)
+                .setTargetAlignedLength(28)
+                .setMappingQuality(40 + queryIndex % 10)
+                .setNumberOfMismatches(1)
+                .setNumberOfIndels(0)
+                .setFragmentIndex(fragmentIndex)
+                .setMultiplicity(1)
+                .setScore(queryIndex % 5)
+                .setSampleIndex(0)
+                .setPairFlags(reverseStrand ? 0x93 : 0x63)
+                .setInsertSize(reverseStrand ? position - matePosition - 28 : matePosition - position + 28)
+                .setReadQualityScores(ByteString.copyFrom(readQualities))
+                .setSoftClippedBasesLeft("AC")
+                .setSoftClippedQualityLeft(ByteString.copyFrom(new byte[]{10, 11}))
+                .setPairAlignmentLink(Alignments.RelatedAlignmentEntry.newBuilder()
+                        .setTargetIndex(targetIndex)
+                        .setPosition(matePosition)
+                        .setFragmentIndex(1 - fragmentIndex));
+        builder.addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                .setPosition(5 + queryIndex % 10)
+                .setReadIndex(7 + queryIndex % 10)
+                .setFrom("A")
+                .setTo("C"));
+        return builder.build();
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @After
+    public void resetOptions() {
+        AlignmentReaderImpl.doc().setValue("parallel-decode", false);
+    }
+
+    private static List<Alignments.AlignmentEntry> read(final AlignmentReader reader) throws IOException {
+        final List<Alignments.AlignmentEntry> entries = new ObjectArrayList<Alignments.AlignmentEntry>();
+        for (final Alignments.AlignmentEntry entry : reader) {
+            entries.add(entry);
+        }
+        reader.close();
+        return entries;
+    }
+
+    private static List<Alignments.AlignmentEntry> read(final EnumSet<AlignmentEntryField> fields) throws IOException {
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(BASENAME);
+        reader.setFields(fields);
+        return read(reader);
+    }
+
+    /**
+     * Clear the optional fields of an entry that are not in fields.
+     */
+    private static Alignments.AlignmentEntry project(final Alignments.AlignmentEntry entry,
+                                                     final EnumSet<AlignmentEntryField> fields) {
+        final Alignments.AlignmentEntry.Builder builder = Alignments.AlignmentEntry.newBuilder(entry);
+        if (!fields.contains(AlignmentEntryField.SEQUENCE_VARIATIONS)) {
+            builder.clearSequenceVariations();
+        }
+        if (!fields.contains(AlignmentEntryField.READ_QUALITY_SCORES)) {
+            builder.clearReadQualityScores();
+        }
+        if (!fields.contains(AlignmentEntryField.SOFT_CLIPS)) {
+            builder.clearSoftClippedBasesLeft().clearSoftClippedQualityLeft();
+            builder.clearSoftClippedBasesRight().clearSoftClippedQualityRight();
+        }
+        if (!fields.contains(AlignmentEntryField.LINKS)) {
+            builder.clearPairAlignmentLink().clearSplicedForwardAlignmentLink().clearSplicedBackwardAlignmentLink();
+            builder.clearInsertSize();
+        }
+        if (!fields.contains(AlignmentEntryField.SAMPLE_AND_READ_ORIGIN)) {
+            builder.clearSampleIndex().clearReadOriginIndex();
+        }
+        if (!fields.contains(AlignmentEntryField.PAIR_FLAGS)) {
+            builder.clearPairFlags();
+        }
+        if (!fields.contains(AlignmentEntryField.SCORE)) {
+            builder.clearScore();
+        }
+        return builder.build();
+    }
+
+    private static void assertSameFields(final List<Alignments.AlignmentEntry> expected,
+                                         final List<Alignments.AlignmentEntry> actual,
+                                         final EnumSet<AlignmentEntryField> fields) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("entry " + i + " differs for fields " + fields,
+                    project(expected.get(i), fields), project(actual.get(i), fields));
+        }
+    }
+
+    @Test
+    public void coreFieldsOnly() throws IOException {
+        final List<Alignments.AlignmentEntry> full = read(EnumSet.allOf(AlignmentEntryField.class));
+        assertEquals(2 * NUM_PAIRS, full.size());
+        final Alignments.AlignmentEntry first = full.get(0);
+        assertTrue(first.hasPairAlignmentLink());
+        assertTrue(first.hasSoftClippedBasesLeft());
+        assertTrue(first.hasReadQualityScores());
+        assertEquals(1, first.getSequenceVariationsCount());
+
+        final EnumSet<AlignmentEntryField> none = EnumSet.noneOf(AlignmentEntryField.class);
+        final List<Alignments.AlignmentEntry> core = read(none);
+        assertEquals(full.size(), core.size());
+        for (int i = 0; i < full.size(); i++) {
+            // the core entries have no optional field:
+            assertEquals(project(full.get(i), none), core.get(i));
+        }
+    }
+
+    @Test
+    public void eachField() throws IOException {
+        final List<Alignments.AlignmentEntry> full = read(EnumSet.allOf(AlignmentEntryField.class));
+        for (final AlignmentEntryField field : AlignmentEntryField.values()) {
+            final EnumSet<AlignmentEntryField> fields = EnumSet.of(field);
+            assertSameFields(full, read(fields), fields);
+        }
+        final EnumSet<AlignmentEntryField> fields = EnumSet.of(AlignmentEntryField.SAMPLE_AND_READ_ORIGIN,
+                AlignmentEntryField.SCORE);
+        assertSameFields(full, read(fields), fields);
+    }
+
+    @Test
+    public void factoryAndReadAhead() throws IOException {
+        final List<Alignments.AlignmentEntry> full = read(EnumSet.allOf(AlignmentEntryField.class));
+        AlignmentReaderImpl.doc().setValue("parallel-decode", true);
+        final EnumSet<AlignmentEntryField> fields = EnumSet.of(AlignmentEntryField.LINKS);
+        final AlignmentReaderFactory factory = new DefaultAlignmentReaderFactory().withFields(fields);
+        assertSameFields(full, read(factory.createReader(BASENAME)), fields);
+    }
+}
@@ -0,0 +1,82 @@
+package org.campagnelab.goby.alignments;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.compression.MessageChunksWriter;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that alignments written with parallel chunk encoding are identical to alignments encoded on the
+ * calling thread, and that their index is correct.
+ *
+ * @author Fabien Campagne
+ */
+public class TestParallelEncoding {
+    private static final String BASE_TEST_DIR = "test-results/alignments-parallel-encode";
+    private static final int NUM_ENTRIES = 1000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @After
+    public void resetOptions() {
+        MessageChunksWriter.doc().setValue("parallel-encode", false);
+        MessageChunksWriter.doc().setValue("max-pending-chunks", 0);
+    }
+
+    @Test
+    public void sameBytesAsSequential() throws IOException {
+        write("sequential");
+        MessageChunksWriter.doc().setValue("parallel-encode", true);
+        MessageChunksWriter.doc().setValue("max-pending-chunks", 3);
+        write("parallel");
+
+        assertTrue(FileUtils.contentEquals(new File(FilenameUtils.concat(BASE_TEST_DIR, "sequential.entries")),
+                new File(FilenameUtils.concat(BASE_TEST_DIR, "parallel.entries"))));
+        assertTrue(FileUtils.contentEquals(new File(FilenameUtils.concat(BASE_TEST_DIR, "sequential.index")),
+                new File(FilenameUtils.concat(BASE_TEST_DIR, "parallel.index"))));
+    }
+
+    @Test
+    public void indexPointsToChunks() throws IOException {
+        MessageChunksWriter.doc().setValue("parallel-encode", true);
+        write("indexed");
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(FilenameUtils.concat(BASE_TEST_DIR, "indexed"));
+        for (int i = NUM_ENTRIES - 1; i >= 0; i -= 97) {
+            final int targetIndex = i < NUM_ENTRIES / 2 ? 0 : 1;
+            reader.reposition(targetIndex, i * 10);
+            final Alignments.AlignmentEntry entry = reader.skipTo(targetIndex, i * 10);
+            assertNotNull(entry);
+            assertEquals(i, entry.getQueryIndex());
+        }
+        reader.close();
+    }
+
+    private void write(final String basename) throws IOException {
+        final AlignmentWriterImpl writer =
+                new AlignmentWriterImpl(FilenameUtils.concat(BASE_TEST_DIR, basename));
+        writer.setNumAlignmentEntriesPerChunk(7);
+        writer.setTargetLengths(new int[]{100000, 100000});
+        writer.setSorted(true);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            writer.setAlignmentEntry(i, i < NUM_ENTRIES / 2 ? 0 : 1, i * 10, 30, i % 2 == 0, 40);
+            writer.appendEntry();
+        }
+        writer.close();
+    }
+}
@@ -0,0 +1,84 @@
+package org.campagnelab.goby.alignments;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that alignments decoded with the read-ahead decoder match alignments decoded on the calling thread.
+ *
+ * @author Fabien Campagne
+ */
+public class TestReadAheadDecoding {
+    private static final String BASE_TEST_DIR = "test-results/alignments-read-ahead";
+    private static final int NUM_ENTRIES = 1000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final AlignmentWriterImpl writer =
+                new AlignmentWriterImpl(FilenameUtils.concat(BASE_TEST_DIR, "read-ahead"));
+        writer.setNumAlignmentEntriesPerChunk(7);
+        writer.setTargetLengths(new int[]{100000, 100000});
+        writer.setSorted(true);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            writer.setAlignmentEntry(i, i < NUM_ENTRIES / 2 ? 0 : 1, i * 10, 30, i % 2 == 0, 40);
+            writer.appendEntry();
+        }
+        writer.close();
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @After
+    public void resetOptions() {
+        AlignmentReaderImpl.doc().setValue("parallel-decode", false);
+    }
+
+    @Test
+    public void sameEntriesInOrder() throws IOException {
+        AlignmentReaderImpl.doc().setValue("parallel-decode", true);
+        AlignmentReaderImpl.doc().setValue("read-ahead", 3);
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(FilenameUtils.concat(BASE_TEST_DIR, "read-ahead"));
+        int count = 0;
+        while (reader.hasNext()) {
+            final Alignments.AlignmentEntry entry = reader.next();
+            assertEquals(count, entry.getQueryIndex());
+            assertEquals(count * 10, entry.getPosition());
+            count++;
+        }
+        reader.close();
+        assertEquals(NUM_ENTRIES, count);
+    }
+
+    @Test
+    public void skipToAndReposition() throws IOException {
+        AlignmentReaderImpl.doc().setValue("parallel-decode", true);
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(FilenameUtils.concat(BASE_TEST_DIR, "read-ahead"));
+        Alignments.AlignmentEntry entry = reader.skipTo(0, 1234);
+        assertNotNull(entry);
+        assertEquals(0, entry.getTargetIndex());
+        assertEquals(1240, entry.getPosition());
+
+        entry = reader.skipTo(1, 7000);
+        assertEquals(1, entry.getTargetIndex());
+        assertEquals(7000, entry.getPosition());
+
+        reader.reposition(0, 20);
+        entry = reader.next();
+        assertEquals(0, entry.getTargetIndex());
+        assertTrue(entry.getPosition() <= 20);
+        reader.close();
+    }
+}
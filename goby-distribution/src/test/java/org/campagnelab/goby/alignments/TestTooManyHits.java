@@ -21,9 +21,13 @@ package org.campagnelab.goby.alignments;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Random;
 
 /**
  * @author Fabien Campagne
@@ -66,4 +70,133 @@ public class TestTooManyHits {
         assertFalse("query sequence 13 must NOT be found", tmhReader.isQueryAmbiguous(13));
         assertFalse("query sequence 1100239028 must NOT be found", tmhReader.isQueryAmbiguous(1100239028));
     }
+
+    @Test
+    public void testMappedAndLegacyReadersAgree() throws IOException {
+        final String basename = "test-results/alignments/align-102-tmh";
+        final AlignmentTooManyHitsWriter tmhWriter = new AlignmentTooManyHitsWriter(basename, 2);
+        final Int2IntMap numHits = new Int2IntOpenHashMap();
+        final Int2IntMap lengthOfMatch = new Int2IntOpenHashMap();
+        final Random random = new Random(37);
+        for (int i = 0; i < 5000; i++) {
+            // query indices are appended out of order, some of them more than once:
+            final int queryIndex = random.nextInt(20000);
+            final int hits = 1 + random.nextInt(10);
+            if (random.nextBoolean()) {
+                final int length = 20 + random.nextInt(10);
+                tmhWriter.append(queryIndex, hits, length);
+                if (hits > 2) {
+                    lengthOfMatch.put(queryIndex, length);
+                }
+            } else {
+                tmhWriter.getNewAmbiguousLocation().setQueryIndex(queryIndex);
+                tmhWriter.getNewAmbiguousLocation().setAtLeastNumberOfHits(hits);
+                tmhWriter.append();
+                if (hits > 2) {
+                    lengthOfMatch.remove(queryIndex);
+                }
+            }
+            if (hits > 2) {
+                numHits.put(queryIndex, hits);
+            }
+        }
+        tmhWriter.close();
+
+        final AlignmentTooManyHitsReader mapped = new AlignmentTooManyHitsReader(basename);
+        assertTrue(mapped.isMapped());
+        assertEquals(2, mapped.getAlignerThreshold());
+        assertEquals(numHits.size(), mapped.getQueryIndices().size());
+        int previous = -1;
+        for (final int queryIndex : mapped.getQueryIndices()) {
+            assertTrue("query indices must be sorted", queryIndex > previous);
+            previous = queryIndex;
+        }
+        assertTrue(new File(basename + AlignmentTooManyHitsReader.MAPPED_EXTENSION).delete());
+        final AlignmentTooManyHitsReader legacy = new AlignmentTooManyHitsReader(basename);
+        assertFalse(legacy.isMapped());
+        for (final AlignmentTooManyHitsReader reader : new AlignmentTooManyHitsReader[]{mapped, legacy}) {
+            for (int queryIndex = -1; queryIndex <= 20000; queryIndex++) {
+                final boolean ambiguous = numHits.containsKey(queryIndex);
+                assertEquals(ambiguous, reader.isQueryAmbiguous(queryIndex));
+                assertEquals(ambiguous, reader.getQueryIndices().contains(queryIndex));
+                assertEquals(ambiguous ? numHits.get(queryIndex) : -1, reader.getNumberOfHits(queryIndex));
+                assertEquals(lengthOfMatch.containsKey(queryIndex) ? lengthOfMatch.get(queryIndex) : -1,
+                        reader.getLengthOfMatch(queryIndex));
+            }
+        }
+        // upgrading writes the mapped file from the legacy reader:
+        legacy.writeMapped(basename);
+        legacy.close();
+        final AlignmentTooManyHitsReader upgraded = new AlignmentTooManyHitsReader(basename);
+        assertTrue(upgraded.isMapped());
+        assertEquals(numHits.size(), upgraded.getQueryIndices().size());
+        mapped.close();
+        upgraded.close();
+    }
+
+    @Test
+    public void testStaleMappedFileIsIgnored() throws IOException {
+        final String basename = "test-results/alignments/align-103-tmh";
+        AlignmentTooManyHitsWriter tmhWriter = new AlignmentTooManyHitsWriter(basename, 1);
+        tmhWriter.append(3, 5, 30);
+        tmhWriter.close();
+        final File mappedFile = new File(basename + AlignmentTooManyHitsReader.MAPPED_EXTENSION);
+        final File savedMappedFile = new File(basename + ".saved");
+        savedMappedFile.delete();
+        assertTrue(mappedFile.renameTo(savedMappedFile));
+
+        tmhWriter = new AlignmentTooManyHitsWriter(basename, 1);
+        for (int queryIndex = 0; queryIndex < 100; queryIndex++) {
+            tmhWriter.append(queryIndex, 5, 30);
+        }
+        tmhWriter.close();
+        assertTrue(mappedFile.delete());
+        assertTrue(savedMappedFile.renameTo(mappedFile));
+
+        final AlignmentTooManyHitsReader tmhReader = new AlignmentTooManyHitsReader(basename);
+        assertFalse(tmhReader.isMapped());
+        assertEquals(100, tmhReader.getQueryIndices().size());
+        tmhReader.close();
+    }
+
+    @Test
+    public void testRegeneratedTmhOfSameLengthIsDetected() throws IOException {
+        final String basename = "test-results/alignments/align-104-tmh";
+        AlignmentTooManyHitsWriter tmhWriter = new AlignmentTooManyHitsWriter(basename, 1);
+        tmhWriter.append(3, 5, 30);
+        tmhWriter.close();
+        final File tmhFile = new File(basename + ".tmh");
+        final long previousLength = tmhFile.length();
+        final File mappedFile = new File(basename + AlignmentTooManyHitsReader.MAPPED_EXTENSION);
+        final File savedMappedFile = new File(basename + ".saved");
+        savedMappedFile.delete();
+        assertTrue(mappedFile.renameTo(savedMappedFile));
+
+        // regenerate the .tmh with other queries, but the same length, as a tool that does not know about .tmh2 would:
+        tmhWriter = new AlignmentTooManyHitsWriter(basename, 1);
+        tmhWriter.append(4, 5, 30);
+        tmhWriter.close();
+        assertEquals(previousLength, tmhFile.length());
+        assertTrue(mappedFile.delete());
+        assertTrue(savedMappedFile.renameTo(mappedFile));
+        // the previous columns must be ignored even when they look more recent than the .tmh file:
+        assertTrue(mappedFile.setLastModified(tmhFile.lastModified() + 10000));
+
+        AlignmentTooManyHitsReader tmhReader = new AlignmentTooManyHitsReader(basename);
+        assertFalse(tmhReader.isMapped());
+        assertTrue(tmhReader.isQueryAmbiguous(4));
+        assertFalse(tmhReader.isQueryAmbiguous(3));
+        tmhReader.close();
+
+        // columns older than the .tmh file are ignored:
+        tmhReader = new AlignmentTooManyHitsReader(basename);
+        tmhReader.writeMapped(basename);
+        tmhReader.close();
+        assertTrue(new AlignmentTooManyHitsReader(basename).isMapped());
+        assertTrue(mappedFile.setLastModified(tmhFile.lastModified() - 10000));
+        tmhReader = new AlignmentTooManyHitsReader(basename);
+        assertFalse(tmhReader.isMapped());
+        assertTrue(tmhReader.isQueryAmbiguous(4));
+        tmhReader.close();
+    }
 }
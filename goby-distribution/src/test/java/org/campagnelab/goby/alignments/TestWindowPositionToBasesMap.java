@@ -0,0 +1,86 @@
+package org.campagnelab.goby.alignments;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that the circular array implementation of PositionToBasesMap behaves as the tree implementation.
+ *
+ * @author Fabien Campagne
+ */
+public class TestWindowPositionToBasesMap {
+
+    @Test
+    public void slidingWindow() {
+        final PositionToBasesMap<String> expected = new PositionToBasesMap<String>();
+        final PositionToBasesMap<String> window = new WindowPositionToBasesMap<String>();
+        final Random random = new Random(3);
+        int readStart = 0;
+        for (int read = 0; read < 5000; read++) {
+            // occasional gaps in coverage larger than the maximum width of the array:
+            readStart += random.nextInt(100) == 0 ? 100000 + random.nextInt(100000) : random.nextInt(20);
+            for (int position = readStart; position < readStart + 100; position++) {
+                if (expected.get(position) == null) {
+                    expected.put(position, "p" + position);
+                    window.put(position, "p" + position);
+                }
+            }
+            if (random.nextInt(10) == 0) {
+                // indels can add a position before the current read start:
+                final int position = readStart - random.nextInt(30);
+                expected.put(position, "i" + position);
+                window.put(position, "i" + position);
+            }
+            if (random.nextInt(20) == 0) {
+                expected.markIgnoredPosition(readStart + 5);
+                window.markIgnoredPosition(readStart + 5);
+            }
+            while (!expected.isEmpty() && expected.firstPosition() <= readStart) {
+                final int first = expected.firstPosition();
+                assertEquals(first, window.firstPosition());
+                assertEquals(expected.isIgnoredPosition(first), window.isIgnoredPosition(first));
+                assertEquals(expected.remove(first), window.remove(first));
+            }
+            assertEquals(expected.size(), window.size());
+            assertEquals(expected.width(), window.width());
+            assertEquals(expected.containsKey(readStart + 50), window.containsKey(readStart + 50));
+            assertEquals(expected.get(readStart + 50), window.get(readStart + 50));
+        }
+        assertEquals(new IntAVLTreeSet(expected.keySet()), new IntAVLTreeSet(window.keySet()));
+        assertEquals(expected.entrySet().size(), window.entrySet().size());
+    }
+
+    @Test
+    public void removeUpToAndTrim() {
+        final PositionToBasesMap<String> expected = new PositionToBasesMap<String>();
+        final PositionToBasesMap<String> window = new WindowPositionToBasesMap<String>();
+        for (int position = 1000; position < 4000; position += 3) {
+            expected.put(position, Integer.toString(position));
+            window.put(position, Integer.toString(position));
+        }
+        expected.removeUpTo(2000);
+        window.removeUpTo(2000);
+        assertEquals(expected.firstPosition(), window.firstPosition());
+        assertEquals(expected.size(), window.size());
+
+        final IntArrayList expectedTrimmed = new IntArrayList();
+        final IntArrayList windowTrimmed = new IntArrayList();
+        expected.trimWidth(100, expectedTrimmed::add);
+        window.trimWidth(100, windowTrimmed::add);
+        assertEquals(expectedTrimmed, windowTrimmed);
+        assertEquals(expected.width(), window.width());
+
+        expected.clear();
+        window.clear();
+        assertTrue(window.isEmpty());
+        assertNull(window.get(3001));
+        window.put(-5, "negative");
+        assertEquals(-5, window.firstPosition());
+        assertEquals("negative", window.get(-5));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.campagnelab.goby.alignments.perms;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ */
+public class TestHashedReadNameToIndex {
+    @Test
+    public void testSimple() {
+        HashedReadNameToIndex rnti = new HashedReadNameToIndex();
+        assertEquals(0, rnti.getQueryIndex("name-0", 2));
+        assertEquals(0, rnti.getQueryIndex("name-0", 2));
+        assertEquals(1, rnti.getQueryIndex("name-0", 2));
+        assertEquals(1, rnti.getQueryIndex("name-0", 2));
+        assertEquals(2, rnti.getQueryIndex("name-0", 2));
+        assertEquals(2, rnti.getQueryIndex("name-0", 2));
+        assertEquals(0, rnti.size());
+        rnti.close();
+    }
+
+    @Test
+    public void testVarMaxOcc() {
+        HashedReadNameToIndex rnti = new HashedReadNameToIndex();
+        assertEquals(0, rnti.getQueryIndex("name-0", 0));
+        assertEquals(1, rnti.getQueryIndex("name-0", 0));
+        assertEquals(2, rnti.getQueryIndex("name-1", 1));
+        assertEquals(3, rnti.getQueryIndex("name-1", 1));
+        assertEquals(4, rnti.getQueryIndex("name-2", 2));
+        assertEquals(4, rnti.getQueryIndex("name-2", 2));
+        assertEquals(5, rnti.getQueryIndex("name-3", 3));
+        assertEquals(5, rnti.getQueryIndex("name-3", 3));
+        assertEquals(5, rnti.getQueryIndex("name-3", 3));
+        assertEquals(6, rnti.getQueryIndex("name-3", 3));
+        rnti.close();
+    }
+
+    @Test
+    public void testSameIndicesAsTreeImplementation() {
+        compareWithTreeImplementation(new HashedReadNameToIndex());
+    }
+
+    @Test
+    public void testFingerprintCollisions() {
+        // every name has the same fingerprint, names must be told apart by comparing their bytes:
+        compareWithTreeImplementation(new HashedReadNameToIndex() {
+            @Override
+            long fingerprint(final byte[] bytes, final int length) {
+                return 1 + (length & 3);
+            }
+        });
+    }
+
+    @Test
+    public void testCompactions() {
+        compareWithCompactions(new HashedReadNameToIndex(256));
+    }
+
+    @Test
+    public void testCompactionsWithFingerprintCollisions() {
+        // names are compared to the bytes moved by compactions:
+        compareWithCompactions(new HashedReadNameToIndex(256) {
+            @Override
+            long fingerprint(final byte[] bytes, final int length) {
+                return 1 + (length & 3);
+            }
+        });
+    }
+
+    private void compareWithCompactions(final HashedReadNameToIndex hashed) {
+        final ReadNameToIndex tree = new ReadNameToIndex("test-results/permutations/rnti-compactions.tsv");
+        final Random random = new Random(37);
+        final StringBuilder name = new StringBuilder();
+        int maxSegments = 0;
+        int compactionsBeforeDrain = 0;
+        // many names in flight use many segments, fewer names in flight let compactions release segments:
+        for (final int numNames : new int[]{400, 20, 400, 10}) {
+            for (int i = 0; i < 20000; i++) {
+                final int id = random.nextInt(numNames);
+                name.setLength(0);
+                name.append("read-").append(id).append('-');
+                // names of various lengths, so that they do not fill segments exactly:
+                for (int j = 0; j < id % 23; j++) {
+                    name.append((char) ('a' + j));
+                }
+                final String readName = name.toString();
+                final int maxObservations = 1 + (id & 3);
+                assertEquals(tree.getQueryIndex(readName, maxObservations),
+                        hashed.getQueryIndex(readName, maxObservations));
+                maxSegments = Math.max(maxSegments, hashed.numSegments());
+            }
+            if (numNames == 400) {
+                compactionsBeforeDrain = hashed.numCompactions();
+            } else {
+                assertTrue("compactions must release segments", hashed.numSegments() < maxSegments);
+            }
+        }
+        assertTrue(maxSegments > 10);
+        assertTrue(compactionsBeforeDrain > 10);
+        assertTrue(hashed.numCompactions() > compactionsBeforeDrain);
+        hashed.close();
+        tree.close();
+    }
+
+    private void compareWithTreeImplementation(final HashedReadNameToIndex hashed) {
+        final ReadNameToIndex tree = new ReadNameToIndex("test-results/permutations/rnti-hashed.tsv");
+        final Random random = new Random(12);
+        // first fill the table so that it grows, then drain it so that it shrinks:
+        for (final int numNames : new int[]{3000, 200}) {
+            for (int i = 0; i < 20000; i++) {
+                final String name = "read-" + random.nextInt(numNames);
+                final int maxObservations = 1 + (name.hashCode() & 3);
+                assertEquals(tree.getQueryIndex(name, maxObservations), hashed.getQueryIndex(name, maxObservations));
+            }
+        }
+        hashed.close();
+        tree.close();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.baseinfo;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ */
+public class TestSequenceBaseInformationIndex {
+    private static final String BASE_TEST_DIR = "test-results/sbi-index";
+    private static final String BASENAME = BASE_TEST_DIR + "/sites";
+    private static final String[] CHROMOSOMES = {"chr1", "chr2", "chr3"};
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final SequenceBaseInformationWriter writer = new SequenceBaseInformationWriter(BASENAME);
+        writer.setNumEntriesPerChunk(37);
+        for (int referenceIndex = 0; referenceIndex < CHROMOSOMES.length; referenceIndex++) {
+            for (int position = 0; position < 3000; position += 1 + position % 5) {
+                writer.appendEntry(record(referenceIndex, position));
+            }
+        }
+        writer.close();
+    }
+
+    private static BaseInformationRecords.BaseInformation record(final int referenceIndex, final int position) {
+        return BaseInformationRecords.BaseInformation.newBuilder()
+                .setReferenceIndex(referenceIndex)
+                .setReferenceId(CHROMOSOMES[referenceIndex])
+                .setPosition(position)
+                .build();
+    }
+
+    private static IntList scan(final int referenceIndex, final int start, final int end) throws IOException {
+        final IntList positions = new IntArrayList();
+        final SequenceBaseInformationReader reader = new SequenceBaseInformationReader(BASENAME + ".sbi");
+        try {
+            for (final BaseInformationRecords.BaseInformation record : reader) {
+                if (record.getReferenceIndex() == referenceIndex && record.getPosition() >= start &&
+                        record.getPosition() <= end) {
+                    positions.add(record.getPosition());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return positions;
+    }
+
+    private static IntList query(final String referenceId, final int start, final int end) throws IOException {
+        final IntList positions = new IntArrayList();
+        final SequenceBaseInformationRegionReader reader =
+                new SequenceBaseInformationRegionReader(BASENAME, referenceId, start, end);
+        try {
+            for (final BaseInformationRecords.BaseInformation record : reader) {
+                assertEquals(referenceId, record.getReferenceId());
+                positions.add(record.getPosition());
+            }
+        } finally {
+            reader.close();
+        }
+        return positions;
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        final SequenceBaseInformationIndex index = SequenceBaseInformationIndex.load(BASENAME);
+        assertNotNull(index);
+        assertEquals(1, index.getReferenceIndex("chr2"));
+        assertEquals(-1, index.getReferenceIndex("chrX"));
+        assertTrue(index.size() > 10);
+        // a short range on chr2 only overlaps one or two chunks:
+        assertTrue(index.getOverlappingChunks(1, 1000, 1010).size() <= 2);
+        assertEquals(0, index.getOverlappingChunks(5, 0, 1000).size());
+    }
+
+    @Test
+    public void testRegionQueries() throws IOException {
+        final int[][] regions = {{0, 0, 0}, {0, 0, 100}, {1, 1000, 1010}, {1, 2990, 5000}, {2, 500, 2500},
+                {1, 0, 3000}, {0, 4000, 5000}, {2, 7, 7}};
+        for (final int[] region : regions) {
+            final IntList expected = scan(region[0], region[1], region[2]);
+            assertEquals(expected, query(CHROMOSOMES[region[0]], region[1], region[2]));
+        }
+        assertEquals(0, query("chrX", 0, 1000).size());
+    }
+}
@@ -0,0 +1,137 @@
+package org.campagnelab.goby.compression;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.campagnelab.goby.alignments.AlignmentCollectionHandler;
+import org.campagnelab.goby.alignments.AlignmentReaderImpl;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trip alignments through the snappy chunk codec.
+ *
+ * @author Fabien Campagne
+ */
+public class TestSnappyChunkCodec {
+    private static final String BASE_TEST_DIR = "test-results/snappy-codec";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @After
+    public void resetOptions() {
+        SnappyChunkCodec.doc().setValue("alignment-templates", false);
+    }
+
+    private static List<Alignments.AlignmentEntry> entries() {
+        final List<Alignments.AlignmentEntry> entries = new ObjectArrayList<Alignments.AlignmentEntry>();
+        for (int i = 0; i < 500; i++) {
+            final Alignments.AlignmentEntry.Builder entry = Alignments.AlignmentEntry.newBuilder()
+                    .setQueryIndex(i)
+                    .setTargetIndex(0)
+                    .setPosition(i * 7)
+                    .setMatchingReverseStrand(i % 2 == 0)
+                    .setQueryPosition(0)
+                    .setQueryLength(35)
+                    .setQueryAlignedLength(35)
+                    .setTargetAlignedLength(35)
+                    .setMappingQuality(i % 60)
+                    .setNumberOfMismatches(i % 3 == 0 ? 1 : 0)
+                    .setNumberOfIndels(0)
+                    .setFragmentIndex(0)
+                    .setMultiplicity(1)
+                    .setScore(35 - i % 3);
+            if (i % 3 == 0) {
+                entry.addSequenceVariations(Alignments.SequenceVariation.newBuilder()
+                        .setPosition(4)
+                        .setReadIndex(4)
+                        .setFrom("A")
+                        .setTo("T"));
+            }
+            entries.add(entry.build());
+        }
+        return entries;
+    }
+
+    private static List<Alignments.AlignmentEntry> roundTrip(final String basename) throws IOException {
+        final List<Alignments.AlignmentEntry> expected = entries();
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename, "snappy");
+        writer.setNumAlignmentEntriesPerChunk(64);
+        writer.setTargetLengths(new int[]{10000});
+        writer.setSorted(true);
+        for (final Alignments.AlignmentEntry entry : expected) {
+            writer.appendEntry(entry);
+        }
+        writer.close();
+
+        final List<Alignments.AlignmentEntry> actual = new ObjectArrayList<Alignments.AlignmentEntry>();
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl(basename);
+        for (final Alignments.AlignmentEntry entry : reader) {
+            actual.add(entry);
+        }
+        reader.close();
+        return actual;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        assertEquals(entries(), roundTrip(FilenameUtils.concat(BASE_TEST_DIR, "plain")));
+    }
+
+    @Test
+    public void roundTripWithTemplates() throws IOException {
+        SnappyChunkCodec.doc().setValue("alignment-templates", true);
+        assertEquals(entries(), roundTrip(FilenameUtils.concat(BASE_TEST_DIR, "templates")));
+    }
+
+    @Test
+    public void validate() throws IOException {
+        final SnappyChunkCodec codec = new SnappyChunkCodec();
+        codec.setHandler(new AlignmentCollectionHandler());
+        final Alignments.AlignmentCollection collection = Alignments.AlignmentCollection.newBuilder()
+                .addAllAlignmentEntries(entries()).build();
+        final byte[] bytes = codec.encode(collection).toByteArray();
+        assertEquals(collection, codec.decode(bytes));
+
+        assertTrue(validate(codec, bytes));
+        bytes[bytes.length - 1] ^= 1;
+        assertFalse(validate(codec, bytes));
+    }
+
+    /**
+     * Validate a chunk as stored by MessageChunksWriter: the size of the chunk followed by its content.
+     */
+    private static boolean validate(final ChunkCodec codec, final byte[] bytes) throws IOException {
+        final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(stored);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+        output.flush();
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(stored.toByteArray()));
+        return codec.validate(input.readByte(), input);
+    }
+}
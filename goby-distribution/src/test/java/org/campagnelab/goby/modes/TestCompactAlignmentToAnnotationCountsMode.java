@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.modes;
+
+import com.martiansoftware.jsap.JSAPException;
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.alignments.AlignmentWriter;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ */
+public class TestCompactAlignmentToAnnotationCountsMode {
+    private static final String BASE_TEST_DIR = "test-results/alignment-to-annotation-counts";
+    private static final String BASENAME = BASE_TEST_DIR + "/sorted";
+    private static final String ANNOTATIONS = BASE_TEST_DIR + "/annotations.tsv";
+    private static final String[] CHROMOSOMES = {"chr1", "chr2", "chr3", "chrUn"};
+    private static final int CHROMOSOME_LENGTH = 5000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final Random random = new Random(34);
+        final AlignmentWriter writer = new AlignmentWriterImpl(BASENAME);
+        final IndexedIdentifier ids = new IndexedIdentifier();
+        final int[] lengths = new int[CHROMOSOMES.length];
+        for (int targetIndex = 0; targetIndex < CHROMOSOMES.length; targetIndex++) {
+            ids.put(new MutableString(CHROMOSOMES[targetIndex]), targetIndex);
+            lengths[targetIndex] = CHROMOSOME_LENGTH;
+        }
+        writer.setTargetIdentifiers(ids);
+        writer.setTargetLengths(lengths);
+        writer.setSorted(true);
+        int queryIndex = 0;
+        for (int targetIndex = 0; targetIndex < CHROMOSOMES.length; targetIndex++) {
+            int position = 0;
+            while (position < CHROMOSOME_LENGTH - 50) {
+                writer.appendEntry(Alignments.AlignmentEntry.newBuilder()
+                        .setQueryIndex(queryIndex++)
+                        .setTargetIndex(targetIndex)
+                        .setPosition(position)
+                        .setQueryLength(35)
+                        .setQueryAlignedLength(35)
+                        .setTargetAlignedLength(35)
+                        .setMatchingReverseStrand(random.nextBoolean())
+                        .setMultiplicity(1 + random.nextInt(2))
+                        .build());
+                position += random.nextInt(12);
+            }
+        }
+        writer.close();
+
+        // two genes with two exons on each chromosome, except chrUn, which has no annotations:
+        final PrintWriter annotations = new PrintWriter(ANNOTATIONS);
+        annotations.println("chromosome\tstrand\ttranscript-id\texon-id\tstart\tend");
+        for (int targetIndex = 0; targetIndex < CHROMOSOMES.length - 1; targetIndex++) {
+            final String chromosome = CHROMOSOMES[targetIndex];
+            for (int gene = 0; gene < 2; gene++) {
+                final int geneStart = 100 + gene * 2000 + random.nextInt(500);
+                final String geneId = chromosome + "-gene" + gene;
+                annotations.printf("%s\t+\t%s\t%s-exon1\t%d\t%d%n", chromosome, geneId, geneId, geneStart, geneStart + 300);
+                annotations.printf("%s\t+\t%s\t%s-exon2\t%d\t%d%n", chromosome, geneId, geneId, geneStart + 700, geneStart + 900);
+            }
+        }
+        annotations.close();
+    }
+
+    private static String countAnnotations(final String output, final int parallelReferences, final String... extraArguments)
+            throws IOException, JSAPException {
+        final String[] arguments = {"--mode", "alignment-to-annotation-counts",
+                "--annotation", ANNOTATIONS, "--output", output,
+                "--filter-ambiguous-reads", "false", "--include-annotation-types", "gene,exon",
+                "--parallel-references", Integer.toString(parallelReferences), BASENAME};
+        final String[] allArguments = new String[arguments.length + extraArguments.length];
+        System.arraycopy(extraArguments, 0, allArguments, 0, extraArguments.length);
+        System.arraycopy(arguments, 0, allArguments, extraArguments.length, arguments.length);
+        new CompactAlignmentToAnnotationCountsMode().configure(allArguments).execute();
+        return FileUtils.readFileToString(new File(output));
+    }
+
+    @Test
+    public void testParallelReferencesMatchSequential() throws IOException, JSAPException {
+        final String sequential = countAnnotations(BASE_TEST_DIR + "/sequential.tsv", 1);
+        final String parallel = countAnnotations(BASE_TEST_DIR + "/parallel.tsv", 3);
+        // header, two genes and four exons on three chromosomes:
+        assertEquals(1 + 3 * 6, sequential.split("\n").length);
+        assertTrue(sequential.contains("chr3-gene1"));
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void testParallelReferencesWithIncludedReferences() throws IOException, JSAPException {
+        final String sequential = countAnnotations(BASE_TEST_DIR + "/sequential-chr2.tsv", 1,
+                "--include-reference-names", "chr2,chrUn");
+        final String parallel = countAnnotations(BASE_TEST_DIR + "/parallel-chr2.tsv", 4,
+                "--include-reference-names", "chr2,chrUn");
+        assertEquals(1 + 6, sequential.split("\n").length);
+        assertEquals(sequential, parallel);
+    }
+}
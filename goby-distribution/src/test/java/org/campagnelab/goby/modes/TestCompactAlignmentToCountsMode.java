@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.campagnelab.goby.modes;
+
+import com.martiansoftware.jsap.JSAPException;
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.alignments.AlignmentWriter;
+import org.campagnelab.goby.alignments.AlignmentWriterImpl;
+import org.campagnelab.goby.alignments.Alignments;
+import org.campagnelab.goby.counts.CountsArchiveReader;
+import org.campagnelab.goby.counts.CountsReader;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ */
+public class TestCompactAlignmentToCountsMode {
+    private static final String BASE_TEST_DIR = "test-results/alignment-to-counts";
+    private static final String[] CHROMOSOMES = {"chr1", "chr2", "chr3", "chrUn"};
+    private static final int CHROMOSOME_LENGTH = 5000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        writeAlignment(BASE_TEST_DIR + "/in-memory");
+        writeAlignment(BASE_TEST_DIR + "/streaming");
+    }
+
+    private static void writeAlignment(final String basename) throws IOException {
+        final Random random = new Random(34);
+        final AlignmentWriter writer = new AlignmentWriterImpl(basename);
+        final IndexedIdentifier ids = new IndexedIdentifier();
+        final int[] lengths = new int[CHROMOSOMES.length];
+        for (int targetIndex = 0; targetIndex < CHROMOSOMES.length; targetIndex++) {
+            ids.put(new MutableString(CHROMOSOMES[targetIndex]), targetIndex);
+            lengths[targetIndex] = CHROMOSOME_LENGTH;
+        }
+        writer.setTargetIdentifiers(ids);
+        writer.setTargetLengths(lengths);
+        writer.setSorted(true);
+        int queryIndex = 0;
+        // chrUn has no entries:
+        for (int targetIndex = 0; targetIndex < CHROMOSOMES.length - 1; targetIndex++) {
+            int position = random.nextInt(3);
+            while (position < CHROMOSOME_LENGTH - 50) {
+                final int length = 20 + random.nextInt(20);
+                writer.appendEntry(Alignments.AlignmentEntry.newBuilder()
+                        .setQueryIndex(queryIndex++)
+                        .setTargetIndex(targetIndex)
+                        .setPosition(position)
+                        .setQueryLength(length)
+                        .setQueryAlignedLength(length)
+                        .setTargetAlignedLength(length)
+                        .setMatchingReverseStrand(random.nextBoolean())
+                        .setMultiplicity(1 + random.nextInt(2))
+                        .build());
+                position += random.nextInt(40);
+            }
+        }
+        writer.close();
+    }
+
+    private static void count(final String basename, final String... extraArguments)
+            throws IOException, JSAPException {
+        final String[] arguments = {"--mode", "alignment-to-counts", "--filter-ambiguous-reads", "false", basename};
+        final String[] allArguments = new String[arguments.length + extraArguments.length];
+        System.arraycopy(extraArguments, 0, allArguments, 0, extraArguments.length);
+        System.arraycopy(arguments, 0, allArguments, extraArguments.length, arguments.length);
+        new CompactAlignmentToCountsMode().configure(allArguments).execute();
+    }
+
+    private static String transitions(final CountsArchiveReader archive, final String chromosome) throws IOException {
+        final StringBuilder transitions = new StringBuilder();
+        final CountsReader reader = archive.getCountReader(chromosome);
+        while (reader.hasNextTransition()) {
+            reader.nextTransition();
+            transitions.append(String.format("(p=%d,c=%d,l=%d)", reader.getPosition(), reader.getCount(),
+                    reader.getLength()));
+        }
+        reader.close();
+        return transitions.toString();
+    }
+
+    @Test
+    public void testStreamingMatchesInMemory() throws IOException, JSAPException {
+        count(BASE_TEST_DIR + "/in-memory", "--in-memory");
+        count(BASE_TEST_DIR + "/streaming");
+        final CountsArchiveReader inMemory = new CountsArchiveReader(BASE_TEST_DIR + "/in-memory");
+        final CountsArchiveReader streaming = new CountsArchiveReader(BASE_TEST_DIR + "/streaming");
+        assertEquals(inMemory.getIdentifiers(), streaming.getIdentifiers());
+        assertEquals(CHROMOSOMES.length, streaming.getIdentifiers().size());
+        for (final String chromosome : CHROMOSOMES) {
+            final String expected = transitions(inMemory, chromosome);
+            assertEquals(expected, transitions(streaming, chromosome));
+            assertTrue(chromosome.equals("chrUn") || expected.length() > 0);
+        }
+        inMemory.close();
+        streaming.close();
+    }
+}
@@ -24,7 +24,9 @@ import org.campagnelab.goby.R.GobyRengine;
 import org.campagnelab.goby.algorithmic.data.CovariateInfo;
 import org.campagnelab.goby.algorithmic.dsv.DiscoverVariantPositionData;
 import org.campagnelab.goby.algorithmic.dsv.SampleCountInfo;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
 import org.campagnelab.goby.alignments.*;
+import org.campagnelab.goby.baseinfo.SequenceBaseInformationReader;
 import org.campagnelab.goby.modes.dsv.*;
 import org.campagnelab.goby.modes.formats.AlleleFrequencyOutputFormat;
 import org.campagnelab.goby.modes.formats.SequenceVariationOutputFormat;
@@ -52,8 +54,11 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
 
 import static org.junit.Assert.*;
 
@@ -93,7 +98,7 @@ public class TestDiscoverSequenceVariantsMode extends TestFiles {
 
         configureTestGenome(mode);
         final CovariateInfo covInfo = CovariateInfo.parse("test-data/covariates/example-4.tsv");
-        FormatConfigurator configurator = new FormatConfigurator() {
+        FormatConfigurator<SequenceVariationOutputFormat> configurator = new FormatConfigurator<SequenceVariationOutputFormat>() {
 
             @Override
             public void configureFormatter(final SequenceVariationOutputFormat formatter) {
@@ -223,7 +228,7 @@ public class TestDiscoverSequenceVariantsMode extends TestFiles {
         args = add(args, new String[]{"--format", DiscoverSequenceVariantsMode.OutputFormat.ALLELE_FREQUENCIES.toString()});
 
         configureTestGenome(mode);
-        FormatConfigurator configurator = new FormatConfigurator() {
+        FormatConfigurator<SequenceVariationOutputFormat> configurator = new FormatConfigurator<SequenceVariationOutputFormat>() {
 
             @Override
             public void configureFormatter(final SequenceVariationOutputFormat formatter) {
@@ -572,6 +577,187 @@ public class TestDiscoverSequenceVariantsMode extends TestFiles {
 
     }
 
+    @Test
+    public void testParallelRegionsMatchesSerial() throws IOException, JSAPException {
+        final String[] regionBasenames = new String[]{BASE_TEST_DIR + "/regions-A", BASE_TEST_DIR + "/regions-B"};
+        writeRegionAlignment(regionBasenames[0], 'G');
+        writeRegionAlignment(regionBasenames[1], 'T');
+        for (final int parallelRegions : new int[]{1, 4}) {
+            final DiscoverSequenceVariantsMode mode = new DiscoverSequenceVariantsMode();
+            final String output = BASE_TEST_DIR + "/out-regions-" + parallelRegions + ".tsv";
+            final String[] args = String.format("--mode discover-sequence-variants --groups A=regions-A/B=regions-B " +
+                            "--compare A/B --genome use-dummy-in-test --minimum-variation-support 0 " +
+                            "--threshold-distinct-read-indices 1 --format %s --parallel-regions %d --output %s %s %s",
+                    DiscoverSequenceVariantsMode.OutputFormat.BETWEEN_GROUPS, parallelRegions, output,
+                    regionBasenames[0], regionBasenames[1]).split("[\\s]");
+            configureTestGenome(mode);
+            mode.configure(args);
+            mode.setCallIndels(false);
+            mode.execute();
+        }
+        final File serial = new File(BASE_TEST_DIR + "/out-regions-1.tsv");
+        assertTrue(FileUtils.readLines(serial).size() > 100);
+        assertTrue(FileUtils.contentEquals(serial, new File(BASE_TEST_DIR + "/out-regions-4.tsv")));
+    }
+
+    @Test
+    public void testParallelRegionsWriteSequenceBaseInformationShards() throws IOException, JSAPException {
+        final String[] regionBasenames = new String[]{BASE_TEST_DIR + "/shards-A", BASE_TEST_DIR + "/shards-B"};
+        writeRegionAlignment(regionBasenames[0], 'G');
+        writeRegionAlignment(regionBasenames[1], 'T');
+        for (final int parallelRegions : new int[]{1, 3}) {
+            final DiscoverSequenceVariantsMode mode = new DiscoverSequenceVariantsMode();
+            final String output = BASE_TEST_DIR + "/out-shards-" + parallelRegions + ".sbi";
+            final String[] args = String.format("--mode discover-sequence-variants --groups 0=shards-A/1=shards-B " +
+                            "--compare 0/1 --genome use-dummy-in-test --minimum-variation-support 0 " +
+                            "--threshold-distinct-read-indices 1 --format %s --parallel-regions %d --output %s %s %s",
+                    DiscoverSequenceVariantsMode.OutputFormat.SEQUENCE_BASE_INFORMATION, parallelRegions, output,
+                    regionBasenames[0], regionBasenames[1]).split("[\\s]");
+            configureTestGenome(mode);
+            mode.configure(args);
+            mode.setCallIndels(false);
+            mode.execute();
+        }
+        final List<String> serial = new ArrayList<>();
+        for (final BaseInformationRecords.BaseInformation record :
+                new SequenceBaseInformationReader(BASE_TEST_DIR + "/out-shards-1.sbi")) {
+            serial.add(record.getReferenceIndex() + ":" + record.getPosition());
+        }
+        assertTrue(serial.size() > 100);
+        // the shards hold the sites of the serial output, in genomic order. Reads that start before the flap of a
+        // region are not seen by that region, so counts of sites next to a region boundary may differ:
+        final List<String> sharded = new ArrayList<>();
+        for (int shard = 0; new File(BASE_TEST_DIR + "/out-shards-3-shard-" + shard + ".sbi").exists(); shard++) {
+            for (final BaseInformationRecords.BaseInformation record :
+                    new SequenceBaseInformationReader(BASE_TEST_DIR + "/out-shards-3-shard-" + shard + ".sbi")) {
+                sharded.add(record.getReferenceIndex() + ":" + record.getPosition());
+            }
+        }
+        assertEquals(serial.toString(), sharded.toString());
+        final SequenceBaseInformationReader serialReader = new SequenceBaseInformationReader(BASE_TEST_DIR + "/out-shards-1.sbi");
+        final Properties properties = new Properties();
+        properties.load(new FileInputStream(BASE_TEST_DIR + "/out-shards-3.sbip"));
+        assertEquals(Integer.toString(serial.size()), properties.getProperty("numRecords"));
+        assertEquals(serialReader.getProperties().getProperty("stats.genomicContextSize.max"),
+                properties.getProperty("stats.genomicContextSize.max"));
+        serialReader.close();
+    }
+
+    @Test
+    public void testParallelRegionsSequenceBaseInformationMatchesSerial() throws IOException, JSAPException {
+        final String[] regionBasenames = new String[]{BASE_TEST_DIR + "/sbi-regions-A", BASE_TEST_DIR + "/sbi-regions-B"};
+        writeRegionAlignment(regionBasenames[0], 'G');
+        writeRegionAlignment(regionBasenames[1], 'T');
+        for (final int parallelRegions : new int[]{1, 4}) {
+            final DiscoverSequenceVariantsMode mode = new DiscoverSequenceVariantsMode();
+            final String output = BASE_TEST_DIR + "/out-sbi-regions-" + parallelRegions + ".sbi";
+            final String[] args = String.format("--mode discover-sequence-variants --groups 0=sbi-regions-A/1=sbi-regions-B " +
+                            "--compare 0/1 --genome use-dummy-in-test --minimum-variation-support 0 " +
+                            "--threshold-distinct-read-indices 1 --format %s --parallel-regions %d --output %s %s %s",
+                    DiscoverSequenceVariantsMode.OutputFormat.SEQUENCE_BASE_INFORMATION, parallelRegions, output,
+                    regionBasenames[0], regionBasenames[1]).split("[\\s]");
+            configureTestGenome(mode);
+            mode.configure(args);
+            mode.setCallIndels(false);
+            mode.execute();
+        }
+        final List<BaseInformationRecords.BaseInformation> serial = new ArrayList<>();
+        for (final BaseInformationRecords.BaseInformation record :
+                new SequenceBaseInformationReader(BASE_TEST_DIR + "/out-sbi-regions-1.sbi")) {
+            serial.add(record);
+        }
+        final List<BaseInformationRecords.BaseInformation> sharded = new ArrayList<>();
+        int numShards = 0;
+        for (; new File(BASE_TEST_DIR + "/out-sbi-regions-4-shard-" + numShards + ".sbi").exists(); numShards++) {
+            for (final BaseInformationRecords.BaseInformation record :
+                    new SequenceBaseInformationReader(BASE_TEST_DIR + "/out-sbi-regions-4-shard-" + numShards + ".sbi")) {
+                sharded.add(record);
+            }
+        }
+        assertTrue(numShards > 1);
+        assertTrue(serial.size() > 100);
+        // the records written by concurrent regions, including genomic contexts and frequency lists, must be
+        // the records of the serial run:
+        assertEquals(serial.size(), sharded.size());
+        for (int i = 0; i < serial.size(); i++) {
+            org.junit.Assert.assertEquals("record " + i + " differs", serial.get(i).toString(), sharded.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testRecycledPositionsMatchAllocated() throws IOException, JSAPException {
+        final String[] regionBasenames = new String[]{BASE_TEST_DIR + "/recycle-A", BASE_TEST_DIR + "/recycle-B"};
+        writeRegionAlignment(regionBasenames[0], 'G');
+        writeRegionAlignment(regionBasenames[1], 'T');
+        try {
+            for (final boolean recycle : new boolean[]{false, true}) {
+                IterateSortedAlignmentsListImpl.doc().setValue("recycle-positions", recycle);
+                final DiscoverSequenceVariantsMode mode = new DiscoverSequenceVariantsMode();
+                final String output = BASE_TEST_DIR + "/out-recycle-" + recycle + ".tsv";
+                final String[] args = String.format("--mode discover-sequence-variants --groups A=recycle-A/B=recycle-B " +
+                                "--compare A/B --genome use-dummy-in-test --minimum-variation-support 0 " +
+                                "--threshold-distinct-read-indices 1 --format %s --output %s %s %s",
+                        DiscoverSequenceVariantsMode.OutputFormat.BETWEEN_GROUPS, output,
+                        regionBasenames[0], regionBasenames[1]).split("[\\s]");
+                configureTestGenome(mode);
+                mode.configure(args);
+                mode.setCallIndels(false);
+                mode.execute();
+                final IterateSortedAlignmentsListImpl iterator = mode.sortedPositionIterator;
+                assertTrue(iterator.getNumBaseInfosObserved() > 0);
+                if (recycle) {
+                    // only the bases of the positions accumulated at the same time need to be allocated:
+                    assertTrue(iterator.getNumBaseInfosAllocated() * 10 < iterator.getNumBaseInfosObserved());
+                    assertTrue(iterator.getNumPositionDataAllocated() * 10 < iterator.getNumPositionsObserved());
+                } else {
+                    assertTrue(iterator.getNumBaseInfosObserved() == iterator.getNumBaseInfosAllocated());
+                    assertTrue(iterator.getNumPositionsObserved() == iterator.getNumPositionDataAllocated());
+                }
+            }
+        } finally {
+            IterateSortedAlignmentsListImpl.doc().setValue("recycle-positions", true);
+        }
+        assertTrue(FileUtils.contentEquals(new File(BASE_TEST_DIR + "/out-recycle-false.tsv"),
+                new File(BASE_TEST_DIR + "/out-recycle-true.tsv")));
+    }
+
+    /**
+     * Write an alignment with reads tiling two reference sequences, in small chunks, so that it can be split into
+     * several regions.
+     */
+    private static void writeRegionAlignment(final String basename, final char toBase) throws IOException {
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        writer.setNumAlignmentEntriesPerChunk(20);
+        writer.setTargetLengths(new int[]{5000, 5000});
+        writer.setSorted(true);
+        writer.setTargetIdentifiersArray(new String[]{"target1", "target2"});
+        int queryIndex = 0;
+        for (int targetIndex = 0; targetIndex < 2; targetIndex++) {
+            for (int position = 0; position < 4900; position += 7) {
+                final Alignments.AlignmentEntry.Builder builder = Alignments.AlignmentEntry.newBuilder();
+                builder.setQueryIndex(queryIndex++);
+                builder.setTargetIndex(targetIndex);
+                builder.setQueryLength(50);
+                builder.setPosition(position);
+                builder.setMatchingReverseStrand(queryIndex % 2 == 0);
+                builder.setScore(50);
+                builder.setNumberOfIndels(0);
+                builder.setQueryAlignedLength(50);
+                builder.setMultiplicity(1);
+                builder.setTargetAlignedLength(50);
+                final Alignments.SequenceVariation.Builder varBuilder = Alignments.SequenceVariation.newBuilder();
+                varBuilder.setFrom("A");
+                varBuilder.setTo(Character.toString(toBase));
+                varBuilder.setToQuality(ByteString.copyFrom(new byte[]{40}));
+                varBuilder.setPosition(1 + queryIndex % 40);
+                varBuilder.setReadIndex(1 + queryIndex % 40);
+                builder.addSequenceVariations(varBuilder);
+                writer.appendEntry(builder.build());
+            }
+        }
+        writer.close();
+    }
+
     @Test
     public void testQualityScoreAdjuster() {
         QualityScoreFilter adjuster = new QualityScoreFilter();
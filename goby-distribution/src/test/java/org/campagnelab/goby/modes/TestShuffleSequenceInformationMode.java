@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.modes;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.dl.varanalysis.protobuf.BaseInformationRecords;
+import org.campagnelab.dl.varanalysis.protobuf.SegmentInformationRecords;
+import org.campagnelab.goby.baseinfo.SequenceBaseInformationReader;
+import org.campagnelab.goby.baseinfo.SequenceBaseInformationWriter;
+import org.campagnelab.goby.baseinfo.SequenceSegmentInformationReader;
+import org.campagnelab.goby.baseinfo.SequenceSegmentInformationWriter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ */
+public class TestShuffleSequenceInformationMode {
+    private static final String BASE_TEST_DIR = "test-results/shuffle-sequence-information";
+    private static final int NUM_RECORDS = 5000;
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final SequenceBaseInformationWriter sbiWriter = new SequenceBaseInformationWriter(BASE_TEST_DIR + "/sites");
+        sbiWriter.setNumEntriesPerChunk(100);
+        for (int position = 0; position < NUM_RECORDS; position++) {
+            sbiWriter.appendEntry(BaseInformationRecords.BaseInformation.newBuilder()
+                    .setReferenceIndex(0).setReferenceId("chr1").setPosition(position).build());
+        }
+        sbiWriter.close();
+        final SequenceSegmentInformationWriter ssiWriter = new SequenceSegmentInformationWriter(BASE_TEST_DIR + "/segments");
+        ssiWriter.setNumEntriesPerChunk(100);
+        for (int position = 0; position < NUM_RECORDS; position++) {
+            ssiWriter.appendEntry(SegmentInformationRecords.SegmentInformation.newBuilder()
+                    .setStartPosition(SegmentInformationRecords.ReferencePosition.newBuilder().setLocation(position))
+                    .setLength(1).build());
+        }
+        ssiWriter.close();
+    }
+
+    private static int[] shuffleSites(final String output, final long seed, final int bufferSize) throws IOException {
+        shuffle(BASE_TEST_DIR + "/sites.sbi", output, seed, bufferSize);
+        final IntArrayList positions = new IntArrayList();
+        final SequenceBaseInformationReader reader = new SequenceBaseInformationReader(output);
+        for (final BaseInformationRecords.BaseInformation record : reader) {
+            positions.add(record.getPosition());
+        }
+        assertEquals(Integer.toString(NUM_RECORDS), reader.getProperties().getProperty("numRecords"));
+        reader.close();
+        return positions.toIntArray();
+    }
+
+    private static void shuffle(final String input, final String output, final long seed, final int bufferSize)
+            throws IOException {
+        final ShuffleSequenceInformationMode mode = new ShuffleSequenceInformationMode();
+        mode.setInputFilename(input);
+        mode.setOutputFilename(output);
+        mode.setSeed(seed);
+        mode.setBufferSize(bufferSize);
+        mode.execute();
+    }
+
+    private static void assertPermutation(final int[] positions) {
+        assertEquals(NUM_RECORDS, positions.length);
+        final int[] sorted = positions.clone();
+        IntArrays.quickSort(sorted);
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            assertEquals(i, sorted[i]);
+        }
+    }
+
+    @Test
+    public void testChunkOffsets() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(BASE_TEST_DIR + "/sites.sbi", "r");
+        try {
+            assertEquals(NUM_RECORDS / 100, ShuffleSequenceInformationMode.readChunkOffsets(file).size());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testShuffleBaseInformation() throws IOException {
+        final int[] shuffled = shuffleSites(BASE_TEST_DIR + "/shuffled-1.sbi", 1, 1000);
+        assertPermutation(shuffled);
+        int inOrder = 0;
+        for (int i = 1; i < shuffled.length; i++) {
+            if (shuffled[i] == shuffled[i - 1] + 1) {
+                inOrder++;
+            }
+        }
+        // records of a chunk are mixed with records of other chunks:
+        assertTrue("too many records remain in order: " + inOrder, inOrder < NUM_RECORDS / 20);
+    }
+
+    @Test
+    public void testSeedIsReproducible() throws IOException {
+        final int[] first = shuffleSites(BASE_TEST_DIR + "/shuffled-2a.sbi", 2, 300);
+        final int[] second = shuffleSites(BASE_TEST_DIR + "/shuffled-2b.sbi", 2, 300);
+        final int[] other = shuffleSites(BASE_TEST_DIR + "/shuffled-3.sbi", 3, 300);
+        assertTrue(Arrays.equals(first, second));
+        assertFalse(Arrays.equals(first, other));
+        // a buffer smaller than a chunk still keeps every record:
+        assertPermutation(shuffleSites(BASE_TEST_DIR + "/shuffled-4.sbi", 4, 10));
+    }
+
+    @Test
+    public void testShuffleSegmentInformation() throws IOException {
+        shuffle(BASE_TEST_DIR + "/segments.ssi", BASE_TEST_DIR + "/shuffled-segments", 5, 1000);
+        final IntArrayList positions = new IntArrayList();
+        final SequenceSegmentInformationReader reader =
+                new SequenceSegmentInformationReader(BASE_TEST_DIR + "/shuffled-segments.ssi");
+        for (final SegmentInformationRecords.SegmentInformation segment : reader) {
+            positions.add(segment.getStartPosition().getLocation());
+        }
+        assertEquals(NUM_RECORDS, reader.getTotalRecords());
+        reader.close();
+        assertPermutation(positions.toIntArray());
+        assertFalse(positions.getInt(0) == 0 && positions.getInt(1) == 1);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2009-2017 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.campagnelab.goby.modes;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.reads.ReadSet;
+import org.campagnelab.goby.reads.ReadsWriter;
+import org.campagnelab.goby.reads.ReadsWriterImpl;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Fabien Campagne
+ */
+public class TestTallyReadsMode {
+    private static final String BASE_TEST_DIR = "test-results/tally-reads";
+    private static final List<String> SEQUENCES = new ArrayList<String>();
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final Random random = new Random(42);
+        final String[] frequent = new String[20];
+        for (int i = 0; i < frequent.length; i++) {
+            frequent[i] = randomSequence(random, 30);
+        }
+        for (int readIndex = 0; readIndex < 3000; readIndex++) {
+            final String sequence;
+            switch (readIndex % 3) {
+                case 0:
+                    sequence = frequent[random.nextInt(frequent.length)];
+                    break;
+                case 1:
+                    sequence = randomSequence(random, 30);
+                    break;
+                default:
+                    // short reads of different lengths whose 2-bit encodings share bytes:
+                    sequence = "ACGTG".substring(0, 1 + random.nextInt(5));
+                    break;
+            }
+            SEQUENCES.add(sequence);
+        }
+        final ReadsWriter writer = new ReadsWriterImpl(FileUtils.openOutputStream(
+                new File(BASE_TEST_DIR + "/reads.compact-reads")));
+        writer.setNumEntriesPerChunk(100);
+        for (final String sequence : SEQUENCES) {
+            writer.setSequence(sequence);
+            writer.appendEntry();
+        }
+        writer.close();
+    }
+
+    private static String randomSequence(final Random random, final int length) {
+        final StringBuilder sequence = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sequence.append("ACGT".charAt(random.nextInt(4)));
+        }
+        return sequence.toString();
+    }
+
+    private static ReadSet tally(final int numPartitions, final int numThreads) throws IOException {
+        final String output = BASE_TEST_DIR + "/partitions-" + numPartitions;
+        final TallyReadsMode mode = new TallyReadsMode();
+        mode.setInputFilename(BASE_TEST_DIR + "/reads.compact-reads");
+        mode.setOutputBasename(output);
+        mode.setNumPartitions(numPartitions);
+        mode.setNumThreads(numThreads);
+        mode.setTempDir(BASE_TEST_DIR);
+        mode.execute();
+        final ReadSet set = new ReadSet();
+        set.load(output, "keep");
+        return set;
+    }
+
+    @Test
+    public void testPartitionedTally() throws IOException {
+        // the first read of each distinct sequence is kept, with the number of reads with the sequence:
+        final Object2IntMap<String> firstReadIndex = new Object2IntOpenHashMap<String>();
+        final Object2IntMap<String> counts = new Object2IntOpenHashMap<String>();
+        for (int readIndex = 0; readIndex < SEQUENCES.size(); readIndex++) {
+            final String sequence = SEQUENCES.get(readIndex);
+            if (!firstReadIndex.containsKey(sequence)) {
+                firstReadIndex.put(sequence, readIndex);
+            }
+            counts.put(sequence, counts.getInt(sequence) + 1);
+        }
+        for (final int numPartitions : new int[]{1, 7}) {
+            final ReadSet set = tally(numPartitions, 3);
+            assertEquals(firstReadIndex.size(), set.size());
+            for (int readIndex = 0; readIndex < SEQUENCES.size(); readIndex++) {
+                final String sequence = SEQUENCES.get(readIndex);
+                if (firstReadIndex.getInt(sequence) == readIndex) {
+                    assertTrue(set.contains(readIndex));
+                    assertEquals(counts.getInt(sequence), set.getMultiplicity(readIndex));
+                } else {
+                    assertFalse(set.contains(readIndex));
+                }
+            }
+        }
+        assertEquals(0, new File(BASE_TEST_DIR).listFiles((dir, name) -> name.startsWith("tally-reads-")).length);
+    }
+}
@@ -0,0 +1,127 @@
+package org.campagnelab.goby.predictions;
+
+import org.campagnelab.goby.algorithmic.dsv.DiscoverVariantPositionData;
+import org.campagnelab.goby.algorithmic.dsv.SampleCountInfo;
+import org.campagnelab.goby.alignments.PositionBaseInfo;
+import org.campagnelab.goby.reads.RandomAccessSequenceInterface;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the default batch prediction API, and the copies made to buffer sites before they are predicted.
+ *
+ * @author Fabien Campagne
+ */
+public class TestPredictBatch {
+
+    @Test
+    public void defaultBatchKeepsSiteOrder() {
+        final List<PredictionSite> sites = new ArrayList<PredictionSite>();
+        for (int position = 0; position < 10; position++) {
+            sites.add(new PredictionSite(null, "chr1", new SampleCountInfo[0], 0, position,
+                    new DiscoverVariantPositionData(position, 'A'), new int[]{-1, -1, 0, 1}));
+        }
+        final List<SomaticPrediction> predictions = new PositionPredictor().predictBatch(sites);
+        assertEquals(10, predictions.size());
+        for (int position = 0; position < 10; position++) {
+            final SomaticPrediction prediction = predictions.get(position);
+            assertEquals(position / 10.0, prediction.probabilityIsMutated(), 1E-9);
+            assertEquals(1 - position / 10.0, prediction.probabilityIsNotMutated(), 1E-9);
+            assertEquals(position % 2 == 0, prediction.hasSomaticAllele());
+            assertFalse(prediction.hasSomaticFrequency());
+        }
+        assertEquals("C", predictions.get(4).getSomaticAllele());
+    }
+
+    @Test
+    public void copiesAreIndependent() {
+        final SampleCountInfo counts = new SampleCountInfo();
+        counts.setGenotypeCount(SampleCountInfo.BASE_C_INDEX, 7);
+        counts.refCount = 3;
+        final SampleCountInfo[] copies = SampleCountInfo.copy(new SampleCountInfo[]{counts});
+        counts.clearGenotypeCount(SampleCountInfo.BASE_C_INDEX);
+        counts.refCount = 0;
+        assertEquals(7, copies[0].getGenotypeCount(SampleCountInfo.BASE_C_INDEX));
+        assertEquals(3, copies[0].refCount);
+
+        final DiscoverVariantPositionData list = new DiscoverVariantPositionData(12, 'G');
+        final PositionBaseInfo info = new PositionBaseInfo();
+        info.to = 'T';
+        info.qualityScore = 30;
+        list.add(info);
+        final DiscoverVariantPositionData copy = list.copy();
+        list.reset();
+        info.reset();
+        assertEquals(12, copy.getZeroBasedPosition());
+        assertEquals('G', copy.getReferenceBase());
+        assertEquals(1, copy.size());
+        assertEquals('T', copy.get(0).to);
+        assertEquals(30, copy.get(0).qualityScore);
+    }
+
+    /**
+     * A predictor whose probability is derived from the position of the site.
+     */
+    private static class PositionPredictor implements SomaticPredictor {
+        private int pos;
+
+        @Override
+        public void predict(RandomAccessSequenceInterface genome, String referenceId, SampleCountInfo[] sampleCounts,
+                            int referenceIndex, int pos, DiscoverVariantPositionData list, int[] readerIdxs) {
+            this.pos = pos;
+        }
+
+        @Override
+        public double probabilityIsMutated() {
+            return pos / 10.0;
+        }
+
+        @Override
+        public double probabilityIsNotMutated() {
+            return 1 - pos / 10.0;
+        }
+
+        @Override
+        public float getSomaticFrequency() {
+            return 0;
+        }
+
+        @Override
+        public boolean hasSomaticFrequency() {
+            return false;
+        }
+
+        @Override
+        public boolean hasSomaticAllele() {
+            return pos % 2 == 0;
+        }
+
+        @Override
+        public String getSomaticAllele() {
+            return "C";
+        }
+
+        @Override
+        public String getModelPath(String fullModelPath) {
+            return null;
+        }
+
+        @Override
+        public String getModelPrefix(String fullModelPath) {
+            return null;
+        }
+
+        @Override
+        public void loadModel(String modelPath, String modelPrefix) {
+        }
+
+        @Override
+        public boolean modelIsLoaded() {
+            return true;
+        }
+    }
+}
@@ -19,11 +19,17 @@
 package org.campagnelab.goby.reads;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.martiansoftware.jsap.JSAPException;
 import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.goby.modes.BuildSequenceCacheMode;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 
@@ -110,6 +116,121 @@ public class TestRandomAccessSequenceCache {
         assertEquals('N', cache.get(1, i++));
     }
 
+    @Test
+    public void testMappedMatchesLoaded() throws IOException, ClassNotFoundException {
+        final String seqs = ">1 first\n" +
+                "ACTGNNNACTGgattacaRNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNN\n" +
+                ">2\n" +
+                "NNNNNANNNNN\n" +
+                ">3\n" +
+                "GGGGGGGGNGGGGGGGGGACN\n";
+        final RandomAccessSequenceCache builder = new RandomAccessSequenceCache();
+        builder.loadFasta(new StringReader(seqs));
+        final File dir = new File("test-results/mapped-genome");
+        FileUtils.forceMkdir(dir);
+        final String basename = new File(dir, "genome").getPath();
+        FileUtils.deleteQuietly(new File(basename + MappedSequenceCache.MAPPED_EXTENSION));
+        builder.save(basename);
+        builder.saveMapped(basename);
+
+        final MappedSequenceCache mapped = MappedSequenceCache.map(basename);
+        assertEquals(builder.size(), mapped.size());
+        for (int referenceIndex = 0; referenceIndex < builder.size(); referenceIndex++) {
+            assertEquals(builder.getReferenceName(referenceIndex), mapped.getReferenceName(referenceIndex));
+            assertEquals(referenceIndex, mapped.getReferenceIndex(builder.getReferenceName(referenceIndex)));
+            assertEquals(builder.getLength(referenceIndex), mapped.getLength(referenceIndex));
+            for (int position = 0; position < builder.getLength(referenceIndex); position++) {
+                assertEquals(builder.get(referenceIndex, position), mapped.get(referenceIndex, position));
+            }
+        }
+        assertEquals(-1, mapped.getReferenceIndex("unknown"));
+
+        // load must prefer the mapped layout when it exists:
+        final RandomAccessSequenceCache loaded = new RandomAccessSequenceCache();
+        loaded.load(basename);
+        final MutableString bases = new MutableString();
+        loaded.getRange(0, 0, 12, bases);
+        assertEquals("ACTGNNNACTGG", bases.toString());
+        assertEquals(builder.getRange(2, 16, 3, "3"), loaded.getRange(2, 16, 3, "3"));
+    }
+
+    @Test
+    public void testStaleMappedIgnored() throws IOException, ClassNotFoundException, JSAPException {
+        final File dir = new File("test-results/mapped-genome-stale");
+        FileUtils.forceMkdir(dir);
+        final String basename = new File(dir, "genome").getPath();
+        final File mappedFile = new File(basename + MappedSequenceCache.MAPPED_EXTENSION);
+        final File basesFile = new File(basename + ".bases");
+        final RandomAccessSequenceCache first = new RandomAccessSequenceCache();
+        first.loadFasta(new StringReader(">1\nACGTACGTAC\n>2\nGGGG\n"));
+        first.save(basename);
+        first.saveMapped(basename);
+        assertTrue(MappedSequenceCache.canMap(basename));
+
+        // rebuild with other sequences, without the mapped layout:
+        final RandomAccessSequenceCache second = new RandomAccessSequenceCache();
+        second.loadFasta(new StringReader(">1\nTTTTTTTT\n>2\nCCCCCC\n"));
+        second.save(basename);
+        // the lengths and checksum of the previous mapped layout must not match, even when it looks recent:
+        assertTrue(mappedFile.setLastModified(basesFile.lastModified() + 10000));
+        assertFalse(MappedSequenceCache.canMap(basename));
+        final RandomAccessSequenceCache loaded = new RandomAccessSequenceCache();
+        loaded.load(basename);
+        final MutableString bases = new MutableString();
+        loaded.getRange(0, 0, 8, bases);
+        assertEquals("TTTTTTTT", bases.toString());
+
+        // a mapped layout older than the serialized cache is ignored:
+        second.saveMapped(basename);
+        assertTrue(MappedSequenceCache.canMap(basename));
+        assertTrue(mappedFile.setLastModified(basesFile.lastModified() - 10000));
+        assertFalse(MappedSequenceCache.canMap(basename));
+
+        // building without the mapped layout deletes the previous one:
+        final File fasta = new File(dir, "genome.fa");
+        FileUtils.writeStringToFile(fasta, ">1\nACGT\n");
+        final BuildSequenceCacheMode mode = new BuildSequenceCacheMode();
+        mode.configure(new String[]{"--mode", "build-sequence-cache", "--basename", basename, "--no-mapped",
+                fasta.getPath()});
+        mode.execute();
+        assertFalse(mappedFile.exists());
+    }
+
+    @Test
+    public void testBulkRangeMatchesGet() throws IOException, ClassNotFoundException {
+        final String seqs = ">1\n" +
+                "ACTGNNNACTGgattacaRNNNNNNNNNNNNNACGTACGTNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNTTTTAG\n" +
+                ">2\n" +
+                "NNNNNANNNNN\n";
+        final RandomAccessSequenceCache builder = new RandomAccessSequenceCache();
+        builder.loadFasta(new StringReader(seqs));
+        assertBulkRangeMatchesGet(builder);
+
+        final File dir = new File("test-results/mapped-genome");
+        FileUtils.forceMkdir(dir);
+        final String basename = new File(dir, "bulk-genome").getPath();
+        builder.save(basename);
+        builder.saveMapped(basename);
+        assertBulkRangeMatchesGet(MappedSequenceCache.map(basename));
+    }
+
+    private void assertBulkRangeMatchesGet(final RandomAccessSequenceInterface genome) {
+        for (int referenceIndex = 0; referenceIndex < genome.size(); referenceIndex++) {
+            final int sequenceLength = genome.getLength(referenceIndex);
+            final byte[] dest = new byte[sequenceLength + 3];
+            for (int position = 0; position < sequenceLength; position++) {
+                for (int length = 0; position + length <= sequenceLength + 3; length++) {
+                    genome.getRange(referenceIndex, position, length, dest);
+                    for (int i = 0; i < length; i++) {
+                        final char expected = position + i < sequenceLength ? genome.get(referenceIndex, position + i) : 'N';
+                        assertEquals("position=" + position + " length=" + length + " i=" + i,
+                                expected, (char) dest[i]);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Test creation of a sequence
      * @throws IOException
@@ -27,10 +27,12 @@ import org.apache.commons.math.stat.inference.ChiSquareTest;
 import org.apache.commons.math.stat.inference.ChiSquareTestImpl;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -729,6 +731,106 @@ public class TestStatistics {
             , 8.890803e-01, 8.802645e-01, 9.345104e-01, 9.304775e-01, 9.437890e-01
     };
 
+    @Test
+    public void testColumnarFDRMatchesList() throws IOException {
+        final Random randomEngine = new Random(1013);
+        final int numObservations = 20000;
+        final DifferentialExpressionResults list = new DifferentialExpressionResults();
+        list.declareStatistic("p1");
+        list.declareStatistic("p2");
+        final ColumnarStatistics table = new ColumnarStatistics(16);
+        table.declareStatistic("p1");
+        table.declareStatistic("p2");
+        long elementIndex = 0;
+        for (int i = 0; i < numObservations; i++) {
+            // skip some element indices, as the fdr mode does for lines above the threshold:
+            elementIndex += 1 + randomEngine.nextInt(3);
+            final DifferentialExpressionInfo info = new DifferentialExpressionInfo(Long.toString(elementIndex));
+            final int row = table.addRow(elementIndex);
+            for (int statIndex = 0; statIndex < 2; statIndex++) {
+                final double random = randomEngine.nextDouble();
+                // include NaN and tied P-values:
+                final double pValue = random < 0.1 ? Double.NaN : random < 0.2 ? 0.5 : randomEngine.nextDouble();
+                info.statistics.add(pValue);
+                table.set(row, statIndex, pValue);
+            }
+            list.add(info);
+        }
+        final BenjaminiHochbergAdjustment fdr = new BenjaminiHochbergAdjustment();
+        fdr.setNumberAboveThreshold(1000);
+        for (final String statId : new String[]{"p1", "p2"}) {
+            fdr.adjust(list, statId);
+            fdr.adjust(table, statId);
+        }
+        assertEquals(list.getNumberOfStatistics(), table.getNumberOfStatistics());
+        final int[] order = table.getRowOrder();
+        for (int i = 0; i < numObservations; i++) {
+            // rows are ranked in the order of the sorted list:
+            final DifferentialExpressionInfo info = list.get(i);
+            final int row = order[i];
+            assertEquals(Long.parseLong(info.getElementId().toString()), table.getElementIndex(row));
+            assertEquals(row, table.findRow(table.getElementIndex(row)));
+            for (int statIndex = 0; statIndex < list.getNumberOfStatistics(); statIndex++) {
+                assertEquals(list.getStatisticIdForIndex(statIndex), table.getStatisticIdForIndex(statIndex));
+                assertEquals(info.statistics.getDouble(statIndex), table.get(row, statIndex), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testExternalFDRMatchesColumnar() throws IOException {
+        final Random randomEngine = new Random(1014);
+        final int numObservations = 10000;
+        final ColumnarStatistics table = new ColumnarStatistics(16);
+        new File("test-results/stats").mkdirs();
+        // small runs, so that the q-values come from a merge of many runs:
+        final ExternalColumnarStatistics external = new ExternalColumnarStatistics(new File("test-results/stats"), 777, 10);
+        try {
+            for (final StatisticsStore store : new StatisticsStore[]{table, external}) {
+                store.declareStatistic("p1");
+                store.declareStatistic("p2");
+            }
+            long elementIndex = 0;
+            final double[] pValues = new double[2];
+            for (int i = 0; i < numObservations; i++) {
+                elementIndex += 1 + randomEngine.nextInt(3);
+                for (int statIndex = 0; statIndex < 2; statIndex++) {
+                    final double random = randomEngine.nextDouble();
+                    pValues[statIndex] = random < 0.1 ? Double.NaN : random < 0.2 ? 0.5 : randomEngine.nextDouble();
+                }
+                table.addRow(elementIndex, pValues);
+                external.addRow(elementIndex, pValues);
+            }
+            final BenjaminiHochbergAdjustment fdr = new BenjaminiHochbergAdjustment();
+            fdr.setNumberAboveThreshold(1000);
+            for (final String statId : new String[]{"p1", "p2"}) {
+                fdr.adjust(table, statId);
+                fdr.adjust(external, statId);
+            }
+            assertEquals(4, external.getNumberOfStatistics());
+            assertEquals(numObservations, external.getNumberOfRows());
+            final long[] topElements = external.getTopElementIndices(10);
+            assertEquals(10, topElements.length);
+            final StatisticsStore.RowCursor expected = table.cursor();
+            final StatisticsStore.RowCursor cursor = external.cursor();
+            for (long element = 0; element <= elementIndex; element++) {
+                final boolean found = expected.seek(element);
+                assertEquals(found, cursor.seek(element));
+                if (found) {
+                    for (int statIndex = 0; statIndex < 4; statIndex++) {
+                        assertEquals(expected.get(statIndex), cursor.get(statIndex), 0);
+                    }
+                }
+            }
+            // the smallest P-values are not tied, top elements are the same as in memory:
+            assertArrayEquals(table.getTopElementIndices(10), topElements);
+            expected.close();
+            cursor.close();
+        } finally {
+            external.close();
+        }
+    }
+
     private DifferentialExpressionResults toList(double[] p) {
         final DifferentialExpressionResults list2 = new DifferentialExpressionResults();
         list2.declareStatistic("p-value");
@@ -0,0 +1,127 @@
+package org.campagnelab.goby.util.barcode;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that the hashed matcher returns the same matches as the matchers that compare every barcode.
+ *
+ * @author Fabien Campagne
+ */
+public class TestHashedBarcodeMatcher {
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+    private static final String ADAPTER = "TCGTATGCCGTCTTCTGCTTG";
+
+    /**
+     * Build random reads that end (post) or start (pre) with a possibly truncated and mutated barcode.
+     */
+    private static MutableString[] reads(final String[] barcodes, final boolean post, final Random random) {
+        final MutableString[] reads = new MutableString[500];
+        for (int i = 0; i < reads.length; i++) {
+            final MutableString read = new MutableString();
+            final int insertLength = random.nextInt(30);
+            final MutableString insert = new MutableString();
+            for (int j = 0; j < insertLength; j++) {
+                insert.append(BASES[random.nextInt(4)]);
+            }
+            final String barcode = barcodes[random.nextInt(barcodes.length)];
+            final MutableString tag = new MutableString(barcode.substring(0, 3 + random.nextInt(barcode.length() - 2)));
+            final int numMutations = random.nextInt(4);
+            for (int j = 0; j < numMutations; j++) {
+                tag.setCharAt(random.nextInt(tag.length()), random.nextInt(20) == 0 ? 'N' : BASES[random.nextInt(4)]);
+            }
+            if (post) {
+                read.append(insert).append(tag);
+            } else {
+                read.append(tag).append(insert);
+            }
+            reads[i] = read;
+        }
+        return reads;
+    }
+
+    private static void assertSameMatches(final BarcodeMatcher expected, final HashedBarcodeMatcher actual,
+                                          final MutableString[] reads) {
+        assertTrue(actual.isIndexed());
+        for (final MutableString read : reads) {
+            final BarcodeMatcherResult expectedMatch = expected.matchSequence(read);
+            final BarcodeMatcherResult actualMatch = actual.matchSequence(read);
+            assertEquals("read " + read, expectedMatch, actualMatch);
+        }
+        assertEquals(expected.getBarcodeIndexToHitsMap(), actual.getBarcodeIndexToHitsMap());
+    }
+
+    private static String[] barcodes(final int numBarcodes, final int length, final String adapter,
+                                     final Random random) {
+        final String[] barcodes = new String[numBarcodes];
+        for (int i = 0; i < numBarcodes; i++) {
+            final MutableString barcode = new MutableString();
+            for (int j = 0; j < length; j++) {
+                barcode.append(BASES[random.nextInt(4)]);
+            }
+            barcodes[i] = barcode.append(adapter).toString();
+        }
+        return barcodes;
+    }
+
+    @Test
+    public void sameAsPostMatcher() {
+        final Random random = new Random(37);
+        for (int allowedMismatches = 0; allowedMismatches <= 2; allowedMismatches++) {
+            final MutableString[] reads = reads(TestPostBarcodeMatcher.TEST_BARCODES, true, random);
+            assertSameMatches(new PostBarcodeMatcher(TestPostBarcodeMatcher.TEST_BARCODES, 5, allowedMismatches),
+                    new HashedBarcodeMatcher(
+                            new PostBarcodeMatcher(TestPostBarcodeMatcher.TEST_BARCODES, 5, allowedMismatches)),
+                    reads);
+        }
+    }
+
+    @Test
+    public void sameAsPreMatcher() {
+        final Random random = new Random(41);
+        final String[] barcodes = barcodes(96, 6, "", random);
+        for (int allowedMismatches = 0; allowedMismatches <= 2; allowedMismatches++) {
+            final MutableString[] reads = reads(barcodes, false, random);
+            assertSameMatches(new PreBarcodeMatcher(barcodes, 4, allowedMismatches),
+                    new HashedBarcodeMatcher(new PreBarcodeMatcher(barcodes, 4, allowedMismatches)), reads);
+        }
+    }
+
+    @Test
+    public void barcodesLongerThanKeys() {
+        final Random random = new Random(43);
+        final String[] barcodes = barcodes(24, 8, ADAPTER + "ACGTACGT", random);
+        final MutableString[] reads = reads(barcodes, true, random);
+        assertSameMatches(new PostBarcodeMatcher(barcodes, 6, 1),
+                new HashedBarcodeMatcher(new PostBarcodeMatcher(barcodes, 6, 1)), reads);
+    }
+
+    @Test
+    public void ambiguousMatch() {
+        final String[] barcodes = {"ACGTAC" + ADAPTER, "ACGTAA" + ADAPTER, "TTTTTT" + ADAPTER};
+        final HashedBarcodeMatcher matcher = new HashedBarcodeMatcher(new PostBarcodeMatcher(barcodes, 6, 1));
+        final BarcodeMatcherResult ambiguous = matcher.matchSequence(new MutableString("GGGGGGGGGGACGTAG"));
+        assertEquals(0, ambiguous.getBarcodeIndex());
+        assertEquals(1, ambiguous.getNumberOfDiffs());
+        assertTrue(ambiguous.isAmbiguous());
+        final BarcodeMatcherResult perfect = matcher.matchSequence(new MutableString("GGGGGGGGGGACGTAA"));
+        assertEquals(1, perfect.getBarcodeIndex());
+        assertEquals(0, perfect.getNumberOfDiffs());
+        assertFalse(perfect.isAmbiguous());
+    }
+
+    @Test
+    public void notIndexed() {
+        final String[] barcodes = {"ACGTNC" + ADAPTER, "ACGTAA" + ADAPTER};
+        final HashedBarcodeMatcher matcher = new HashedBarcodeMatcher(new PostBarcodeMatcher(barcodes, 6, 1));
+        assertFalse(matcher.isIndexed());
+        assertEquals(1, matcher.matchSequence(new MutableString("GGGGGGGGGGACGTAA")).getBarcodeIndex());
+    }
+}